@@ -5,11 +5,20 @@ import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.validator.routines.InetAddressValidator;
 
 import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 /**
  * Represents an implementation of some common types and helper methods.
@@ -22,11 +31,19 @@ public class CommonTypes {
         private static final long serialVersionUID = 1L;
 
         /**
-         * Represents a message type.
+         * Represents a message type. The ordinal of a type is used as its tag
+         * on the wire, so new types must only ever be appended.
          */
         public enum Type {
             NEGOTIATION,
             BOOTSTRAP,
+            PUBSUB,
+            MUX,
+            GOSSIP,
+            SUBSCRIPTION,
+            FIND_NODE,
+            PING,
+            STREAM,
         }
 
         /**
@@ -37,7 +54,7 @@ public class CommonTypes {
         /**
          * The contents of the message (optional).
          */
-        final byte[] bytes;
+        public final byte[] bytes;
 
         /**
          * The type of the message.
@@ -70,9 +87,21 @@ public class CommonTypes {
     }
 
     /**
-     * Represents an IPFS-style MultiAddress.
+     * Represents an IPFS-style MultiAddress. A multiaddress is parsed once,
+     * into an immutable value holding each of its components, its hash code,
+     * and (once requested) its decoded public key. The most recently parsed
+     * addresses are interned, so parsing an address that has already been
+     * parsed is a single map lookup, and the key of a frequently dialed peer
+     * is only ever decoded once.
+     *
+     * On the wire, a multiaddress is sent in a compact binary form: a varint
+     * multiaddr protocol code, the raw ip address, a varint transport code, a
+     * 2-byte port, and the key. A secp256r1 key is sent as just its 65-byte
+     * point, since the rest of its encoding is the same for every key; any
+     * other key is sent as-is, length-prefixed. That is roughly a third of
+     * the size of the hex-encoded string.
      */
-    public static class MultiAddress {
+    public static final class MultiAddress {
         /**
          * Represents an exception regarding an invalid MultiAddress.
          */
@@ -90,29 +119,522 @@ public class CommonTypes {
         }
 
         /**
-         * Determine if the contents of the MultiAddress are indeed valid.
-         * 
-         * @return whether or not the MultiAddress is valid
+         * The largest number of addresses kept in the interning table. Once
+         * the table is full, the least recently used address is evicted to
+         * make room for the next one.
          */
-        public static boolean isValid(String address) {
-            String[] segments = address.split("/"); // Split address
+        public static final int MAX_INTERNED = 4096;
 
-            InetAddressValidator validator = InetAddressValidator.getInstance(); // Initialize an ip address validator
+        /**
+         * The multiaddr codes of the protocols and transports that have one.
+         * Transports without a code are written as code 0, followed by their
+         * length-prefixed name.
+         */
+        private static final int CODE_IP4 = 0x04, CODE_IP6 = 0x29, CODE_TCP = 0x06, CODE_UDP = 0x0111, CODE_DCCP = 0x21, CODE_SCTP = 0x84, CODE_QUIC = 0x01cc;
 
-            // Attempt to parse the port number
-            try {
-                int port = Integer.parseInt(segments[3]); // Parse port
+        /**
+         * The formats a key is written in: the raw encoded key, or the point
+         * of a secp256r1 key without its fixed X.509 prefix.
+         */
+        private static final int KEY_RAW = 0, KEY_P256 = 1;
+
+        /**
+         * The X.509 prefix shared by every encoded secp256r1 public key.
+         */
+        private static final byte[] P256_PREFIX = fromHex("3059301306072a8648ce3d020106082a8648ce3d030107034200");
+
+        /**
+         * The length of an uncompressed secp256r1 point.
+         */
+        private static final int P256_POINT_LENGTH = 65;
+
+        /**
+         * The pattern matched by the ip protocol of an address.
+         */
+        private static final Pattern PROTOCOL = Pattern.compile("ip([46])");
+
+        /**
+         * The pattern matched by the transport of an address.
+         */
+        private static final Pattern TRANSPORT = Pattern.compile("[a-z]{2,3}|quic");
+
+        /**
+         * The most recently used of the addresses parsed so far, keyed by the
+         * strings they were parsed from (in access order, guarded by its own
+         * monitor).
+         */
+        private static final LinkedHashMap<String, MultiAddress> interned = new LinkedHashMap<String, MultiAddress>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            /**
+             * Evicts the least recently used address once the table is full.
+             *
+             * @param eldest the least recently used address
+             * @return whether or not the address should be evicted
+             */
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MultiAddress> eldest) {
+                return this.size() > MAX_INTERNED; // Evict once over the limit
+            }
+        };
+
+        /**
+         * The ip protocol of the address (e.g. ip4).
+         */
+        public final String protocol;
+
+        /**
+         * The ip address of the peer.
+         */
+        public final String inetAddress;
+
+        /**
+         * The transport used to reach the peer (e.g. tcp).
+         */
+        public final String transport;
+
+        /**
+         * The port the peer listens on.
+         */
+        public final int port;
+
+        /**
+         * The hex-encoded public key of the peer.
+         */
+        public final String encodedKey;
+
+        /**
+         * The canonical string form of the address.
+         */
+        private final String canonical;
+
+        /**
+         * The decoded public key of the peer (null until requested).
+         */
+        private volatile PublicKey publicKey;
+
+        /**
+         * The binary form of the address (null until requested).
+         */
+        private volatile byte[] binary;
+
+        /**
+         * Initializes a new MultiAddress from its components.
+         *
+         * @param protocol the ip protocol of the address
+         * @param inetAddress the ip address of the peer
+         * @param transport the transport used to reach the peer
+         * @param port the port the peer listens on
+         * @param encodedKey the hex-encoded public key of the peer
+         */
+        private MultiAddress(String protocol, String inetAddress, String transport, int port, String encodedKey) {
+            this.protocol = protocol; // Set protocol
+            this.inetAddress = inetAddress; // Set inet address
+            this.transport = transport; // Set transport
+            this.port = port; // Set port
+            this.encodedKey = encodedKey; // Set encoded key
+            this.canonical = String.format("/%s/%s/%s/%d/%s", protocol, inetAddress, transport, port, encodedKey); // Build the canonical form
+        }
+
+        /**
+         * Parses a multiaddress, with or without a leading slash, returning
+         * the interned instance if it has been parsed before.
+         *
+         * @param address the address to parse
+         * @return the parsed address
+         */
+        public static MultiAddress parse(String address) throws InvalidMultiAddressException {
+            MultiAddress parsed; // The interned address
+
+            synchronized (interned) {
+                parsed = interned.get(address); // Get the interned address
+            }
+
+            // Check has already been parsed
+            if (parsed != null) {
+                return parsed; // Return the interned address
+            }
+
+            parsed = parseUncached(address); // Parse the address
+
+            synchronized (interned) {
+                MultiAddress existing = interned.putIfAbsent(address, parsed); // Intern the address, evicting the least recently used one if the table is full
+
+                return existing != null ? existing : parsed; // Return the interned address
+            }
+        }
+
+        /**
+         * Parses a multiaddress without consulting the interning table.
+         *
+         * @param address the address to parse
+         * @return the parsed address
+         */
+        private static MultiAddress parseUncached(String address) throws InvalidMultiAddressException {
+            String[] segments = new String[5]; // The segments of the address
+            int start = address.startsWith("/") ? 1 : 0; // Skip the leading slash
 
-                // Check port out of range
-                if (port > 65535) {
-                    return false; // Invalid port
+            // Split the address into its segments
+            for (int i = 0; i < segments.length; i++) {
+                int end = i < segments.length - 1 ? address.indexOf('/', start) : address.length(); // Find the end of the segment
+
+                // Check the segment is missing, empty, or the key contains a slash
+                if (end < 0 || end == start || (i == segments.length - 1 && address.indexOf('/', start) >= 0)) {
+                    throw new InvalidMultiAddressException("attempted to parse malformed address"); // Invalid
                 }
+
+                segments[i] = address.substring(start, end); // Take the segment
+                start = end + 1; // Move on to the next segment
+            }
+
+            int port; // The port of the address
+
+            try {
+                port = Integer.parseInt(segments[3]); // Parse port
             } catch (NumberFormatException e) {
-                return false; // Invalid port
+                throw new InvalidMultiAddressException("attempted to parse address with invalid port"); // Invalid
+            }
+
+            // Check the port is out of range
+            if (port < 0 || port > 65535) {
+                throw new InvalidMultiAddressException("attempted to parse address with invalid port"); // Invalid
+            }
+
+            // Check the protocol, ip address, or transport is invalid
+            if (!PROTOCOL.matcher(segments[0]).matches() || !InetAddressValidator.getInstance().isValid(segments[1])
+                    || !TRANSPORT.matcher(segments[2]).matches()) {
+                throw new InvalidMultiAddressException("attempted to parse malformed address"); // Invalid
+            }
+
+            return new MultiAddress(segments[0], segments[1], segments[2], port, segments[4]); // Return the parsed address
+        }
+
+        /**
+         * Reads an address in its binary form from the given buffer, leaving
+         * the buffer positioned after it. The address is decoded straight out
+         * of the buffer. An interned instance is returned if the address has
+         * already been parsed, but addresses read off the wire are never
+         * interned themselves, so peers can't flood the interning table.
+         *
+         * @param buffer the buffer to read from
+         * @return the read address
+         */
+        public static MultiAddress readBinary(ByteBuffer buffer) throws InvalidMultiAddressException {
+            int start = buffer.position(); // Remember where the address starts
+
+            try {
+                int protocolCode = getCode(buffer); // Read the protocol code
+
+                // Check isn't an ip protocol
+                if (protocolCode != CODE_IP4 && protocolCode != CODE_IP6) {
+                    throw new InvalidMultiAddressException(String.format("unknown multiaddress protocol code (%d)", protocolCode)); // Invalid
+                }
+
+                byte[] ip = new byte[protocolCode == CODE_IP4 ? 4 : 16]; // Initialize a buffer for the ip address
+                buffer.get(ip); // Read the ip address
+
+                int transportCode = getCode(buffer); // Read the transport code
+                String transport = transportName(transportCode); // Get the name of the transport
+
+                // Check the transport has no code
+                if (transportCode == 0) {
+                    byte[] name = new byte[buffer.get() & 0xff]; // Initialize a buffer for the name
+                    buffer.get(name); // Read the name
+
+                    transport = new String(name, StandardCharsets.US_ASCII); // Decode the name
+                }
+
+                // Check the transport is invalid
+                if (transport == null || !TRANSPORT.matcher(transport).matches()) {
+                    throw new InvalidMultiAddressException("attempted to read address with invalid transport"); // Invalid
+                }
+
+                int port = buffer.getShort() & 0xffff; // Read the port
+
+                int keyFormat = getCode(buffer); // Read the format of the key
+                int keyLength = keyFormat == KEY_P256 ? P256_POINT_LENGTH : getCode(buffer); // Get the length of the written key
+
+                // Check the format is unknown, or the key is cut off
+                if ((keyFormat != KEY_RAW && keyFormat != KEY_P256) || keyLength > buffer.remaining()) {
+                    throw new InvalidMultiAddressException("attempted to read address with invalid key"); // Invalid
+                }
+
+                int prefixLength = keyFormat == KEY_P256 ? P256_PREFIX.length : 0; // Get the length of the elided prefix
+                byte[] key = new byte[prefixLength + keyLength]; // Initialize a buffer for the key
+
+                System.arraycopy(P256_PREFIX, 0, key, 0, prefixLength); // Restore the prefix
+                buffer.get(key, prefixLength, keyLength); // Read the key
+
+                MultiAddress address = new MultiAddress(protocolCode == CODE_IP4 ? "ip4" : "ip6", InetAddress.getByAddress(ip).getHostAddress(), transport, port, Hex.encodeHexString(key)); // Build the address
+
+                MultiAddress existing; // The interned address
+
+                synchronized (interned) {
+                    existing = interned.get(address.canonical); // Get the interned address
+                }
+
+                // Check has already been interned
+                if (existing != null) {
+                    return existing; // Return the interned address
+                }
+
+                byte[] binary = new byte[buffer.position() - start]; // Initialize a buffer for the binary form
+                ((ByteBuffer) buffer.duplicate().position(start)).get(binary); // Keep the binary form, so it never has to be encoded
+                address.binary = binary; // Set binary
+
+                return address; // Return the address without interning it
+            } catch (BufferUnderflowException | UnknownHostException e) {
+                throw new InvalidMultiAddressException("attempted to read truncated address"); // Invalid
             }
+        }
+
+        /**
+         * Gets the length of the binary form of the address.
+         *
+         * @return the length of the binary form, or -1 if the address has no
+         *         binary form (its ip address doesn't match its protocol, or
+         *         its key isn't hex-encoded)
+         */
+        public int getBinaryLength() {
+            byte[] binary = this.getBinary(); // Get the binary form
+
+            return binary != null ? binary.length : -1; // Return the length
+        }
+
+        /**
+         * Writes the binary form of the address to the given buffer.
+         *
+         * @param buffer the buffer to write to
+         */
+        public void writeBinary(ByteBuffer buffer) throws InvalidMultiAddressException {
+            byte[] binary = this.getBinary(); // Get the binary form
+
+            // Check has no binary form
+            if (binary == null) {
+                throw new InvalidMultiAddressException("address has no binary form"); // Invalid
+            }
+
+            buffer.put(binary); // Write the binary form
+        }
+
+        /**
+         * Gets the binary form of the address, encoding it the first time it
+         * is requested.
+         *
+         * @return the binary form, or null if the address has none
+         */
+        private byte[] getBinary() {
+            byte[] binary = this.binary; // Get the encoded form
+
+            // Check has already been encoded
+            if (binary != null) {
+                return binary.length != 0 ? binary : null; // Return the binary form
+            }
+
+            try {
+                byte[] ip = InetAddress.getByName(this.inetAddress).getAddress(); // Get the raw ip address (never a lookup, as it's a literal)
+                byte[] key = Hex.decodeHex(this.encodedKey.toCharArray()); // Decode the key
+                int transportCode = transportCode(this.transport); // Get the code of the transport
+
+                // Check the ip address doesn't match the protocol
+                if (ip.length != (this.protocol.equals("ip4") ? 4 : 16)) {
+                    throw new DecoderException("ip address doesn't match protocol"); // Not encodable
+                }
+
+                ByteBuffer buffer = ByteBuffer.allocate(3 + ip.length + 3 + (transportCode == 0 ? 1 + this.transport.length() : 0) + 2 + 1 + 5 + key.length); // Allocate room for the longest form
+
+                putCode(buffer, ip.length == 4 ? CODE_IP4 : CODE_IP6); // Write the protocol code
+                buffer.put(ip); // Write the ip address
+                putCode(buffer, transportCode); // Write the transport code
+
+                // Check the transport has no code
+                if (transportCode == 0) {
+                    buffer.put((byte) this.transport.length()).put(this.transport.getBytes(StandardCharsets.US_ASCII)); // Write the name
+                }
+
+                buffer.putShort((short) this.port); // Write the port
+
+                // Check is a secp256r1 key
+                if (key.length == P256_PREFIX.length + P256_POINT_LENGTH && ByteBuffer.wrap(key, 0, P256_PREFIX.length).equals(ByteBuffer.wrap(P256_PREFIX))) {
+                    putCode(buffer, KEY_P256); // Write the format of the key
+                    buffer.put(key, P256_PREFIX.length, P256_POINT_LENGTH); // Write the point
+                } else {
+                    putCode(buffer, KEY_RAW); // Write the format of the key
+                    putCode(buffer, key.length); // Write the length of the key
+                    buffer.put(key); // Write the key
+                }
+
+                binary = Arrays.copyOf(buffer.array(), buffer.position()); // Trim the binary form
+            } catch (UnknownHostException | DecoderException e) {
+                binary = new byte[0]; // Remember the address has no binary form
+            }
+
+            this.binary = binary; // Cache the binary form
+
+            return binary.length != 0 ? binary : null; // Return the binary form
+        }
+
+        /**
+         * Gets the multiaddr code of a transport.
+         *
+         * @param transport the name of the transport
+         * @return the code of the transport, or 0 if it has none
+         */
+        private static int transportCode(String transport) {
+            switch (transport) {
+                case "tcp":
+                    return CODE_TCP;
+                case "udp":
+                    return CODE_UDP;
+                case "dccp":
+                    return CODE_DCCP;
+                case "sctp":
+                    return CODE_SCTP;
+                case "quic":
+                    return CODE_QUIC;
+                default:
+                    return 0; // No code
+            }
+        }
+
+        /**
+         * Gets the transport with a multiaddr code.
+         *
+         * @param code the code of the transport
+         * @return the name of the transport, or null if the code is unknown
+         */
+        private static String transportName(int code) {
+            switch (code) {
+                case CODE_TCP:
+                    return "tcp";
+                case CODE_UDP:
+                    return "udp";
+                case CODE_DCCP:
+                    return "dccp";
+                case CODE_SCTP:
+                    return "sctp";
+                case CODE_QUIC:
+                    return "quic";
+                default:
+                    return null; // Unknown code
+            }
+        }
+
+        /**
+         * Decodes a hex-encoded constant.
+         *
+         * @param hex the constant to decode
+         * @return the decoded bytes
+         */
+        private static byte[] fromHex(String hex) {
+            try {
+                return Hex.decodeHex(hex.toCharArray()); // Return the decoded bytes
+            } catch (DecoderException e) {
+                throw new IllegalArgumentException(e); // Unreachable, the constant is valid hex
+            }
+        }
+
+        /**
+         * Writes an unsigned varint code.
+         *
+         * @param buffer the buffer to write to
+         * @param code the code to write
+         */
+        private static void putCode(ByteBuffer buffer, int code) {
+            // Write 7 bits at a time
+            while ((code & ~0x7f) != 0) {
+                buffer.put((byte) ((code & 0x7f) | 0x80)); // Write the low bits, with the continuation bit
+                code >>>= 7; // Move to the next bits
+            }
+
+            buffer.put((byte) code); // Write the last bits
+        }
+
+        /**
+         * Reads an unsigned varint code of at most 3 bytes.
+         *
+         * @param buffer the buffer to read from
+         * @return the read code
+         */
+        private static int getCode(ByteBuffer buffer) throws InvalidMultiAddressException {
+            int code = 0; // The code read so far
+
+            // Read 7 bits at a time
+            for (int shift = 0; shift < 21; shift += 7) {
+                byte b = buffer.get(); // Read the next byte
+                code |= (b & 0x7f) << shift; // Add the bits
+
+                // Check is the last byte
+                if ((b & 0x80) == 0) {
+                    return code; // Return the code
+                }
+            }
+
+            throw new InvalidMultiAddressException("attempted to read address with oversized code"); // Invalid
+        }
+
+        /**
+         * Gets the public key of the peer, decoding it the first time it is
+         * requested.
+         *
+         * @return the public key of the peer
+         */
+        public PublicKey getPublicKey() throws DecoderException, NoSuchAlgorithmException, InvalidKeySpecException {
+            PublicKey key = this.publicKey; // Get the decoded key
+
+            // Check hasn't been decoded yet
+            if (key == null) {
+                X509EncodedKeySpec keySpec = new X509EncodedKeySpec(Hex.decodeHex(this.encodedKey.toCharArray())); // Decode the key spec
+                key = KeyFactory.getInstance("EC").generatePublic(keySpec); // Deserialize the public key
+
+                this.publicKey = key; // Cache the key
+            }
+
+            return key; // Return the public key
+        }
+
+        /**
+         * Checks whether or not the given object is the same address.
+         *
+         * @param o the object to compare to
+         * @return whether or not the object is the same address
+         */
+        public boolean equals(Object o) {
+            return this == o || (o instanceof MultiAddress && this.canonical.equals(((MultiAddress) o).canonical)); // Compare the canonical forms
+        }
+
+        /**
+         * Gets the hash code of the address.
+         *
+         * @return the hash code of the address
+         */
+        public int hashCode() {
+            return this.canonical.hashCode(); // Return the cached hash of the canonical form
+        }
+
+        /**
+         * Converts the address to its canonical string form, which has a
+         * leading slash.
+         *
+         * @return the string representation of the address
+         */
+        public String toString() {
+            return this.canonical; // Return the canonical form
+        }
+
+        /**
+         * Determine if the contents of the MultiAddress are indeed valid.
+         * 
+         * @return whether or not the MultiAddress is valid
+         */
+        public static boolean isValid(String address) {
+            try {
+                parse(address); // Parse the address
 
-            return segments.length == 5 && segments[0].matches("ip([46])") && validator.isValid(segments[1])
-                    && segments[2].matches("[a-z]{2,3}|quic"); // Return is valid
+                return true; // Valid
+            } catch (InvalidMultiAddressException e) {
+                return false; // Invalid
+            }
         }
 
         /**
@@ -122,14 +644,7 @@ public class CommonTypes {
          * @return the parsed transport
          */
         public static String parseTransport(String address) throws InvalidMultiAddressException {
-            String[] segments = address.split("/"); // Split address
-
-            // Check for invalid MultiAddress
-            if (segments.length != 5) {
-                throw new InvalidMultiAddressException("attempted to parse malformed address"); // Invalid
-            }
-
-            return segments[2]; // Return transport
+            return parse(address).transport; // Return transport
         }
 
         /**
@@ -139,14 +654,7 @@ public class CommonTypes {
          * @return the parsed ip
          */
         public static String parseInetAddress(String address) throws InvalidMultiAddressException {
-            String[] segments = address.split("/"); // Split address
-
-            // Check for invalid MultiAddress
-            if (segments.length != 5) {
-                throw new InvalidMultiAddressException("attempted to parse malformed address"); // Invalid
-            }
-
-            return segments[1]; // Return IP
+            return parse(address).inetAddress; // Return IP
         }
 
         /**
@@ -156,14 +664,7 @@ public class CommonTypes {
          * @return the parsed port
          */
         public static int parsePort(String address) throws InvalidMultiAddressException {
-            String[] segments = address.split("/"); // Split address
-
-            // Check for invalid MultiAddress
-            if (segments.length != 5) {
-                throw new InvalidMultiAddressException("attempted to parse malformed address"); // Invalid
-            }
-
-            return Integer.parseInt(segments[3]); // Return the parsed port
+            return parse(address).port; // Return the parsed port
         }
 
         /**
@@ -174,10 +675,11 @@ public class CommonTypes {
          */
         public static PublicKey parsePublicKey(String address) throws DecoderException,
                 NoSuchAlgorithmException, InvalidKeySpecException {
-            // Decode the key spec
-            PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(Hex.decodeHex(address.split("/")[4].toCharArray()));
-            KeyFactory keyFactory = KeyFactory.getInstance("EC"); // Get an elliptic curve keyFactory instance
-            return keyFactory.generatePublic(keySpec); // Return the deserialized public key
+            try {
+                return parse(address).getPublicKey(); // Return the decoded public key
+            } catch (InvalidMultiAddressException e) {
+                throw new DecoderException("attempted to parse the key of a malformed address", e); // Throw exception
+            }
         }
     }
 }
\ No newline at end of file
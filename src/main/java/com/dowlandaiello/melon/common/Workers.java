@@ -0,0 +1,97 @@
+package com.dowlandaiello.melon.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implements a set of helper methods used to construct the executors that
+ * melon runs its background work on. On Java 21 and above, a version of this
+ * class backed by virtual threads is loaded from the multi-release jar
+ * instead.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Workers {
+    /**
+     * The number of platform threads standing in for virtual threads on JVMs
+     * that don't support them.
+     */
+    private static final int FALLBACK_THREADS = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+    /**
+     * Prevents instantiation.
+     */
+    private Workers() {
+    }
+
+    /**
+     * Determines whether or not the running JVM supports virtual threads.
+     *
+     * @return whether or not virtual threads are supported
+     */
+    public static boolean supportsVirtualThreads() {
+        return false; // Virtual threads require Java 21
+    }
+
+    /**
+     * Constructs an executor that runs each task on its own virtual thread.
+     * Virtual threads require Java 21, so this version of the method falls
+     * back to a bounded pool of FALLBACK_THREADS platform threads.
+     *
+     * @param name the prefix of the names of the executor's threads
+     * @return the bounded executor standing in for a virtual thread executor
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        return newBoundedExecutor(name, FALLBACK_THREADS); // Virtual threads aren't available
+    }
+
+    /**
+     * Constructs an executor for tasks that block for as long as a
+     * connection is open (such as connection readers), running each task on
+     * its own thread. Virtual threads require Java 21, so this version of the
+     * method runs them on a cached pool of daemon platform threads, which
+     * grows with the number of open connections.
+     *
+     * @param name the prefix of the names of the executor's threads
+     * @return the blocking executor
+     */
+    public static ExecutorService newBlockingExecutor(String name) {
+        return Executors.newCachedThreadPool(daemonThreadFactory(name)); // Virtual threads aren't available
+    }
+
+    /**
+     * Constructs an executor that runs tasks on a fixed number of daemon
+     * threads, queueing any tasks submitted while all of them are busy.
+     *
+     * @param name the prefix of the names of the executor's threads
+     * @param threads the number of threads to run tasks on
+     * @return the bounded executor
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory(name)); // Return the executor
+    }
+
+    /**
+     * Constructs a thread factory that names its threads with the given
+     * prefix, and doesn't keep the JVM alive.
+     *
+     * @param name the prefix of the names of the threads
+     * @return the thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger(); // The number of threads created so far
+
+        return (Runnable task) -> {
+            Thread thread = new Thread(task, String.format("%s-%d", name, count.getAndIncrement())); // Initialize the thread
+            thread.setDaemon(true); // Don't keep the JVM alive just for the thread
+
+            return thread; // Return the thread
+        };
+    }
+}
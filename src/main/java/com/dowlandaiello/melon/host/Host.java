@@ -1,12 +1,20 @@
 package com.dowlandaiello.melon.host;
 
 import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.peerstore.BootstrapMessage;
+import com.dowlandaiello.melon.peerstore.ConnectionManager;
+import com.dowlandaiello.melon.peerstore.KademliaStore;
+import com.dowlandaiello.melon.peerstore.Keepalive;
+import com.dowlandaiello.melon.peerstore.MappedStore;
 import com.dowlandaiello.melon.peerstore.Peerstore;
 import com.dowlandaiello.melon.peerstore.SmolStore;
 import com.dowlandaiello.melon.pubsub.SubscriptionManager;
+import com.dowlandaiello.melon.transport.Dialer;
 import com.dowlandaiello.melon.transport.Tcp;
 import com.dowlandaiello.melon.transport.Transport;
 import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.Pipeline;
 import com.dowlandaiello.melon.transport.secio.Secio;
 import org.apache.commons.codec.binary.Hex;
 
@@ -14,8 +22,14 @@ import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.security.*;
 import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Represents a local melon peer. Serves as a wrapper for core melon
@@ -167,11 +181,75 @@ public class Host {
          */
         public void apply(Host host) {
             host.peerstore = this.peerstore; // Set the peerstore of the host
+        }
 
-            // Check the host uses the standard connection handler
-            if (host.connectionHandler instanceof StandardConnectionHandler) {
-                ((StandardConnectionHandler) host.connectionHandler).peerstore = this.peerstore; // Set the peerstore of the connection handler
-            }
+        /**
+         * Initializes a new PeerstoreOption remembering known peers in the
+         * given file, so a restarted host can reconnect to them (see
+         * MappedStore.reconnect).
+         *
+         * @param file the file to remember known peers in
+         * @return the initialized option
+         */
+        public static PeerstoreOption persistent(Path file) {
+            return new PeerstoreOption(new MappedStore(file)); // Return a persistent peerstore option
+        }
+    }
+
+    /**
+     * Represents a configuration option used to specify the executor used to
+     * dispatch inbound messages, ping peers, and dial peers, rather than the
+     * default bounded pools. Connections are always read on the host's own
+     * readers, and written on pubsub's own writers, so the executor may be
+     * bounded.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public static class ExecutorOption implements Option {
+        /**
+         * The executor to use.
+         */
+        private final ExecutorService executor;
+
+        /**
+         * Initializes a new ExecutorOption with the given executor.
+         *
+         * @param executor the executor to use
+         */
+        public ExecutorOption(ExecutorService executor) {
+            this.executor = executor; // Set executor
+        }
+
+        /**
+         * Initializes a new ExecutorOption running each task on its own
+         * virtual thread. Before Java 21, tasks are run on a bounded pool of
+         * platform threads instead.
+         *
+         * @return the initialized option
+         */
+        public static ExecutorOption virtualThreads() {
+            return new ExecutorOption(Workers.newVirtualThreadExecutor("melon-worker")); // Return a virtual thread option
+        }
+
+        /**
+         * Initializes a new ExecutorOption running each task on a fixed pool
+         * of platform threads.
+         *
+         * @param threads the number of threads in the pool
+         * @return the initialized option
+         */
+        public static ExecutorOption bounded(int threads) {
+            return new ExecutorOption(Workers.newBoundedExecutor("melon-worker", threads)); // Return a bounded pool option
+        }
+
+        /**
+         * Applies the option to the given host.
+         *
+         * @param host the host to apply the option to
+         */
+        public void apply(Host host) {
+            host.executor = this.executor; // Set executor
         }
     }
 
@@ -200,15 +278,130 @@ public class Host {
         }
 
         /**
+         * Registers an accepted connection, and starts reading it without
+         * blocking. Each message is dispatched on the host's workers, while
+         * the connection itself is read on the host's readers (unless it
+         * pushes its own frames). The connection is unregistered once it has
+         * been closed.
          *
          * @param conn the connection passed into the callback
          */
         public void doCallback(Connection conn) throws ClassNotFoundException, IllegalBlockSizeException, BadPaddingException, IOException {
+            // Check the remote peer's address is known
             if (conn.getRemoteMultiaddress() != null) {
-                this.peerstore.registerPeer(conn.getRemoteMultiaddress(), conn); // Register the connection
+                this.peerstore.registerInboundPeer(conn.getRemoteMultiaddress(), conn); // Register the connection, under an address nothing listens on
+                Host.this.connections.checkWatermarks(); // Trim connections if there are too many
+            }
+
+            this.handle(conn, false); // Start reading the connection
+        }
+
+        /**
+         * Starts reading a connection the host has dialed, the same way as
+         * an accepted connection. The connection is registered by whoever
+         * dialed it, under the address it was dialed at.
+         *
+         * @param conn the dialed connection
+         */
+        public void doDialCallback(Connection conn) {
+            this.handle(conn, true); // Start reading the connection
+        }
+
+        /**
+         * Announces our subscriptions on a connection, and starts reading it
+         * with a pipeline.
+         *
+         * @param conn the connection to read
+         * @param dialed whether or not we dialed the connection, in which
+         *               case we ping the peer, rather than the other way
+         *               around
+         */
+        private void handle(Connection conn, boolean dialed) {
+            this.subManager.announce(conn); // Let the peer know which topics we're subscribed to
+            Host.this.keepalive.attach(conn, dialed); // Answer pings, and take pongs, through the pipeline
+
+            Pipeline pipeline = new Pipeline(conn, Host.this.getWorkers())
+                    .on(CommonTypes.Message.Type.PUBSUB, this.active(this.subManager::handleMessage))
+                    .on(CommonTypes.Message.Type.GOSSIP, this.subManager::handleMessage)
+                    .on(CommonTypes.Message.Type.SUBSCRIPTION, this.active(this.subManager::handleMessage))
+                    .on(CommonTypes.Message.Type.STREAM, this.active(this.subManager::handleMessage))
+                    .on(CommonTypes.Message.Type.BOOTSTRAP, this.active(this::handleBootstrap))
+                    .on(CommonTypes.Message.Type.PING, Host.this.keepalive::handleMessage); // Initialize the pipeline
+
+            // Check the peerstore keeps a routing table
+            if (this.peerstore instanceof KademliaStore) {
+                pipeline.on(CommonTypes.Message.Type.FIND_NODE, this.active(((KademliaStore) this.peerstore)::handleFindNode)); // Answer lookups
+            }
+
+            pipeline.onClose(() -> this.disconnected(conn)).start(Host.this.readers); // Handle messages until the connection is closed
+        }
+
+        /**
+         * Forgets a connection once it has been closed.
+         *
+         * @param conn the closed connection
+         */
+        private void disconnected(Connection conn) {
+            Host.this.keepalive.detach(conn); // Stop watching the closed connection
+
+            ArrayList<String> addresses = new ArrayList<>(); // The addresses registered with the connection
+
+            // Find each of the addresses registered with the connection (accepted or dialed)
+            for (Map.Entry<String, Connection> peer : this.peerstore.getRegisteredPeers().entrySet()) {
+                // Check is registered with the connection
+                if (peer.getValue() == conn) {
+                    addresses.add(peer.getKey()); // Collect the address
+                }
+            }
+
+            // Unregister each of the addresses
+            for (String address : addresses) {
+                this.peerstore.unregisterPeer(address, conn); // Forget the closed connection
+            }
+
+            this.subManager.disconnected(conn); // Forget the peer's writer and subscriptions, once nothing new can be sent to it
+
+            // Check connections are reused
+            if (Host.this.transport instanceof Dialer) {
+                ((Dialer) Host.this.transport).disconnected(conn); // Stop handing out the closed connection
+            }
+        }
+
+        /**
+         * Wraps a dispatcher, so each message it handles counts as activity
+         * on its connection (see ConnectionManager). Pings and gossip control
+         * messages aren't wrapped, since they flow whether or not the peer is
+         * in use.
+         *
+         * @param dispatcher the dispatcher to wrap
+         * @return the wrapped dispatcher
+         */
+        private Pipeline.Dispatcher active(Pipeline.Dispatcher dispatcher) {
+            return (Connection conn, CommonTypes.Message message) -> {
+                Host.this.connections.recordActivity(conn); // Keep the connection from going idle
+                dispatcher.dispatch(conn, message); // Handle the message
+            };
+        }
+
+        /**
+         * Responds to a bootstrap request with the addresses of each of the
+         * registered peers that can be dialed. Peers that connected to us are
+         * left out, since they're registered under the port they connected
+         * from, which nothing listens on.
+         *
+         * @param conn the connection the request was received on
+         * @param message the received request
+         */
+        private void handleBootstrap(Connection conn, CommonTypes.Message message) throws IOException {
+            // Check is a request, rather than a response
+            if (((BootstrapMessage) message.contents).peerAddresses != null) {
+                return; // Nothing to respond to
             }
 
-            this.subManager.handleConnection(conn); // Handle the connection
+            ArrayList<String> peerAddresses = new ArrayList<>(this.peerstore.getDialableAddresses()); // Get the addresses of the registered peers that can be dialed
+
+            conn.writeMessage(new CommonTypes.Message(new BootstrapMessage(peerAddresses), CommonTypes.Message.Type.BOOTSTRAP)); // Respond with the addresses
+            conn.flush(); // Flush the response
         }
     }
 
@@ -242,6 +435,38 @@ public class Host {
      */
     public Peerstore peerstore;
 
+    /**
+     * The keepalive pinging the peerstore's connections, and evicting those
+     * that stop answering.
+     */
+    public Keepalive keepalive;
+
+    /**
+     * The connection manager keeping the peerstore's connections between
+     * its watermarks, and closing idle ones.
+     */
+    public ConnectionManager connections;
+
+    /**
+     * The executor shared by the peerstore, the keepalive, and inbound
+     * message dispatch (null to leave each with its own default).
+     */
+    public ExecutorService executor;
+
+    /**
+     * The executor running the work that blocks for as long as a connection
+     * is open: handshakes, connection handlers, and readers. It is kept
+     * apart from the shared executor, so a bounded shared executor can't be
+     * used up by readers waiting on their connections.
+     */
+    private final ExecutorService readers;
+
+    /**
+     * The default executor used to decode and dispatch inbound messages when
+     * no shared executor was provided (lazily initialized).
+     */
+    private ExecutorService dispatchWorkers;
+
     /**
      * Initializes a new host, and applies all of the given options.
      * 
@@ -254,21 +479,72 @@ public class Host {
 
         this.keypair = generator.generateKeyPair(); // Create keypair
         this.peerId = this.keypair.getPublic().getEncoded(); // Hash public key
+        this.readers = Workers.newBlockingExecutor("melon-reader"); // Initialize the readers
 
-        // Initialize a tcp transport to make connections from
-        this.transport = new Tcp().withUpgrade(new Secio(this.keypair));
+        // Iterate through provided options
+        for (Option opt : opts) {
+            opt.apply(this); // Apply option
+        }
+
+        // Check no transport was provided
+        if (this.transport == null) {
+            this.transport = new Tcp().withUpgrade(new Secio(this.keypair)); // Initialize a tcp transport to make connections from
+        }
+
+        // Check no peerstore was provided
+        if (this.peerstore == null) {
+            this.peerstore = new SmolStore(); // Initialize a default peerstore
+        }
 
-        this.peerstore = new SmolStore(); // Initialize a default peerstore
         this.pubsub = new SubscriptionManager(this.peerstore); // Initialize a new subscription manager
+        this.keepalive = new Keepalive(this.peerstore); // Initialize the keepalive
+        this.connections = new ConnectionManager(this.peerstore); // Initialize the connection manager
+        this.pubsub.setConnectionManager(this.connections); // Count published messages as activity
+
+        // Check no connection handler was provided
+        if (this.connectionHandler == null) {
+            this.connectionHandler = new StandardConnectionHandler(this.pubsub, this.peerstore); // Set the connection handler to the standard connection handle
+        }
 
-        this.connectionHandler = new StandardConnectionHandler(this.pubsub, this.peerstore); // Set the connection handler to the standard connection handle
+        // Check the transport doesn't reuse connections yet
+        if (!(this.transport instanceof Dialer)) {
+            this.transport = new Dialer(this.transport); // Reuse connections, and coalesce concurrent dials
+        }
 
-        this.peerstore = new SmolStore(); // Set the peerstore
+        this.transport.withExecutor(this.readers); // Handle connections on the readers
 
-        // Iterate through provided options
-        for (Option opt : opts) {
-            opt.apply(this); // Apply option
+        // Check connections are handled by the standard handler
+        if (this.connectionHandler instanceof StandardConnectionHandler) {
+            ((Dialer) this.transport).withDialCallback(((StandardConnectionHandler) this.connectionHandler)::doDialCallback); // Read dialed connections too
+        }
+
+        // Check a shared executor was provided
+        if (this.executor != null) {
+            this.peerstore.setExecutor(this.executor); // Dial bootstrap peers on the executor
+            this.keepalive.setExecutor(this.executor); // Ping on the executor
+        }
+
+        this.keepalive.start(); // Start pinging peers
+        this.connections.start(); // Start trimming and reaping connections
+    }
+
+    /**
+     * Gets the executor used to decode and dispatch inbound messages.
+     *
+     * @return the shared executor, or a default pool sized to the number of cores
+     */
+    private synchronized ExecutorService getWorkers() {
+        // Check a shared executor was provided
+        if (this.executor != null) {
+            return this.executor; // Use the shared executor
         }
+
+        // Check the default pool hasn't been initialized yet
+        if (this.dispatchWorkers == null) {
+            this.dispatchWorkers = Workers.newBoundedExecutor("melon-dispatch", Runtime.getRuntime().availableProcessors()); // Initialize the default pool
+        }
+
+        return this.dispatchWorkers; // Return the default pool
     }
 
     /**
@@ -277,6 +553,87 @@ public class Host {
      * @param port the port to listen on
      */
     public void listen(int inetVersion, int port) throws CommonTypes.MultiAddress.InvalidMultiAddressException, IOException, ClassNotFoundException, BadPaddingException, IllegalBlockSizeException {
-        this.transport.listen(String.format("/ip4/127.0.0.1/tcp/%d/%s", port, Hex.encodeHexString(this.keypair.getPublic().getEncoded())), this.connectionHandler); // Listen
+        this.listen(inetVersion, port, null); // Listen
+    }
+
+    /**
+     * Listens on a given port, until the host is closed. Port 0 listens on
+     * a port picked by the system, which is the one handed to the bind
+     * callback and advertised to queried peers.
+     *
+     * @param port the port to listen on
+     * @param bound the callback to run once the host is ready to accept
+     *              connections (null for none)
+     */
+    public void listen(int inetVersion, int port, Transport.BindCallback bound) throws CommonTypes.MultiAddress.InvalidMultiAddressException, IOException, ClassNotFoundException, BadPaddingException, IllegalBlockSizeException {
+        this.transport.listen(this.listenAddress(port), this.connectionHandler, (int boundPort) -> {
+            // Check the peerstore keeps a routing table
+            if (this.peerstore instanceof KademliaStore) {
+                ((KademliaStore) this.peerstore).setListenAddress(this.listenAddress(boundPort)); // Let queried peers know where to find us
+            }
+
+            // Check has a bind callback
+            if (bound != null) {
+                bound.bound(boundPort); // Let the caller know we're ready
+            }
+        }); // Listen
+    }
+
+    /**
+     * Stops listening, stops the keepalive, the connection manager, and the
+     * pubsub router, and closes each of the peerstore's connections. The
+     * shared executor (if any) is left running, since it belongs to the
+     * caller.
+     */
+    public void close() throws IOException {
+        this.transport.close(); // Stop listening
+        this.keepalive.close(); // Stop pinging peers
+        this.connections.close(); // Stop trimming and reaping connections
+        this.pubsub.close(); // Stop the router
+
+        IOException failure = null; // The first failed close (if any)
+
+        // Close each of the registered connections
+        for (Connection conn : new HashSet<>(this.peerstore.getRegisteredPeers().values())) {
+            try {
+                conn.close(); // Close the connection, unblocking its reader
+            } catch (IOException e) {
+                // Check is the first failure
+                if (failure == null) {
+                    failure = e; // Remember the failure
+                }
+            }
+        }
+
+        this.readers.shutdownNow(); // Stop the handshakes, handlers, and readers
+
+        try {
+            this.readers.awaitTermination(1, TimeUnit.SECONDS); // Give the readers a moment to hand off their close handlers
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+        }
+
+        synchronized (this) {
+            // Check the default dispatch pool has been started
+            if (this.dispatchWorkers != null) {
+                this.dispatchWorkers.shutdown(); // Stop the pool once the handed-off work is done
+                this.dispatchWorkers = null; // Start a new pool if needed again
+            }
+        }
+
+        // Check a close failed
+        if (failure != null) {
+            throw failure; // Fail the close
+        }
+    }
+
+    /**
+     * Gets the address the host listens on at the given port.
+     *
+     * @param port the port
+     * @return the multiaddress of the host
+     */
+    private String listenAddress(int port) {
+        return String.format("/ip4/127.0.0.1/tcp/%d/%s", port, Hex.encodeHexString(this.keypair.getPublic().getEncoded())); // Return the address
     }
 }
\ No newline at end of file
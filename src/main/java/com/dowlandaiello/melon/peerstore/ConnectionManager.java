@@ -0,0 +1,457 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.transport.connection.Connection;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents the connection manager of a peerstore. Keeps the number of
+ * registered connections between a low and a high watermark: once there are
+ * more than the high watermark, the lowest scoring connections are closed
+ * and unregistered until only the low watermark are left. A connection's
+ * score is its traffic, discounted by the time it has been idle, so busy
+ * peers are kept over quiet ones. Regardless of the watermarks, a connection
+ * that has been idle for longer than the idle timeout is closed as well.
+ *
+ * Connections registered under a protected address are never trimmed or
+ * reaped, and new connections are given a GRACE_PERIOD to become active
+ * before they can be trimmed. Pings don't count as activity, so a peer that
+ * only answers keepalives is still considered idle.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class ConnectionManager {
+    /**
+     * The default number of connections trimmed down to.
+     */
+    public static final int DEFAULT_LOW_WATER = 96;
+
+    /**
+     * The default number of connections above which connections are trimmed.
+     */
+    public static final int DEFAULT_HIGH_WATER = 128;
+
+    /**
+     * The default time after which an idle connection is closed, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * The time a new connection is exempt from trimming for, in milliseconds.
+     */
+    public static final long GRACE_PERIOD = 30 * 1000;
+
+    /**
+     * The time between sweeps of the peerstore's connections, in
+     * milliseconds.
+     */
+    public static final long SWEEP_INTERVAL = 10 * 1000;
+
+    /**
+     * Represents the activity seen on a single connection.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class Activity {
+        /**
+         * The time the connection was first seen at, in nanoseconds.
+         */
+        final long firstSeen;
+
+        /**
+         * The time the connection was last active at, in nanoseconds.
+         */
+        volatile long lastActive;
+
+        /**
+         * The number of messages sent or received on the connection.
+         */
+        volatile long messages;
+
+        /**
+         * Initializes a new activity record for a connection seen at the
+         * given time.
+         *
+         * @param now the time the connection was first seen at, in nanoseconds
+         */
+        Activity(long now) {
+            this.firstSeen = now; // Set first seen
+            this.lastActive = now; // The connection hasn't been idle yet
+        }
+
+        /**
+         * Scores the activity, at the given time. Each message counts for
+         * one, and the total is halved for every minute spent idle.
+         *
+         * @param now the current time, in nanoseconds
+         * @return the score of the activity
+         */
+        double score(long now) {
+            double idleMinutes = (now - this.lastActive) / (double) TimeUnit.MINUTES.toNanos(1); // Get the time spent idle
+
+            return (1 + this.messages) / Math.pow(2, idleMinutes); // Return the discounted traffic
+        }
+    }
+
+    /**
+     * The peerstore whose connections are managed.
+     */
+    private final Peerstore peerstore;
+
+    /**
+     * The activity of each connection seen so far.
+     */
+    private final ConcurrentHashMap<Connection, Activity> activity;
+
+    /**
+     * The canonical addresses of the protected peers.
+     */
+    private final Set<String> protectedPeers;
+
+    /**
+     * Whether or not a sweep has been scheduled ahead of the next interval.
+     */
+    private final AtomicBoolean sweepScheduled;
+
+    /**
+     * The number of connections trimmed down to.
+     */
+    private volatile int lowWater;
+
+    /**
+     * The number of connections above which connections are trimmed.
+     */
+    private volatile int highWater;
+
+    /**
+     * The time after which an idle connection is closed, in milliseconds (0
+     * to never close idle connections).
+     */
+    private volatile long idleTimeout;
+
+    /**
+     * The scheduler running the sweeps (null until started).
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Initializes a new connection manager for the given peerstore.
+     *
+     * @param peerstore the peerstore whose connections are managed
+     */
+    public ConnectionManager(Peerstore peerstore) {
+        this.peerstore = peerstore; // Set peerstore
+        this.activity = new ConcurrentHashMap<>(); // Initialize the activity map
+        this.protectedPeers = ConcurrentHashMap.newKeySet(); // Initialize the protected peers set
+        this.sweepScheduled = new AtomicBoolean(); // Nothing has been scheduled yet
+        this.lowWater = DEFAULT_LOW_WATER; // Set the default low watermark
+        this.highWater = DEFAULT_HIGH_WATER; // Set the default high watermark
+        this.idleTimeout = DEFAULT_IDLE_TIMEOUT; // Set the default idle timeout
+    }
+
+    /**
+     * Sets the number of connections trimmed down to, and the number above
+     * which connections are trimmed.
+     *
+     * @param lowWater the number of connections trimmed down to
+     * @param highWater the number of connections above which connections are
+     *                  trimmed
+     */
+    public void setWatermarks(int lowWater, int highWater) {
+        // Check the watermarks are out of order
+        if (lowWater < 0 || highWater < lowWater) {
+            throw new IllegalArgumentException(String.format("invalid watermarks (low %d, high %d)", lowWater, highWater)); // Throw exception
+        }
+
+        this.lowWater = lowWater; // Set low watermark
+        this.highWater = highWater; // Set high watermark
+    }
+
+    /**
+     * Sets the time after which an idle connection is closed.
+     *
+     * @param idleTimeout the idle timeout, in milliseconds (0 to never close
+     *                    idle connections)
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout; // Set idle timeout
+    }
+
+    /**
+     * Starts sweeping the peerstore's connections.
+     */
+    public synchronized void start() {
+        // Check isn't running yet
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(Workers.daemonThreadFactory("melon-connmgr")); // Initialize the scheduler
+            this.scheduler.scheduleWithFixedDelay(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS); // Schedule the sweeps
+        }
+    }
+
+    /**
+     * Stops sweeping the peerstore's connections.
+     */
+    public synchronized void close() {
+        // Check is running
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow(); // Stop the sweeps
+            this.scheduler = null; // Allow the manager to be started again
+        }
+    }
+
+    /**
+     * Protects the peer at the given address, so its connections are never
+     * trimmed or closed for being idle.
+     *
+     * @param multiaddress the multiaddress of the peer
+     */
+    public void protect(String multiaddress) {
+        this.protectedPeers.add(canonical(multiaddress)); // Protect the peer
+    }
+
+    /**
+     * Stops protecting the peer at the given address.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @return whether or not the peer was protected
+     */
+    public boolean unprotect(String multiaddress) {
+        return this.protectedPeers.remove(canonical(multiaddress)); // Stop protecting the peer
+    }
+
+    /**
+     * Checks whether or not the peer at the given address is protected.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @return whether or not the peer is protected
+     */
+    public boolean isProtected(String multiaddress) {
+        return this.protectedPeers.contains(canonical(multiaddress)); // Check the peer is protected
+    }
+
+    /**
+     * Records a message sent or received on a connection, resetting its idle
+     * time.
+     *
+     * @param conn the connection the message was sent or received on
+     */
+    public void recordActivity(Connection conn) {
+        Activity seen = this.activity.computeIfAbsent(conn, (Connection c) -> new Activity(System.nanoTime())); // Get the connection's activity
+
+        seen.lastActive = System.nanoTime(); // Reset the idle time
+        seen.messages++; // Count the message (racing increments may lose a count, which is fine for a score)
+    }
+
+    /**
+     * Schedules a sweep right away if the peerstore has grown past the high
+     * watermark, rather than waiting for the next interval.
+     */
+    public void checkWatermarks() {
+        // Check is below the high watermark, or a sweep is already on its way
+        if (this.peerstore.getRegisteredPeers().size() <= this.highWater || !this.sweepScheduled.compareAndSet(false, true)) {
+            return; // Nothing to do
+        }
+
+        ScheduledExecutorService scheduler; // The scheduler to sweep on
+
+        synchronized (this) {
+            scheduler = this.scheduler; // Get the scheduler
+        }
+
+        // Check hasn't been started
+        if (scheduler == null) {
+            this.sweepScheduled.set(false); // Allow a later check to schedule a sweep
+
+            return; // Nothing to sweep on
+        }
+
+        scheduler.execute(this::sweep); // Sweep now
+    }
+
+    /**
+     * Gets the number of distinct connections registered in the peerstore.
+     *
+     * @return the number of registered connections
+     */
+    public int getConnectionCount() {
+        return this.collectConnections().size(); // Return the number of connections
+    }
+
+    /**
+     * Closes each idle connection, and, if there are more connections than
+     * the high watermark, trims the lowest scoring ones until the low
+     * watermark is reached.
+     */
+    public void sweep() {
+        this.sweep(System.nanoTime()); // Sweep as of now
+    }
+
+    /**
+     * Sweeps the peerstore's connections as of the given time. A failing
+     * sweep is logged, so the scheduled sweeps after it still run.
+     *
+     * @param now the current time, in nanoseconds
+     */
+    synchronized void sweep(long now) {
+        this.sweepScheduled.set(false); // Allow another sweep to be scheduled
+
+        try {
+            Map<Connection, List<String>> connections = this.collectConnections(); // Get the registered connections
+
+            this.activity.keySet().retainAll(connections.keySet()); // Forget the activity of connections that are gone
+
+            List<Connection> candidates = new ArrayList<>(); // The connections that may be trimmed
+            int open = 0; // The number of connections left open
+
+            // Reap the idle connections, and collect the rest as candidates
+            for (Map.Entry<Connection, List<String>> entry : connections.entrySet()) {
+                Connection conn = entry.getKey(); // Get the connection
+
+                // Check the connection has been closed
+                if (conn.isClosed()) {
+                    this.evict(conn, entry.getValue()); // Unregister the connection
+
+                    continue; // Move on to the next connection
+                }
+
+                Activity seen = this.activity.computeIfAbsent(conn, (Connection c) -> new Activity(now)); // Get the connection's activity
+
+                // Check the connection is protected
+                if (this.isProtected(entry.getValue())) {
+                    open++; // Leave the connection alone
+
+                    continue; // Move on to the next connection
+                }
+
+                // Check the connection has been idle for too long
+                if (this.idleTimeout > 0 && now - seen.lastActive > TimeUnit.MILLISECONDS.toNanos(this.idleTimeout)) {
+                    this.evict(conn, entry.getValue()); // Close the idle connection
+
+                    continue; // Move on to the next connection
+                }
+
+                open++; // Keep the connection, for now
+
+                // Check the connection is out of its grace period
+                if (now - seen.firstSeen > TimeUnit.MILLISECONDS.toNanos(GRACE_PERIOD)) {
+                    candidates.add(conn); // Allow the connection to be trimmed
+                }
+            }
+
+            // Check is still below the high watermark
+            if (open <= this.highWater) {
+                return; // Nothing to trim
+            }
+
+            candidates.sort(Comparator.comparingDouble((Connection conn) -> this.scoreOf(conn, now))); // Trim the lowest scoring connections first
+
+            // Trim connections until the low watermark is reached
+            for (int i = 0; i < candidates.size() && open > this.lowWater; i++) {
+                this.evict(candidates.get(i), connections.get(candidates.get(i))); // Trim the connection
+                open--; // Count the closed connection
+            }
+        } catch (Exception e) {
+            e.printStackTrace(); // Log the exception, but keep sweeping
+        }
+    }
+
+    /**
+     * Groups the peerstore's registered addresses by connection.
+     *
+     * @return the addresses registered with each connection
+     */
+    private Map<Connection, List<String>> collectConnections() {
+        Map<Connection, List<String>> connections = new IdentityHashMap<>(); // The addresses of each connection
+
+        // Group each of the registered addresses by connection
+        for (Map.Entry<String, Connection> peer : this.peerstore.getRegisteredPeers().entrySet()) {
+            connections.computeIfAbsent(peer.getValue(), (Connection c) -> new ArrayList<>()).add(peer.getKey()); // Collect the address
+        }
+
+        return connections; // Return the grouped addresses
+    }
+
+    /**
+     * Scores a connection.
+     *
+     * @param conn the connection to score
+     * @param now the current time, in nanoseconds
+     * @return the score of the connection
+     */
+    private double scoreOf(Connection conn, long now) {
+        Activity seen = this.activity.get(conn); // Get the connection's activity
+
+        return seen != null ? seen.score(now) : 0; // Return the score
+    }
+
+    /**
+     * Checks whether or not any of the given addresses is protected.
+     *
+     * @param addresses the addresses registered with a connection
+     * @return whether or not the connection is protected
+     */
+    private boolean isProtected(List<String> addresses) {
+        // Check each of the addresses
+        for (String address : addresses) {
+            // Check the address is protected
+            if (this.isProtected(address)) {
+                return true; // The connection is protected
+            }
+        }
+
+        return false; // The connection isn't protected
+    }
+
+    /**
+     * Unregisters each of the addresses registered with a connection, and
+     * closes it.
+     *
+     * @param conn the connection to evict
+     * @param addresses the addresses registered with the connection
+     */
+    private void evict(Connection conn, List<String> addresses) {
+        this.activity.remove(conn); // Forget its activity
+
+        // Unregister each of the addresses
+        for (String address : addresses) {
+            this.peerstore.unregisterPeer(address, conn); // Unregister the peer
+        }
+
+        try {
+            conn.close(); // Close the connection, unblocking any reader
+        } catch (IOException e) {
+            e.printStackTrace(); // Log the exception
+        }
+    }
+
+    /**
+     * Gets the canonical form of a multiaddress, so protected peers match
+     * however their addresses were spelled.
+     *
+     * @param multiaddress the multiaddress
+     * @return the canonical form, or the address as-is if it is invalid
+     */
+    private static String canonical(String multiaddress) {
+        try {
+            return CommonTypes.MultiAddress.parse(multiaddress).toString(); // Return the canonical form
+        } catch (CommonTypes.MultiAddress.InvalidMultiAddressException e) {
+            return multiaddress; // Keep the address as-is
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.dowlandaiello.melon.peerstore;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Represents a Kademlia FIND_NODE request, or the response to one.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FindNodeMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The id being looked up.
+     */
+    public final byte[] target;
+
+    /**
+     * The address the sender listens on (null if it doesn't listen, or for
+     * a response).
+     */
+    public final String sender;
+
+    /**
+     * The addresses of the peers closest to the target known by the
+     * responder (null for a request).
+     */
+    public final ArrayList<String> closest;
+
+    /**
+     * Initializes a new FindNodeMessage.
+     *
+     * @param target the id being looked up
+     * @param sender the address the sender listens on (null if none)
+     * @param closest the addresses of the closest known peers (null for a request)
+     */
+    public FindNodeMessage(byte[] target, String sender, ArrayList<String> closest) {
+        this.target = target; // Set target
+        this.sender = sender; // Set sender
+        this.closest = closest; // Set closest
+    }
+}
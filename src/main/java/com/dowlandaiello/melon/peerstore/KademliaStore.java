@@ -0,0 +1,706 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.crypto.Hash;
+import com.dowlandaiello.melon.transport.Transport;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.Pipeline;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.io.IOException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Represents a peerstore that also keeps a Kademlia routing table. Each peer
+ * is identified by the sha3 hash of its public key, and kept in one of 256
+ * k-buckets by the length of the prefix its id shares with ours, so the
+ * table holds many peers close to us and a few peers in every other part of
+ * the network. Peers are found through iterative FIND_NODE lookups, which
+ * query the closest known peers in parallel, rather than by connecting to
+ * every peer a bootstrap peer knows about.
+ *
+ * A full bucket doesn't take on new peers; they're kept as replacements, and
+ * promoted once a peer in the bucket fails to answer a query.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class KademliaStore extends SmolStore {
+    /**
+     * The number of peers kept in each bucket, and returned by each lookup.
+     */
+    public static final int K = 20;
+
+    /**
+     * The number of peers queried in parallel during a lookup.
+     */
+    public static final int ALPHA = 3;
+
+    /**
+     * The length of a peer id, in bits.
+     */
+    public static final int ID_BITS = 256;
+
+    /**
+     * The time after which a bucket nobody has looked up is refreshed, in
+     * milliseconds.
+     */
+    public static final long REFRESH_INTERVAL = 15 * 60 * 1000;
+
+    /**
+     * The time a queried peer has to respond, in milliseconds.
+     */
+    private static final long QUERY_TIMEOUT = 10 * 1000;
+
+    /**
+     * Represents a peer in the routing table.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public static class Contact {
+        /**
+         * The multiaddress the peer listens on.
+         */
+        public final String multiaddress;
+
+        /**
+         * The id of the peer.
+         */
+        public final byte[] id;
+
+        /**
+         * Initializes a new contact.
+         *
+         * @param multiaddress the multiaddress the peer listens on
+         * @param id the id of the peer
+         */
+        private Contact(String multiaddress, byte[] id) {
+            this.multiaddress = multiaddress; // Set multiaddress
+            this.id = id; // Set id
+        }
+    }
+
+    /**
+     * Represents a single k-bucket.
+     */
+    private static class Bucket {
+        /**
+         * The peers in the bucket, least recently seen first.
+         */
+        final LinkedHashMap<String, Contact> contacts = new LinkedHashMap<>();
+
+        /**
+         * The peers waiting for a spot in the bucket, least recently seen
+         * first.
+         */
+        final LinkedHashMap<String, Contact> replacements = new LinkedHashMap<>();
+
+        /**
+         * The time the bucket was last looked up, in milliseconds.
+         */
+        long lastLookup = System.currentTimeMillis();
+    }
+
+    /**
+     * The id of the local peer.
+     */
+    private final byte[] localId;
+
+    /**
+     * The buckets, indexed by the highest bit in which a peer's id differs
+     * from ours (guarded by this).
+     */
+    private final Bucket[] buckets;
+
+    /**
+     * The multiaddress the local peer listens on (null if it doesn't).
+     */
+    private volatile String listenAddress;
+
+    /**
+     * The thread bootstrapping and refreshing stale buckets (lazily
+     * initialized).
+     */
+    private ScheduledExecutorService refresher;
+
+    /**
+     * Whether or not the refresh has been scheduled (guarded by this).
+     */
+    private boolean refreshing;
+
+    /**
+     * Initializes a new KademliaStore for the peer with the given public key.
+     *
+     * @param localKey the public key identifying the local peer
+     */
+    public KademliaStore(Key localKey) {
+        super(); // Initialize the connections map
+        this.localId = Hash.sha3(localKey.getEncoded()).contents; // Derive our id
+        this.buckets = new Bucket[ID_BITS]; // Initialize the buckets
+
+        // Initialize each bucket
+        for (int i = 0; i < ID_BITS; i++) {
+            this.buckets[i] = new Bucket(); // Initialize the bucket
+        }
+    }
+
+    /**
+     * Derives the id of the peer at the given multiaddress from the public
+     * key at its end.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @return the id of the peer, or null if the multiaddress has no key
+     */
+    public static byte[] idOf(String multiaddress) {
+        String key = multiaddress.substring(multiaddress.lastIndexOf('/') + 1); // Get the hex-encoded key
+
+        try {
+            byte[] encoded = Hex.decodeHex(key.toCharArray()); // Decode the key
+
+            return encoded.length > 0 ? Hash.sha3(encoded).contents : null; // Return the id
+        } catch (DecoderException e) {
+            return null; // Not a key
+        }
+    }
+
+    /**
+     * Gets the canonical form of a multiaddress, which is the form addresses
+     * are received in over the wire.
+     *
+     * @param multiaddress the multiaddress to canonicalize
+     * @return the canonical form, or the address itself if it can't be parsed
+     */
+    private static String canonical(String multiaddress) {
+        try {
+            return CommonTypes.MultiAddress.parse(multiaddress).toString(); // Return the canonical form
+        } catch (CommonTypes.MultiAddress.InvalidMultiAddressException e) {
+            return multiaddress; // Keep the address as-is
+        }
+    }
+
+    /**
+     * Gets the id of the local peer.
+     *
+     * @return the id of the local peer
+     */
+    public byte[] getLocalId() {
+        return this.localId.clone(); // Return a copy of our id
+    }
+
+    /**
+     * Sets the multiaddress the local peer listens on, which is sent along
+     * with each FIND_NODE request so queried peers can add us to their
+     * routing tables. The address of an inbound connection can't be used
+     * instead, since its port is the dialer's ephemeral source port.
+     *
+     * @param listenAddress the multiaddress the local peer listens on
+     */
+    public void setListenAddress(String listenAddress) {
+        this.listenAddress = listenAddress; // Set listen address
+    }
+
+    /**
+     * Adds a peer to the routing table, or marks it as the most recently
+     * seen peer in its bucket if it is already there. Peers that don't fit
+     * in their bucket are kept as replacements.
+     *
+     * @param multiaddress the multiaddress the peer listens on
+     * @return whether or not the peer is in the routing table
+     */
+    public synchronized boolean addContact(String multiaddress) {
+        multiaddress = canonical(multiaddress); // Keep each peer under a single spelling of its address
+
+        byte[] id = idOf(multiaddress); // Get the id of the peer
+
+        int index = id != null ? this.bucketIndex(id) : -1; // Get the bucket of the peer
+
+        // Check isn't a valid remote peer
+        if (index < 0) {
+            return false; // Nothing to add
+        }
+
+        Bucket bucket = this.buckets[index]; // Get the bucket
+        Contact contact = bucket.contacts.remove(multiaddress); // Take the peer out of the bucket
+
+        // Check the peer wasn't in the bucket, and the bucket is full
+        if (contact == null && bucket.contacts.size() >= K) {
+            bucket.replacements.remove(multiaddress); // Move the peer to the end of the replacements
+            bucket.replacements.put(multiaddress, new Contact(multiaddress, id)); // Keep the peer as a replacement
+
+            // Check has too many replacements
+            if (bucket.replacements.size() > K) {
+                Iterator<String> oldest = bucket.replacements.keySet().iterator(); // Get the least recently seen replacement
+                oldest.next();
+                oldest.remove(); // Forget it
+            }
+
+            return false; // Not in the table
+        }
+
+        bucket.contacts.put(multiaddress, contact != null ? contact : new Contact(multiaddress, id)); // Put the peer at the end of the bucket
+
+        return true; // In the table
+    }
+
+    /**
+     * Removes a peer from the routing table, promoting the most recently seen
+     * replacement in its bucket.
+     *
+     * @param multiaddress the multiaddress of the peer
+     */
+    public synchronized void removeContact(String multiaddress) {
+        multiaddress = canonical(multiaddress); // Get the spelling the peer is kept under
+
+        byte[] id = idOf(multiaddress); // Get the id of the peer
+
+        int index = id != null ? this.bucketIndex(id) : -1; // Get the bucket of the peer
+
+        // Check isn't a valid remote peer
+        if (index < 0) {
+            return; // Nothing to remove
+        }
+
+        Bucket bucket = this.buckets[index]; // Get the bucket
+        bucket.replacements.remove(multiaddress); // Forget the peer as a replacement
+
+        // Check the peer was in the bucket, and has a replacement
+        if (bucket.contacts.remove(multiaddress) != null && !bucket.replacements.isEmpty()) {
+            Contact replacement = null; // The most recently seen replacement
+
+            // Find the last replacement
+            for (Contact candidate : bucket.replacements.values()) {
+                replacement = candidate; // Remember the replacement
+            }
+
+            bucket.replacements.remove(replacement.multiaddress); // Take the replacement out of the cache
+            bucket.contacts.put(replacement.multiaddress, replacement); // Promote it
+        }
+    }
+
+    /**
+     * Gets the number of peers in the routing table.
+     *
+     * @return the number of peers in the routing table
+     */
+    public synchronized int size() {
+        int size = 0; // The number of peers
+
+        // Count the peers in each bucket
+        for (Bucket bucket : this.buckets) {
+            size += bucket.contacts.size(); // Count the bucket
+        }
+
+        return size; // Return the number of peers
+    }
+
+    /**
+     * Gets the peers in the routing table closest to the given id.
+     *
+     * @param target the id to find peers close to
+     * @param count the maximum number of peers to return
+     * @return the multiaddresses of the closest peers, closest first
+     */
+    public synchronized List<String> getClosestPeers(byte[] target, int count) {
+        ArrayList<Contact> contacts = new ArrayList<>(); // The peers in the table
+
+        // Collect the peers in each bucket
+        for (Bucket bucket : this.buckets) {
+            contacts.addAll(bucket.contacts.values()); // Collect the bucket
+        }
+
+        contacts.sort((Contact a, Contact b) -> compareDistance(a.id, b.id, target)); // Sort the peers by distance
+
+        ArrayList<String> closest = new ArrayList<>(); // The addresses of the closest peers
+
+        // Collect the first count peers
+        for (int i = 0; i < contacts.size() && i < count; i++) {
+            closest.add(contacts.get(i).multiaddress); // Collect the peer
+        }
+
+        return closest; // Return the closest peers
+    }
+
+    /**
+     * Responds to a FIND_NODE request with the closest peers we know of to
+     * its target, adding the sender to the routing table only if the address
+     * it claims carries the key the connection was authenticated with. A
+     * sender on a connection without an authenticated key is never added.
+     *
+     * @param conn the connection the request was received on
+     * @param message the received request
+     */
+    public void handleFindNode(Connection conn, CommonTypes.Message message) throws IOException {
+        FindNodeMessage request = (FindNodeMessage) message.contents; // Get the request
+
+        // Check is a response, or doesn't look up a valid id
+        if (request.closest != null || request.target == null || request.target.length != this.localId.length) {
+            return; // Nothing to respond to
+        }
+
+        String remote = conn.getRemoteMultiaddress(); // Get the address the sender authenticated as
+        byte[] remoteId = remote != null ? idOf(remote) : null; // Get the id of the authenticated key
+
+        // Check the sender listens, and is who it says it is
+        if (request.sender != null && remoteId != null && Arrays.equals(idOf(request.sender), remoteId)) {
+            this.addContact(request.sender); // Add the sender to the table
+        }
+
+        ArrayList<String> closest = new ArrayList<>(this.getClosestPeers(request.target, K)); // Get the closest peers to the target
+
+        conn.writeMessage(new CommonTypes.Message(new FindNodeMessage(request.target, null, closest), CommonTypes.Message.Type.FIND_NODE)); // Respond with the peers
+        conn.flush(); // Flush the response
+    }
+
+    /**
+     * Finds the K closest peers in the network to the given id. The closest
+     * known peers are queried ALPHA at a time, and each round queries the
+     * closest peers learned from the last, until each of the K closest peers
+     * found has been queried. Peers that answer are added to the routing
+     * table and registered with the connection they answered on, and peers
+     * that don't are removed from both.
+     *
+     * @param target the id to find peers close to
+     * @param dialer the transport to query peers with
+     * @param dialingKey the public key to dial peers with
+     * @return the multiaddresses of the closest peers, closest first
+     */
+    public List<String> lookup(byte[] target, Transport dialer, Key dialingKey) {
+        this.touch(target); // Don't refresh the bucket of the target
+
+        TreeMap<byte[], String> shortlist = new TreeMap<>((byte[] a, byte[] b) -> compareDistance(a, b, target)); // The closest peers found so far, by id
+        HashSet<String> queried = new HashSet<>(); // The peers queried so far
+        ConcurrentHashMap<String, Connection> open = new ConcurrentHashMap<>(); // The connections of the queries in progress
+
+        // Start with the closest peers we know of
+        for (String multiaddress : this.getClosestPeers(target, K)) {
+            shortlist.put(idOf(multiaddress), multiaddress); // Add the peer to the shortlist
+        }
+
+        // Query until each of the K closest peers has been queried
+        while (true) {
+            ArrayList<String> round = new ArrayList<>(); // The peers to query in this round
+            int considered = 0; // The number of closest peers considered
+
+            // Pick the closest peers that haven't been queried yet
+            for (String multiaddress : shortlist.values()) {
+                // Check is outside of the K closest peers, or the round is full
+                if (considered++ >= K || round.size() >= ALPHA) {
+                    break; // Done picking
+                }
+
+                // Check hasn't been queried yet
+                if (queried.add(multiaddress)) {
+                    round.add(multiaddress); // Query the peer
+                }
+            }
+
+            // Check has no one left to query
+            if (round.isEmpty()) {
+                break; // Done
+            }
+
+            ArrayList<Future<ArrayList<String>>> queries = new ArrayList<>(); // The queries in progress
+
+            // Query each of the picked peers in parallel
+            for (String multiaddress : round) {
+                queries.add(this.executor.submit(() -> this.query(multiaddress, target, dialer, dialingKey, open))); // Query the peer
+            }
+
+            long deadline = System.currentTimeMillis() + QUERY_TIMEOUT; // The time by which each peer must have responded
+
+            // Collect the response of each peer
+            for (int i = 0; i < round.size(); i++) {
+                String multiaddress = round.get(i); // Get the queried peer
+
+                try {
+                    ArrayList<String> closest = queries.get(i).get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS); // Wait for the response
+
+                    this.addContact(multiaddress); // The peer is alive
+
+                    // Add each of the returned peers to the shortlist
+                    for (String peer : closest) {
+                        byte[] id = idOf(peer); // Get the id of the peer
+
+                        // Check is a valid remote peer
+                        if (id != null && !Arrays.equals(id, this.localId)) {
+                            shortlist.putIfAbsent(id, peer); // Add the peer to the shortlist
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Preserve the interrupt
+
+                    return new ArrayList<>(shortlist.values()).subList(0, Math.min(shortlist.size(), K)); // Return what we've found so far
+                } catch (ExecutionException | TimeoutException e) {
+                    queries.get(i).cancel(true); // Stop waiting for the peer
+                    this.abandon(multiaddress, open); // Unblock the query, if it's still reading
+
+                    this.removeContact(multiaddress); // The peer is unreachable
+
+                    Connection conn = this.getRegisteredPeers().get(multiaddress); // Get the registered connection to the peer
+
+                    // Check the peer was registered
+                    if (conn != null) {
+                        this.unregisterPeer(multiaddress, conn); // Forget the connection
+                    }
+                    shortlist.remove(idOf(multiaddress)); // Don't return the peer
+                }
+            }
+        }
+
+        return new ArrayList<>(shortlist.values()).subList(0, Math.min(shortlist.size(), K)); // Return the closest peers
+    }
+
+    /**
+     * Attempts to join the network through a remote peer, by looking up our
+     * own id through it, which fills the routing table with the peers
+     * closest to us. Once bootstrapped, stale buckets are refreshed in the
+     * background.
+     *
+     * @param bootstrapPeerAddress the address of the peer to bootstrap from
+     * @param dialer the transport to query peers with
+     * @param dialingKey the public key to dial peers with
+     */
+    public void bootstrap(String bootstrapPeerAddress, Transport dialer, Key dialingKey) throws StoreException, IOException, NoSuchAlgorithmException, InvalidKeyException, Transport.UnsupportedTransportException, NoSuchPaddingException, CommonTypes.MultiAddress.InvalidMultiAddressException, DecoderException, ClassNotFoundException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException {
+        String address = canonical(bootstrapPeerAddress); // Use the spelling lookups will dial the peer with
+
+        this.registerPeer(address, dialer.dial(address, dialingKey)); // Connect to the bootstrap peer
+        this.addContact(address); // Start the lookup from the bootstrap peer
+
+        this.lookup(this.localId, dialer, dialingKey); // Find the peers closest to us
+
+        synchronized (this) {
+            // Check the refresh isn't scheduled yet
+            if (!this.refreshing) {
+                this.getRefresher().scheduleWithFixedDelay(() -> this.refresh(dialer, dialingKey), REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.MILLISECONDS); // Schedule the refresh
+                this.refreshing = true; // Don't schedule it again
+            }
+        }
+    }
+
+    /**
+     * Joins the network through a remote peer without blocking. The lookup
+     * runs on the store's own thread rather than its executor, since the
+     * lookup's queries run on the executor. The target is ignored, as a
+     * lookup already stops at the K closest peers.
+     *
+     * @param bootstrapPeerAddress the address of the peer to bootstrap from
+     * @param dialer the transport to query peers with
+     * @param dialingKey the public key to dial peers with
+     * @param targetPeers ignored
+     * @return a future completed with the number of peers in the routing
+     *         table once bootstrapping is done
+     */
+    public CompletableFuture<Integer> bootstrapAsync(String bootstrapPeerAddress, Transport dialer, Key dialingKey, int targetPeers) {
+        CompletableFuture<Integer> done = new CompletableFuture<>(); // Initialize the future
+
+        this.getRefresher().execute(() -> {
+            try {
+                this.bootstrap(bootstrapPeerAddress, dialer, dialingKey); // Bootstrap
+
+                done.complete(this.size()); // Done!
+            } catch (Exception e) {
+                done.completeExceptionally(e); // The bootstrap peer couldn't be reached
+            }
+        }); // Bootstrap in the background
+
+        return done; // Return the future
+    }
+
+    /**
+     * Gets the thread used to bootstrap and refresh stale buckets.
+     *
+     * @return the thread
+     */
+    private synchronized ScheduledExecutorService getRefresher() {
+        // Check the refresher hasn't been initialized yet
+        if (this.refresher == null) {
+            this.refresher = Executors.newSingleThreadScheduledExecutor(Workers.daemonThreadFactory("melon-kademlia")); // Initialize the refresher
+        }
+
+        return this.refresher; // Return the refresher
+    }
+
+    /**
+     * Looks up a random id in the range of each non-empty bucket that hasn't
+     * been looked up within the refresh interval.
+     *
+     * @param dialer the transport to query peers with
+     * @param dialingKey the public key to dial peers with
+     */
+    private void refresh(Transport dialer, Key dialingKey) {
+        ArrayList<byte[]> targets = new ArrayList<>(); // The ids to look up
+        long staleBefore = System.currentTimeMillis() - REFRESH_INTERVAL; // The time before which a lookup is stale
+
+        synchronized (this) {
+            // Find each of the stale buckets
+            for (int i = 0; i < ID_BITS; i++) {
+                // Check the bucket is stale
+                if (!this.buckets[i].contacts.isEmpty() && this.buckets[i].lastLookup < staleBefore) {
+                    targets.add(this.randomIdIn(i)); // Look up an id in the bucket
+                }
+            }
+        }
+
+        // Look up each of the ids
+        for (byte[] target : targets) {
+            try {
+                this.lookup(target, dialer, dialingKey); // Refresh the bucket
+            } catch (Exception e) {
+                e.printStackTrace(); // Log the exception, but keep refreshing
+            }
+        }
+    }
+
+    /**
+     * Sends a FIND_NODE request to a peer, and waits for its response. The
+     * response is picked out by the connection's pipeline (see
+     * Pipeline.exchange), so the connection keeps being read as usual.
+     *
+     * @param multiaddress the multiaddress of the peer to query
+     * @param target the id to find peers close to
+     * @param dialer the transport to connect to the peer with
+     * @param dialingKey the public key to dial the peer with
+     * @param open the connections of the queries in progress
+     * @return the multiaddresses of the closest peers known by the peer
+     */
+    private ArrayList<String> query(String multiaddress, byte[] target, Transport dialer, Key dialingKey, Map<String, Connection> open) throws Exception {
+        Connection conn = dialer.dial(multiaddress, dialingKey); // Connect to the peer
+        open.put(multiaddress, conn); // Allow the query to be abandoned
+
+        try {
+            CommonTypes.Message response = Pipeline.exchange(conn, new CommonTypes.Message(new FindNodeMessage(target, this.listenAddress, null), CommonTypes.Message.Type.FIND_NODE), (CommonTypes.Message message) -> message.contents instanceof FindNodeMessage && ((FindNodeMessage) message.contents).closest != null && Arrays.equals(((FindNodeMessage) message.contents).target, target)); // Send the request, and wait for the response
+
+            this.registerPeer(multiaddress, conn); // Keep the connection to the live peer
+
+            return ((FindNodeMessage) response.contents).closest; // Return the closest peers
+        } finally {
+            open.remove(multiaddress, conn); // The query is done
+        }
+    }
+
+    /**
+     * Closes the connection of a query that didn't finish in time.
+     *
+     * @param multiaddress the multiaddress of the queried peer
+     * @param open the connections of the queries in progress
+     */
+    private void abandon(String multiaddress, Map<String, Connection> open) {
+        Connection conn = open.remove(multiaddress); // Get the connection of the query
+
+        // Check the query is still reading
+        if (conn != null) {
+            try {
+                conn.close(); // Close the connection
+            } catch (IOException e) {
+                e.printStackTrace(); // Log the exception
+            }
+        }
+    }
+
+    /**
+     * Marks the bucket of the given id as looked up.
+     *
+     * @param target the id being looked up
+     */
+    private synchronized void touch(byte[] target) {
+        int index = this.bucketIndex(target); // Get the bucket of the id
+
+        // Check isn't our own id
+        if (index >= 0) {
+            this.buckets[index].lastLookup = System.currentTimeMillis(); // Mark the bucket as looked up
+        }
+    }
+
+    /**
+     * Gets the bucket of the given id.
+     *
+     * @param id the id of the peer
+     * @return the index of the highest bit in which the id differs from ours,
+     *         or -1 if it is our own id
+     */
+    int bucketIndex(byte[] id) {
+        // Find the first differing byte
+        for (int i = 0; i < this.localId.length && i < id.length; i++) {
+            int difference = (this.localId[i] ^ id[i]) & 0xff; // Get the differing bits
+
+            // Check the bytes differ
+            if (difference != 0) {
+                return ID_BITS - 1 - (i * 8 + Integer.numberOfLeadingZeros(difference) - 24); // Return the index of the highest differing bit
+            }
+        }
+
+        return -1; // Same id
+    }
+
+    /**
+     * Generates a random id that falls in the given bucket.
+     *
+     * @param index the index of the bucket
+     * @return the generated id
+     */
+    private byte[] randomIdIn(int index) {
+        byte[] id = new byte[this.localId.length]; // Initialize the id
+        new SecureRandom().nextBytes(id); // Randomize it
+
+        int prefix = ID_BITS - 1 - index; // The number of leading bits shared with our id
+        int bytes = prefix / 8; // The number of whole shared bytes
+
+        System.arraycopy(this.localId, 0, id, 0, bytes); // Share the whole bytes
+
+        int mask = 0xff << (8 - prefix % 8) & 0xff; // The shared bits of the next byte
+        int flip = 0x80 >>> (prefix % 8); // The first differing bit
+
+        id[bytes] = (byte) ((this.localId[bytes] & mask) | ((this.localId[bytes] ^ flip) & flip) | (id[bytes] & ~mask & ~flip & 0xff)); // Share the bits, then differ
+
+        return id; // Return the id
+    }
+
+    /**
+     * Compares the distances of two ids from a target.
+     *
+     * @param a the first id
+     * @param b the second id
+     * @param target the target to measure the distance from
+     * @return a negative number if a is closer, a positive number if b is
+     *         closer, or zero if they're the same id
+     */
+    private static int compareDistance(byte[] a, byte[] b, byte[] target) {
+        // Compare the distances byte by byte
+        for (int i = 0; i < target.length; i++) {
+            int comparison = Integer.compare((a[i] ^ target[i]) & 0xff, (b[i] ^ target[i]) & 0xff); // Compare the distances of the byte
+
+            // Check the distances differ
+            if (comparison != 0) {
+                return comparison; // Return the comparison
+            }
+        }
+
+        return 0; // Same distance
+    }
+}
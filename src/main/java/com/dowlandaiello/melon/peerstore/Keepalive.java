@@ -0,0 +1,485 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.Pipeline;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents the keepalive protocol of a peerstore. Every registered
+ * connection we dialed is pinged each PING_INTERVAL, and the time taken by
+ * each pong is folded into a smoothed round-trip time and jitter for the
+ * connection, the way TCP estimates its retransmission timeout. A connection
+ * that doesn't answer within PING_TIMEOUT is closed and evicted from the
+ * peerstore, so a dead or half-open peer stops soaking up writes.
+ *
+ * Connections read by a Pipeline hand their pings and pongs to
+ * handleMessage, so pings to a connection we dialed are only written, and
+ * their pongs arrive through the pipeline. Since the peer on the other end
+ * of an accepted connection pings us instead, an accepted connection that
+ * has pinged us before, but has gone silent for three intervals, is evicted
+ * as well.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Keepalive {
+    /**
+     * The time between pings to each connection, in milliseconds.
+     */
+    public static final long PING_INTERVAL = 15 * 1000;
+
+    /**
+     * The time a pinged connection has to answer, in milliseconds.
+     */
+    public static final long PING_TIMEOUT = 10 * 1000;
+
+    /**
+     * The time after which a connection that has pinged us before, but has
+     * since gone silent, is evicted, in milliseconds.
+     */
+    public static final long SILENCE_TIMEOUT = 3 * PING_INTERVAL;
+
+    /**
+     * The weight of each new sample in the smoothed round-trip time.
+     */
+    private static final double RTT_GAIN = 0.125;
+
+    /**
+     * The weight of each new sample in the round-trip time jitter.
+     */
+    private static final double JITTER_GAIN = 0.25;
+
+    /**
+     * Represents the round-trip time estimate of a single connection.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public static class RoundTrip {
+        /**
+         * The smoothed round-trip time, in milliseconds.
+         */
+        private double smoothed;
+
+        /**
+         * The mean deviation of the round-trip time, in milliseconds.
+         */
+        private double jitter;
+
+        /**
+         * The number of samples taken so far.
+         */
+        private int samples;
+
+        /**
+         * Folds a new sample into the estimate.
+         *
+         * @param sample the measured round-trip time, in milliseconds
+         */
+        synchronized void update(double sample) {
+            // Check is the first sample
+            if (this.samples++ == 0) {
+                this.smoothed = sample; // Start from the sample
+                this.jitter = sample / 2; // Assume a wide spread until we know better
+
+                return; // Done!
+            }
+
+            this.jitter = (1 - JITTER_GAIN) * this.jitter + JITTER_GAIN * Math.abs(this.smoothed - sample); // Update the jitter against the old estimate
+            this.smoothed = (1 - RTT_GAIN) * this.smoothed + RTT_GAIN * sample; // Update the smoothed round-trip time
+        }
+
+        /**
+         * Gets the smoothed round-trip time.
+         *
+         * @return the smoothed round-trip time, in milliseconds
+         */
+        public synchronized double getSmoothedRtt() {
+            return this.smoothed; // Return the smoothed round-trip time
+        }
+
+        /**
+         * Gets the jitter of the round-trip time.
+         *
+         * @return the mean deviation of the round-trip time, in milliseconds
+         */
+        public synchronized double getJitter() {
+            return this.jitter; // Return the jitter
+        }
+
+        /**
+         * Gets the number of samples the estimate is made of.
+         *
+         * @return the number of samples
+         */
+        public synchronized int getSamples() {
+            return this.samples; // Return the number of samples
+        }
+    }
+
+    /**
+     * Represents a ping waiting for its pong.
+     */
+    private static class Probe {
+        /**
+         * The nonce of the ping.
+         */
+        final long nonce;
+
+        /**
+         * The time the ping was sent at, in nanoseconds.
+         */
+        final long sentAt;
+
+        /**
+         * Initializes a new probe.
+         *
+         * @param nonce the nonce of the ping
+         * @param sentAt the time the ping was sent at, in nanoseconds
+         */
+        Probe(long nonce, long sentAt) {
+            this.nonce = nonce; // Set nonce
+            this.sentAt = sentAt; // Set sent at
+        }
+    }
+
+    /**
+     * The peerstore whose connections are kept alive.
+     */
+    private final Peerstore peerstore;
+
+    /**
+     * The connections read by a pipeline, and the time each last pinged us
+     * at, in nanoseconds (0 if it never has).
+     */
+    private final ConcurrentHashMap<Connection, Long> attached;
+
+    /**
+     * The connections read by a pipeline that we dialed, and ping ourselves.
+     */
+    private final Set<Connection> dialed;
+
+    /**
+     * The pings waiting for their pongs, by connection.
+     */
+    private final ConcurrentHashMap<Connection, Probe> outstanding;
+
+    /**
+     * The round-trip time estimate of each pinged connection.
+     */
+    private final ConcurrentHashMap<Connection, RoundTrip> roundTrips;
+
+    /**
+     * The executor used to send pings, and read pongs off of connections
+     * that aren't read by a pipeline.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The scheduler running the pings (null until started).
+     */
+    private ScheduledExecutorService scheduler;
+
+    static {
+        PeerstoreCodecs.register(); // Register the codecs of the layer's messages
+    }
+
+    /**
+     * Initializes a new keepalive for the given peerstore.
+     *
+     * @param peerstore the peerstore whose connections are kept alive
+     */
+    public Keepalive(Peerstore peerstore) {
+        this.peerstore = peerstore; // Set peerstore
+        this.attached = new ConcurrentHashMap<>(); // Initialize the attached connections map
+        this.dialed = ConcurrentHashMap.newKeySet(); // Initialize the dialed connections set
+        this.outstanding = new ConcurrentHashMap<>(); // Initialize the outstanding pings map
+        this.roundTrips = new ConcurrentHashMap<>(); // Initialize the round-trip times map
+        this.executor = Workers.newBoundedExecutor("melon-keepalive", 4); // Initialize a bounded ping pool
+    }
+
+    /**
+     * Sets the executor used to send pings and read pongs.
+     *
+     * @param executor the executor to use
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor; // Set executor
+    }
+
+    /**
+     * Starts pinging the peerstore's connections.
+     */
+    public synchronized void start() {
+        // Check isn't running yet
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(Workers.daemonThreadFactory("melon-keepalive-timer")); // Initialize the scheduler
+            this.scheduler.scheduleWithFixedDelay(this::tick, PING_INTERVAL, PING_INTERVAL, TimeUnit.MILLISECONDS); // Schedule the pings
+        }
+    }
+
+    /**
+     * Stops pinging the peerstore's connections.
+     */
+    public synchronized void close() {
+        // Check is running
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow(); // Stop the pings
+            this.scheduler = null; // Allow the keepalive to be started again
+        }
+    }
+
+    /**
+     * Marks a connection accepted from a peer as read by a pipeline, which
+     * will hand its pings to handleMessage.
+     *
+     * @param conn the connection
+     */
+    public void attach(Connection conn) {
+        this.attach(conn, false); // Attach the accepted connection
+    }
+
+    /**
+     * Marks a connection as read by a pipeline, which will hand its pings
+     * and pongs to handleMessage.
+     *
+     * @param conn the connection
+     * @param dialed whether or not we dialed the connection, and should ping
+     *               it ourselves
+     */
+    public void attach(Connection conn, boolean dialed) {
+        // Check we dialed the connection
+        if (dialed) {
+            this.dialed.add(conn); // Ping the connection
+        }
+
+        this.attached.put(conn, 0L); // Attach the connection
+    }
+
+    /**
+     * Forgets a connection once its pipeline has stopped reading it.
+     *
+     * @param conn the connection
+     */
+    public void detach(Connection conn) {
+        this.attached.remove(conn); // Detach the connection
+        this.dialed.remove(conn); // Stop pinging it
+        this.outstanding.remove(conn); // Forget its ping
+        this.roundTrips.remove(conn); // Forget its round-trip time
+    }
+
+    /**
+     * Answers a ping, or takes a sample from a pong, received on a
+     * connection read by a pipeline.
+     *
+     * @param conn the connection the message was received on
+     * @param message the received message
+     */
+    public void handleMessage(Connection conn, CommonTypes.Message message) throws IOException {
+        PingMessage ping = (PingMessage) message.contents; // Get the ping
+
+        // Check is a pong
+        if (ping.pong) {
+            this.handlePong(conn, ping); // Take a sample
+
+            return; // Done!
+        }
+
+        this.attached.replace(conn, System.nanoTime()); // Remember the peer is alive
+
+        conn.writeMessage(new CommonTypes.Message(new PingMessage(ping.nonce, true), CommonTypes.Message.Type.PING)); // Answer the ping
+        conn.flush(); // Flush the pong
+    }
+
+    /**
+     * Gets the round-trip time estimate of a registered peer.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @return the estimate, or null if the peer hasn't answered a ping yet
+     */
+    public RoundTrip getRoundTrip(String multiaddress) {
+        Connection conn = this.peerstore.getRegisteredPeers().get(multiaddress); // Get the connection to the peer
+
+        return conn != null ? this.roundTrips.get(conn) : null; // Return the estimate
+    }
+
+    /**
+     * Gets the registered peers that have answered a ping, lowest smoothed
+     * round-trip time first.
+     *
+     * @return the multiaddresses of the peers
+     */
+    public List<String> getPeersByLatency() {
+        ArrayList<Map.Entry<String, RoundTrip>> measured = new ArrayList<>(); // The peers with an estimate
+
+        // Collect the estimate of each registered peer
+        for (Map.Entry<String, Connection> peer : this.peerstore.getRegisteredPeers().entrySet()) {
+            RoundTrip roundTrip = this.roundTrips.get(peer.getValue()); // Get the estimate of the peer
+
+            // Check has an estimate
+            if (roundTrip != null) {
+                measured.add(new AbstractMap.SimpleImmutableEntry<>(peer.getKey(), roundTrip)); // Collect the peer
+            }
+        }
+
+        measured.sort((Map.Entry<String, RoundTrip> a, Map.Entry<String, RoundTrip> b) -> Double.compare(a.getValue().getSmoothedRtt(), b.getValue().getSmoothedRtt())); // Sort by round-trip time
+
+        ArrayList<String> peers = new ArrayList<>(measured.size()); // The sorted addresses
+
+        // Collect the address of each peer
+        for (Map.Entry<String, RoundTrip> peer : measured) {
+            peers.add(peer.getKey()); // Collect the address
+        }
+
+        return peers; // Return the sorted addresses
+    }
+
+    /**
+     * Evicts unresponsive connections, and pings each registered connection
+     * that doesn't have a ping outstanding. Anything thrown is logged rather
+     * than rethrown, since it would cancel every later tick.
+     */
+    void tick() {
+        try {
+            long now = System.nanoTime(); // Get the current time
+
+            // Evict each connection that didn't answer in time
+            for (Map.Entry<Connection, Probe> entry : this.outstanding.entrySet()) {
+                // Check the ping has timed out
+                if (now - entry.getValue().sentAt > TimeUnit.MILLISECONDS.toNanos(PING_TIMEOUT)) {
+                    this.evict(entry.getKey()); // Evict the connection
+                }
+            }
+
+            // Evict each attached connection that stopped pinging us
+            for (Map.Entry<Connection, Long> entry : this.attached.entrySet()) {
+                // Check has pinged us before, but has gone silent
+                if (entry.getValue() != 0 && now - entry.getValue() > TimeUnit.MILLISECONDS.toNanos(SILENCE_TIMEOUT)) {
+                    this.evict(entry.getKey()); // Evict the connection
+                }
+            }
+
+            this.roundTrips.keySet().removeIf(Connection::isClosed); // Forget the estimates of closed connections
+
+            // Ping each registered connection we dialed
+            for (Connection conn : this.peerstore.getRegisteredPeers().values()) {
+                // Check the connection has been closed
+                if (conn.isClosed()) {
+                    this.evict(conn); // Evict the connection
+
+                    continue; // Move on to the next connection
+                }
+
+                // Check the connection is read by a pipeline and the peer pings us, or already has a ping outstanding
+                if ((this.attached.containsKey(conn) && !this.dialed.contains(conn)) || this.outstanding.containsKey(conn)) {
+                    continue; // Let the peer ping us, or wait for the pong
+                }
+
+                Probe probe = new Probe(ThreadLocalRandom.current().nextLong(), System.nanoTime()); // Initialize a probe
+                this.outstanding.put(conn, probe); // Start the clock
+
+                try {
+                    this.executor.execute(() -> this.ping(conn, probe)); // Send the ping
+                } catch (RuntimeException e) {
+                    this.outstanding.remove(conn, probe); // The ping was never sent
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace(); // Log the exception, but keep the pings running
+        }
+    }
+
+    /**
+     * Pings a connection. The pong of a connection read by a pipeline
+     * arrives through handleMessage; for any other connection, the pong is
+     * waited for through Pipeline.exchange, which reads the connection
+     * under a lock of its own rather than the connection's monitor, so
+     * writes to the connection aren't held up while the pong is on its way.
+     *
+     * @param conn the connection to ping
+     * @param probe the probe of the ping
+     */
+    private void ping(Connection conn, Probe probe) {
+        CommonTypes.Message ping = new CommonTypes.Message(new PingMessage(probe.nonce, false), CommonTypes.Message.Type.PING); // Initialize the ping
+
+        try {
+            // Check the connection is read by a pipeline
+            if (this.attached.containsKey(conn)) {
+                conn.writeMessage(ping); // Send the ping
+                conn.flush(); // Flush the ping
+
+                return; // The pong arrives through the pipeline
+            }
+
+            CommonTypes.Message pong = Pipeline.exchange(conn, ping, (CommonTypes.Message message) -> message.contents instanceof PingMessage && ((PingMessage) message.contents).pong && ((PingMessage) message.contents).nonce == probe.nonce); // Send the ping, and wait for its pong
+
+            this.handlePong(conn, (PingMessage) pong.contents); // Take a sample
+        } catch (IOException e) {
+            this.evict(conn); // The connection is dead
+        }
+    }
+
+    /**
+     * Takes a round-trip time sample from a pong, if it answers the
+     * outstanding ping of its connection.
+     *
+     * @param conn the connection the pong was received on
+     * @param pong the pong
+     */
+    private void handlePong(Connection conn, PingMessage pong) {
+        Probe probe = this.outstanding.get(conn); // Get the outstanding ping
+
+        // Check answers the outstanding ping
+        if (probe != null && probe.nonce == pong.nonce && this.outstanding.remove(conn, probe)) {
+            this.roundTrips.computeIfAbsent(conn, (Connection c) -> new RoundTrip()).update((System.nanoTime() - probe.sentAt) / 1e6); // Take a sample
+        }
+    }
+
+    /**
+     * Closes a connection, and unregisters each peer registered with it.
+     *
+     * @param conn the connection to evict
+     */
+    private void evict(Connection conn) {
+        this.outstanding.remove(conn); // Forget its ping
+        this.roundTrips.remove(conn); // Forget its round-trip time
+        this.attached.remove(conn); // Stop watching it for silence
+        this.dialed.remove(conn); // Stop pinging it
+
+        Set<String> addresses = new HashSet<>(); // The addresses registered with the connection
+
+        // Find each of the addresses registered with the connection
+        for (Map.Entry<String, Connection> peer : this.peerstore.getRegisteredPeers().entrySet()) {
+            // Check is registered with the connection
+            if (peer.getValue() == conn) {
+                addresses.add(peer.getKey()); // Collect the address
+            }
+        }
+
+        // Unregister each of the addresses
+        for (String address : addresses) {
+            this.peerstore.unregisterPeer(address, conn); // Unregister the peer
+        }
+
+        try {
+            conn.close(); // Close the connection, unblocking any reader
+        } catch (IOException e) {
+            e.printStackTrace(); // Log the exception
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.transport.Transport;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a peerstore that remembers every peer it has ever known across
+ * restarts. Live connections are kept in memory, exactly as in a SmolStore,
+ * while the multiaddress, public key, last-seen time and connection
+ * statistics of each known peer are appended to a memory-mapped file. Only
+ * addresses that were dialed are remembered: peers that connected to us are
+ * registered under the ephemeral port they connected from, which nothing
+ * listens on. Each update appends a new record, and the latest record of a
+ * peer wins; once the file fills up, it is compacted down to one record per
+ * peer (or grown, if it's mostly live records), dropping peers that haven't
+ * been seen in STALE_AFTER, and all but the best MAX_KNOWN_PEERS. The file
+ * is only read the first time the known peers are needed, so opening the
+ * store costs nothing at startup.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class MappedStore extends SmolStore {
+    /**
+     * Represents everything remembered about a known peer.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public static class KnownPeer {
+        /**
+         * The multiaddress of the peer.
+         */
+        public final String multiaddress;
+
+        /**
+         * The encoded public key of the peer (empty if unknown).
+         */
+        public final byte[] publicKey;
+
+        /**
+         * The last time the peer was connected to, in milliseconds since the epoch.
+         */
+        public final long lastSeen;
+
+        /**
+         * The number of times the peer was successfully connected to.
+         */
+        public final int successes;
+
+        /**
+         * The number of times connecting to the peer failed.
+         */
+        public final int failures;
+
+        /**
+         * Initializes a new KnownPeer.
+         *
+         * @param multiaddress the multiaddress of the peer
+         * @param publicKey the encoded public key of the peer
+         * @param lastSeen the last time the peer was connected to
+         * @param successes the number of successful connections
+         * @param failures the number of failed connections
+         */
+        public KnownPeer(String multiaddress, byte[] publicKey, long lastSeen, int successes, int failures) {
+            this.multiaddress = multiaddress; // Set multiaddress
+            this.publicKey = publicKey; // Set public key
+            this.lastSeen = lastSeen; // Set last seen
+            this.successes = successes; // Set successes
+            this.failures = failures; // Set failures
+        }
+
+        /**
+         * Gets the quality of the peer: the smoothed ratio of successful
+         * connections to connection attempts.
+         *
+         * @return the quality of the peer, between 0 and 1
+         */
+        public double getQuality() {
+            return (this.successes + 1.0) / (this.successes + this.failures + 2.0); // Return the smoothed success ratio
+        }
+    }
+
+    /**
+     * The magic number at the start of every store file ("MLNP").
+     */
+    private static final int MAGIC = 0x4d4c4e50;
+
+    /**
+     * The version of the store file format.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The length of the file header: the magic number and the version.
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * The initial size of a new store file.
+     */
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * The largest number of known peers kept when the store file is
+     * compacted.
+     */
+    public static final int MAX_KNOWN_PEERS = 1024;
+
+    /**
+     * The time after which a peer that hasn't been seen is dropped when the
+     * store file is compacted, in milliseconds (30 days).
+     */
+    public static final long STALE_AFTER = 30L * 24 * 60 * 60 * 1000;
+
+    /**
+     * Orders known peers best first: by quality, then by recency.
+     */
+    private static final Comparator<KnownPeer> BEST_FIRST = Comparator.comparingDouble(KnownPeer::getQuality).reversed().thenComparing(Comparator.comparingLong((KnownPeer p) -> p.lastSeen).reversed());
+
+    /**
+     * The file backing the store.
+     */
+    private final Path file;
+
+    /**
+     * The latest record of each known peer (null until loaded).
+     */
+    private HashMap<String, KnownPeer> known;
+
+    /**
+     * The mapping of the store file (null until loaded).
+     */
+    private MappedByteBuffer mapped;
+
+    /**
+     * The offset at which the next record is appended.
+     */
+    private int end;
+
+    /**
+     * Initializes a new MappedStore backed by the given file. The file is
+     * created on first use if it doesn't exist.
+     *
+     * @param file the file to remember known peers in
+     */
+    public MappedStore(Path file) {
+        this.file = file; // Set file
+    }
+
+    /**
+     * Registers a live connection to a dialed peer, and remembers the peer
+     * as seen.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @param connection the connection used to communicate with the peer
+     */
+    public void registerPeer(String multiaddress, Connection connection) {
+        super.registerPeer(multiaddress, connection); // Register the live connection
+
+        this.recordAttempt(multiaddress, true); // Remember the peer
+    }
+
+    /**
+     * Records the outcome of an attempt to connect to a peer.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @param succeeded whether or not the connection was made
+     */
+    public synchronized void recordAttempt(String multiaddress, boolean succeeded) {
+        // Check the address is unknown
+        if (multiaddress == null || multiaddress.isEmpty()) {
+            return; // Nothing to remember
+        }
+
+        CommonTypes.MultiAddress parsed = parse(multiaddress); // Parse the address
+
+        // Check the address can be parsed
+        if (parsed != null) {
+            multiaddress = parsed.toString(); // Remember the peer under its canonical form
+        }
+
+        try {
+            this.load(); // Make sure the store is loaded
+
+            KnownPeer previous = this.known.get(multiaddress); // Get what we knew about the peer
+
+            KnownPeer updated = new KnownPeer(
+                    multiaddress,
+                    previous != null && previous.publicKey.length != 0 ? previous.publicKey : parseKey(multiaddress),
+                    succeeded ? System.currentTimeMillis() : (previous != null ? previous.lastSeen : 0),
+                    (previous != null ? previous.successes : 0) + (succeeded ? 1 : 0),
+                    (previous != null ? previous.failures : 0) + (succeeded ? 0 : 1)
+            ); // Update the peer's record
+
+            this.append(updated); // Persist the record
+            this.known.put(multiaddress, updated); // Remember the record
+        } catch (IOException e) {
+            e.printStackTrace(); // Log the exception, the live connection is still registered
+        }
+    }
+
+    /**
+     * Gets the known peers with the highest quality, most recently seen
+     * first among equals.
+     *
+     * @param count the maximum number of peers to get
+     * @return the best known peers
+     */
+    public synchronized List<KnownPeer> getBestPeers(int count) throws IOException {
+        this.load(); // Make sure the store is loaded
+
+        ArrayList<KnownPeer> peers = new ArrayList<>(this.known.values()); // Copy the known peers
+
+        peers.sort(BEST_FIRST); // Sort by quality, then recency
+
+        return new ArrayList<>(peers.subList(0, Math.min(count, peers.size()))); // Return the best peers
+    }
+
+    /**
+     * Dials the best known peers that aren't already connected, in parallel,
+     * and registers each connection made.
+     *
+     * @param dialer the transport to dial peers with
+     * @param dialingKey the public key of the local peer
+     * @param count the maximum number of peers to dial
+     * @return the number of peers connected to
+     */
+    public int reconnect(Transport dialer, Key dialingKey, int count) throws IOException {
+        ArrayList<String> candidates = new ArrayList<>(); // The addresses to dial
+
+        // Pick the best peers we aren't connected to yet
+        for (KnownPeer peer : this.getBestPeers(Integer.MAX_VALUE)) {
+            // Check has enough candidates
+            if (candidates.size() == count) {
+                break; // Done!
+            }
+
+            // Check isn't connected yet
+            if (!this.peerExists(peer.multiaddress)) {
+                candidates.add(peer.multiaddress); // Dial the peer
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(candidates.size()); // Initialize a latch for the dials
+        AtomicInteger connected = new AtomicInteger(); // The number of dials that succeeded
+
+        // Dial each of the candidates
+        for (String candidate : candidates) {
+            this.executor.execute(() -> {
+                try {
+                    this.registerPeer(candidate, dialer.dial(candidate, dialingKey)); // Dial and register the peer
+
+                    connected.incrementAndGet(); // Count the connection
+                } catch (Exception e) {
+                    this.recordAttempt(candidate, false); // Remember the failure
+                } finally {
+                    done.countDown(); // Mark the dial as finished
+                }
+            });
+        }
+
+        try {
+            done.await(60, TimeUnit.SECONDS); // Wait for each of the dials to finish
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+        }
+
+        return connected.get(); // Return the number of peers connected to
+    }
+
+    /**
+     * Forces each record written so far out to the store file.
+     */
+    public synchronized void flush() {
+        // Check has been loaded
+        if (this.mapped != null) {
+            this.mapped.force(); // Write the mapping back to the file
+        }
+    }
+
+    /**
+     * Loads the store file, if it hasn't been loaded yet.
+     */
+    private void load() throws IOException {
+        // Check is already loaded
+        if (this.known != null) {
+            return; // Nothing to do
+        }
+
+        HashMap<String, KnownPeer> known = new HashMap<>(); // Initialize the known peers map
+
+        boolean exists = Files.exists(this.file) && Files.size(this.file) >= HEADER_LENGTH; // Check has a store file
+        this.mapped = this.map(this.file, exists ? Files.size(this.file) : INITIAL_CAPACITY); // Map the file
+
+        // Check is a new file
+        if (!exists || this.mapped.getInt(0) != MAGIC) {
+            this.mapped.putInt(0, MAGIC); // Write the magic number
+            this.mapped.putInt(4, VERSION); // Write the version
+            this.end = HEADER_LENGTH; // No records yet
+            this.known = known; // Set known
+
+            return; // Done!
+        }
+
+        int version = this.mapped.getInt(4); // Read the version of the file
+        int position = HEADER_LENGTH; // Start after the header
+
+        // Read records until an unwritten one is found
+        while (position + 4 <= this.mapped.capacity()) {
+            int length = this.mapped.getInt(position); // Read the length of the record
+
+            // Check is unwritten, or was cut off (compared without overflowing)
+            if (length <= 0 || length > this.mapped.capacity() - position - 4) {
+                break; // The rest of the file is unused
+            }
+
+            ByteBuffer record = this.mapped.duplicate(); // Get a view of the record
+            record.position(position + 4).limit(position + 4 + length);
+
+            try {
+                KnownPeer peer = decode(record, version); // Decode the record
+                known.put(peer.multiaddress, peer); // Later records replace earlier ones
+            } catch (RuntimeException e) {
+                break; // The record is corrupt, so the rest of the file is unused
+            }
+
+            position += 4 + length; // Move to the next record
+        }
+
+        this.end = position; // Append after the last record
+        this.known = known; // Set known
+
+        // Check the file was written by an older version
+        if (version != VERSION) {
+            this.compact(0); // Rewrite the file in the current format
+        }
+    }
+
+    /**
+     * Appends a record to the store file, compacting or growing it first if
+     * the record doesn't fit.
+     *
+     * @param peer the record to append
+     */
+    private void append(KnownPeer peer) throws IOException {
+        byte[] record = encode(peer); // Encode the record
+
+        // Check the record doesn't fit
+        if (this.end + 4 + record.length > this.mapped.capacity()) {
+            this.compact(4 + record.length); // Make room
+        }
+
+        this.mapped.position(this.end + 4); // Skip the length of the record
+        this.mapped.put(record); // Write the record
+        this.mapped.putInt(this.end, record.length); // Write the length last, so a torn record is never read
+
+        this.end += 4 + record.length; // Move past the record
+    }
+
+    /**
+     * Rewrites the store file with only the latest record of each peer,
+     * growing it if the live records alone would leave it more than half
+     * full. Peers that haven't been seen in STALE_AFTER are forgotten, as
+     * are all but the best MAX_KNOWN_PEERS.
+     *
+     * @param needed the number of bytes that must fit after compaction
+     */
+    private void compact(int needed) throws IOException {
+        long cutoff = System.currentTimeMillis() - STALE_AFTER; // Peers last seen before the cutoff are stale
+        ArrayList<KnownPeer> kept = new ArrayList<>(); // The peers still worth remembering
+
+        // Collect each of the peers seen recently
+        for (KnownPeer peer : this.known.values()) {
+            // Check isn't stale
+            if (peer.lastSeen >= cutoff) {
+                kept.add(peer); // Keep the peer
+            }
+        }
+
+        kept.sort(BEST_FIRST); // Sort by quality, then recency
+
+        // Check has too many peers
+        if (kept.size() > MAX_KNOWN_PEERS) {
+            kept.subList(MAX_KNOWN_PEERS, kept.size()).clear(); // Forget the worst peers
+        }
+
+        HashMap<String, KnownPeer> known = new HashMap<>(); // The remembered peers
+        ArrayList<byte[]> records = new ArrayList<>(kept.size()); // The live records
+        long live = HEADER_LENGTH; // The size of the live records
+
+        // Encode each of the live records
+        for (KnownPeer peer : kept) {
+            byte[] record = encode(peer); // Encode the record
+
+            known.put(peer.multiaddress, peer); // Remember the peer
+
+            records.add(record); // Add the record
+            live += 4 + record.length; // Count the record
+        }
+
+        long capacity = this.mapped.capacity(); // The size of the new file
+
+        // Grow until the live records fill at most half of the file
+        while ((live + needed) * 2 > capacity) {
+            capacity *= 2; // Double the file
+        }
+
+        Path compacted = this.file.resolveSibling(this.file.getFileName() + ".compact"); // Get the path of the new file
+        Files.deleteIfExists(compacted); // Remove any leftover attempt
+
+        MappedByteBuffer next = this.map(compacted, capacity); // Map the new file
+
+        next.putInt(MAGIC); // Write the magic number
+        next.putInt(VERSION); // Write the version
+
+        // Write each of the live records
+        for (byte[] record : records) {
+            next.putInt(record.length); // Write the length
+            next.put(record); // Write the record
+        }
+
+        next.force(); // Make sure the new file is complete before it replaces the old one
+
+        Files.move(compacted, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); // Replace the old file
+
+        this.known = known; // Forget the dropped peers
+        this.mapped = next; // Use the new mapping
+        this.end = next.position(); // Append after the last record
+    }
+
+    /**
+     * Maps a file into memory, creating or growing it to the given size.
+     *
+     * @param path the file to map
+     * @param size the size of the mapping
+     * @return the mapping
+     */
+    private MappedByteBuffer map(Path path, long size) throws IOException {
+        // Check the file lives in a directory that doesn't exist yet
+        if (path.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(path.toAbsolutePath().getParent()); // Create the directory
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // Map the file (the mapping outlives the channel)
+        }
+    }
+
+    /**
+     * Encodes a known peer into a record.
+     *
+     * @param peer the peer to encode
+     * @return the encoded record
+     */
+    private static byte[] encode(KnownPeer peer) {
+        CommonTypes.MultiAddress parsed = parse(peer.multiaddress); // Parse the address (usually interned)
+
+        // Check the address has a binary form, which already holds the public key
+        if (parsed != null && parsed.getBinaryLength() > 0) {
+            ByteBuffer record = ByteBuffer.allocate(8 + 4 + 4 + 1 + parsed.getBinaryLength()); // Allocate the record
+            record.putLong(peer.lastSeen); // Write the last seen time
+            record.putInt(peer.successes); // Write the number of successes
+            record.putInt(peer.failures); // Write the number of failures
+            record.put((byte) 1); // Mark the address as binary
+
+            try {
+                parsed.writeBinary(record); // Write the address
+            } catch (CommonTypes.MultiAddress.InvalidMultiAddressException e) {
+                throw new IllegalStateException(e); // Unreachable, the address has a binary form
+            }
+
+            return record.array(); // Return the record
+        }
+
+        byte[] address = peer.multiaddress.getBytes(StandardCharsets.UTF_8); // Encode the address
+
+        ByteBuffer record = ByteBuffer.allocate(8 + 4 + 4 + 1 + 4 + address.length + 4 + peer.publicKey.length); // Allocate the record
+        record.putLong(peer.lastSeen); // Write the last seen time
+        record.putInt(peer.successes); // Write the number of successes
+        record.putInt(peer.failures); // Write the number of failures
+        record.put((byte) 0); // Mark the address as a string
+        record.putInt(address.length).put(address); // Write the address
+        record.putInt(peer.publicKey.length).put(peer.publicKey); // Write the public key
+
+        return record.array(); // Return the record
+    }
+
+    /**
+     * Decodes a known peer from a record.
+     *
+     * @param record the record to decode
+     * @param version the version of the file the record was read from
+     * @return the decoded peer
+     */
+    private static KnownPeer decode(ByteBuffer record, int version) {
+        long lastSeen = record.getLong(); // Read the last seen time
+        int successes = record.getInt(); // Read the number of successes
+        int failures = record.getInt(); // Read the number of failures
+
+        // Check the address is in its binary form (version 1 files only have string addresses)
+        if (version > 1 && record.get() == 1) {
+            try {
+                CommonTypes.MultiAddress address = CommonTypes.MultiAddress.readBinary(record); // Read the address
+
+                return new KnownPeer(address.toString(), Hex.decodeHex(address.encodedKey.toCharArray()), lastSeen, successes, failures); // Return the peer
+            } catch (CommonTypes.MultiAddress.InvalidMultiAddressException | DecoderException e) {
+                throw new IllegalArgumentException("corrupt peer record", e); // The record is corrupt
+            }
+        }
+
+        byte[] address = new byte[getLength(record)]; // Initialize a buffer for the address
+        record.get(address); // Read the address
+
+        byte[] publicKey = new byte[getLength(record)]; // Initialize a buffer for the public key
+        record.get(publicKey); // Read the public key
+
+        return new KnownPeer(new String(address, StandardCharsets.UTF_8), publicKey, lastSeen, successes, failures); // Return the peer
+    }
+
+    /**
+     * Reads the length of a field from a record, checking it against what's
+     * left of the record before anything is allocated for it.
+     *
+     * @param record the record to read from
+     * @return the length of the field
+     */
+    private static int getLength(ByteBuffer record) {
+        int length = record.getInt(); // Read the length
+
+        // Check the length is torn or corrupt
+        if (length < 0 || length > record.remaining()) {
+            throw new IllegalArgumentException(String.format("corrupt peer record field length (%d)", length)); // The record is corrupt
+        }
+
+        return length; // Return the length
+    }
+
+    /**
+     * Parses a multiaddress.
+     *
+     * @param multiaddress the multiaddress to parse
+     * @return the parsed address, or null if it can't be parsed
+     */
+    private static CommonTypes.MultiAddress parse(String multiaddress) {
+        try {
+            return CommonTypes.MultiAddress.parse(multiaddress); // Return the parsed address
+        } catch (CommonTypes.MultiAddress.InvalidMultiAddressException e) {
+            return null; // Not a valid address
+        }
+    }
+
+    /**
+     * Parses the public key from the last component of a multiaddress.
+     *
+     * @param multiaddress the multiaddress to parse
+     * @return the encoded public key, or an empty array if it can't be parsed
+     */
+    private static byte[] parseKey(String multiaddress) {
+        try {
+            return Hex.decodeHex(multiaddress.substring(multiaddress.lastIndexOf('/') + 1).toCharArray()); // Return the decoded key
+        } catch (DecoderException e) {
+            return new byte[0]; // No key
+        }
+    }
+}
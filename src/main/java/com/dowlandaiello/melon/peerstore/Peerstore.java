@@ -14,7 +14,10 @@ import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Represents a generic, non-persistent virtual storage device.
@@ -31,6 +34,27 @@ public interface Peerstore {
      */
     void registerPeer(String multiaddress, Connection connection);
 
+    /**
+     * Commits a connection accepted from a remote peer to the peer store.
+     * The peer is registered under the address it connected from, which
+     * nothing listens on, so the address is never remembered or handed out
+     * to other peers to dial.
+     *
+     * @param multiaddress the multiaddress the peer connected from
+     * @param connection the connection used to communicate with the peer
+     */
+    void registerInboundPeer(String multiaddress, Connection connection);
+
+    /**
+     * Removes a peer from the peer store, if it is still registered with the
+     * given connection.
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @param connection the connection the peer was registered with
+     * @return whether or not the peer was removed
+     */
+    boolean unregisterPeer(String multiaddress, Connection connection);
+
     /**
      * Checks whether or not the specific peer exists in the peerstore.
      *
@@ -40,11 +64,20 @@ public interface Peerstore {
     boolean peerExists(String multiaddress);
 
     /**
-     * Gets a hashmap of registered peers.
+     * Gets a read-only view of the registered peers. The view may be
+     * iterated while peers are being registered and unregistered.
      *
      * @return the registered peers
      */
-    HashMap<String, Connection> getRegisteredPeers();
+    Map<String, Connection> getRegisteredPeers();
+
+    /**
+     * Gets the addresses of the registered peers that can be dialed: those
+     * registered with registerPeer, rather than registerInboundPeer.
+     *
+     * @return the dialable addresses of the registered peers
+     */
+    List<String> getDialableAddresses();
 
     /**
      * Attempts to find an existing connection to a remote peer. Throws a
@@ -55,10 +88,29 @@ public interface Peerstore {
      */
     Connection getExistingConnection(String multiaddress) throws StoreException.PeerNotFoundException;
 
+    /**
+     * Sets the executor used to dial peers while bootstrapping.
+     *
+     * @param executor the executor to use
+     */
+    void setExecutor(ExecutorService executor);
+
     /**
      * Attempts to retrieve a copy of the peerstore from a remote peer.
      *
      * @param bootstrapPeerAddress the address of the peer to bootstrap from
      */
     void bootstrap(String bootstrapPeerAddress, Transport dialer, Key dialingKey) throws StoreException, IOException, NoSuchAlgorithmException, InvalidKeyException, Transport.UnsupportedTransportException, NoSuchPaddingException, CommonTypes.MultiAddress.InvalidMultiAddressException, DecoderException, ClassNotFoundException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException;
+
+    /**
+     * Populates the peerstore from a remote peer without blocking.
+     *
+     * @param bootstrapPeerAddress the address of the peer to bootstrap from
+     * @param dialer the transport to connect to peers with
+     * @param dialingKey the public key to dial peers with
+     * @param targetPeers the number of registered peers at which to stop
+     * @return a future completed with the number of registered peers once
+     *         bootstrapping is done
+     */
+    CompletableFuture<Integer> bootstrapAsync(String bootstrapPeerAddress, Transport dialer, Key dialingKey, int targetPeers);
 }
@@ -0,0 +1,162 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Implements the wire format of the peerstore layer's messages (BOOTSTRAP,
+ * FIND_NODE, and PING), which are registered with the Codec before the layer
+ * sends or receives any of them.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public final class PeerstoreCodecs {
+    /**
+     * Prevents instantiation.
+     */
+    private PeerstoreCodecs() {
+    }
+
+    /**
+     * Registers the codecs of each of the peerstore layer's messages.
+     */
+    public static void register() {
+        Codec.register(CommonTypes.Message.Type.BOOTSTRAP, PeerstoreCodecs::writeBootstrap, PeerstoreCodecs::readBootstrap); // Register the bootstrap codec
+        Codec.register(CommonTypes.Message.Type.FIND_NODE, PeerstoreCodecs::writeFindNode, PeerstoreCodecs::readFindNode); // Register the lookup codec
+        Codec.register(CommonTypes.Message.Type.PING, PeerstoreCodecs::writePing, PeerstoreCodecs::readPing); // Register the ping codec
+    }
+
+    /**
+     * Writes a bootstrap message.
+     *
+     * @param writer the writer to write to
+     * @param contents the bootstrap message to write
+     */
+    private static void writeBootstrap(Codec.Writer writer, Object contents) {
+        BootstrapMessage bootstrap = (BootstrapMessage) contents; // Get the bootstrap message
+
+        writer.putVarint(bootstrap.peerAddresses != null ? bootstrap.peerAddresses.size() + 1 : 0); // Write the number of addresses (0 for none)
+
+        // Check has addresses
+        if (bootstrap.peerAddresses != null) {
+            // Write each of the addresses
+            for (String address : bootstrap.peerAddresses) {
+                writer.putAddress(address); // Write the address
+            }
+        }
+    }
+
+    /**
+     * Reads a bootstrap message.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (unused)
+     * @return the read bootstrap message
+     */
+    private static Serializable readBootstrap(ByteBuffer body, PooledBuffer lease) throws IOException {
+        int numAddresses = Codec.getCount(body, 1); // Read the number of addresses (plus one, so an empty request can be told apart)
+
+        // Check has no addresses
+        if (numAddresses == 0) {
+            return new BootstrapMessage(null); // Return the bootstrap request
+        }
+
+        ArrayList<String> addresses = new ArrayList<>(numAddresses - 1); // Initialize the addresses list
+
+        // Read each of the addresses
+        for (int i = 0; i < numAddresses - 1; i++) {
+            addresses.add(Codec.getAddress(body)); // Read the address
+        }
+
+        return new BootstrapMessage(addresses); // Return the bootstrap message
+    }
+
+    /**
+     * Writes a lookup request or response.
+     *
+     * @param writer the writer to write to
+     * @param contents the lookup to write
+     */
+    private static void writeFindNode(Codec.Writer writer, Object contents) {
+        FindNodeMessage findNode = (FindNodeMessage) contents; // Get the lookup
+
+        writer.putBytes(findNode.target); // Write the target id
+        writer.putVarint(findNode.sender != null ? 1 : 0); // Write whether or not the sender listens
+
+        // Check the sender listens
+        if (findNode.sender != null) {
+            writer.putAddress(findNode.sender); // Write the sender's address
+        }
+
+        writer.putVarint(findNode.closest != null ? findNode.closest.size() + 1 : 0); // Write the number of peers (0 for a request)
+
+        // Check is a response
+        if (findNode.closest != null) {
+            // Write each of the closest peers
+            for (String address : findNode.closest) {
+                writer.putAddress(address); // Write the address
+            }
+        }
+    }
+
+    /**
+     * Reads a lookup request or response.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (unused)
+     * @return the read lookup
+     */
+    private static Serializable readFindNode(ByteBuffer body, PooledBuffer lease) throws IOException {
+        byte[] target = Codec.getBytes(body); // Read the target id
+        String sender = Codec.getVarint(body) != 0 ? Codec.getAddress(body) : null; // Read the sender's address
+
+        int numClosest = Codec.getCount(body, 1); // Read the number of peers (plus one, so a request can be told apart)
+
+        // Check is a request
+        if (numClosest == 0) {
+            return new FindNodeMessage(target, sender, null); // Return the request
+        }
+
+        ArrayList<String> closest = new ArrayList<>(numClosest - 1); // Initialize the peers list
+
+        // Read each of the closest peers
+        for (int i = 1; i < numClosest; i++) {
+            closest.add(Codec.getAddress(body)); // Read the address
+        }
+
+        return new FindNodeMessage(target, sender, closest); // Return the response
+    }
+
+    /**
+     * Writes a ping or pong.
+     *
+     * @param writer the writer to write to
+     * @param contents the ping to write
+     */
+    private static void writePing(Codec.Writer writer, Object contents) {
+        PingMessage ping = (PingMessage) contents; // Get the ping
+
+        writer.putByte(ping.pong ? 1 : 0); // Write whether or not the ping is a pong
+        writer.putRaw(ByteBuffer.allocate(8).putLong(ping.nonce).array()); // Write the nonce
+    }
+
+    /**
+     * Reads a ping or pong.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (unused)
+     * @return the read ping
+     */
+    private static Serializable readPing(ByteBuffer body, PooledBuffer lease) {
+        boolean pong = body.get() != 0; // Read whether or not the ping is a pong
+
+        return new PingMessage(body.getLong(), pong); // Return the ping
+    }
+}
@@ -0,0 +1,34 @@
+package com.dowlandaiello.melon.peerstore;
+
+import java.io.Serializable;
+
+/**
+ * Represents a keepalive ping, or the pong answering one.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class PingMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The nonce of the ping, which is echoed back in its pong.
+     */
+    public final long nonce;
+
+    /**
+     * Whether or not the message answers a ping.
+     */
+    public final boolean pong;
+
+    /**
+     * Initializes a new PingMessage.
+     *
+     * @param nonce the nonce of the ping
+     * @param pong whether or not the message answers a ping
+     */
+    public PingMessage(long nonce, boolean pong) {
+        this.nonce = nonce; // Set nonce
+        this.pong = pong; // Set pong
+    }
+}
@@ -1,9 +1,12 @@
 package com.dowlandaiello.melon.peerstore;
 
 import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
 import com.dowlandaiello.melon.transport.Transport;
 import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.Pipeline;
 import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -13,14 +16,29 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Represents the standard, very smol, but still very useful peerstore.
+ * Connections are kept in a ConcurrentHashMap, so lookups and iteration never
+ * lock, registrations only contend with registrations for the same bin, and
+ * the registered peers can be iterated while they're being changed, without
+ * being copied and without throwing a ConcurrentModificationException.
  *
  * @author Dowland Aiello
  * @since 1.0
@@ -29,13 +47,79 @@ public class SmolStore implements Peerstore {
     /**
      * The actual store (very smol, I know).
      */
-    private HashMap<String, Connection> connections;
+    private final ConcurrentHashMap<String, Connection> connections;
+
+    /**
+     * The read-only view of the connections handed out to callers.
+     */
+    private final Map<String, Connection> view;
+
+    /**
+     * The addresses of the peers registered with the connections they were
+     * accepted on (see registerInboundPeer).
+     */
+    private final Set<String> inbound;
+
+    /**
+     * The number of registered peers at which a blocking bootstrap stops
+     * crawling.
+     */
+    public static final int DEFAULT_TARGET_PEERS = 32;
+
+    /**
+     * The default maximum number of peers dialed at once while
+     * bootstrapping.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_DIALS = 8;
+
+    /**
+     * The default time a bootstrap crawl may take, in milliseconds.
+     */
+    public static final long DEFAULT_BOOTSTRAP_TIMEOUT = 60 * 1000;
+
+    /**
+     * The executor used to dial peers while bootstrapping.
+     */
+    protected ExecutorService executor;
+
+    /**
+     * The maximum number of peers dialed at once while bootstrapping.
+     */
+    private volatile int maxConcurrentDials;
+
+    /**
+     * The time a bootstrap crawl may take, in milliseconds.
+     */
+    private volatile long bootstrapTimeout;
+
+    /**
+     * The timer used to enforce bootstrap deadlines (lazily initialized).
+     */
+    private ScheduledExecutorService timer;
+
+    static {
+        PeerstoreCodecs.register(); // Register the codecs of the layer's messages
+    }
 
     /**
      * Initializes a new SmolStore instance.
      */
     public SmolStore() {
-        this.connections = new HashMap<>(); // Initialize the connections hash map
+        this.connections = new ConcurrentHashMap<>(); // Initialize the connections map
+        this.view = Collections.unmodifiableMap(this.connections); // Initialize the read-only view
+        this.inbound = ConcurrentHashMap.newKeySet(); // Initialize the inbound addresses set
+        this.executor = Workers.newBoundedExecutor("melon-bootstrap", 16); // Initialize a bounded dialing pool
+        this.maxConcurrentDials = DEFAULT_MAX_CONCURRENT_DIALS; // Set max concurrent dials
+        this.bootstrapTimeout = DEFAULT_BOOTSTRAP_TIMEOUT; // Set bootstrap timeout
+    }
+
+    /**
+     * Sets the executor used to dial peers while bootstrapping.
+     *
+     * @param executor the executor to use
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor; // Set executor
     }
 
     /**
@@ -48,6 +132,39 @@ public class SmolStore implements Peerstore {
      */
     public void registerPeer(String multiaddress, Connection connection) {
         this.connections.put(multiaddress, connection); // Add the connection to the connections map
+        this.inbound.remove(multiaddress); // The address was dialed
+    }
+
+    /**
+     * Commits a connection accepted from a remote peer to the peer store,
+     * under the address it connected from. The address isn't handed out by
+     * getDialableAddresses.
+     *
+     * @param multiaddress the multiaddress the peer connected from
+     * @param connection the connection used to communicate with the peer
+     */
+    public void registerInboundPeer(String multiaddress, Connection connection) {
+        this.inbound.add(multiaddress); // Don't hand out the address
+        this.connections.put(multiaddress, connection); // Add the connection to the connections map
+    }
+
+    /**
+     * Removes a peer from the peer store, if it is still registered with the
+     * given connection (and not a newer one).
+     *
+     * @param multiaddress the multiaddress of the peer
+     * @param connection the connection the peer was registered with
+     * @return whether or not the peer was removed
+     */
+    public boolean unregisterPeer(String multiaddress, Connection connection) {
+        // Check the peer is still registered with the connection
+        if (this.connections.remove(multiaddress, connection)) {
+            this.inbound.remove(multiaddress); // Forget how the peer connected
+
+            return true; // The peer was removed
+        }
+
+        return false; // The peer has reconnected
     }
 
     /**
@@ -61,12 +178,34 @@ public class SmolStore implements Peerstore {
     }
 
     /**
-     * Gets a hashmap of registered peers.
+     * Gets a read-only view of the registered peers. Iterating the view
+     * never locks, and reflects the peers registered at some point during
+     * the iteration.
      *
      * @return the registered peers
      */
-    public HashMap<String, Connection> getRegisteredPeers() {
-        return this.connections; // Return the registered peers map
+    public Map<String, Connection> getRegisteredPeers() {
+        return this.view; // Return the registered peers view
+    }
+
+    /**
+     * Gets the addresses of the registered peers that can be dialed,
+     * leaving out the addresses inbound connections came from.
+     *
+     * @return the dialable addresses of the registered peers
+     */
+    public List<String> getDialableAddresses() {
+        ArrayList<String> addresses = new ArrayList<>(); // The dialable addresses
+
+        // Collect each of the registered addresses that wasn't accepted
+        for (String multiaddress : this.connections.keySet()) {
+            // Check the address can be dialed
+            if (!this.inbound.contains(multiaddress)) {
+                addresses.add(multiaddress); // Collect the address
+            }
+        }
+
+        return addresses; // Return the dialable addresses
     }
 
     /**
@@ -77,81 +216,304 @@ public class SmolStore implements Peerstore {
      * @return the existing connection
      */
     public Connection getExistingConnection(String multiaddress) throws StoreException.PeerNotFoundException {
+        Connection connection = this.connections.get(multiaddress); // Get the connection to the peer
+
         // Check has a connection with the given peer
-        if (this.peerExists(multiaddress)) {
-            return this.connections.get(multiaddress); // Return the corresponding connection
+        if (connection != null) {
+            return connection; // Return the corresponding connection
         }
 
         throw new StoreException.PeerNotFoundException(multiaddress); // Throw an exception
     }
 
     /**
-     * Attempts to retrieve a copy of the peerstore from a remote peer.
+     * Sets the maximum number of peers dialed at once while bootstrapping.
+     *
+     * @param maxConcurrentDials the maximum number of concurrent dials
+     */
+    public void setMaxConcurrentDials(int maxConcurrentDials) {
+        this.maxConcurrentDials = Math.max(maxConcurrentDials, 1); // Set max concurrent dials
+    }
+
+    /**
+     * Sets the time a bootstrap crawl may take before it is cut short.
+     *
+     * @param timeout the time a crawl may take, in milliseconds
+     */
+    public void setBootstrapTimeout(long timeout) {
+        this.bootstrapTimeout = timeout; // Set bootstrap timeout
+    }
+
+    /**
+     * Attempts to retrieve a copy of the peerstore from a remote peer, and
+     * from the peers it knows of, until DEFAULT_TARGET_PEERS peers are
+     * registered. Blocks until the crawl is done.
      *
      * @param bootstrapPeerAddress the address of the peer to bootstrap from
      * @param dialer the transport to connect to the bootstrap peer with
      */
     public void bootstrap(String bootstrapPeerAddress, Transport dialer, Key dialingKey) throws StoreException, IOException, NoSuchAlgorithmException, InvalidKeyException, Transport.UnsupportedTransportException, NoSuchPaddingException, CommonTypes.MultiAddress.InvalidMultiAddressException, DecoderException, ClassNotFoundException, InvalidKeySpecException, IllegalBlockSizeException, BadPaddingException {
-        Connection bootstrapConnection; // Declare a connection to use with the bootstrap peer
+        try {
+            this.bootstrapAsync(bootstrapPeerAddress, dialer, dialingKey, DEFAULT_TARGET_PEERS).get(); // Wait for the crawl
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause(); // Get the reason the bootstrap peer couldn't be reached
+
+            // Check is one of the exceptions thrown by dial
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof CommonTypes.MultiAddress.InvalidMultiAddressException) {
+                throw (CommonTypes.MultiAddress.InvalidMultiAddressException) cause;
+            } else if (cause instanceof Transport.UnsupportedTransportException) {
+                throw (Transport.UnsupportedTransportException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
 
-        // Check a connection to the given bootstrap peer already exists
-        if (this.peerExists(bootstrapPeerAddress)) {
-            bootstrapConnection = this.getExistingConnection(bootstrapPeerAddress); // Get a connection to the bootstrap peer
-        } else {
-            bootstrapConnection = dialer.dial(bootstrapPeerAddress, dialingKey); // Dials the specified peer
+            throw new IOException("unable to reach bootstrap peer", cause); // Throw exception
         }
+    }
 
-        CommonTypes.Message message = new CommonTypes.Message(new BootstrapMessage(null), CommonTypes.Message.Type.BOOTSTRAP); // Initialize a new message
+    /**
+     * Crawls the network from a remote peer without blocking: the bootstrap
+     * peer is dialed and asked for the peers it knows of, then each of those
+     * peers is dialed and asked in turn, until the target number of peers is
+     * registered, no undialed peers are left, or the bootstrap timeout
+     * passes. At most maxConcurrentDials peers are dialed at once, each on
+     * the store's executor, so no threads are created for the crawl itself.
+     *
+     * @param bootstrapPeerAddress the address of the peer to bootstrap from
+     * @param dialer the transport to connect to peers with
+     * @param dialingKey the public key to dial peers with
+     * @param targetPeers the number of registered peers at which to stop
+     * @return a future completed with the number of registered peers once the
+     *         crawl is done, or failed if the bootstrap peer can't be reached
+     */
+    public CompletableFuture<Integer> bootstrapAsync(String bootstrapPeerAddress, Transport dialer, Key dialingKey, int targetPeers) {
+        Crawl crawl = new Crawl(bootstrapPeerAddress, dialer, dialingKey, targetPeers); // Initialize the crawl
 
-        bootstrapConnection.writeObject(message); // Write the bootstrap message to the peer
+        ScheduledFuture<?> deadline = this.getTimer().schedule(crawl::expire, this.bootstrapTimeout, TimeUnit.MILLISECONDS); // Cut the crawl short if it takes too long
+        crawl.done.whenComplete((Integer peers, Throwable e) -> deadline.cancel(false)); // Stop the deadline once the crawl is done
 
-        Object resp = bootstrapConnection.readObject(); // Read a response from the peer
+        crawl.offer(bootstrapPeerAddress); // Start from the bootstrap peer
 
-        CommonTypes.Message messageResp = resp instanceof CommonTypes.Message ? (CommonTypes.Message) resp : null; // Perform a safe cast
+        return crawl.done; // Return the future
+    }
 
-        if (messageResp == null || !(messageResp.contents instanceof BootstrapMessage)) {
-            return; // Lol
+    /**
+     * Gets the timer used to enforce bootstrap deadlines.
+     *
+     * @return the timer
+     */
+    private synchronized ScheduledExecutorService getTimer() {
+        // Check the timer hasn't been initialized yet
+        if (this.timer == null) {
+            this.timer = Executors.newSingleThreadScheduledExecutor(Workers.daemonThreadFactory("melon-bootstrap-timer")); // Initialize the timer
         }
 
-        BootstrapMessage bootstrapMessage = (BootstrapMessage) messageResp.contents; // Perform a safe cast
+        return this.timer; // Return the timer
+    }
+
+    /**
+     * Represents a single bootstrap crawl.
+     */
+    private class Crawl {
+        /**
+         * The future completed once the crawl is done.
+         */
+        final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+        /**
+         * The address of the peer the crawl started from.
+         */
+        final String bootstrapPeerAddress;
+
+        /**
+         * The transport to connect to peers with.
+         */
+        final Transport dialer;
 
-        ExecutorService exec = Executors.newFixedThreadPool(bootstrapMessage.peerAddresses.size()); // Initialize an execution service for the amount of peers responded
+        /**
+         * The public key to dial peers with.
+         */
+        final Key dialingKey;
 
-        Semaphore mutex = new Semaphore(1); // Initialize a semaphore
+        /**
+         * The hex-encoded public key we dial with, used to skip ourselves.
+         */
+        final String localKey;
+
+        /**
+         * The number of registered peers at which to stop.
+         */
+        final int targetPeers;
+
+        /**
+         * The peers waiting to be dialed (guarded by this).
+         */
+        final ArrayDeque<String> queue = new ArrayDeque<>();
+
+        /**
+         * The peers queued so far (guarded by this).
+         */
+        final HashSet<String> seen = new HashSet<>();
+
+        /**
+         * The threads waiting for peers to answer with their peers (guarded
+         * by this).
+         */
+        final Set<Thread> exchanges = new HashSet<>();
+
+        /**
+         * The number of peers being visited (guarded by this).
+         */
+        int inFlight;
+
+        /**
+         * Initializes a new crawl.
+         *
+         * @param bootstrapPeerAddress the address of the peer to start from
+         * @param dialer the transport to connect to peers with
+         * @param dialingKey the public key to dial peers with
+         * @param targetPeers the number of registered peers at which to stop
+         */
+        Crawl(String bootstrapPeerAddress, Transport dialer, Key dialingKey, int targetPeers) {
+            this.bootstrapPeerAddress = bootstrapPeerAddress; // Set bootstrap peer address
+            this.dialer = dialer; // Set dialer
+            this.dialingKey = dialingKey; // Set dialing key
+            this.localKey = dialingKey != null ? Hex.encodeHexString(dialingKey.getEncoded()) : null; // Get our own key
+            this.targetPeers = targetPeers; // Set target peers
+        }
+
+        /**
+         * Queues a peer to be visited, unless it has been queued before, or
+         * is us.
+         *
+         * @param address the address of the peer
+         */
+        void offer(String address) {
+            synchronized (this) {
+                // Check is new, and isn't us
+                if ((this.localKey == null || !address.endsWith(this.localKey)) && this.seen.add(address)) {
+                    this.queue.add(address); // Queue the peer
+                }
+            }
+
+            this.pump(); // Visit the peer, if there's room
+        }
+
+        /**
+         * Visits queued peers until the concurrency cap is reached, and
+         * completes the crawl once there's nothing left to do.
+         */
+        synchronized void pump() {
+            // Visit peers while there's room, and the target hasn't been reached
+            while (!this.done.isDone() && !this.queue.isEmpty() && this.inFlight < SmolStore.this.maxConcurrentDials
+                    && SmolStore.this.connections.size() + this.inFlight < this.targetPeers) {
+                String address = this.queue.poll(); // Get the next peer
+
+                this.inFlight++; // Count the visit
 
-        // Iterate through the bootstrapped peer addresses, connect to each
-        for (String peerAddress : bootstrapMessage.peerAddresses) {
-            exec.execute(() -> {
                 try {
-                    Connection conn = dialer.dial(bootstrapPeerAddress, dialingKey); // Dial the specified peer
-
-                    try {
-                        mutex.acquire(); // Acquire a permit
-
-                        try {
-                            this.connections.put(peerAddress, conn); // Put the connection in the table
-                        } finally {
-                            mutex.release(); // Release a lock
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace(); // Log an exception
+                    SmolStore.this.executor.execute(() -> this.visit(address)); // Visit the peer
+                } catch (RejectedExecutionException e) {
+                    this.inFlight--; // The visit never started
+                    this.done.completeExceptionally(e); // The crawl can't continue
+
+                    return;
+                }
+            }
+
+            // Check nothing is left to do
+            if (this.inFlight == 0 && (this.queue.isEmpty() || SmolStore.this.connections.size() >= this.targetPeers)) {
+                this.done.complete(SmolStore.this.connections.size()); // Done!
+            }
+        }
+
+        /**
+         * Dials and registers a peer, then asks it for the peers it knows of.
+         *
+         * @param address the address of the peer
+         */
+        void visit(String address) {
+            try {
+                Connection conn = SmolStore.this.connections.get(address); // Get the registered connection to the peer
+
+                // Check isn't connected yet
+                if (conn == null || conn.isClosed()) {
+                    conn = this.dialer.dial(address, this.dialingKey); // Dial the peer
+                }
+
+                SmolStore.this.registerPeer(address, conn); // Put the connection in the table
+
+                // Ask for more peers unless the target has been reached
+                if (!this.done.isDone() && SmolStore.this.connections.size() < this.targetPeers) {
+                    // Crawl each of the peers the peer knows of
+                    for (String peerAddress : this.requestPeers(conn)) {
+                        this.offer(peerAddress); // Queue the peer
                     }
-                } catch (IOException | Transport.UnsupportedTransportException | CommonTypes.MultiAddress.InvalidMultiAddressException | ClassNotFoundException | InvalidKeyException | NoSuchAlgorithmException | NoSuchPaddingException | DecoderException | InvalidKeySpecException e) {
-                    e.printStackTrace();
                 }
-            }); // Connect to the specified peer
+            } catch (Exception e) {
+                // Check the bootstrap peer couldn't be reached
+                if (address.equals(this.bootstrapPeerAddress)) {
+                    this.done.completeExceptionally(e); // Fail the crawl
+                }
+            } finally {
+                synchronized (this) {
+                    this.inFlight--; // The visit is done
+                }
+
+                this.pump(); // Visit the next peer
+            }
         }
 
-        exec.shutdown(); // Queue a shutdown of the pool
+        /**
+         * Asks a peer for the addresses of each of its registered peers. The
+         * response is picked out by the connection's pipeline (see
+         * Pipeline.exchange), so the connection keeps being read as usual.
+         * The exchange is interrupted if the crawl expires first.
+         *
+         * @param conn the connection to the peer
+         * @return the addresses of the peer's peers
+         */
+        ArrayList<String> requestPeers(Connection conn) throws IOException {
+            synchronized (this) {
+                // Check the crawl has already expired
+                if (this.done.isDone()) {
+                    return new ArrayList<>(); // Don't bother asking
+                }
 
-        try {
-            if (!exec.awaitTermination(60, TimeUnit.SECONDS)) {
-                exec.shutdownNow(); // Forcefully shutdown the thread pool
+                this.exchanges.add(Thread.currentThread()); // Allow the exchange to be cut short
             }
-        } catch (InterruptedException ex) {
-            exec.shutdownNow(); // Forcefully shutdown the thread pool
 
-            Thread.currentThread().interrupt(); // Idk I just copied this from so don't get mad at me
+            try {
+                CommonTypes.Message response = Pipeline.exchange(conn, new CommonTypes.Message(new BootstrapMessage(null), CommonTypes.Message.Type.BOOTSTRAP), (CommonTypes.Message message) -> message.contents instanceof BootstrapMessage && ((BootstrapMessage) message.contents).peerAddresses != null); // Ask for the peer's peers
+
+                return ((BootstrapMessage) response.contents).peerAddresses; // Return the addresses
+            } finally {
+                synchronized (this) {
+                    this.exchanges.remove(Thread.currentThread()); // The exchange is done
+                    Thread.interrupted(); // Don't leak an expiry's interrupt into the executor
+                }
+            }
+        }
+
+        /**
+         * Cuts the crawl short once the bootstrap timeout passes, interrupting
+         * the exchanges with peers that haven't answered yet. Their
+         * connections are left open: they may be shared through the dialer,
+         * and are closed by whoever owns them (see ConnectionManager).
+         */
+        void expire() {
+            this.done.complete(SmolStore.this.connections.size()); // Complete with the peers found so far
+
+            synchronized (this) {
+                // Interrupt each of the unanswered exchanges
+                for (Thread exchange : this.exchanges) {
+                    exchange.interrupt(); // Stop waiting for the response
+                }
+            }
         }
     }
 }
@@ -0,0 +1,125 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.peerstore.Peerstore;
+import com.dowlandaiello.melon.transport.connection.Connection;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Represents a router that sends each published message to every connected
+ * peer, and never relays.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FloodRouter implements Router {
+    /**
+     * The peerstore holding the connected peers.
+     */
+    private Peerstore peerstore;
+
+    /**
+     * The topics each connected peer is subscribed to.
+     */
+    private SubscriptionIndex index;
+
+    /**
+     * The method used to send messages.
+     */
+    private Sender sender;
+
+    /**
+     * Attaches the router to the peerstore it selects peers from, the index
+     * of their subscriptions, and the sender it writes messages with.
+     *
+     * @param peerstore the peerstore holding the connected peers
+     * @param index the topics each connected peer is subscribed to
+     * @param sender the method used to send messages
+     */
+    public void attach(Peerstore peerstore, SubscriptionIndex index, Sender sender) {
+        this.peerstore = peerstore; // Set peerstore
+        this.index = index; // Set index
+        this.sender = sender; // Set sender
+    }
+
+    /**
+     * Publishes a message to each of the connected peers subscribed to its
+     * topic.
+     *
+     * @param message the message to publish
+     */
+    public void publish(Message message) throws IOException {
+        CommonTypes.Message wrapped = new CommonTypes.Message(message, CommonTypes.Message.Type.PUBSUB); // Wrap the message once for every peer
+
+        IOException failure = null; // The first failed send (if any)
+
+        Set<Connection> subscribers = this.index.getPeers(message.topic); // Get the peers subscribed to the topic
+
+        // Send to each of the connected peers
+        for (Connection connection : this.peerstore.getRegisteredPeers().values()) {
+            // Check the peer isn't interested in the topic
+            if (!subscribers.contains(connection)) {
+                continue; // Skip the peer
+            }
+
+            try {
+                this.sender.send(connection, wrapped); // Send the message
+            } catch (IOException e) {
+                // Check is the first failure
+                if (failure == null) {
+                    failure = e; // Remember the failure
+                }
+            }
+        }
+
+        // Check a send failed
+        if (failure != null) {
+            throw failure; // Fail the publish
+        }
+    }
+
+    /**
+     * Handles a message received from a remote peer. Flooded messages are
+     * never relayed.
+     *
+     * @param from the connection the message was received on
+     * @param message the received message
+     * @return true
+     */
+    public boolean deliver(Connection from, Message message) {
+        return true; // Always handle the message
+    }
+
+    /**
+     * Ignores gossip control messages.
+     *
+     * @param from the connection the message was received on
+     * @param control the received control message
+     */
+    public void handleControl(Connection from, GossipMessage control) {
+    }
+
+    /**
+     * Does nothing, since flooding doesn't depend on subscriptions.
+     *
+     * @param topic the subscribed-to topic
+     */
+    public void join(String topic) {
+    }
+
+    /**
+     * Does nothing, since flooding doesn't depend on subscriptions.
+     *
+     * @param topic the unsubscribed-from topic
+     */
+    public void leave(String topic) {
+    }
+
+    /**
+     * Does nothing, since the router does no background work.
+     */
+    public void close() {
+    }
+}
@@ -0,0 +1,67 @@
+package com.dowlandaiello.melon.pubsub;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Represents a gossip control message, used by peers to maintain their
+ * per-topic meshes and to advertise recently seen messages.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class GossipMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The topics the sender has added the receiver to its mesh for.
+     */
+    public final ArrayList<String> graft;
+
+    /**
+     * The topics the sender has removed the receiver from its mesh for.
+     */
+    public final ArrayList<String> prune;
+
+    /**
+     * The ids of recently seen messages, per topic.
+     */
+    public final HashMap<String, ArrayList<byte[]>> ihave;
+
+    /**
+     * The ids of messages the sender would like to receive.
+     */
+    public final ArrayList<byte[]> iwant;
+
+    /**
+     * Initializes a new, empty GossipMessage.
+     */
+    public GossipMessage() {
+        this(new ArrayList<>(), new ArrayList<>(), new HashMap<>(), new ArrayList<>()); // Initialize empty lists
+    }
+
+    /**
+     * Initializes a new GossipMessage with the given control entries.
+     *
+     * @param graft the topics the receiver is grafted to
+     * @param prune the topics the receiver is pruned from
+     * @param ihave the ids of recently seen messages, per topic
+     * @param iwant the ids of the messages being requested
+     */
+    public GossipMessage(ArrayList<String> graft, ArrayList<String> prune, HashMap<String, ArrayList<byte[]>> ihave, ArrayList<byte[]> iwant) {
+        this.graft = graft; // Set graft
+        this.prune = prune; // Set prune
+        this.ihave = ihave; // Set ihave
+        this.iwant = iwant; // Set iwant
+    }
+
+    /**
+     * Determines whether or not the message carries any control entries.
+     *
+     * @return whether or not the message is empty
+     */
+    public boolean isEmpty() {
+        return this.graft.isEmpty() && this.prune.isEmpty() && this.ihave.isEmpty() && this.iwant.isEmpty(); // Return whether or not each list is empty
+    }
+}
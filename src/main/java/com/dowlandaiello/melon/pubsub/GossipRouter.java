@@ -0,0 +1,608 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.peerstore.Peerstore;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents a gossipsub-style router. Full messages are only sent to a
+ * bounded mesh of peers per topic, while the remaining peers are lazily told
+ * about recent messages through IHAVE gossip, and can ask for any they missed
+ * with IWANT. The meshes are kept within bounds by a periodic heartbeat, so
+ * the traffic of each peer grows with the mesh degree rather than with the
+ * size of the network. Meshes are kept per concrete topic: joining a
+ * wildcard pattern builds the mesh of each matching topic the first time a
+ * message is seen on it.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class GossipRouter implements Router {
+    /**
+     * The target number of peers in each mesh.
+     */
+    public static final int D = 6;
+
+    /**
+     * The number of peers below which a mesh is topped back up.
+     */
+    public static final int D_LOW = 4;
+
+    /**
+     * The number of peers above which a mesh is pruned back down.
+     */
+    public static final int D_HIGH = 12;
+
+    /**
+     * The number of peers outside of the mesh gossip is sent to.
+     */
+    public static final int D_LAZY = 6;
+
+    /**
+     * The interval between heartbeats, in milliseconds.
+     */
+    public static final long HEARTBEAT_INTERVAL = 1000;
+
+    /**
+     * The number of heartbeats a fanout set is kept for after the last
+     * publish to its topic.
+     */
+    private static final int FANOUT_TTL = 60;
+
+    /**
+     * The cache of recently relayed messages.
+     */
+    private final MessageCache cache;
+
+    /**
+     * The peers we relay full messages to, per subscribed-to topic.
+     */
+    private final HashMap<String, HashSet<Connection>> mesh;
+
+    /**
+     * The heartbeat each mesh was last used at.
+     */
+    private final HashMap<String, Long> meshUsed;
+
+    /**
+     * The topic patterns we're subscribed to.
+     */
+    private final TopicTrie<String> joined;
+
+    /**
+     * The peers we publish to, per topic we publish to without being
+     * subscribed.
+     */
+    private final HashMap<String, HashSet<Connection>> fanout;
+
+    /**
+     * The heartbeat each fanout topic was last published to at.
+     */
+    private final HashMap<String, Long> lastPublished;
+
+    /**
+     * The ids of recently seen messages.
+     */
+    private final SeenCache seen;
+
+    /**
+     * The scheduler running the heartbeat.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * The number of heartbeats run so far.
+     */
+    private volatile long heartbeats;
+
+    /**
+     * The peerstore holding the connected peers.
+     */
+    private Peerstore peerstore;
+
+    /**
+     * The topics each connected peer is subscribed to.
+     */
+    private SubscriptionIndex index;
+
+    /**
+     * The method used to send messages.
+     */
+    private Sender sender;
+
+    static {
+        PubsubCodecs.register(); // Register the codecs of the layer's messages
+    }
+
+    /**
+     * Initializes a new GossipRouter.
+     */
+    public GossipRouter() {
+        this.cache = new MessageCache(5, 3); // Keep messages for 5 heartbeats, and gossip about the last 3
+        this.mesh = new HashMap<>(); // Initialize the mesh
+        this.meshUsed = new HashMap<>(); // Initialize the mesh use times
+        this.joined = new TopicTrie<>(); // Initialize the joined patterns
+        this.fanout = new HashMap<>(); // Initialize the fanout
+        this.lastPublished = new HashMap<>(); // Initialize the fanout publish times
+        this.seen = new SeenCache(); // Initialize the seen ids
+    }
+
+    /**
+     * Attaches the router to the peerstore it selects peers from, the index
+     * of their subscriptions, and the sender it writes messages with, and
+     * starts the heartbeat.
+     *
+     * @param peerstore the peerstore holding the connected peers
+     * @param index the topics each connected peer is subscribed to
+     * @param sender the method used to send messages
+     */
+    public synchronized void attach(Peerstore peerstore, SubscriptionIndex index, Sender sender) {
+        this.peerstore = peerstore; // Set peerstore
+        this.index = index; // Set index
+        this.sender = sender; // Set sender
+
+        // Check the heartbeat isn't running yet
+        if (this.scheduler == null) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(Workers.daemonThreadFactory("melon-gossip")); // Initialize the scheduler
+            this.scheduler.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS); // Schedule the heartbeat
+        }
+    }
+
+    /**
+     * Publishes a message to the mesh of its topic, or to a fanout set if we
+     * aren't subscribed to the topic.
+     *
+     * @param message the message to publish
+     */
+    public void publish(Message message) throws IOException {
+        CommonTypes.Message wrapped = new CommonTypes.Message(message, CommonTypes.Message.Type.PUBSUB); // Wrap the message once for every peer
+
+        this.seen.add(message.id); // Don't handle the message if it's relayed back to us
+        this.cache.put(Hex.encodeHexString(message.id), message.topic, wrapped); // Cache the message for gossip
+
+        ArrayList<Connection> targets; // The peers to send the message to
+        ArrayList<Connection> grafted = new ArrayList<>(); // The peers added to the mesh of the topic
+
+        synchronized (this) {
+            HashSet<Connection> peers = this.meshFor(message.topic, grafted); // Get the mesh of the topic
+
+            // Check not subscribed to the topic
+            if (peers == null) {
+                peers = this.fanout.get(message.topic); // Get the fanout set of the topic
+
+                // Check has no fanout set yet
+                if (peers == null || peers.isEmpty()) {
+                    peers = new HashSet<>(this.selectPeers(message.topic, Collections.emptySet(), D)); // Select a fanout set
+                    this.fanout.put(message.topic, peers); // Remember the fanout set
+                }
+
+                this.lastPublished.put(message.topic, this.heartbeats); // Keep the fanout set alive
+            }
+
+            targets = new ArrayList<>(peers); // Copy the peers, so we can send outside of the lock
+        }
+
+        this.sendControl(grafted, message.topic, true); // Let any new mesh peers know they've been grafted
+
+        IOException failure = null; // The first failed send (if any)
+
+        // Send to each of the selected peers
+        for (Connection connection : targets) {
+            try {
+                this.sender.send(connection, wrapped); // Send the message
+            } catch (IOException e) {
+                // Check is the first failure
+                if (failure == null) {
+                    failure = e; // Remember the failure
+                }
+            }
+        }
+
+        // Check a send failed
+        if (failure != null) {
+            throw failure; // Fail the publish
+        }
+    }
+
+    /**
+     * Handles a message received from a remote peer, relaying it to the rest
+     * of the topic's mesh if it hasn't been seen before. Only the id of the
+     * message is looked at, so duplicates are dropped before their contents
+     * are decoded.
+     *
+     * @param from the connection the message was received on
+     * @param message the received message
+     * @return whether or not the message is new, and should be handled locally
+     */
+    public boolean deliver(Connection from, Message message) {
+        // Check has already been seen
+        if (message.id == null || message.id.length == 0 || !this.seen.add(message.id)) {
+            return false; // Drop the duplicate
+        }
+
+        CommonTypes.Message wrapped = new CommonTypes.Message(message, CommonTypes.Message.Type.PUBSUB); // Wrap the message for relaying
+
+        this.cache.put(Hex.encodeHexString(message.id), message.topic, wrapped); // Cache the message for gossip
+
+        ArrayList<Connection> targets; // The peers to relay the message to
+        ArrayList<Connection> grafted = new ArrayList<>(); // The peers added to the mesh of the topic
+
+        synchronized (this) {
+            HashSet<Connection> peers = this.meshFor(message.topic, grafted); // Get the mesh of the topic
+
+            targets = peers != null ? new ArrayList<>(peers) : new ArrayList<>(); // Copy the peers, so we can send outside of the lock
+        }
+
+        this.sendControl(grafted, message.topic, true); // Let any new mesh peers know they've been grafted
+
+        targets.remove(from); // Don't send the message back where it came from
+
+        this.sendAll(targets, wrapped); // Relay the message
+
+        return true; // Handle the message
+    }
+
+    /**
+     * Handles a gossip control message received from a remote peer.
+     *
+     * @param from the connection the message was received on
+     * @param control the received control message
+     */
+    public void handleControl(Connection from, GossipMessage control) throws IOException {
+        GossipMessage response = new GossipMessage(); // Initialize a response
+        HashMap<String, ArrayList<Connection>> grafted = new HashMap<>(); // The peers added to each newly built mesh
+
+        synchronized (this) {
+            // Add the peer to the mesh of each grafted topic
+            for (String topic : control.graft) {
+                HashSet<Connection> peers = this.meshFor(topic, grafted.computeIfAbsent(topic, (String t) -> new ArrayList<>())); // Get the mesh of the topic
+
+                // Check we're subscribed to the topic
+                if (peers != null) {
+                    peers.add(from); // Add the peer to the mesh
+                } else {
+                    response.prune.add(topic); // Let the peer know we aren't interested
+                }
+            }
+
+            // Remove the peer from the mesh of each pruned topic
+            for (String topic : control.prune) {
+                HashSet<Connection> peers = this.mesh.get(topic); // Get the mesh of the topic
+
+                // Check we're subscribed to the topic
+                if (peers != null) {
+                    peers.remove(from); // Remove the peer from the mesh
+                }
+            }
+        }
+
+        // Let the peers of each newly built mesh know they've been grafted
+        for (Map.Entry<String, ArrayList<Connection>> entry : grafted.entrySet()) {
+            entry.getValue().remove(from); // The peer already knows
+            this.sendControl(entry.getValue(), entry.getKey(), true); // Graft the peers
+        }
+
+        // Ask for each of the advertised messages we haven't seen
+        for (Map.Entry<String, ArrayList<byte[]>> entry : control.ihave.entrySet()) {
+            // Check we're subscribed to the topic
+            if (!this.joined.match(entry.getKey()).isEmpty()) {
+                // Ask for each of the unseen ids
+                for (byte[] id : entry.getValue()) {
+                    // Check hasn't been seen
+                    if (!this.seen.contains(id)) {
+                        response.iwant.add(id); // Ask for the message
+                    }
+                }
+            }
+        }
+
+        // Check has anything to say
+        if (!response.isEmpty()) {
+            this.sender.send(from, new CommonTypes.Message(response, CommonTypes.Message.Type.GOSSIP)); // Send the response
+        }
+
+        // Send each of the requested messages we still have
+        for (byte[] id : control.iwant) {
+            CommonTypes.Message cached = this.cache.get(Hex.encodeHexString(id)); // Get the message
+
+            // Check is cached
+            if (cached != null) {
+                this.sender.send(from, cached); // Send the message
+            }
+        }
+    }
+
+    /**
+     * Joins a topic pattern. A mesh is built right away for a plain topic;
+     * for a wildcard pattern, the mesh of each matching topic is built once
+     * a message is seen on it.
+     *
+     * @param topic the subscribed-to topic pattern
+     */
+    public void join(String topic) {
+        ArrayList<Connection> grafted = new ArrayList<>(); // The peers added to the mesh
+
+        synchronized (this) {
+            // Check already joined
+            if (this.joined.containsPattern(topic)) {
+                return; // Nothing to do
+            }
+
+            this.joined.add(topic, topic); // Remember the pattern
+
+            // Check is a plain topic
+            if (!TopicTrie.hasWildcards(topic)) {
+                this.meshFor(topic, grafted); // Build the mesh of the topic
+            }
+        }
+
+        this.sendControl(grafted, topic, true); // Let the peers know they've been grafted
+    }
+
+    /**
+     * Leaves a topic pattern, tearing down the mesh of each topic no other
+     * joined pattern matches.
+     *
+     * @param topic the unsubscribed-from topic pattern
+     */
+    public void leave(String topic) {
+        HashMap<String, HashSet<Connection>> pruned = new HashMap<>(); // The peers removed from each mesh
+
+        synchronized (this) {
+            this.joined.removeAll(topic); // Forget the pattern
+
+            // Tear down each of the meshes we're no longer interested in
+            for (Iterator<Map.Entry<String, HashSet<Connection>>> it = this.mesh.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, HashSet<Connection>> entry = it.next(); // Get the next mesh
+
+                // Check no joined pattern matches the topic anymore
+                if (this.joined.match(entry.getKey()).isEmpty()) {
+                    pruned.put(entry.getKey(), entry.getValue()); // Remember the peers
+                    this.meshUsed.remove(entry.getKey()); // Forget when the mesh was used
+                    it.remove(); // Remove the mesh
+                }
+            }
+        }
+
+        // Let the peers of each torn-down mesh know they've been pruned
+        for (Map.Entry<String, HashSet<Connection>> entry : pruned.entrySet()) {
+            this.sendControl(new ArrayList<>(entry.getValue()), entry.getKey(), false); // Prune the peers
+        }
+    }
+
+    /**
+     * Stops the heartbeat.
+     */
+    public synchronized void close() {
+        // Check the heartbeat is running
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow(); // Stop the heartbeat
+            this.scheduler = null; // Allow the router to be attached again
+        }
+    }
+
+    /**
+     * Gets a copy of the mesh of a topic, without building it.
+     *
+     * @param topic the topic to get the mesh of
+     * @return the peers in the mesh, or null if the topic has no mesh
+     */
+    synchronized Set<Connection> getMesh(String topic) {
+        HashSet<Connection> peers = this.mesh.get(topic); // Get the mesh of the topic
+
+        return peers != null ? new HashSet<>(peers) : null; // Return a copy of the mesh
+    }
+
+    /**
+     * Gets the mesh of a topic, building it if the topic matches one of the
+     * joined patterns but has no mesh yet. Must be called holding the lock.
+     *
+     * @param topic the topic to get the mesh of
+     * @param grafted the list to add any newly grafted peers to
+     * @return the mesh, or null if we aren't subscribed to the topic
+     */
+    private HashSet<Connection> meshFor(String topic, List<Connection> grafted) {
+        HashSet<Connection> peers = this.mesh.get(topic); // Get the mesh of the topic
+
+        // Check has no mesh yet
+        if (peers == null) {
+            // Check isn't subscribed to the topic
+            if (this.joined.match(topic).isEmpty()) {
+                return null; // No mesh
+            }
+
+            peers = this.fanout.remove(topic); // Start from the fanout set of the topic
+            this.lastPublished.remove(topic); // Forget the fanout set
+
+            // Check has no fanout set
+            if (peers == null) {
+                peers = new HashSet<>(); // Start from scratch
+            }
+
+            peers.addAll(this.selectPeers(topic, peers, D - peers.size())); // Top the mesh up to the target degree
+            this.mesh.put(topic, peers); // Set the mesh of the topic
+
+            grafted.addAll(peers); // Graft each of the peers
+        }
+
+        this.meshUsed.put(topic, this.heartbeats); // Keep the mesh alive
+
+        return peers; // Return the mesh
+    }
+
+    /**
+     * Maintains each of the meshes, sends gossip to peers outside of them, and
+     * expires old fanout sets.
+     */
+    void heartbeat() {
+        try {
+            long now = ++this.heartbeats; // Count the heartbeat
+
+            HashMap<Connection, GossipMessage> outbox = new HashMap<>(); // The control messages to send, per peer
+
+            synchronized (this) {
+                Collection<Connection> connected = this.peerstore.getRegisteredPeers().values(); // Get the connected peers
+
+                this.index.retainPeers(connected); // Forget the subscriptions of any disconnected peers
+
+                // Maintain each of the meshes
+                for (Iterator<Map.Entry<String, HashSet<Connection>>> it = this.mesh.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, HashSet<Connection>> entry = it.next(); // Get the next mesh
+
+                    String topic = entry.getKey(); // Get the topic
+                    HashSet<Connection> peers = entry.getValue(); // Get the mesh of the topic
+
+                    // Check the mesh was only built for a wildcard, and hasn't been used recently
+                    if (!this.joined.containsPattern(topic) && now - this.meshUsed.getOrDefault(topic, now) > FANOUT_TTL) {
+                        // Prune each of the peers
+                        for (Connection peer : peers) {
+                            outbox.computeIfAbsent(peer, (Connection c) -> new GossipMessage()).prune.add(topic); // Let the peer know
+                        }
+
+                        this.meshUsed.remove(topic); // Forget when the mesh was used
+                        it.remove(); // Remove the mesh
+
+                        continue; // Done with the mesh
+                    }
+
+                    Set<Connection> subscribers = this.index.getPeers(topic); // Get the peers subscribed to the topic
+
+                    peers.retainAll(connected); // Forget any disconnected peers
+                    peers.retainAll(subscribers); // Forget any peers that have unsubscribed
+
+                    // Check the mesh is too small
+                    if (peers.size() < D_LOW) {
+                        // Graft peers until the mesh is back to the target degree
+                        for (Connection peer : this.selectPeers(topic, peers, D - peers.size())) {
+                            peers.add(peer); // Add the peer to the mesh
+                            outbox.computeIfAbsent(peer, (Connection c) -> new GossipMessage()).graft.add(topic); // Let the peer know
+                        }
+                    } else if (peers.size() > D_HIGH) {
+                        ArrayList<Connection> shuffled = new ArrayList<>(peers); // Copy the mesh
+                        Collections.shuffle(shuffled); // Prune random peers
+
+                        // Prune peers until the mesh is back to the target degree
+                        for (Connection peer : shuffled.subList(D, shuffled.size())) {
+                            peers.remove(peer); // Remove the peer from the mesh
+                            outbox.computeIfAbsent(peer, (Connection c) -> new GossipMessage()).prune.add(topic); // Let the peer know
+                        }
+                    }
+
+                    ArrayList<String> ids = this.cache.getGossipIds(topic); // Get the ids of recent messages
+
+                    // Check has anything to gossip about
+                    if (!ids.isEmpty()) {
+                        ArrayList<byte[]> encoded = new ArrayList<>(ids.size()); // Initialize the encoded ids
+
+                        // Decode each of the ids
+                        for (String id : ids) {
+                            encoded.add(Hex.decodeHex(id.toCharArray())); // Decode the id
+                        }
+
+                        // Gossip to peers outside of the mesh
+                        for (Connection peer : this.selectPeers(topic, peers, D_LAZY)) {
+                            outbox.computeIfAbsent(peer, (Connection c) -> new GossipMessage()).ihave.put(topic, encoded); // Advertise the ids
+                        }
+                    }
+                }
+
+                // Expire unused fanout sets
+                for (Iterator<Map.Entry<String, Long>> it = this.lastPublished.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, Long> entry = it.next(); // Get the next fanout topic
+
+                    // Check hasn't been published to recently
+                    if (now - entry.getValue() > FANOUT_TTL) {
+                        this.fanout.remove(entry.getKey()); // Forget the fanout set
+                        it.remove(); // Forget the publish time
+                    } else {
+                        this.fanout.get(entry.getKey()).retainAll(connected); // Forget any disconnected peers
+                    }
+                }
+            }
+
+            this.cache.shift(); // Start a new cache window
+
+            // Send each of the control messages
+            for (Map.Entry<Connection, GossipMessage> entry : outbox.entrySet()) {
+                try {
+                    this.sender.send(entry.getKey(), new CommonTypes.Message(entry.getValue(), CommonTypes.Message.Type.GOSSIP)); // Send the control message
+                } catch (IOException e) {
+                    // The peer will be dropped from the mesh once it disconnects
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace(); // Log the exception, but keep the heartbeat running
+        }
+    }
+
+    /**
+     * Selects random connected peers subscribed to a topic that aren't in the
+     * given set.
+     *
+     * @param topic the topic the peers must be subscribed to
+     * @param exclude the peers not to select
+     * @param count the maximum number of peers to select
+     * @return the selected peers
+     */
+    private ArrayList<Connection> selectPeers(String topic, Set<Connection> exclude, int count) {
+        ArrayList<Connection> candidates = new ArrayList<>(); // Initialize the candidates list
+        Set<Connection> subscribers = this.index.getPeers(topic); // Get the peers subscribed to the topic
+
+        // Collect each of the connected peers not excluded
+        for (Connection connection : this.peerstore.getRegisteredPeers().values()) {
+            // Check is subscribed (and hasn't been collected yet), and isn't excluded
+            if (subscribers.remove(connection) && !exclude.contains(connection)) {
+                candidates.add(connection); // Add the candidate
+            }
+        }
+
+        Collections.shuffle(candidates); // Select random peers
+
+        return new ArrayList<>(candidates.subList(0, Math.max(0, Math.min(count, candidates.size())))); // Return the selected peers
+    }
+
+    /**
+     * Sends a GRAFT or PRUNE for a topic to each of the given peers.
+     *
+     * @param peers the peers to send the control message to
+     * @param topic the topic to graft or prune
+     * @param graft whether to graft (true), or prune (false)
+     */
+    private void sendControl(List<Connection> peers, String topic, boolean graft) {
+        GossipMessage control = new GossipMessage(); // Initialize the control message
+
+        // Check is a graft
+        if (graft) {
+            control.graft.add(topic); // Graft the topic
+        } else {
+            control.prune.add(topic); // Prune the topic
+        }
+
+        this.sendAll(peers, new CommonTypes.Message(control, CommonTypes.Message.Type.GOSSIP)); // Send the control message
+    }
+
+    /**
+     * Sends a message to each of the given peers, ignoring failed sends.
+     *
+     * @param peers the peers to send the message to
+     * @param message the message to send
+     */
+    private void sendAll(List<Connection> peers, CommonTypes.Message message) {
+        // Send to each of the peers
+        for (Connection connection : peers) {
+            try {
+                this.sender.send(connection, message); // Send the message
+            } catch (IOException e) {
+                // The peer will be dropped from the mesh once it disconnects
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.dowlandaiello.melon.pubsub;
 
+import java.io.IOException;
+
 /**
  * Represents an abstract method used to handle incoming pubsub messages.
  */
@@ -10,4 +12,19 @@ public interface Handler {
      * @param message the message to handle
      */
     public void handleIncomingMessage(Message message);
+
+    /**
+     * Handles an incoming streamed pubsub message (see
+     * SubscriptionManager.publishStream). Runs on its own thread (one of at
+     * most SubscriptionManager.MAX_STREAM_HANDLERS), so it may block while
+     * reading the stream. Each handler matching the stream's topic is
+     * handed a stream of its own, and the stream is refused if there aren't
+     * enough free threads for all of them. The stream is closed once this
+     * returns, discarding anything left unread, so by default streams are
+     * ignored.
+     *
+     * @param stream the stream to handle
+     */
+    default void handleIncomingStream(MessageStream stream) throws IOException {
+    }
 }
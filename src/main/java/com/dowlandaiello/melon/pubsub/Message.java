@@ -1,6 +1,12 @@
 package com.dowlandaiello.melon.pubsub;
 
+import com.dowlandaiello.melon.crypto.Hash;
+
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Represents a pub-sub message.
@@ -11,6 +17,26 @@ import java.io.Serializable;
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The random salt mixed into the id of each message published by this
+     * process, so ids from different publishers never collide.
+     */
+    private static final byte[] SALT = new byte[16];
+
+    /**
+     * The number of messages published by this process so far.
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    static {
+        new SecureRandom().nextBytes(SALT); // Generate the salt
+    }
+
+    /**
+     * The unique id of the message.
+     */
+    public final byte[] id;
+
     /**
      * The topic of the message.
      */
@@ -21,8 +47,57 @@ public class Message implements Serializable {
      */
     public Serializable contents;
 
+    /**
+     * The contents of the message as they were received on the wire (null
+     * for locally published messages).
+     */
+    private final byte[] encodedContents;
+
     public Message(String topic, Serializable contents) {
+        this.id = newId(topic); // Set id
         this.topic = topic; // Set topic
         this.contents = contents; // Set contents
+        this.encodedContents = null; // Nothing has been received
+    }
+
+    /**
+     * Initializes a new message received from a remote peer, whose contents
+     * haven't been decoded yet.
+     *
+     * @param id the id of the message
+     * @param topic the topic of the message
+     * @param encodedContents the encoded contents of the message
+     */
+    public Message(byte[] id, String topic, byte[] encodedContents) {
+        this.id = id; // Set id
+        this.topic = topic; // Set topic
+        this.encodedContents = encodedContents; // Set encoded contents
+    }
+
+    /**
+     * Gets the contents of the message as they were received on the wire.
+     *
+     * @return the encoded contents, or null if the message was published locally
+     */
+    public byte[] getEncodedContents() {
+        return this.encodedContents; // Return the encoded contents
+    }
+
+    /**
+     * Derives a new, unique message id from the sha3 hash of the publisher's
+     * salt, the next sequence number, and the topic.
+     *
+     * @param topic the topic of the message
+     * @return the id of the message
+     */
+    private static byte[] newId(String topic) {
+        byte[] encodedTopic = topic != null ? topic.getBytes(StandardCharsets.UTF_8) : new byte[0]; // Encode the topic
+
+        ByteBuffer seed = ByteBuffer.allocate(SALT.length + 8 + encodedTopic.length); // Allocate the seed
+        seed.put(SALT); // Write the salt
+        seed.putLong(SEQUENCE.getAndIncrement()); // Write the sequence number
+        seed.put(encodedTopic); // Write the topic
+
+        return Hash.sha3(seed.array()).contents; // Return the hash of the seed
     }
 }
@@ -0,0 +1,155 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Represents a cache of recently relayed messages, split into windows of one
+ * heartbeat each. Messages in the most recent windows are advertised to
+ * peers through IHAVE gossip, and served back when they ask for them.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class MessageCache {
+    /**
+     * Represents a message id, and the topic it was published to.
+     */
+    private static class Entry {
+        /**
+         * The id of the message.
+         */
+        private final String id;
+
+        /**
+         * The topic of the message.
+         */
+        private final String topic;
+
+        /**
+         * Initializes a new entry.
+         *
+         * @param id the id of the message
+         * @param topic the topic of the message
+         */
+        private Entry(String id, String topic) {
+            this.id = id; // Set id
+            this.topic = topic; // Set topic
+        }
+    }
+
+    /**
+     * The cached messages, keyed by id.
+     */
+    private final HashMap<String, CommonTypes.Message> messages;
+
+    /**
+     * The ids cached during each window, newest first.
+     */
+    private final ArrayDeque<ArrayList<Entry>> windows;
+
+    /**
+     * The number of windows messages are kept for.
+     */
+    private final int history;
+
+    /**
+     * The number of windows advertised through gossip.
+     */
+    private final int gossip;
+
+    /**
+     * Initializes a new message cache.
+     *
+     * @param history the number of windows messages are kept for
+     * @param gossip the number of windows advertised through gossip
+     */
+    public MessageCache(int history, int gossip) {
+        this.messages = new HashMap<>(); // Initialize the messages map
+        this.windows = new ArrayDeque<>(); // Initialize the windows
+        this.history = history; // Set history
+        this.gossip = Math.min(gossip, history); // Set gossip
+
+        this.windows.addFirst(new ArrayList<>()); // Start the first window
+    }
+
+    /**
+     * Caches a message in the current window.
+     *
+     * @param id the id of the message
+     * @param topic the topic of the message
+     * @param message the message to cache
+     */
+    public synchronized void put(String id, String topic, CommonTypes.Message message) {
+        // Check not already cached
+        if (this.messages.putIfAbsent(id, message) == null) {
+            this.windows.peekFirst().add(new Entry(id, topic)); // Remember when the message was cached
+        }
+    }
+
+    /**
+     * Gets a cached message.
+     *
+     * @param id the id of the message
+     * @return the cached message, or null if it isn't cached
+     */
+    public synchronized CommonTypes.Message get(String id) {
+        return this.messages.get(id); // Return the message
+    }
+
+    /**
+     * Determines whether or not a message is cached.
+     *
+     * @param id the id of the message
+     * @return whether or not the message is cached
+     */
+    public synchronized boolean contains(String id) {
+        return this.messages.containsKey(id); // Return whether or not the id is cached
+    }
+
+    /**
+     * Gets the ids of the messages published to a topic during the gossip
+     * windows.
+     *
+     * @param topic the topic to get ids for
+     * @return the ids of the messages
+     */
+    public synchronized ArrayList<String> getGossipIds(String topic) {
+        ArrayList<String> ids = new ArrayList<>(); // Initialize the ids list
+
+        Iterator<ArrayList<Entry>> windows = this.windows.iterator(); // Iterate from the newest window
+
+        // Collect ids from each of the gossip windows
+        for (int i = 0; i < this.gossip && windows.hasNext(); i++) {
+            // Collect the ids of the topic
+            for (Entry entry : windows.next()) {
+                // Check is the requested topic
+                if (entry.topic.equals(topic)) {
+                    ids.add(entry.id); // Add the id
+                }
+            }
+        }
+
+        return ids; // Return the ids
+    }
+
+    /**
+     * Starts a new window, forgetting the messages in the oldest window once
+     * the history is full.
+     */
+    public synchronized void shift() {
+        this.windows.addFirst(new ArrayList<>()); // Start a new window
+
+        // Check the history is full
+        if (this.windows.size() > this.history) {
+            // Forget each of the messages in the oldest window
+            for (Entry entry : this.windows.removeLast()) {
+                this.messages.remove(entry.id); // Forget the message
+            }
+        }
+    }
+}
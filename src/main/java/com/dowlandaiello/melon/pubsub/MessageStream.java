@@ -0,0 +1,343 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.transport.connection.Pipeline;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Represents a streamed pubsub message as it is received. The payload can
+ * be read as a plain InputStream, or chunk by chunk through nextChunk. At
+ * least MAX_BUFFERED_CHUNKS chunks are buffered at once: once the consumer
+ * falls that far behind, the stream holds the pipeline reading the
+ * connection it arrives on, so the connection stops being read until the
+ * consumer has caught up halfway, and memory use doesn't grow with the
+ * payload. Chunks are never waited for on the thread delivering them. A
+ * stream arriving on a connection without a pipeline fails instead of
+ * buffering any further. Each chunk is released (and its frame recycled)
+ * once it has been consumed.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class MessageStream extends InputStream {
+    /**
+     * The number of chunks buffered before the connection is held.
+     */
+    public static final int MAX_BUFFERED_CHUNKS = 16;
+
+    /**
+     * An empty chunk.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * The topic of the stream.
+     */
+    private final String topic;
+
+    /**
+     * The chunks received, but not yet consumed.
+     */
+    private final ArrayDeque<StreamChunk> chunks;
+
+    /**
+     * The chunk being read by read(), or last handed out by nextChunk()
+     * (null if none).
+     */
+    private StreamChunk held;
+
+    /**
+     * The unread data of the held chunk.
+     */
+    private ByteBuffer current;
+
+    /**
+     * Whether or not the last chunk has been received.
+     */
+    private boolean ended;
+
+    /**
+     * The reason the stream failed (null unless it has).
+     */
+    private IOException failure;
+
+    /**
+     * Whether or not the consumer has closed the stream.
+     */
+    private boolean closed;
+
+    /**
+     * The pipeline reading the connection the stream arrives on (null if
+     * none).
+     */
+    private final Pipeline pipeline;
+
+    /**
+     * Whether or not the stream is holding the pipeline.
+     */
+    private boolean holding;
+
+    /**
+     * Initializes a new stream of the given topic.
+     *
+     * @param topic the topic of the stream
+     * @param pipeline the pipeline reading the connection the stream arrives
+     *                 on (null if none)
+     */
+    MessageStream(String topic, Pipeline pipeline) {
+        this.topic = topic; // Set topic
+        this.pipeline = pipeline; // Set pipeline
+        this.chunks = new ArrayDeque<>(); // Initialize the chunks queue
+        this.current = EMPTY; // Nothing has been read yet
+    }
+
+    /**
+     * Gets the topic of the stream.
+     *
+     * @return the topic of the stream
+     */
+    public String getTopic() {
+        return this.topic; // Return the topic
+    }
+
+    /**
+     * Gets the rest of the payload's next chunk, blocking until it arrives.
+     * The chunk is only valid until the next call to nextChunk, read or
+     * close, since its frame is then recycled.
+     *
+     * @return the chunk, or null once the whole payload has been read
+     */
+    public synchronized ByteBuffer nextChunk() throws IOException {
+        // Check a chunk is partially read
+        if (this.current.hasRemaining()) {
+            ByteBuffer rest = this.current; // Get the rest of the chunk
+            this.current = EMPTY; // Consume the chunk
+
+            return rest; // Return the rest of the chunk
+        }
+
+        // Wait for a chunk
+        while (this.chunks.isEmpty()) {
+            // Check has failed
+            if (this.failure != null) {
+                throw this.failure; // Throw exception
+            }
+
+            // Check has been read in full
+            if (this.ended) {
+                return null; // End of stream
+            }
+
+            // Check has been closed
+            if (this.closed) {
+                throw new IOException("stream closed"); // Throw exception
+            }
+
+            try {
+                this.wait(); // Wait for the next chunk
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Preserve the interrupt
+
+                throw new InterruptedIOException("interrupted while reading stream"); // Throw exception
+            }
+        }
+
+        this.drop(); // Release the chunk consumed last
+        this.held = this.chunks.poll(); // Take the next chunk
+
+        // Check has caught up halfway
+        if (this.chunks.size() <= MAX_BUFFERED_CHUNKS / 2) {
+            this.unhold(); // Let the connection be read again
+        }
+
+        return this.held.data; // Return the chunk
+    }
+
+    /**
+     * Reads a single byte of the payload.
+     *
+     * @return the read byte, or -1 at the end of the payload
+     */
+    public synchronized int read() throws IOException {
+        // Check has nothing left to read
+        if (!this.fill()) {
+            return -1; // End of stream
+        }
+
+        return this.current.get() & 0xff; // Return the next byte
+    }
+
+    /**
+     * Reads up to len bytes of the payload into b.
+     *
+     * @param b the buffer to read into
+     * @param off the offset to start writing at
+     * @param len the maximum number of bytes to read
+     * @return the number of read bytes, or -1 at the end of the payload
+     */
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        // Check has nothing to read
+        if (len == 0) {
+            return 0; // Nothing read
+        }
+
+        // Check has nothing left to read
+        if (!this.fill()) {
+            return -1; // End of stream
+        }
+
+        int n = Math.min(len, this.current.remaining()); // Read at most the rest of the chunk
+        this.current.get(b, off, n); // Read the bytes
+
+        return n; // Return the number of read bytes
+    }
+
+    /**
+     * Gets the number of bytes that can be read without blocking.
+     *
+     * @return the number of buffered bytes
+     */
+    public synchronized int available() {
+        int available = this.current.remaining(); // Count the rest of the current chunk
+
+        // Count each of the buffered chunks
+        for (StreamChunk chunk : this.chunks) {
+            available += chunk.data.remaining(); // Count the chunk
+        }
+
+        return available; // Return the number of buffered bytes
+    }
+
+    /**
+     * Stops reading the stream. The rest of the payload is discarded as it
+     * arrives.
+     */
+    public synchronized void close() {
+        this.closed = true; // Mark the stream as closed
+        this.discard(); // Discard the buffered chunks
+        this.notifyAll(); // Wake anyone still reading
+    }
+
+    /**
+     * Adds a received chunk without blocking. Once the consumer has fallen
+     * MAX_BUFFERED_CHUNKS chunks behind, the pipeline is held until it
+     * catches up (or, without a pipeline, the stream fails). A kept chunk is
+     * released by the stream; the caller still owns a chunk that wasn't
+     * kept.
+     *
+     * @param chunk the chunk
+     * @return whether or not the chunk was kept, rather than the stream
+     *         having been closed or failed
+     */
+    synchronized boolean offer(StreamChunk chunk) {
+        // Check has been closed, or has failed
+        if (this.closed || this.failure != null) {
+            return false; // Discard the chunk
+        }
+
+        // Check the consumer has fallen too far behind to keep buffering
+        if (this.chunks.size() >= MAX_BUFFERED_CHUNKS && this.pipeline == null) {
+            this.abort(new IOException("stream consumer fell too far behind")); // Fail the stream
+
+            return false; // Discard the chunk
+        }
+
+        this.chunks.add(chunk); // Buffer the chunk
+        this.notifyAll(); // Wake the consumer
+
+        // Check the consumer has fallen behind
+        if (this.chunks.size() >= MAX_BUFFERED_CHUNKS && this.pipeline != null && !this.holding) {
+            this.holding = true; // Remember to release the hold
+            this.pipeline.hold(); // Stop reading the connection until the consumer catches up
+        }
+
+        return true; // The chunk was kept
+    }
+
+    /**
+     * Marks the payload as having been received in full. No more chunks will
+     * arrive, so the pipeline is released.
+     */
+    synchronized void finish() {
+        this.ended = true; // Mark the stream as ended
+        this.unhold(); // Let the connection be read again
+        this.notifyAll(); // Wake the consumer
+    }
+
+    /**
+     * Fails the stream, discarding anything left unread.
+     *
+     * @param failure the reason the stream failed
+     */
+    synchronized void abort(IOException failure) {
+        this.failure = failure; // Set failure
+        this.discard(); // Discard the buffered chunks
+        this.notifyAll(); // Wake the consumer
+    }
+
+    /**
+     * Releases the held chunk, if any. Must hold the stream's lock.
+     */
+    private void drop() {
+        // Check holds a chunk
+        if (this.held != null) {
+            this.held.release(); // Release the chunk
+            this.held = null; // Forget the chunk
+        }
+
+        this.current = EMPTY; // Nothing left to read
+    }
+
+    /**
+     * Releases the held chunk, and each of the buffered chunks. Must hold
+     * the stream's lock.
+     */
+    private void discard() {
+        this.drop(); // Release the held chunk
+        this.unhold(); // Let the connection be read again
+
+        StreamChunk chunk; // A buffered chunk
+
+        // Release each of the buffered chunks
+        while ((chunk = this.chunks.poll()) != null) {
+            chunk.release(); // Release the chunk
+        }
+    }
+
+    /**
+     * Releases the stream's hold on the pipeline, if any. Must hold the
+     * stream's lock.
+     */
+    private void unhold() {
+        // Check is holding the pipeline
+        if (this.holding) {
+            this.holding = false; // Forget the hold
+            this.pipeline.unhold(); // Release the hold
+        }
+    }
+
+    /**
+     * Makes sure the current chunk has bytes left to read, if there are any.
+     *
+     * @return whether or not there are bytes left to read
+     */
+    private boolean fill() throws IOException {
+        // Take chunks until one has bytes left
+        while (!this.current.hasRemaining()) {
+            ByteBuffer chunk = this.nextChunk(); // Take the next chunk
+
+            // Check has been read in full
+            if (chunk == null) {
+                return false; // End of stream
+            }
+
+            this.current = chunk; // Read the chunk
+        }
+
+        return true; // Bytes are left
+    }
+}
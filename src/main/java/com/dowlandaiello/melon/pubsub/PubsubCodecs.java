@@ -0,0 +1,350 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Implements the wire format of the pubsub layer's messages (PUBSUB, GOSSIP,
+ * SUBSCRIPTION, and STREAM), which are registered with the Codec before the
+ * layer sends or receives any of them.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public final class PubsubCodecs {
+    /**
+     * The flag marking the first chunk of a stream.
+     */
+    private static final int STREAM_OPEN = 0x01;
+
+    /**
+     * The flag marking the last chunk of a stream.
+     */
+    private static final int STREAM_LAST = 0x02;
+
+    /**
+     * The flag marking a stream the publisher gave up on.
+     */
+    private static final int STREAM_ABORTED = 0x04;
+
+    /**
+     * The flag marking a subscriber's reply to a stream.
+     */
+    private static final int STREAM_REPLY = 0x08;
+
+    /**
+     * The kinds of pubsub contents that can be written without Java serialization.
+     */
+    private static final byte CONTENTS_NULL = 0, CONTENTS_BYTES = 1, CONTENTS_STRING = 2, CONTENTS_SERIALIZED = 3;
+
+    /**
+     * Prevents instantiation.
+     */
+    private PubsubCodecs() {
+    }
+
+    /**
+     * Registers the codecs of each of the pubsub layer's messages.
+     */
+    public static void register() {
+        Codec.register(CommonTypes.Message.Type.PUBSUB, PubsubCodecs::writeMessage, PubsubCodecs::readMessage); // Register the pubsub message codec
+        Codec.register(CommonTypes.Message.Type.GOSSIP, PubsubCodecs::writeGossip, PubsubCodecs::readGossip); // Register the gossip codec
+        Codec.register(CommonTypes.Message.Type.SUBSCRIPTION, PubsubCodecs::writeSubscription, PubsubCodecs::readSubscription); // Register the subscription codec
+        Codec.register(CommonTypes.Message.Type.STREAM, PubsubCodecs::writeChunk, PubsubCodecs::readChunk); // Register the stream chunk codec
+    }
+
+    /**
+     * Decodes the contents of a received pubsub message, which are left
+     * encoded by the codec so duplicates can be dropped cheaply.
+     *
+     * @param message the message to decode the contents of
+     * @return the message
+     */
+    public static Message decodeContents(Message message) throws IOException {
+        // Check has encoded contents
+        if (message.getEncodedContents() != null) {
+            try {
+                message.contents = getContents(ByteBuffer.wrap(message.getEncodedContents())); // Decode the contents
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IOException("truncated pubsub contents", e); // Throw exception
+            }
+        }
+
+        return message; // Return the message
+    }
+
+    /**
+     * Writes a pubsub message.
+     *
+     * @param writer the writer to write to
+     * @param contents the message to write
+     */
+    private static void writeMessage(Codec.Writer writer, Object contents) throws IOException {
+        Message message = (Message) contents; // Get the pubsub message
+
+        writer.putBytes(message.id); // Write the id
+        writer.putString(message.topic); // Write the topic
+
+        // Check the contents are still encoded as they were received
+        if (message.getEncodedContents() != null) {
+            writer.putRaw(message.getEncodedContents()); // Relay the contents without re-encoding them
+        } else {
+            putContents(writer, message.contents); // Write the contents
+        }
+    }
+
+    /**
+     * Reads a pubsub message, leaving its contents encoded.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (unused)
+     * @return the read message
+     */
+    private static Serializable readMessage(ByteBuffer body, PooledBuffer lease) throws IOException {
+        byte[] id = Codec.getBytes(body); // Read the id
+        String topic = Codec.getString(body); // Read the topic
+
+        byte[] contents = new byte[body.remaining()]; // Initialize a buffer for the contents
+        body.get(contents); // Copy the contents, which are only decoded once the message is known to be new
+
+        return new Message(id, topic, contents); // Return the pubsub message
+    }
+
+    /**
+     * Writes a gossip message.
+     *
+     * @param writer the writer to write to
+     * @param contents the gossip message to write
+     */
+    private static void writeGossip(Codec.Writer writer, Object contents) {
+        GossipMessage gossip = (GossipMessage) contents; // Get the gossip message
+
+        writer.putVarint(gossip.graft.size()); // Write the number of grafted topics
+
+        // Write each of the grafted topics
+        for (String topic : gossip.graft) {
+            writer.putString(topic); // Write the topic
+        }
+
+        writer.putVarint(gossip.prune.size()); // Write the number of pruned topics
+
+        // Write each of the pruned topics
+        for (String topic : gossip.prune) {
+            writer.putString(topic); // Write the topic
+        }
+
+        writer.putVarint(gossip.ihave.size()); // Write the number of advertised topics
+
+        // Write the advertised ids of each topic
+        for (Map.Entry<String, ArrayList<byte[]>> entry : gossip.ihave.entrySet()) {
+            writer.putString(entry.getKey()); // Write the topic
+            writer.putVarint(entry.getValue().size()); // Write the number of ids
+
+            // Write each of the ids
+            for (byte[] id : entry.getValue()) {
+                writer.putBytes(id); // Write the id
+            }
+        }
+
+        writer.putVarint(gossip.iwant.size()); // Write the number of requested ids
+
+        // Write each of the requested ids
+        for (byte[] id : gossip.iwant) {
+            writer.putBytes(id); // Write the id
+        }
+    }
+
+    /**
+     * Reads a gossip message.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (unused)
+     * @return the read gossip message
+     */
+    private static Serializable readGossip(ByteBuffer body, PooledBuffer lease) throws IOException {
+        GossipMessage gossip = new GossipMessage(); // Initialize the gossip message
+
+        // Read each of the grafted topics
+        for (int i = Codec.getCount(body); i > 0; i--) {
+            gossip.graft.add(Codec.getString(body)); // Read the topic
+        }
+
+        // Read each of the pruned topics
+        for (int i = Codec.getCount(body); i > 0; i--) {
+            gossip.prune.add(Codec.getString(body)); // Read the topic
+        }
+
+        // Read the advertised ids of each topic
+        for (int i = Codec.getCount(body); i > 0; i--) {
+            String advertised = Codec.getString(body); // Read the topic
+            ArrayList<byte[]> ids = new ArrayList<>(); // Initialize the ids list
+
+            // Read each of the ids
+            for (int j = Codec.getCount(body); j > 0; j--) {
+                ids.add(Codec.getBytes(body)); // Read the id
+            }
+
+            gossip.ihave.put(advertised, ids); // Add the ids
+        }
+
+        // Read each of the requested ids
+        for (int i = Codec.getCount(body); i > 0; i--) {
+            gossip.iwant.add(Codec.getBytes(body)); // Read the id
+        }
+
+        return gossip; // Return the gossip message
+    }
+
+    /**
+     * Writes a subscription announcement.
+     *
+     * @param writer the writer to write to
+     * @param contents the announcement to write
+     */
+    private static void writeSubscription(Codec.Writer writer, Object contents) {
+        SubscriptionMessage subscription = (SubscriptionMessage) contents; // Get the subscription announcement
+
+        writer.putVarint(subscription.subscribe.size()); // Write the number of subscribed-to topics
+
+        // Write each of the subscribed-to topics
+        for (String topic : subscription.subscribe) {
+            writer.putString(topic); // Write the topic
+        }
+
+        writer.putVarint(subscription.unsubscribe.size()); // Write the number of unsubscribed-from topics
+
+        // Write each of the unsubscribed-from topics
+        for (String topic : subscription.unsubscribe) {
+            writer.putString(topic); // Write the topic
+        }
+    }
+
+    /**
+     * Reads a subscription announcement.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (unused)
+     * @return the read announcement
+     */
+    private static Serializable readSubscription(ByteBuffer body, PooledBuffer lease) throws IOException {
+        ArrayList<String> subscribe = new ArrayList<>(); // Initialize the subscribed-to topics
+
+        // Read each of the subscribed-to topics
+        for (int i = Codec.getCount(body); i > 0; i--) {
+            subscribe.add(Codec.getString(body)); // Read the topic
+        }
+
+        ArrayList<String> unsubscribe = new ArrayList<>(); // Initialize the unsubscribed-from topics
+
+        // Read each of the unsubscribed-from topics
+        for (int i = Codec.getCount(body); i > 0; i--) {
+            unsubscribe.add(Codec.getString(body)); // Read the topic
+        }
+
+        return new SubscriptionMessage(subscribe, unsubscribe); // Return the subscription announcement
+    }
+
+    /**
+     * Writes a stream chunk.
+     *
+     * @param writer the writer to write to
+     * @param contents the chunk to write
+     */
+    private static void writeChunk(Codec.Writer writer, Object contents) {
+        StreamChunk chunk = (StreamChunk) contents; // Get the chunk
+
+        writer.putVarint(chunk.streamId); // Write the id of the stream
+        writer.putByte((chunk.topic != null ? STREAM_OPEN : 0) | (chunk.last ? STREAM_LAST : 0) | (chunk.aborted ? STREAM_ABORTED : 0) | (chunk.reply ? STREAM_REPLY : 0)); // Write the flags
+
+        // Check is the first chunk
+        if (chunk.topic != null) {
+            writer.putString(chunk.topic); // Write the topic
+        }
+
+        writer.putRaw(chunk.data); // Write the data, which runs to the end of the frame
+    }
+
+    /**
+     * Reads a stream chunk, sharing the frame's data. A chunk read from a
+     * pooled frame holds a reference to the frame of its own.
+     *
+     * @param body the body to read from
+     * @param lease the lease of the frame (null if it isn't pooled)
+     * @return the read chunk
+     */
+    private static Serializable readChunk(ByteBuffer body, PooledBuffer lease) throws IOException {
+        int streamId = Codec.getVarint(body); // Read the id of the stream
+        int flags = body.get(); // Read the flags
+
+        // Check is a reply, which has no data
+        if ((flags & STREAM_REPLY) != 0) {
+            return StreamChunk.reply(streamId, (flags & STREAM_ABORTED) == 0); // Return the reply
+        }
+
+        String topic = (flags & STREAM_OPEN) != 0 ? Codec.getString(body) : null; // Read the topic of a first chunk
+
+        return new StreamChunk(streamId, topic, body.slice(), (flags & STREAM_LAST) != 0, (flags & STREAM_ABORTED) != 0, lease != null ? lease.retain() : null); // Return the chunk, sharing the frame's data
+    }
+
+    /**
+     * Writes the contents of a pubsub message.
+     *
+     * @param writer the writer to write to
+     * @param contents the contents to write
+     */
+    private static void putContents(Codec.Writer writer, Object contents) throws IOException {
+        // Check is null
+        if (contents == null) {
+            writer.putByte(CONTENTS_NULL); // Write the kind of contents
+        } else if (contents instanceof byte[]) {
+            writer.putByte(CONTENTS_BYTES); // Write the kind of contents
+            writer.putBytes((byte[]) contents); // Write the bytes
+        } else if (contents instanceof String) {
+            writer.putByte(CONTENTS_STRING); // Write the kind of contents
+            writer.putString((String) contents); // Write the string
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(); // Initialize a buffer to serialize into
+
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(contents); // Serialize the contents
+            }
+
+            writer.putByte(CONTENTS_SERIALIZED); // Write the kind of contents
+            writer.putBytes(bytes.toByteArray()); // Write the serialized contents
+        }
+    }
+
+    /**
+     * Reads the contents of a pubsub message.
+     *
+     * @param buffer the buffer to read from
+     * @return the read contents
+     */
+    private static Serializable getContents(ByteBuffer buffer) throws IOException {
+        byte kind = buffer.get(); // Read the kind of contents
+
+        switch (kind) {
+            case CONTENTS_NULL:
+                return null; // No contents
+            case CONTENTS_BYTES:
+                return Codec.getBytes(buffer); // Return the bytes
+            case CONTENTS_STRING:
+                return Codec.getString(buffer); // Return the string
+            case CONTENTS_SERIALIZED:
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(Codec.getBytes(buffer)))) {
+                    return (Serializable) in.readObject(); // Return the deserialized contents
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("unknown pubsub contents class", e); // Throw exception
+                }
+            default:
+                throw new IOException(String.format("unknown pubsub contents kind (%d)", kind)); // Throw exception
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.peerstore.Peerstore;
+import com.dowlandaiello.melon.transport.connection.Connection;
+
+import java.io.IOException;
+
+/**
+ * Represents a strategy used to decide which peers each pubsub message is
+ * sent to.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public interface Router {
+    /**
+     * Represents a method used by a router to send messages to a peer.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    interface Sender {
+        /**
+         * Sends a message to the given peer.
+         *
+         * @param connection the connection to the peer
+         * @param message the message to send
+         */
+        void send(Connection connection, CommonTypes.Message message) throws IOException;
+    }
+
+    /**
+     * Attaches the router to the peerstore it selects peers from, the index
+     * of their subscriptions, and the sender it writes messages with.
+     *
+     * @param peerstore the peerstore holding the connected peers
+     * @param index the topics each connected peer is subscribed to
+     * @param sender the method used to send messages
+     */
+    void attach(Peerstore peerstore, SubscriptionIndex index, Sender sender);
+
+    /**
+     * Publishes a message originating from the local peer.
+     *
+     * @param message the message to publish
+     */
+    void publish(Message message) throws IOException;
+
+    /**
+     * Handles a message received from a remote peer, relaying it further if
+     * necessary.
+     *
+     * @param from the connection the message was received on
+     * @param message the received message
+     * @return whether or not the message is new, and should be handled locally
+     */
+    boolean deliver(Connection from, Message message) throws IOException;
+
+    /**
+     * Handles a gossip control message received from a remote peer.
+     *
+     * @param from the connection the message was received on
+     * @param control the received control message
+     */
+    void handleControl(Connection from, GossipMessage control) throws IOException;
+
+    /**
+     * Lets the router know the local peer has subscribed to a topic.
+     *
+     * @param topic the subscribed-to topic
+     */
+    void join(String topic);
+
+    /**
+     * Lets the router know the local peer has unsubscribed from a topic.
+     *
+     * @param topic the unsubscribed-from topic
+     */
+    void leave(String topic);
+
+    /**
+     * Stops any background work done by the router.
+     */
+    void close();
+}
@@ -0,0 +1,205 @@
+package com.dowlandaiello.melon.pubsub;
+
+import java.util.Arrays;
+
+/**
+ * Represents a time-bounded set of recently seen message ids. Ids are folded
+ * into 64-bit keys, and kept in two open-addressed generations of primitive
+ * longs: new ids go into the current generation, and the generations are
+ * rotated once half of the ttl has passed (or the current one fills up), so
+ * an id is remembered for between half of the ttl and the full ttl, and
+ * memory use never grows past the two fixed-size tables.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SeenCache {
+    /**
+     * The default number of ids held by each generation.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 19;
+
+    /**
+     * The default time ids are remembered for, in milliseconds.
+     */
+    public static final long DEFAULT_TTL = 120 * 1000;
+
+    /**
+     * The generation new ids are added to.
+     */
+    private long[] current;
+
+    /**
+     * The generation before the current one.
+     */
+    private long[] previous;
+
+    /**
+     * The number of ids in the current generation.
+     */
+    private int size;
+
+    /**
+     * The number of ids held by each generation before it is rotated early.
+     */
+    private final int capacity;
+
+    /**
+     * The time after which a generation is rotated, in milliseconds.
+     */
+    private final long rotateInterval;
+
+    /**
+     * The time the current generation was started at.
+     */
+    private long generationStart;
+
+    /**
+     * Initializes a new seen cache with the default capacity and ttl.
+     */
+    public SeenCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_TTL); // Use the defaults
+    }
+
+    /**
+     * Initializes a new seen cache.
+     *
+     * @param capacity the number of ids held by each generation
+     * @param ttl the time ids are remembered for, in milliseconds
+     */
+    public SeenCache(int capacity, long ttl) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) * 2; // Keep each table at most half full
+
+        this.current = new long[slots]; // Initialize the current generation
+        this.previous = new long[slots]; // Initialize the previous generation
+        this.capacity = slots / 2; // Set capacity
+        this.rotateInterval = ttl / 2; // Rotate twice per ttl
+        this.generationStart = System.currentTimeMillis(); // Start the first generation
+    }
+
+    /**
+     * Marks an id as seen.
+     *
+     * @param id the id to mark
+     * @return whether or not the id was new
+     */
+    public synchronized boolean add(byte[] id) {
+        long key = key(id); // Fold the id into a key
+
+        // Check has been seen
+        if (contains(this.previous, key) || contains(this.current, key)) {
+            return false; // Not new
+        }
+
+        this.rotateIfNeeded(); // Make sure the current generation has room
+
+        insert(this.current, key); // Add the key
+        this.size++; // Count the key
+
+        return true; // New!
+    }
+
+    /**
+     * Determines whether or not an id has been seen.
+     *
+     * @param id the id to check
+     * @return whether or not the id has been seen
+     */
+    public synchronized boolean contains(byte[] id) {
+        long key = key(id); // Fold the id into a key
+
+        return contains(this.current, key) || contains(this.previous, key); // Return whether or not either generation holds the key
+    }
+
+    /**
+     * Folds an id into a non-zero 64-bit key. Ids are sha3 hashes, so any
+     * eight of their bytes are already uniformly distributed.
+     *
+     * @param id the id to fold
+     * @return the key of the id
+     */
+    static long key(byte[] id) {
+        long key = 0; // The key built so far
+
+        // Fold each of the bytes into the key
+        for (int i = 0; i < id.length; i++) {
+            key ^= (id[i] & 0xffL) << ((i & 7) * 8); // Add the byte
+        }
+
+        return key != 0 ? key : 1; // Return the key (0 marks an empty slot)
+    }
+
+    /**
+     * Rotates the generations if the current one is full or too old.
+     */
+    private void rotateIfNeeded() {
+        long now = System.currentTimeMillis(); // Get the current time
+
+        // Check the current generation is full or too old
+        if (this.size >= this.capacity || now - this.generationStart >= this.rotateInterval) {
+            long[] recycled = this.previous; // Reuse the oldest table
+            Arrays.fill(recycled, 0); // Forget its keys
+
+            this.previous = this.current; // Age the current generation
+            this.current = recycled; // Start a new generation
+            this.size = 0; // Nothing in it yet
+            this.generationStart = now; // Remember when it was started
+        }
+    }
+
+    /**
+     * Determines whether or not a table holds a key.
+     *
+     * @param table the table to search
+     * @param key the key to search for
+     * @return whether or not the table holds the key
+     */
+    private static boolean contains(long[] table, long key) {
+        int mask = table.length - 1; // Get the mask used to map keys onto slots
+
+        // Probe until the key or an empty slot is found
+        for (int slot = mix(key) & mask; ; slot = (slot + 1) & mask) {
+            // Check is the key
+            if (table[slot] == key) {
+                return true; // Found!
+            }
+
+            // Check is empty
+            if (table[slot] == 0) {
+                return false; // Not found
+            }
+        }
+    }
+
+    /**
+     * Inserts a key into a table with room for it.
+     *
+     * @param table the table to insert into
+     * @param key the key to insert
+     */
+    private static void insert(long[] table, long key) {
+        int mask = table.length - 1; // Get the mask used to map keys onto slots
+
+        int slot = mix(key) & mask; // Get the home slot of the key
+
+        // Probe until an empty slot is found
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask; // Move to the next slot
+        }
+
+        table[slot] = key; // Insert the key
+    }
+
+    /**
+     * Spreads the bits of a key before it is mapped onto a slot.
+     *
+     * @param key the key to spread
+     * @return the spread key
+     */
+    private static int mix(long key) {
+        key ^= key >>> 33; // Mix the high bits into the low bits
+        key *= 0xff51afd7ed558ccdL; // Scramble
+
+        return (int) (key ^ (key >>> 33)); // Return the spread key
+    }
+}
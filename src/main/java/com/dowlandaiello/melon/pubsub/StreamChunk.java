@@ -0,0 +1,143 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+import com.dowlandaiello.melon.transport.connection.ReferenceCounted;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Represents a single chunk of a streamed pubsub message. The first chunk
+ * of a stream carries its topic, and the last is marked as such (or as
+ * aborted, if the publisher failed to read the rest of the payload). A
+ * subscriber answers the first chunk of each stream it is sent with a
+ * reply: a data-less chunk carrying the stream's id, marked as aborted if
+ * the subscriber refused the stream.
+ * Chunks are only ever sent in the binary frame format (see Codec), which
+ * shares a received chunk's data with its frame rather than copying it. A
+ * chunk decoded from a pooled frame holds a reference to the frame, which
+ * must be released once the data has been consumed.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class StreamChunk implements Serializable, ReferenceCounted {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The id of the stream, unique among the streams of its publisher.
+     */
+    public final int streamId;
+
+    /**
+     * The topic of the stream (only set on its first chunk).
+     */
+    public final String topic;
+
+    /**
+     * The bytes of the payload held by the chunk (may be empty).
+     */
+    public final transient ByteBuffer data;
+
+    /**
+     * Whether or not the chunk is the last of its stream.
+     */
+    public final boolean last;
+
+    /**
+     * Whether or not the publisher gave up on the stream.
+     */
+    public final boolean aborted;
+
+    /**
+     * Whether or not the chunk is a subscriber's reply to a stream, rather
+     * than part of one.
+     */
+    public final boolean reply;
+
+    /**
+     * The pooled frame holding the data (null if the data isn't pooled).
+     */
+    private final transient PooledBuffer frame;
+
+    /**
+     * Initializes a new StreamChunk.
+     *
+     * @param streamId the id of the stream
+     * @param topic the topic of the stream (null unless is the first chunk)
+     * @param data the bytes of the payload held by the chunk
+     * @param last whether or not the chunk is the last of its stream
+     * @param aborted whether or not the publisher gave up on the stream
+     */
+    public StreamChunk(int streamId, String topic, ByteBuffer data, boolean last, boolean aborted) {
+        this(streamId, topic, data, last, aborted, null); // The data isn't pooled
+    }
+
+    /**
+     * Initializes a new StreamChunk sharing the data of a pooled frame.
+     *
+     * @param streamId the id of the stream
+     * @param topic the topic of the stream (null unless is the first chunk)
+     * @param data the bytes of the payload held by the chunk
+     * @param last whether or not the chunk is the last of its stream
+     * @param aborted whether or not the publisher gave up on the stream
+     * @param frame the pooled frame holding the data, retained for the chunk (null if not pooled)
+     */
+    public StreamChunk(int streamId, String topic, ByteBuffer data, boolean last, boolean aborted, PooledBuffer frame) {
+        this(streamId, topic, data, last, aborted, false, frame); // Not a reply
+    }
+
+    /**
+     * Initializes a new StreamChunk.
+     *
+     * @param streamId the id of the stream
+     * @param topic the topic of the stream (null unless is the first chunk)
+     * @param data the bytes of the payload held by the chunk
+     * @param last whether or not the chunk is the last of its stream
+     * @param aborted whether or not the publisher gave up on the stream, or
+     *                the subscriber refused it
+     * @param reply whether or not the chunk is a subscriber's reply
+     * @param frame the pooled frame holding the data, retained for the chunk (null if not pooled)
+     */
+    private StreamChunk(int streamId, String topic, ByteBuffer data, boolean last, boolean aborted, boolean reply, PooledBuffer frame) {
+        this.streamId = streamId; // Set stream id
+        this.topic = topic; // Set topic
+        this.data = data; // Set data
+        this.last = last; // Set last
+        this.aborted = aborted; // Set aborted
+        this.reply = reply; // Set reply
+        this.frame = frame; // Set frame
+    }
+
+    /**
+     * Initializes a subscriber's reply to the first chunk of a stream.
+     *
+     * @param streamId the id of the stream
+     * @param accepted whether or not the subscriber accepted the stream
+     * @return the reply
+     */
+    public static StreamChunk reply(int streamId, boolean accepted) {
+        return new StreamChunk(streamId, null, ByteBuffer.allocate(0), false, !accepted, true, null); // Return the reply
+    }
+
+    /**
+     * Gets a copy of the chunk with its own view of the data, and its own
+     * reference to the pooled frame, so it can be consumed and released
+     * apart from the chunk.
+     *
+     * @return the copy
+     */
+    public StreamChunk share() {
+        return new StreamChunk(this.streamId, this.topic, this.data.duplicate(), this.last, this.aborted, this.reply, this.frame != null ? this.frame.retain() : null); // Return the copy
+    }
+
+    /**
+     * Releases the chunk's reference to its pooled frame, after which its
+     * data must no longer be read.
+     *
+     * @return whether or not the last reference to the frame was released
+     */
+    public boolean release() {
+        return this.frame != null && this.frame.release(); // Release the frame, if the data is pooled
+    }
+}
@@ -0,0 +1,118 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.transport.connection.Connection;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents an index of the topics each connected peer has announced it is
+ * subscribed to, so messages are only sent to peers that want them. Peers
+ * may subscribe to wildcard topics, so the index is kept in a topic trie.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SubscriptionIndex {
+    /**
+     * The peers subscribed to each topic pattern.
+     */
+    private final TopicTrie<Connection> peers;
+
+    /**
+     * The topic patterns each peer is subscribed to.
+     */
+    private final ConcurrentHashMap<Connection, Set<String>> topics;
+
+    /**
+     * Initializes a new, empty SubscriptionIndex.
+     */
+    public SubscriptionIndex() {
+        this.peers = new TopicTrie<>(); // Initialize the peers trie
+        this.topics = new ConcurrentHashMap<>(); // Initialize the topics map
+    }
+
+    /**
+     * Applies a subscription announcement received from a peer.
+     *
+     * @param peer the connection the announcement was received on
+     * @param announcement the received announcement
+     */
+    public void update(Connection peer, SubscriptionMessage announcement) {
+        Set<String> peerTopics = this.topics.computeIfAbsent(peer, (Connection c) -> ConcurrentHashMap.newKeySet()); // Get the topics of the peer
+
+        // Add each of the subscribed-to topics
+        for (String topic : announcement.subscribe) {
+            // Check is a new subscription
+            if (peerTopics.add(topic)) {
+                this.peers.add(topic, peer); // Add the peer to the topic
+            }
+        }
+
+        // Remove each of the unsubscribed-from topics
+        for (String topic : announcement.unsubscribe) {
+            // Check was subscribed
+            if (peerTopics.remove(topic)) {
+                this.peers.remove(topic, peer); // Remove the peer from the topic
+            }
+        }
+    }
+
+    /**
+     * Gets the peers subscribed to a topic, through an exact or a wildcard
+     * subscription.
+     *
+     * @param topic the topic to get the subscribers of
+     * @return the subscribed peers
+     */
+    public Set<Connection> getPeers(String topic) {
+        return new HashSet<>(this.peers.match(topic)); // Return the subscribers
+    }
+
+    /**
+     * Determines whether or not a peer is subscribed to a topic.
+     *
+     * @param peer the peer to check
+     * @param topic the topic to check
+     * @return whether or not the peer is subscribed
+     */
+    public boolean isSubscribed(Connection peer, String topic) {
+        return this.peers.match(topic).contains(peer); // Return whether or not the peer is a subscriber
+    }
+
+    /**
+     * Forgets each of the subscriptions of a peer.
+     *
+     * @param peer the peer to forget
+     */
+    public void removePeer(Connection peer) {
+        Set<String> peerTopics = this.topics.remove(peer); // Forget the topics of the peer
+
+        // Check the peer had any topics
+        if (peerTopics != null) {
+            // Remove the peer from each of its topics
+            for (String topic : peerTopics) {
+                this.peers.remove(topic, peer); // Remove the peer from the topic
+            }
+        }
+    }
+
+    /**
+     * Forgets the subscriptions of each peer that isn't connected anymore.
+     *
+     * @param connected the peers that are still connected
+     */
+    public void retainPeers(Collection<Connection> connected) {
+        HashSet<Connection> alive = new HashSet<>(connected); // Copy the connected peers for fast lookups
+
+        // Forget each of the disconnected peers
+        for (Connection peer : this.topics.keySet()) {
+            // Check isn't connected anymore
+            if (!alive.contains(peer)) {
+                this.removePeer(peer); // Forget the peer
+            }
+        }
+    }
+}
@@ -1,13 +1,30 @@
 package com.dowlandaiello.melon.pubsub;
 
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.peerstore.ConnectionManager;
 import com.dowlandaiello.melon.peerstore.Peerstore;
 import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.Pipeline;
+import com.dowlandaiello.melon.transport.connection.QueuedWriter;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.stream.IntStream;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a collection of subscribed-to classes, and their corresponding
@@ -15,66 +32,749 @@ import java.util.stream.IntStream;
  */
 public class SubscriptionManager {
     /**
-     * The register of callbacks per each topic.
+     * The largest number of bytes of a streamed message sent in one chunk
+     * (leaving room for the chunk's header, so the frame of each chunk after
+     * the first fits a 64 KB pooled buffer).
      */
-    private HashMap<String, Handler> handlers;
+    public static final int STREAM_CHUNK_SIZE = 64 * 1024 - 64;
+
+    /**
+     * The largest number of streams a single peer may have open to us at
+     * once. Further streams are refused until one ends.
+     */
+    public static final int MAX_INCOMING_STREAMS = 8;
+
+    /**
+     * The maximum number of stream handlers run at once, across every peer
+     * and stream. A stream is handed to each of the handlers matching its
+     * topic, and is refused if there aren't enough free handler threads for
+     * all of them.
+     */
+    public static final int MAX_STREAM_HANDLERS = 32;
+
+    /**
+     * The longest publishStream waits, once the whole payload has been sent,
+     * for a subscriber to reply to the stream (in milliseconds). Subscribers
+     * that haven't replied by then aren't counted as having received it.
+     */
+    public static final long STREAM_REPLY_TIMEOUT = 10000;
+
+    /**
+     * The register of callbacks per each topic pattern.
+     */
+    private final TopicTrie<Handler> handlers;
 
     /**
      * The peerstore.
      */
     private Peerstore peerstore;
 
+    /**
+     * The connection manager told about each message sent (null if none).
+     */
+    private ConnectionManager connectionManager;
+
+    /**
+     * The executor draining each connection's writer, on a thread of its own
+     * for as long as the drain blocks on the connection.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The writer of each connection messages have been published to.
+     */
+    private final ConcurrentHashMap<Connection, QueuedWriter> writers;
+
+    /**
+     * The number of messages that may be queued per connection.
+     */
+    private int queueCapacity;
+
+    /**
+     * The action taken when a connection's queue is full.
+     */
+    private QueuedWriter.Policy overflowPolicy;
+
+    /**
+     * The router deciding which peers each message is sent to.
+     */
+    private Router router;
+
+    /**
+     * The topics each connected peer is subscribed to.
+     */
+    private final SubscriptionIndex index;
+
+    /**
+     * The id of the next stream we publish.
+     */
+    private final AtomicInteger nextStreamId;
+
+    /**
+     * The streams being received from each peer, by stream id: one per
+     * handler the stream was handed to.
+     */
+    private final ConcurrentHashMap<Connection, ConcurrentHashMap<Integer, List<MessageStream>>> incomingStreams;
+
+    /**
+     * The replies to each of the streams being published, by stream id:
+     * each subscriber's reply is completed with whether or not it accepted
+     * the stream.
+     */
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Connection, CompletableFuture<Boolean>>> streamReplies;
+
+    /**
+     * The executor running stream handlers, each of which may block for as
+     * long as its stream is being received (lazily initialized).
+     */
+    private ExecutorService streamWorkers;
+
+    /**
+     * The number of stream handler threads claimed by open streams.
+     */
+    private final AtomicInteger streamHandlers;
+
+    static {
+        PubsubCodecs.register(); // Register the codecs of the layer's messages
+    }
+
     /**
      * Initializes a new subscription manager with the given peerstore.
      * 
      * @param peerstore the store used in conjunction with the subscription manager
      */
     public SubscriptionManager(Peerstore peerstore) {
+        this.handlers = new TopicTrie<>(); // Initialize the handlers trie
         this.peerstore = peerstore; // Set the peerstore of the instance
+        this.executor = Workers.newBlockingExecutor("melon-writer"); // Give each draining writer its own thread
+        this.writers = new ConcurrentHashMap<>(); // Initialize the writers map
+        this.queueCapacity = QueuedWriter.DEFAULT_CAPACITY; // Set the default queue capacity
+        this.overflowPolicy = QueuedWriter.Policy.BLOCK; // Block publishers by default
+        this.router = new GossipRouter(); // Route messages through a gossip mesh by default
+        this.index = new SubscriptionIndex(); // Initialize the subscription index
+        this.nextStreamId = new AtomicInteger(); // Start numbering streams at zero
+        this.incomingStreams = new ConcurrentHashMap<>(); // Initialize the incoming streams map
+        this.streamReplies = new ConcurrentHashMap<>(); // Initialize the stream replies map
+        this.streamHandlers = new AtomicInteger(); // No stream handler threads are claimed yet
+
+        this.router.attach(this.peerstore, this.index, this::send); // Start the router
+    }
+
+    /**
+     * Sets the router deciding which peers each message is sent to. The mesh
+     * of each topic subscribed to so far is rebuilt by the new router.
+     *
+     * @param router the router to use
+     */
+    public void setRouter(Router router) {
+        this.router.close(); // Stop the old router
+
+        this.router = router; // Set router
+        this.router.attach(this.peerstore, this.index, this::send); // Start the new router
+
+        // Join each of the subscribed-to topics
+        for (String topic : this.handlers.patterns()) {
+            this.router.join(topic); // Join the topic
+        }
+    }
+
+    /**
+     * Sets the connection manager told about each message sent, so
+     * connections we publish to aren't closed for being idle. Gossip control
+     * messages aren't counted, since they're sent on every heartbeat.
+     *
+     * @param connectionManager the connection manager to use
+     */
+    public void setConnectionManager(ConnectionManager connectionManager) {
+        this.connectionManager = connectionManager; // Set connection manager
     }
 
     /**
-     * Subscribes to a given topic.
+     * Sets the size of each connection's outbound queue, and the action taken
+     * when it is full. Only applies to connections published to from now on.
+     *
+     * @param capacity the number of messages that may be queued per connection
+     * @param policy the action taken when a connection's queue is full
+     */
+    public void setOutboundQueue(int capacity, QueuedWriter.Policy policy) {
+        this.queueCapacity = capacity; // Set capacity
+        this.overflowPolicy = policy; // Set policy
+    }
+
+    /**
+     * Sets the executor draining each connection's writer. A drain blocks on
+     * its connection for as long as a write takes, and publishers under the
+     * BLOCK policy wait on it, so the executor must be able to run a drain
+     * per connection at once, apart from the threads publishing or handling
+     * messages (see Workers.newBlockingExecutor).
+     *
+     * @param executor the executor to use
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor; // Set executor
+    }
+
+    /**
+     * Stops the router, and the workers running stream handlers. The
+     * writers' executor is left running, since drains already under way
+     * finish on their own.
+     */
+    public void close() {
+        this.router.close(); // Stop the router
+
+        synchronized (this) {
+            // Check any stream handlers have been run
+            if (this.streamWorkers != null) {
+                this.streamWorkers.shutdownNow(); // Stop the stream handlers
+                this.streamWorkers = null; // Start new workers if needed again
+            }
+        }
+    }
+
+    /**
+     * Subscribes to a given topic. Topics are hierarchical, with levels
+     * separated by "/": a "*" level matches any single level, and a trailing
+     * "#" level matches any number of levels (e.g. "orders/eu/*", or
+     * "metrics/#"). Any number of handlers may be subscribed to a topic.
      *
      * @param topic the topic to subscribe to
      * @param handler the callback to use to handle the connection
      */
     public void subscribe(String topic, Handler handler) {
-        this.handlers.put(topic, handler); // Subscribe to the given topic
+        boolean added = !this.handlers.containsPattern(topic); // Check is a new subscription
+
+        this.handlers.add(topic, handler); // Subscribe to the given topic
+
+        // Check is a new subscription
+        if (added) {
+            this.broadcast(new SubscriptionMessage(new ArrayList<>(Collections.singletonList(topic)), new ArrayList<>())); // Let each of the peers know
+            this.router.join(topic); // Join the topic's mesh
+        }
     }
 
     /**
-     * Publishes a message.
+     * Unsubscribes each of the handlers of a given topic.
+     *
+     * @param topic the topic to unsubscribe from
+     */
+    public void unsubscribe(String topic) {
+        // Check was subscribed
+        if (this.handlers.removeAll(topic)) {
+            this.left(topic); // Leave the topic
+        }
+    }
+
+    /**
+     * Unsubscribes a single handler of a given topic.
+     *
+     * @param topic the topic to unsubscribe from
+     * @param handler the handler to unsubscribe
+     */
+    public void unsubscribe(String topic, Handler handler) {
+        // Check was the last handler of the topic
+        if (this.handlers.remove(topic, handler) && !this.handlers.containsPattern(topic)) {
+            this.left(topic); // Leave the topic
+        }
+    }
+
+    /**
+     * Announces each of our subscriptions to a newly connected peer. Peers
+     * that haven't been announced to are also announced to the first time
+     * anything is sent to them.
+     *
+     * @param conn the connection to the peer
+     */
+    public void announce(Connection conn) {
+        this.getWriter(conn); // Opening the writer sends the announcement
+    }
+
+    /**
+     * Publishes a message. The message is queued for each peer selected by
+     * the router, and written in the background; depending on the overflow
+     * policy, a full queue blocks the publisher, drops the peer's oldest
+     * queued message, or fails the publish once every other peer has been
+     * queued to.
      *
      * @param message the message to publish
      */
-    public void publish(Message message) {
-        HashMap<String, Connection> connections = this.peerstore.getRegisteredPeers(); // Get a hashmap of registered peers
+    public void publish(Message message) throws QueuedWriter.QueueFullException, InterruptedIOException {
+        try {
+            this.router.publish(message); // Publish the message
+        } catch (QueuedWriter.QueueFullException | InterruptedIOException e) {
+            throw e; // Fail the publish
+        } catch (IOException e) {
+            e.printStackTrace(); // Log an encountered exception
+        }
+    }
+
+    /**
+     * Publishes a message whose payload is read from a stream, to each of the
+     * peers subscribed to its topic. The payload is sent in chunks of at most
+     * STREAM_CHUNK_SIZE bytes, each queued on every peer's writer and written
+     * before the next is read, so it never has to fit in memory, and other
+     * messages keep flowing between its chunks. Chunks are never discarded
+     * by a full queue, whatever the overflow policy; publishing waits for
+     * room instead. Subscribers receive it through
+     * Handler.handleIncomingStream. Streamed messages go straight to the
+     * subscribers, rather than through the router, so they aren't relayed
+     * or cached for gossip.
+     *
+     * Each subscriber replies to the first chunk, accepting or refusing the
+     * stream (see MAX_INCOMING_STREAMS and MAX_STREAM_HANDLERS). No further
+     * chunks are sent to a subscriber once it has refused the stream, and
+     * once the payload has been sent, publishing waits up to
+     * STREAM_REPLY_TIMEOUT for the replies still outstanding.
+     *
+     * @param topic the topic of the message
+     * @param payload the payload of the message, which is read until it ends
+     * @return the number of peers that accepted the stream, and were sent
+     *         the whole message
+     */
+    public int publishStream(String topic, InputStream payload) throws IOException {
+        int streamId = this.nextStreamId.getAndIncrement(); // Get the id of the stream
+        List<Connection> peers = new ArrayList<>(this.index.getPeers(topic)); // Get the subscribers of the topic
+        ConcurrentHashMap<Connection, CompletableFuture<Boolean>> replies = new ConcurrentHashMap<>(); // The replies of the subscribers
+        byte[] buffer = new byte[STREAM_CHUNK_SIZE]; // Initialize a buffer for each chunk
+        boolean first = true; // Whether or not the next chunk is the first
+
+        // Wait for a reply from each of the subscribers
+        for (Connection peer : peers) {
+            replies.put(peer, new CompletableFuture<>()); // Wait for the subscriber's reply
+        }
+
+        this.streamReplies.put(streamId, replies); // Take replies to the stream
+
+        try {
+            while (true) {
+                int length; // The number of bytes in the chunk
+
+                try {
+                    length = readChunk(payload, buffer); // Read the next chunk
+                } catch (IOException e) {
+                    this.sendChunk(peers, replies, new StreamChunk(streamId, first ? topic : null, ByteBuffer.allocate(0), true, true)); // Let the subscribers know the stream won't be finished
+
+                    throw e; // Rethrow the exception
+                }
+
+                boolean last = length < buffer.length; // A short chunk means the payload has ended
+
+                this.sendChunk(peers, replies, new StreamChunk(streamId, first ? topic : null, ByteBuffer.wrap(buffer, 0, length), last, false)); // Send the chunk
+                first = false; // The stream has been opened
+
+                // Check was the last chunk
+                if (last) {
+                    return awaitAccepted(peers, replies); // Return the number of peers that accepted the whole message
+                }
+            }
+        } finally {
+            this.streamReplies.remove(streamId, replies); // Stop taking replies to the stream
+        }
+    }
+
+    /**
+     * Forgets a peer once the connection to it has closed: its writer is
+     * stopped and forgotten, its subscriptions are forgotten, and each of the
+     * streams being received from it is aborted.
+     *
+     * @param conn the connection to the peer
+     */
+    public void disconnected(Connection conn) {
+        // Stop waiting for the peer to reply to any of our streams
+        for (ConcurrentHashMap<Connection, CompletableFuture<Boolean>> replies : this.streamReplies.values()) {
+            CompletableFuture<Boolean> reply = replies.get(conn); // Get the peer's reply
+
+            // Check the stream was sent to the peer
+            if (reply != null) {
+                reply.complete(false); // The peer won't receive the stream
+            }
+        }
+
+        QueuedWriter writer = this.writers.remove(conn); // Forget the peer's writer
+
+        // Check had a writer
+        if (writer != null) {
+            writer.close(); // Discard its queue, and fail anyone waiting on it
+        }
+
+        this.index.removePeer(conn); // Forget the peer's subscriptions
+
+        ConcurrentHashMap<Integer, List<MessageStream>> streams = this.incomingStreams.remove(conn); // Forget the peer's streams
+
+        // Check had any streams
+        if (streams != null) {
+            // Abort each of the streams
+            for (List<MessageStream> handled : streams.values()) {
+                abort(handled, new IOException("connection closed before the stream ended")); // Abort the stream
+            }
+        }
+    }
+
+    /**
+     * Reads as much of a payload as fits in the buffer.
+     *
+     * @param payload the payload to read
+     * @param buffer the buffer to read into
+     * @return the number of read bytes (less than the buffer only once the
+     *         payload has ended)
+     */
+    private static int readChunk(InputStream payload, byte[] buffer) throws IOException {
+        int length = 0; // The number of read bytes
+
+        // Read until the buffer is full, or the payload ends
+        while (length < buffer.length) {
+            int read = payload.read(buffer, length, buffer.length - length); // Read some bytes
+
+            // Check the payload has ended
+            if (read < 0) {
+                break; // Done!
+            }
+
+            length += read; // Move past the read bytes
+        }
+
+        return length; // Return the number of read bytes
+    }
+
+    /**
+     * Sends a chunk to each of the given peers through their writers, waiting
+     * for it to be written to each of them, so chunks don't pile up in the
+     * queues, and the chunk's data may be reused afterwards. Peers that have
+     * refused the stream, or can't be written to, are dropped from the list,
+     * and miss the rest of the stream.
+     *
+     * @param peers the peers to send the chunk to
+     * @param replies the replies of the peers to the stream
+     * @param chunk the chunk to send
+     */
+    private void sendChunk(List<Connection> peers, ConcurrentHashMap<Connection, CompletableFuture<Boolean>> replies, StreamChunk chunk) throws InterruptedIOException {
+        CommonTypes.Message wrapped = new CommonTypes.Message(chunk, CommonTypes.Message.Type.STREAM); // Wrap the chunk once for every peer
+
+        // Send to each of the peers, dropping the broken ones
+        for (Iterator<Connection> it = peers.iterator(); it.hasNext(); ) {
+            Connection peer = it.next(); // Get the next peer
+            CompletableFuture<Boolean> reply = replies.get(peer); // Get the peer's reply
+
+            // Check the peer has refused the stream
+            if (reply.getNow(true) == Boolean.FALSE) {
+                it.remove(); // Drop the peer
+
+                continue; // Done with the peer
+            }
+
+            QueuedWriter writer = this.getWriter(peer); // Get the peer's writer
 
-        connections.forEach((k, v) -> {
-            class Publisher extends Thread {
-                public void run() {
+            try {
+                writer.sendAndWait(wrapped); // Write the chunk, between any queued messages
+
+                // Check has a connection manager
+                if (this.connectionManager != null) {
+                    this.connectionManager.recordActivity(peer); // Keep the connection from going idle
+                }
+            } catch (InterruptedIOException e) {
+                throw e; // Stop publishing
+            } catch (IOException e) {
+                this.writers.remove(peer, writer); // Forget the broken writer
+                reply.complete(false); // The peer won't receive the stream
+                it.remove(); // Drop the peer
+            }
+        }
+    }
+
+    /**
+     * Waits, up to STREAM_REPLY_TIMEOUT, for each of the peers a stream was
+     * sent to to reply to it.
+     *
+     * @param peers the peers the whole stream was sent to
+     * @param replies the replies of the peers to the stream
+     * @return the number of peers that accepted the stream
+     */
+    private static int awaitAccepted(List<Connection> peers, ConcurrentHashMap<Connection, CompletableFuture<Boolean>> replies) throws InterruptedIOException {
+        long deadline = System.currentTimeMillis() + STREAM_REPLY_TIMEOUT; // Stop waiting after the timeout
+        int accepted = 0; // The number of peers that accepted the stream
+
+        // Wait for each of the peers' replies
+        for (Connection peer : peers) {
+            try {
+                // Check the peer accepted the stream
+                if (replies.get(peer).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    accepted++; // Count the peer
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Keep the interrupt
+
+                throw new InterruptedIOException("interrupted while waiting for the stream's replies"); // Stop publishing
+            } catch (TimeoutException | ExecutionException e) {
+                // The peer never replied, so isn't counted
+            }
+        }
+
+        return accepted; // Return the number of peers that accepted the stream
+    }
+
+    /**
+     * Hands a received chunk to its streams, starting the streams' handlers
+     * if the chunk is the first of its stream. Never waits for the streams'
+     * consumers: a stream that has fallen too far behind holds the
+     * connection's pipeline instead (see MessageStream). The chunk is
+     * released once each of its streams has taken its own reference to it.
+     *
+     * @param conn the connection the chunk was received on
+     * @param chunk the received chunk
+     */
+    private void handleChunk(Connection conn, StreamChunk chunk) {
+        try {
+            this.routeChunk(conn, chunk); // Hand the chunk to its streams
+        } finally {
+            chunk.release(); // Release the chunk
+        }
+    }
+
+    /**
+     * Hands a chunk to each of the streams it belongs to, opening them if the
+     * chunk is the first of its stream. Each handler matching the topic of a
+     * new stream is handed a stream of its own, and the publisher is replied
+     * to with whether or not the stream was accepted. A stream is refused if
+     * nothing is subscribed to its topic, the peer already has
+     * MAX_INCOMING_STREAMS streams open, or there aren't enough free stream
+     * handler threads for each of the matching handlers. A reply to one of
+     * our own streams is handed to the publisher instead.
+     *
+     * @param conn the connection the chunk was received on
+     * @param chunk the chunk
+     */
+    private void routeChunk(Connection conn, StreamChunk chunk) {
+        // Check is a reply to one of our streams
+        if (chunk.reply) {
+            ConcurrentHashMap<Connection, CompletableFuture<Boolean>> replies = this.streamReplies.get(chunk.streamId); // Get the replies to the stream
+            CompletableFuture<Boolean> reply = replies != null ? replies.get(conn) : null; // Get the peer's reply
+
+            // Check the stream is still being published to the peer
+            if (reply != null) {
+                reply.complete(!chunk.aborted); // Let the publisher know whether the peer accepted the stream
+            }
+
+            return; // Done!
+        }
+
+        ConcurrentHashMap<Integer, List<MessageStream>> streams = this.incomingStreams.computeIfAbsent(conn, (Connection c) -> new ConcurrentHashMap<>()); // Get the peer's streams
+
+        // Check is the first chunk of a stream
+        if (chunk.topic != null) {
+            List<Handler> matched = this.handlers.match(chunk.topic); // Get the handlers matching the topic
+            boolean accepted = !matched.isEmpty() && streams.size() < MAX_INCOMING_STREAMS; // Whether or not the stream is accepted
+
+            // Check there's a free stream handler thread for each of the handlers
+            if (accepted && this.streamHandlers.addAndGet(matched.size()) > MAX_STREAM_HANDLERS) {
+                this.streamHandlers.addAndGet(-matched.size()); // Give up the claimed threads
+                accepted = false; // Refuse the stream, rather than buffering it with no one to read it
+            }
+
+            this.reply(conn, chunk.streamId, accepted); // Let the publisher know whether we accepted the stream
+
+            // Check the stream was refused
+            if (!accepted) {
+                return; // Drop the chunk
+            }
+
+            List<MessageStream> handled = new ArrayList<>(); // The stream handed to each of the handlers
+
+            // Open a stream for each of the handlers
+            for (int i = 0; i < matched.size(); i++) {
+                handled.add(new MessageStream(chunk.topic, Pipeline.of(conn))); // Initialize the handler's stream
+            }
+
+            streams.put(chunk.streamId, handled); // Remember the streams
+
+            // Start each of the handlers
+            for (int i = 0; i < matched.size(); i++) {
+                Handler handler = matched.get(i); // Get the handler
+                MessageStream stream = handled.get(i); // Get the handler's stream
+
+                this.getStreamWorkers().execute(() -> {
                     try {
-                        v.writeObject(message); // Write the message
-                    } catch (IOException | IllegalBlockSizeException e) {
-                        e.printStackTrace(); // Log an encountered exception
+                        handler.handleIncomingStream(stream); // Handle the stream
+                    } catch (Exception e) {
+                        e.printStackTrace(); // Log the exception
+                    } finally {
+                        stream.close(); // Discard anything left unread
+                        this.streamHandlers.decrementAndGet(); // Free the thread for another stream
                     }
+                }); // Handle the stream on its own thread
+            }
+        }
+
+        List<MessageStream> handled = streams.get(chunk.streamId); // Get the chunk's streams
+
+        // Check the stream was refused
+        if (handled == null) {
+            return; // Drop the chunk
+        }
+
+        // Check the publisher gave up on the stream
+        if (chunk.aborted) {
+            streams.remove(chunk.streamId, handled); // Forget the stream
+            abort(handled, new IOException("stream aborted by the publisher")); // Abort the streams
+
+            return; // Done!
+        }
+
+        // Check the chunk has any data
+        if (chunk.data.hasRemaining()) {
+            // Hand the data to each of the handlers
+            for (MessageStream stream : handled) {
+                StreamChunk shared = chunk.share(); // Take a reference to the chunk for the stream
+
+                // Check the stream didn't keep the chunk
+                if (!stream.offer(shared)) {
+                    shared.release(); // Release the stream's reference
                 }
             }
+        }
 
-            Publisher publisher = new Publisher(); // Initialize a new publisher
-            publisher.start(); // Run the publisher
-        }); // Send to each of the connected peers
+        // Check is the last chunk
+        if (chunk.last) {
+            streams.remove(chunk.streamId, handled); // Forget the stream
+
+            // Let each of the handlers know the payload is complete
+            for (MessageStream stream : handled) {
+                stream.finish(); // Finish the stream
+            }
+        }
+    }
+
+    /**
+     * Replies to the first chunk of a stream sent to us.
+     *
+     * @param conn the connection the stream was sent on
+     * @param streamId the id of the stream
+     * @param accepted whether or not the stream was accepted
+     */
+    private void reply(Connection conn, int streamId, boolean accepted) {
+        try {
+            this.send(conn, new CommonTypes.Message(StreamChunk.reply(streamId, accepted), CommonTypes.Message.Type.STREAM)); // Send the reply
+        } catch (IOException e) {
+            e.printStackTrace(); // Log an encountered exception
+        }
+    }
+
+    /**
+     * Aborts each of the streams handed a received stream's handlers.
+     *
+     * @param handled the streams to abort
+     * @param cause the reason the streams were aborted
+     */
+    private static void abort(List<MessageStream> handled, IOException cause) {
+        // Abort each of the streams
+        for (MessageStream stream : handled) {
+            stream.abort(cause); // Abort the stream
+        }
+    }
+
+    /**
+     * Gets the executor running stream handlers.
+     *
+     * @return the executor
+     */
+    private synchronized ExecutorService getStreamWorkers() {
+        // Check the executor hasn't been initialized yet
+        if (this.streamWorkers == null) {
+            this.streamWorkers = Workers.newBoundedExecutor("melon-stream", MAX_STREAM_HANDLERS); // Give each stream its own thread, up to the limit
+        }
+
+        return this.streamWorkers; // Return the executor
+    }
+
+    /**
+     * Queues a message to be written to the given connection.
+     *
+     * @param connection the connection to write to
+     * @param message the message to write
+     */
+    private void send(Connection connection, CommonTypes.Message message) throws IOException {
+        QueuedWriter writer = this.getWriter(connection); // Get the connection's writer
+
+        try {
+            writer.send(message); // Queue the message
+
+            // Check the message counts as activity
+            if (this.connectionManager != null && message.type != CommonTypes.Message.Type.GOSSIP) {
+                this.connectionManager.recordActivity(connection); // Keep the connection from going idle
+            }
+        } catch (QueuedWriter.QueueFullException | InterruptedIOException e) {
+            throw e; // Let the caller apply backpressure
+        } catch (IOException e) {
+            this.writers.remove(connection, writer); // Forget the broken writer
+            this.index.removePeer(connection); // Forget the peer's subscriptions
+
+            throw e; // Let the caller know the connection is broken
+        }
+    }
+
+    /**
+     * Gets the writer of a connection, opening it if it doesn't exist yet.
+     * The first message written by a new writer is an announcement of each
+     * of our subscriptions.
+     *
+     * @param connection the connection to get the writer of
+     * @return the writer
+     */
+    private QueuedWriter getWriter(Connection connection) {
+        return this.writers.computeIfAbsent(connection, (Connection conn) -> {
+            QueuedWriter writer = new QueuedWriter(conn, this.queueCapacity, this.overflowPolicy, this.executor); // Initialize the writer
+
+            try {
+                writer.send(new CommonTypes.Message(new SubscriptionMessage(new ArrayList<>(this.handlers.patterns()), new ArrayList<>()), CommonTypes.Message.Type.SUBSCRIPTION)); // Announce our subscriptions
+            } catch (IOException e) {
+                e.printStackTrace(); // Log an encountered exception
+            }
+
+            return writer; // Return the writer
+        });
+    }
+
+    /**
+     * Lets each of the peers and the router know we've left a topic.
+     *
+     * @param topic the topic that was left
+     */
+    private void left(String topic) {
+        this.broadcast(new SubscriptionMessage(new ArrayList<>(), new ArrayList<>(Collections.singletonList(topic)))); // Let each of the peers know
+        this.router.leave(topic); // Leave the topic's mesh
+    }
+
+    /**
+     * Sends a subscription announcement to each of the connected peers.
+     *
+     * @param announcement the announcement to send
+     */
+    private void broadcast(SubscriptionMessage announcement) {
+        CommonTypes.Message wrapped = new CommonTypes.Message(announcement, CommonTypes.Message.Type.SUBSCRIPTION); // Wrap the announcement once for every peer
+
+        // Send to each of the connected peers
+        for (Connection connection : this.peerstore.getRegisteredPeers().values()) {
+            // Check hasn't been announced to yet
+            if (!this.writers.containsKey(connection)) {
+                this.getWriter(connection); // Announce each of our subscriptions instead
+
+                continue; // Done with the peer
+            }
+
+            try {
+                this.send(connection, wrapped); // Send the announcement
+            } catch (IOException e) {
+                e.printStackTrace(); // Log an encountered exception
+            }
+        }
     }
 
     /**
      * Determines whether or not the topic is subscribed to by this manager.
      *
      * @param topic the topic to check the status of
-     * @return whether or not the manager has a handler for this topic
+     * @return whether or not the manager has a handler matching this topic
      */
     public boolean isSubscribed(String topic) {
-        return this.handlers.containsKey(topic); // Return whether or not the manager has the key
+        return !this.handlers.match(topic).isEmpty(); // Return whether or not any handlers match the topic
     }
 
     /**
@@ -83,8 +783,62 @@ public class SubscriptionManager {
      * @param conn the connection to handle
      */
     public void handleConnection(Connection conn) throws ClassNotFoundException, BadPaddingException, IllegalBlockSizeException, IOException {
-        Message pubsubMessage = (Message) conn.readObject(); // Read an incoming object
+        this.handleMessage(conn, conn.readMessage()); // Handle an incoming message
+    }
+
+    /**
+     * Handles a subscription, gossip, pubsub, or stream message received on
+     * a connection.
+     *
+     * @param conn the connection the message was received on
+     * @param message the received message
+     */
+    public void handleMessage(Connection conn, CommonTypes.Message message) throws IOException {
+        // Check is a subscription announcement
+        if (message.type == CommonTypes.Message.Type.SUBSCRIPTION) {
+            this.index.update(conn, (SubscriptionMessage) message.contents); // Update the peer's subscriptions
+
+            return; // Done!
+        }
+
+        // Check is a gossip control message
+        if (message.type == CommonTypes.Message.Type.GOSSIP) {
+            this.router.handleControl(conn, (GossipMessage) message.contents); // Let the router handle the message
+
+            return; // Done!
+        }
+
+        // Check is a chunk of a streamed message
+        if (message.type == CommonTypes.Message.Type.STREAM) {
+            this.handleChunk(conn, (StreamChunk) message.contents); // Hand the chunk to its stream
+
+            return; // Done!
+        }
+
+        // Check is not a pubsub message
+        if (message.type != CommonTypes.Message.Type.PUBSUB) {
+            return; // Nothing to handle
+        }
+
+        Message pubsubMessage = (Message) message.contents; // Get the pubsub message
+
+        // Check the message has already been seen
+        if (!this.router.deliver(conn, pubsubMessage)) {
+            return; // Drop the duplicate
+        }
+
+        List<Handler> matched = this.handlers.match(pubsubMessage.topic); // Get the handlers matching the topic
+
+        // Check nothing is interested in the message
+        if (matched.isEmpty()) {
+            return; // Don't bother decoding the message
+        }
+
+        PubsubCodecs.decodeContents(pubsubMessage); // Decode the contents of the new message
 
-        if (this.handlers.containsKey(pubsubMessage.topic)) this.handlers.get(pubsubMessage.topic).handleIncomingMessage(pubsubMessage); // Handle the message
+        // Run each of the handlers matching the topic
+        for (Handler handler : matched) {
+            handler.handleIncomingMessage(pubsubMessage); // Handle the message
+        }
     }
 }
@@ -0,0 +1,36 @@
+package com.dowlandaiello.melon.pubsub;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Represents an announcement of the topics a peer has subscribed to, or
+ * unsubscribed from.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SubscriptionMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The topics the sender has subscribed to.
+     */
+    public final ArrayList<String> subscribe;
+
+    /**
+     * The topics the sender has unsubscribed from.
+     */
+    public final ArrayList<String> unsubscribe;
+
+    /**
+     * Initializes a new SubscriptionMessage with the given topics.
+     *
+     * @param subscribe the topics the sender has subscribed to
+     * @param unsubscribe the topics the sender has unsubscribed from
+     */
+    public SubscriptionMessage(ArrayList<String> subscribe, ArrayList<String> unsubscribe) {
+        this.subscribe = subscribe; // Set subscribe
+        this.unsubscribe = unsubscribe; // Set unsubscribe
+    }
+}
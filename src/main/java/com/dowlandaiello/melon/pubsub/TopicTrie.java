@@ -0,0 +1,315 @@
+package com.dowlandaiello.melon.pubsub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Represents a concurrent index of values keyed by hierarchical topic
+ * patterns. Topics are split into levels on "/"; in a pattern, a "*" level
+ * matches exactly one level of a topic, and a trailing "#" level matches any
+ * number of remaining levels (including none). Matching a topic walks one
+ * trie node per level, so it costs time proportional to the depth of the
+ * topic rather than the number of patterns. Reads never lock: nodes are kept
+ * in concurrent maps, and values in copy-on-write lists, so only writers
+ * serialize with each other.
+ *
+ * @param <V> the type of the indexed values
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class TopicTrie<V> {
+    /**
+     * The level matching exactly one level of a topic.
+     */
+    public static final String SINGLE_LEVEL = "*";
+
+    /**
+     * The level matching any number of remaining levels of a topic.
+     */
+    public static final String MULTI_LEVEL = "#";
+
+    /**
+     * Represents a single level of the trie.
+     *
+     * @param <V> the type of the indexed values
+     */
+    private static class Node<V> {
+        /**
+         * The nodes of the next level, keyed by level name.
+         */
+        private final ConcurrentHashMap<String, Node<V>> children = new ConcurrentHashMap<>();
+
+        /**
+         * The values of the pattern ending at this node.
+         */
+        private final CopyOnWriteArrayList<V> values = new CopyOnWriteArrayList<>();
+    }
+
+    /**
+     * The root of the trie.
+     */
+    private final Node<V> root;
+
+    /**
+     * Initializes a new, empty TopicTrie.
+     */
+    public TopicTrie() {
+        this.root = new Node<>(); // Initialize the root
+    }
+
+    /**
+     * Adds a value under a pattern.
+     *
+     * @param pattern the pattern to add the value under
+     * @param value the value to add
+     */
+    public synchronized void add(String pattern, V value) {
+        Node<V> node = this.root; // Start from the root
+
+        // Walk down each of the levels of the pattern, creating them as needed
+        for (String level : split(pattern, true)) {
+            node = node.children.computeIfAbsent(level, (String l) -> new Node<>()); // Move to the next level
+        }
+
+        node.values.add(value); // Add the value
+    }
+
+    /**
+     * Removes a single value from under a pattern.
+     *
+     * @param pattern the pattern to remove the value from
+     * @param value the value to remove
+     * @return whether or not the value was removed
+     */
+    public synchronized boolean remove(String pattern, V value) {
+        return this.remove(this.root, split(pattern, true), 0, value); // Remove the value, pruning empty nodes
+    }
+
+    /**
+     * Removes each of the values under a pattern.
+     *
+     * @param pattern the pattern to remove the values of
+     * @return whether or not any values were removed
+     */
+    public synchronized boolean removeAll(String pattern) {
+        return this.remove(this.root, split(pattern, true), 0, null); // Remove the values, pruning empty nodes
+    }
+
+    /**
+     * Determines whether or not any values are held under exactly the given
+     * pattern.
+     *
+     * @param pattern the pattern to check
+     * @return whether or not the pattern has any values
+     */
+    public boolean containsPattern(String pattern) {
+        Node<V> node = this.root; // Start from the root
+
+        // Walk down each of the levels of the pattern
+        for (String level : split(pattern, true)) {
+            node = node.children.get(level); // Move to the next level
+
+            // Check the level doesn't exist
+            if (node == null) {
+                return false; // Not found
+            }
+        }
+
+        return !node.values.isEmpty(); // Return whether or not the pattern has values
+    }
+
+    /**
+     * Gets each of the values whose pattern matches a topic.
+     *
+     * @param topic the topic to match
+     * @return the matching values
+     */
+    public List<V> match(String topic) {
+        ArrayList<V> matches = new ArrayList<>(); // Initialize the matches list
+
+        this.match(this.root, split(topic, false), 0, matches); // Collect the matches
+
+        return matches; // Return the matches
+    }
+
+    /**
+     * Gets each of the patterns holding at least one value.
+     *
+     * @return the patterns
+     */
+    public List<String> patterns() {
+        ArrayList<String> patterns = new ArrayList<>(); // Initialize the patterns list
+
+        this.collectPatterns(this.root, null, patterns); // Collect the patterns
+
+        return patterns; // Return the patterns
+    }
+
+    /**
+     * Determines whether or not a pattern matches a topic.
+     *
+     * @param pattern the pattern to match with
+     * @param topic the topic to match
+     * @return whether or not the pattern matches the topic
+     */
+    public static boolean matches(String pattern, String topic) {
+        String[] patternLevels = split(pattern, true); // Split the pattern
+        String[] topicLevels = split(topic, false); // Split the topic
+
+        // Compare each of the levels
+        for (int i = 0; i < patternLevels.length; i++) {
+            // Check matches the rest of the topic
+            if (patternLevels[i].equals(MULTI_LEVEL)) {
+                return true; // Match!
+            }
+
+            // Check the level doesn't match
+            if (i >= topicLevels.length || !(patternLevels[i].equals(SINGLE_LEVEL) || patternLevels[i].equals(topicLevels[i]))) {
+                return false; // No match
+            }
+        }
+
+        return patternLevels.length == topicLevels.length; // Return whether or not the whole topic was matched
+    }
+
+    /**
+     * Determines whether or not a pattern contains any wildcard levels.
+     *
+     * @param pattern the pattern to check
+     * @return whether or not the pattern has wildcards
+     */
+    public static boolean hasWildcards(String pattern) {
+        // Check each of the levels
+        for (String level : split(pattern, true)) {
+            // Check is a wildcard
+            if (level.equals(SINGLE_LEVEL) || level.equals(MULTI_LEVEL)) {
+                return true; // Found a wildcard
+            }
+        }
+
+        return false; // No wildcards
+    }
+
+    /**
+     * Collects the values of each node matching the remaining levels of a
+     * topic.
+     *
+     * @param node the node to match from
+     * @param levels the levels of the topic
+     * @param depth the index of the next level to match
+     * @param matches the list to add the matching values to
+     */
+    private void match(Node<V> node, String[] levels, int depth, List<V> matches) {
+        Node<V> multi = node.children.get(MULTI_LEVEL); // Get the multi-level wildcard
+
+        // Check has a multi-level wildcard
+        if (multi != null) {
+            matches.addAll(multi.values); // The wildcard matches the rest of the topic
+        }
+
+        // Check the whole topic has been matched
+        if (depth == levels.length) {
+            matches.addAll(node.values); // Add the values of the exact match
+
+            return; // Done!
+        }
+
+        Node<V> exact = node.children.get(levels[depth]); // Get the exact level
+
+        // Check has the exact level
+        if (exact != null) {
+            this.match(exact, levels, depth + 1, matches); // Match the rest of the topic
+        }
+
+        Node<V> single = node.children.get(SINGLE_LEVEL); // Get the single-level wildcard
+
+        // Check has a single-level wildcard (that isn't also the exact level)
+        if (single != null && single != exact) {
+            this.match(single, levels, depth + 1, matches); // Match the rest of the topic
+        }
+    }
+
+    /**
+     * Removes a value (or every value, if null) from the node at the end of
+     * a pattern, and prunes any nodes left empty on the way back up.
+     *
+     * @param node the node to remove from
+     * @param levels the levels of the pattern
+     * @param depth the index of the next level
+     * @param value the value to remove (null for all of them)
+     * @return whether or not anything was removed
+     */
+    private boolean remove(Node<V> node, String[] levels, int depth, V value) {
+        // Check has reached the end of the pattern
+        if (depth == levels.length) {
+            // Check should remove every value
+            if (value == null) {
+                boolean removed = !node.values.isEmpty(); // Check has any values
+                node.values.clear(); // Remove the values
+
+                return removed; // Return whether or not anything was removed
+            }
+
+            return node.values.remove(value); // Remove the value
+        }
+
+        Node<V> child = node.children.get(levels[depth]); // Get the next level
+
+        // Check the level doesn't exist
+        if (child == null) {
+            return false; // Nothing to remove
+        }
+
+        boolean removed = this.remove(child, levels, depth + 1, value); // Remove from the next level
+
+        // Check the next level is now empty
+        if (child.values.isEmpty() && child.children.isEmpty()) {
+            node.children.remove(levels[depth], child); // Prune the level
+        }
+
+        return removed; // Return whether or not anything was removed
+    }
+
+    /**
+     * Collects the pattern of each node holding at least one value.
+     *
+     * @param node the node to collect from
+     * @param prefix the pattern of the node (null for the root)
+     * @param patterns the list to add the patterns to
+     */
+    private void collectPatterns(Node<V> node, String prefix, List<String> patterns) {
+        // Check the node has values
+        if (prefix != null && !node.values.isEmpty()) {
+            patterns.add(prefix); // Add the pattern
+        }
+
+        // Collect from each of the children
+        for (Map.Entry<String, Node<V>> child : node.children.entrySet()) {
+            this.collectPatterns(child.getValue(), prefix == null ? child.getKey() : prefix + "/" + child.getKey(), patterns); // Collect from the child
+        }
+    }
+
+    /**
+     * Splits a topic or pattern into its levels.
+     *
+     * @param topic the topic or pattern to split
+     * @param pattern whether or not wildcards are allowed
+     * @return the levels
+     */
+    private static String[] split(String topic, boolean pattern) {
+        String[] levels = topic.split("/", -1); // Split on each separator, keeping empty levels
+
+        // Check each of the levels
+        for (int i = 0; i < levels.length; i++) {
+            // Check the multi-level wildcard isn't last
+            if (pattern && levels[i].equals(MULTI_LEVEL) && i != levels.length - 1) {
+                throw new IllegalArgumentException(String.format("'%s' may only be the last level of a pattern: %s", MULTI_LEVEL, topic)); // Throw exception
+            }
+        }
+
+        return levels; // Return the levels
+    }
+}
@@ -0,0 +1,321 @@
+package com.dowlandaiello.melon.transport;
+
+import com.dowlandaiello.melon.common.CommonTypes.MultiAddress.InvalidMultiAddressException;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import org.apache.commons.codec.DecoderException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Represents a transport that reuses connections made by another transport.
+ * Dialing an address that already has a live connection returns that
+ * connection, and concurrent dials to the same address share a single
+ * in-flight attempt, so each peer is only connected to and negotiated with
+ * once. A reused connection is shared by everyone who dialed its address.
+ * A dial callback may be set to handle each new connection (for example, to
+ * start reading it) before it is handed to anyone. Whoever reads the
+ * connections should let the dialer know once one closes (see
+ * disconnected); closed connections are also swept out whenever a new one
+ * is made, so they never pile up.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Dialer implements Transport {
+    /**
+     * The transport used to make new connections.
+     */
+    private final Transport transport;
+
+    /**
+     * The live connections made by the dialer, keyed by dialed address.
+     */
+    private final ConcurrentHashMap<String, Connection> connections;
+
+    /**
+     * The dials in progress, keyed by dialed address.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Connection>> inFlight;
+
+    /**
+     * The callback run on each new connection before it is handed out (null
+     * if none).
+     */
+    private volatile Callback dialCallback;
+
+    /**
+     * Initializes a new dialer making connections with the given transport.
+     *
+     * @param transport the transport used to make new connections
+     */
+    public Dialer(Transport transport) {
+        this.transport = transport; // Set transport
+        this.connections = new ConcurrentHashMap<>(); // Initialize the connections map
+        this.inFlight = new ConcurrentHashMap<>(); // Initialize the in-flight dials map
+    }
+
+    /**
+     * Applies a particular upgrade to the underlying transport.
+     *
+     * @param upgrade the upgrade to apply to the transport
+     * @return the upgraded transport
+     */
+    public Transport withUpgrade(Upgrade upgrade) {
+        this.transport.withUpgrade(upgrade); // Upgrade the underlying transport
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Sets the executor used by the underlying transport.
+     *
+     * @param executor the executor to use
+     * @return the updated transport
+     */
+    public Transport withExecutor(ExecutorService executor) {
+        this.transport.withExecutor(executor); // Set the executor of the underlying transport
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Sets the callback run on each new connection made by the dialer,
+     * before the connection is handed to whoever dialed it. Reused
+     * connections aren't handled again. If the callback fails, the
+     * connection is closed, and the dial fails.
+     *
+     * @param callback the callback to run (null for none)
+     * @return the updated transport
+     */
+    public Transport withDialCallback(Callback callback) {
+        this.dialCallback = callback; // Set dial callback
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Sets the transport the underlying transport falls back to.
+     *
+     * @param fallback the transport to fall back to
+     * @return the updated transport
+     */
+    public Transport withFallback(Transport fallback) {
+        this.transport.withFallback(fallback); // Set the fallback of the underlying transport
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Listens on the given multiaddress with the underlying transport.
+     *
+     * @param multiaddress the multiaddress to listen on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     */
+    public void listen(String multiaddress, Callback callback) throws InvalidMultiAddressException, IOException, ClassNotFoundException, BadPaddingException, IllegalBlockSizeException {
+        this.transport.listen(multiaddress, callback); // Listen
+    }
+
+    /**
+     * Listens on the given multiaddress with the underlying transport,
+     * running the bind callback once it is ready to accept connections.
+     *
+     * @param multiaddress the multiaddress to listen on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     * @param bound the callback to run once the listener is bound
+     */
+    public void listen(String multiaddress, Callback callback, BindCallback bound) throws InvalidMultiAddressException, IOException, ClassNotFoundException, BadPaddingException, IllegalBlockSizeException {
+        this.transport.listen(multiaddress, callback, bound); // Listen
+    }
+
+    /**
+     * Stops each of the underlying transport's listeners.
+     */
+    public void close() throws IOException {
+        this.transport.close(); // Close the underlying transport
+    }
+
+    /**
+     * Gets the live connection to a given address, dialing it if there is
+     * none. If a dial to the address is already in progress, waits for it
+     * rather than dialing again.
+     *
+     * @param address the address of the peer to dial
+     * @return the connection to the peer
+     */
+    public Connection dial(String address, Key sendingPublicKey) throws IOException, InvalidMultiAddressException,
+            UnsupportedTransportException, ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, DecoderException, InvalidKeySpecException {
+        Connection existing = this.getConnection(address); // Get the live connection to the address
+
+        // Check is already connected
+        if (existing != null) {
+            return existing; // Reuse the connection
+        }
+
+        CompletableFuture<Connection> dial = new CompletableFuture<>(); // Initialize a future for our dial
+        CompletableFuture<Connection> pending = this.inFlight.putIfAbsent(address, dial); // Claim the dial, unless another is in progress
+
+        // Check another dial is already in progress
+        if (pending != null) {
+            return await(pending); // Wait for the other dial
+        }
+
+        try {
+            existing = this.getConnection(address); // Check a dial finished while we were claiming ours
+
+            Connection conn = existing != null ? existing : this.dialNew(address, sendingPublicKey); // Dial the peer
+
+            // Check made a new connection
+            if (existing == null) {
+                this.sweep(); // Forget any connections that have closed since the last dial
+            }
+
+            this.connections.put(address, conn); // Remember the connection
+            dial.complete(conn); // Hand the connection to anyone waiting
+
+            return conn; // Return the connection
+        } catch (Throwable e) {
+            dial.completeExceptionally(e); // Hand the failure to anyone waiting
+
+            throw e; // Rethrow the exception
+        } finally {
+            this.inFlight.remove(address, dial); // Allow the address to be dialed again
+        }
+    }
+
+    /**
+     * Dials a new connection with the underlying transport, and runs the dial
+     * callback on it.
+     *
+     * @param address the address of the peer to dial
+     * @param sendingPublicKey the public key to dial with
+     * @return the new connection
+     */
+    private Connection dialNew(String address, Key sendingPublicKey) throws IOException, InvalidMultiAddressException,
+            UnsupportedTransportException, ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, DecoderException, InvalidKeySpecException {
+        Connection conn = this.transport.dial(address, sendingPublicKey); // Dial the peer
+        Callback callback = this.dialCallback; // Get the dial callback
+
+        // Check has no dial callback
+        if (callback == null) {
+            return conn; // Nothing to run
+        }
+
+        try {
+            callback.doCallback(conn); // Handle the new connection
+        } catch (IOException | ClassNotFoundException | IllegalBlockSizeException | BadPaddingException | RuntimeException e) {
+            conn.close(); // Don't leave the unhandled connection open
+
+            // Check is one of the exceptions thrown by dial
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            } else if (e instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) e;
+            } else if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+
+            throw new IOException("failed to handle dialed connection", e); // Throw exception
+        }
+
+        return conn; // Return the connection
+    }
+
+    /**
+     * Gets the live connection to a given address, forgetting it if it has
+     * been closed.
+     *
+     * @param address the address of the peer
+     * @return the live connection, or null if there is none
+     */
+    public Connection getConnection(String address) {
+        Connection conn = this.connections.get(address); // Get the connection
+
+        // Check the connection has been closed
+        if (conn != null && conn.isClosed()) {
+            this.connections.remove(address, conn); // Forget the connection
+
+            return null; // Not connected
+        }
+
+        return conn; // Return the connection
+    }
+
+    /**
+     * Forgets a connection once it has been closed, so it isn't held until
+     * its address is dialed again.
+     *
+     * @param conn the closed connection
+     */
+    public void disconnected(Connection conn) {
+        this.connections.values().remove(conn); // Forget the connection
+    }
+
+    /**
+     * Forgets each of the connections that have been closed.
+     */
+    private void sweep() {
+        this.connections.values().removeIf(Connection::isClosed); // Forget the closed connections
+    }
+
+    /**
+     * Waits for a dial in progress, rethrowing its failure as the exception
+     * it was thrown as.
+     *
+     * @param dial the dial to wait for
+     * @return the connection made by the dial
+     */
+    private static Connection await(CompletableFuture<Connection> dial) throws IOException, InvalidMultiAddressException,
+            UnsupportedTransportException, ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, DecoderException, InvalidKeySpecException {
+        try {
+            return dial.get(); // Wait for the dial
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+
+            throw new InterruptedIOException("interrupted while waiting for a dial in progress"); // Throw exception
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause(); // Get the exception thrown by the dial
+
+            // Check is one of the exceptions thrown by dial
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InvalidMultiAddressException) {
+                throw (InvalidMultiAddressException) cause;
+            } else if (cause instanceof UnsupportedTransportException) {
+                throw (UnsupportedTransportException) cause;
+            } else if (cause instanceof ClassNotFoundException) {
+                throw (ClassNotFoundException) cause;
+            } else if (cause instanceof InvalidKeyException) {
+                throw (InvalidKeyException) cause;
+            } else if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            } else if (cause instanceof NoSuchPaddingException) {
+                throw (NoSuchPaddingException) cause;
+            } else if (cause instanceof DecoderException) {
+                throw (DecoderException) cause;
+            } else if (cause instanceof InvalidKeySpecException) {
+                throw (InvalidKeySpecException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+
+            throw new IOException("dial failed", cause); // Throw exception
+        }
+    }
+}
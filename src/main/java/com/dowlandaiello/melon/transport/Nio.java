@@ -0,0 +1,476 @@
+package com.dowlandaiello.melon.transport;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.common.Workers;
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.common.CommonTypes.MultiAddress.InvalidMultiAddressException;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.EventLoop;
+import com.dowlandaiello.melon.transport.connection.Negotiation;
+import com.dowlandaiello.melon.transport.connection.NioSocket;
+import com.dowlandaiello.melon.transport.mux.Session;
+import org.apache.commons.codec.DecoderException;
+
+import javax.crypto.NoSuchPaddingException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Represents a non-blocking tcp transport. Rather than dedicating a thread to
+ * each connection, all connections are serviced by a small group of selector
+ * event loops (one per core, by default).
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Nio implements Transport {
+    /**
+     * The transports to fall back to.
+     */
+    private Transport fallbackTransport;
+
+    /**
+     * The types of upgrades that can be negotiated over non-blocking
+     * connections. Other upgrades are rejected by withUpgrade.
+     */
+    private static final EnumSet<Upgrade.Type> SUPPORTED_UPGRADES = EnumSet.of(Upgrade.Type.MUX);
+
+    /**
+     * The upgrades to use.
+     */
+    private HashMap<Upgrade.Type, Upgrade> upgrades;
+
+    /**
+     * The number of event loops to service connections with.
+     */
+    private final int eventLoops;
+
+    /**
+     * The event loops servicing the transport's connections (started lazily).
+     */
+    private EventLoop.Group loops;
+
+    /**
+     * The executor used to run connection callbacks (and to route the frames
+     * of multiplexed sessions) off of the event loops. Connections handed to
+     * a Pipeline, including multiplexed ones, are read by the loops
+     * themselves, so callbacks only hold a thread for as long as they block.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The server channels of the transport's running listeners.
+     */
+    private final Set<ServerSocketChannel> listeners;
+
+    /**
+     * Initializes a new non-blocking TCP transport with one event loop per core.
+     */
+    public Nio() {
+        this(Runtime.getRuntime().availableProcessors()); // Use one loop per core
+    }
+
+    /**
+     * Initializes a new non-blocking TCP transport with the given number of
+     * event loops.
+     *
+     * @param eventLoops the number of event loops to service connections with
+     */
+    public Nio(int eventLoops) {
+        this.fallbackTransport = null; // No fallback transports
+        this.upgrades = new HashMap<>(); // Initialize upgrades map
+        this.eventLoops = eventLoops; // Set the number of event loops
+        this.loops = null; // Start the loops once they're needed
+        this.executor = Workers.newBlockingExecutor("melon-nio"); // Initialize the default executor (virtual threads on Java 21)
+        this.listeners = ConcurrentHashMap.newKeySet(); // Nothing is listening yet
+    }
+
+    /**
+     * Applies a particular upgrade to a transport. Only the upgrades in
+     * SUPPORTED_UPGRADES can be applied, so that a connection is never
+     * silently left without an upgrade (i.e. secio) the caller asked for.
+     *
+     * @param upgrade the upgrade to apply to the transport
+     * @return the upgraded transport
+     * @throws IllegalArgumentException if the upgrade can't be negotiated
+     *                                  over non-blocking connections
+     */
+    public Transport withUpgrade(Upgrade upgrade) {
+        // Check the upgrade can't be negotiated
+        if (!SUPPORTED_UPGRADES.contains(upgrade.getType())) {
+            throw new IllegalArgumentException(String.format("upgrade not supported by the nio transport (%s)", upgrade.getType())); // Throw exception
+        }
+
+        this.upgrades.put(upgrade.getType(), upgrade); // Add upgrade
+
+        return this; // Allow chaining of withUpgrade statements
+    }
+
+    /**
+     * Sets the executor used to handle incoming connections and streams.
+     *
+     * @param executor the executor to use
+     * @return the updated transport
+     */
+    public Transport withExecutor(ExecutorService executor) {
+        this.executor = executor; // Set executor
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Constructs a new transport that falls back to the given fallback transport,
+     * should a particular transport protocol denoted by the destination address not
+     * be supported (i.e. /ws in dest addr). Does not remove existing fallback
+     * transport rules.
+     *
+     * @param fallback the transport to fall back to
+     * @return the updated transport
+     */
+    public Transport withFallback(Transport fallback) {
+        // Check we already have a fallback transport
+        if (this.fallbackTransport != null) {
+            this.fallbackTransport = this.fallbackTransport.withFallback(fallback); // Use fallback
+
+            return this; // Allow chaining of withFallback statements
+        }
+
+        this.fallbackTransport = fallback; // Set fallback transport
+
+        return this; // Allow chaining of withFallback statements
+    }
+
+    /**
+     * Listens on the given multiaddress, and executes the given callback with
+     * each successfully established connection. Connections are accepted on
+     * the calling thread, then handed off to the event loops, which perform
+     * the handshake.
+     *
+     * @param multiaddress the multiaddress to listen on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     */
+    public void listen(String multiaddress, Callback callback) throws InvalidMultiAddressException, IOException {
+        this.listen(multiaddress, callback, null); // Listen
+    }
+
+    /**
+     * Listens on the given multiaddress, and executes the given callback with
+     * each successfully established connection, until the transport is
+     * closed. Connections are accepted on the calling thread, then handed
+     * off to the event loops, which perform the handshake.
+     *
+     * @param multiaddress the multiaddress to listen on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     * @param bound the callback to run once the server channel is bound (null
+     *              for none)
+     */
+    public void listen(String multiaddress, Callback callback, BindCallback bound) throws InvalidMultiAddressException, IOException {
+        int port = CommonTypes.MultiAddress.parsePort(multiaddress); // Get the port we'll be listening on
+
+        EventLoop.Group loops = this.getLoops(); // Get the event loops
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port)); // Bind to the given port
+            this.listeners.add(serverChannel); // Allow the listener to be closed
+
+            // Check should report the bound port
+            if (bound != null) {
+                bound.bound(((InetSocketAddress) serverChannel.getLocalAddress()).getPort()); // Report the bound port
+            }
+
+            // Do while the server channel is open
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept(); // Accept a channel
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Don't delay small frames
+
+                new NioSocket(channel, loops.next(), null, new ListenHandshake(multiaddress, callback)); // Hand the channel off to a loop
+            }
+        } catch (ClosedChannelException e) {
+            // The transport was closed
+        } finally {
+            this.listeners.removeIf((ServerSocketChannel serverChannel) -> !serverChannel.isOpen()); // Forget the closed listener
+        }
+    }
+
+    /**
+     * Closes each of the transport's server channels, stopping their
+     * listeners. Connections already handed off to the event loops are left
+     * open.
+     */
+    public void close() throws IOException {
+        // Close each of the listeners
+        for (ServerSocketChannel serverChannel : this.listeners) {
+            serverChannel.close(); // Close the server channel, unblocking its listener
+        }
+    }
+
+    /**
+     * Dials a given address, and returns the socket after connecting.
+     *
+     * @param address the address of the peer to dial
+     * @return the connected socket
+     */
+    public Connection dial(String address, Key sendingPublicKey) throws IOException, InvalidMultiAddressException,
+            UnsupportedTransportException, ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException,
+            NoSuchPaddingException, DecoderException, InvalidKeySpecException {
+        CommonTypes.MultiAddress parsed = CommonTypes.MultiAddress.parse(address); // Parse the address once (or get it from the interning table)
+
+        // Get the desired connection transport, address, pub key, and port so we can
+        // check for compatibility
+        String transport = parsed.transport;
+        String inetAddress = parsed.inetAddress;
+        int port = parsed.port;
+        PublicKey peerPublicKey = parsed.getPublicKey();
+
+        // Check is not using tcp
+        if (!transport.equals("tcp")) {
+            // Check no fallback
+            if (this.fallbackTransport == null) {
+                // Throw exception indicating use of unsupported transport
+                throw new UnsupportedTransportException(
+                        String.format("attempted to dial a peer using an unsupported transport (%s)", transport)); // Throw
+            }
+
+            return this.fallbackTransport.dial(address, sendingPublicKey); // Try dialing with fallback
+        }
+
+        // Initialize a negotiation message
+        Message availableUpgradesMessage = new Message(new Negotiation(null, this.negotiableUpgrades(), sendingPublicKey), Message.Type.NEGOTIATION);
+
+        boolean multiplexed; // Whether or not the peer agreed to multiplex the connection
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(inetAddress, port)); // Connect in blocking mode for the handshake
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Don't delay small frames
+
+        try {
+            ByteBuffer request = Codec.encode(availableUpgradesMessage); // Frame the negotiation
+
+            // Write the whole negotiation
+            while (request.hasRemaining()) {
+                channel.write(request); // Write to connection
+            }
+
+            Message response = readFrame(channel); // Read the response
+
+            // Check is not a negotiation
+            if (response.type != Message.Type.NEGOTIATION) {
+                throw new IOException("peer responded to negotiation with an unexpected message"); // Throw exception
+            }
+
+            multiplexed = this.upgrades.containsKey(Upgrade.Type.MUX) && hasUpgrade((Negotiation) response.contents, Upgrade.Type.MUX); // Check both of us support multiplexing
+        } catch (IOException e) {
+            channel.close(); // Close the channel
+
+            throw e; // Rethrow the exception
+        }
+
+        NioSocket socket = new NioSocket(channel, this.getLoops().next(), peerPublicKey, null); // Hand the negotiated channel off to a loop
+
+        // Check has multiplexing upgrade
+        if (multiplexed) {
+            return new Session(socket, true, null, this.executor).start().openStream(); // Return the first stream of the session
+        }
+
+        return socket; // Return the connection
+    }
+
+    /**
+     * Gets the configured upgrades, each of which can be negotiated over
+     * non-blocking connections (see withUpgrade).
+     *
+     * @return the negotiable upgrades
+     */
+    private ArrayList<Upgrade> negotiableUpgrades() {
+        return new ArrayList<>(this.upgrades.values()); // Return the negotiable upgrades
+    }
+
+    /**
+     * Determines whether or not a negotiation includes a particular upgrade.
+     *
+     * @param negotiation the negotiation to check
+     * @param type the type of upgrade to look for
+     * @return whether or not the upgrade is included
+     */
+    private static boolean hasUpgrade(Negotiation negotiation, Upgrade.Type type) {
+        // Check has no upgrades
+        if (negotiation == null || negotiation.availableUpgrades == null) {
+            return false; // No upgrades
+        }
+
+        // Iterate through the upgrades
+        for (Upgrade upgrade : negotiation.availableUpgrades) {
+            // Check is the upgrade we're looking for
+            if (upgrade.getType() == type) {
+                return true; // Found it
+            }
+        }
+
+        return false; // Not included
+    }
+
+    /**
+     * Gets the event loops servicing the transport's connections, starting
+     * them if they haven't been started yet.
+     *
+     * @return the event loops
+     */
+    private synchronized EventLoop.Group getLoops() throws IOException {
+        // Check loops haven't been started yet
+        if (this.loops == null) {
+            this.loops = new EventLoop.Group(this.eventLoops); // Start the loops
+        }
+
+        return this.loops; // Return the loops
+    }
+
+    /**
+     * Reads a single frame from a blocking channel, without reading past the
+     * end of the frame.
+     *
+     * @param channel the channel to read from
+     * @return the decoded message
+     */
+    private static Message readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5); // Allocate a buffer for the length prefix
+        int length; // The length of the frame
+
+        // Read the length prefix a byte at a time
+        do {
+            header.limit(header.position() + 1); // Read a single byte
+
+            // Check the peer closed the connection
+            if (channel.read(header) < 0) {
+                throw new EOFException("peer closed connection during negotiation"); // Throw exception
+            }
+
+            ByteBuffer prefix = (ByteBuffer) header.duplicate().flip(); // Get a view of the prefix read so far
+            length = Codec.tryReadVarint(prefix); // Try to read the length
+        } while (length < 0 && header.position() < header.capacity());
+
+        // Check frame too large
+        if (length <= 0 || length > Codec.MAX_FRAME_SIZE) {
+            throw new IOException(String.format("invalid frame length (%d)", length)); // Throw exception
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(length); // Allocate a buffer for the body
+
+        // Read until the buffer is full
+        while (body.hasRemaining()) {
+            // Check the peer closed the connection
+            if (channel.read(body) < 0) {
+                throw new EOFException("peer closed connection during negotiation"); // Throw exception
+            }
+        }
+
+        body.flip(); // Prepare the body for reading
+
+        return Codec.decode(body); // Return the decoded message
+    }
+
+    /**
+     * Represents the listener side of the negotiation, run on an event loop.
+     */
+    private class ListenHandshake implements NioSocket.Handshake {
+        /**
+         * The multiaddress being listened on.
+         */
+        private final String multiaddress;
+
+        /**
+         * The callback to run once the connection has been established.
+         */
+        private final Callback callback;
+
+        /**
+         * Whether or not the connection has been negotiated as multiplexed.
+         */
+        private boolean multiplexed;
+
+        /**
+         * Initializes a new listener-side handshake.
+         *
+         * @param multiaddress the multiaddress being listened on
+         * @param callback the callback to run once the connection has been
+         *                 established
+         */
+        private ListenHandshake(String multiaddress, Callback callback) {
+            this.multiaddress = multiaddress; // Set multiaddress
+            this.callback = callback; // Set callback
+        }
+
+        /**
+         * Handles the remote peer's negotiation, and responds with our own.
+         *
+         * @param socket the connection being negotiated
+         * @param resp the first message read from the peer
+         * @return the public key of the remote peer (if any)
+         */
+        public Key negotiate(NioSocket socket, Message resp) throws Exception {
+            // Check is not a negotiation
+            if (resp.type != Message.Type.NEGOTIATION) {
+                throw new IOException("peer opened connection without negotiating"); // Throw exception
+            }
+
+            Negotiation peerNegotiation = (Negotiation) resp.contents; // Get the peer's negotiation
+
+            ArrayList<Upgrade> supportedUpgrades = new ArrayList<>(); // Initialize supported upgrades array list
+
+            // Iterate through the upgrades we can negotiate
+            for (Upgrade upgrade : negotiableUpgrades()) {
+                // Check the peer has the upgrade as well
+                if (hasUpgrade(peerNegotiation, upgrade.getType())) {
+                    supportedUpgrades.add(upgrade); // Add upgrade to supported upgrades list
+
+                    this.multiplexed |= upgrade.getType() == Upgrade.Type.MUX; // Remember whether or not we're multiplexing
+                }
+            }
+
+            // Respond with our own negotiation
+            socket.writeMessage(new Message(new Negotiation(null, supportedUpgrades, CommonTypes.MultiAddress.parsePublicKey(this.multiaddress)), Message.Type.NEGOTIATION));
+
+            return peerNegotiation != null ? peerNegotiation.publicKey : null; // Return the public key of the peer
+        }
+
+        /**
+         * Runs the callback off of the event loop, since it may block.
+         *
+         * @param socket the negotiated connection
+         */
+        public void established(NioSocket socket) {
+            // Check has multiplexing upgrade
+            if (this.multiplexed) {
+                new Session(socket, false, this.callback, executor).start(); // Do callback for each stream the peer opens
+
+                return; // Done!
+            }
+
+            executor.execute(() -> {
+                try {
+                    this.callback.doCallback(socket); // Do callback
+                } catch (Exception e) {
+                    e.printStackTrace(); // Log errors
+                }
+            });
+        }
+    }
+}
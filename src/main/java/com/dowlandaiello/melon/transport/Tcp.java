@@ -3,26 +3,35 @@ package com.dowlandaiello.melon.transport;
 import com.dowlandaiello.melon.common.CommonTypes;
 import com.dowlandaiello.melon.common.CommonTypes.Message;
 import com.dowlandaiello.melon.common.CommonTypes.MultiAddress.InvalidMultiAddressException;
+import com.dowlandaiello.melon.transport.compress.Compression;
+import com.dowlandaiello.melon.transport.compress.FrameCompressor;
+import com.dowlandaiello.melon.transport.connection.Codec;
 import com.dowlandaiello.melon.transport.connection.Connection;
 import com.dowlandaiello.melon.transport.connection.Negotiation;
 import com.dowlandaiello.melon.transport.connection.TcpSocket;
+import com.dowlandaiello.melon.transport.mux.Session;
+import com.dowlandaiello.melon.transport.secio.Secio;
+import com.dowlandaiello.melon.transport.secio.SecureSession;
 import org.apache.commons.codec.DecoderException;
 
-import javax.crypto.Cipher;
 import javax.crypto.NoSuchPaddingException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
 import java.security.InvalidKeyException;
 import java.security.Key;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Represents an upgradable tcp transport.
@@ -41,12 +50,24 @@ public class Tcp implements Transport {
      */
     private HashMap<Upgrade.Type, Upgrade> upgrades;
 
+    /**
+     * The executor used to handle each accepted socket and multiplexed stream.
+     */
+    private ExecutorService executor;
+
+    /**
+     * The server sockets of the transport's running listeners.
+     */
+    private final Set<ServerSocket> listeners;
+
     /**
      * Initializes a new TCP transport.
      */
     public Tcp() {
         this.fallbackTransport = null; // No fallback transports
         this.upgrades = new HashMap<>(); // Initialize upgrades map
+        this.executor = Executors.newCachedThreadPool(); // Initialize the connection executor
+        this.listeners = ConcurrentHashMap.newKeySet(); // Nothing is listening yet
     }
 
     /**
@@ -61,6 +82,18 @@ public class Tcp implements Transport {
         return this; // Allow chaining of withUpgrade statements
     }
 
+    /**
+     * Sets the executor used to handle incoming connections and streams.
+     *
+     * @param executor the executor to use
+     * @return the updated transport
+     */
+    public Transport withExecutor(ExecutorService executor) {
+        this.executor = executor; // Set executor
+
+        return this; // Allow chaining
+    }
+
     /**
      * Constructs a new transport that falls back to the given fallback transport,
      * should a particular transport protocol denoted by the destination address not
@@ -92,22 +125,73 @@ public class Tcp implements Transport {
      *                 connection
      */
     public void listen(String multiaddress, Callback callback) throws InvalidMultiAddressException, IOException {
+        this.listen(multiaddress, callback, null); // Listen
+    }
+
+    /**
+     * Listens on the given multiaddress, and executes the given callback with
+     * each successfully established connection, until the transport is
+     * closed.
+     *
+     * @param multiaddress the multiaddress to listen on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     * @param bound the callback to run once the server socket is bound (null
+     *              for none)
+     */
+    public void listen(String multiaddress, Callback callback, BindCallback bound) throws InvalidMultiAddressException, IOException {
         int port = CommonTypes.MultiAddress.parsePort(multiaddress); // Get the port we'll be listening on
 
         ServerSocket serverSocket = new ServerSocket(port); // Initialize a server socket for the given port
+        this.listeners.add(serverSocket); // Allow the listener to be closed
+
+        try {
+            // Check should report the bound port
+            if (bound != null) {
+                bound.bound(serverSocket.getLocalPort()); // Report the bound port
+            }
+
+            this.accept(serverSocket, multiaddress, callback); // Accept connections until closed
+        } catch (SocketException e) {
+            // Check wasn't closed by the transport
+            if (!serverSocket.isClosed()) {
+                throw e; // Rethrow
+            }
+        } finally {
+            this.listeners.remove(serverSocket); // Forget the listener
+            serverSocket.close(); // Close the socket
+        }
+    }
 
+    /**
+     * Closes each of the transport's server sockets, stopping their
+     * listeners.
+     */
+    public void close() throws IOException {
+        // Close each of the listeners
+        for (ServerSocket serverSocket : this.listeners) {
+            serverSocket.close(); // Close the server socket, unblocking its listener
+        }
+    }
+
+    /**
+     * Accepts connections on a server socket until it is closed, handing
+     * each of them off to the executor.
+     *
+     * @param serverSocket the server socket to accept connections on
+     * @param multiaddress the multiaddress the server socket listens on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     */
+    private void accept(ServerSocket serverSocket, String multiaddress, Callback callback) throws IOException {
         // Do while the server socket is open
         while(!serverSocket.isClosed()) {
             Socket socket = serverSocket.accept(); // Accept a socket
 
-            class ConnectionHandler extends Thread {
+            class ConnectionHandler implements Runnable {
                 public void run() {
                     try {
-                        ObjectInputStream in = new ObjectInputStream(socket.getInputStream()); // Get an object input stream for the socket
-
-                        Message resp = (Message) in.readObject(); // Read a response from the peer
-
-                        Cipher inCipher; // We'll set this once we find out the remote peer's public key
+                        Message resp = Codec.readFrame(socket.getInputStream()); // Read a response from the peer
 
                         // Check is negotiation
                         if (resp.type == Message.Type.NEGOTIATION) {
@@ -115,46 +199,61 @@ public class Tcp implements Transport {
                             Negotiation selfNegotiation; // We'll construct a negotiation to send to the remote peer once we've determined which protocols we have in common
 
                             // Check no common upgrades
-                            if (peerNegotiation == null || peerNegotiation.availableUpgrades.size() == 0) {
-                                // Check has negotiation from peer
-                                if (peerNegotiation != null) {
-                                    callback.doCallback(new TcpSocket(socket, new HashMap<>(), peerNegotiation.cipher, peerNegotiation.publicKey)); // Just use a bare socket
-                                } else {
-                                    callback.doCallback(new TcpSocket(socket, new HashMap<>(), null, null)); // Just use a bare socket
-                                }
+                            if (peerNegotiation == null || peerNegotiation.availableUpgrades == null || peerNegotiation.availableUpgrades.size() == 0) {
+                                checkSecured(socket, false); // Refuse to fall back to plaintext if we need secio
+
+                                Codec.writeFrame(socket.getOutputStream(), new Message(new Negotiation(null, new ArrayList<>(), CommonTypes.MultiAddress.parsePublicKey(multiaddress)), Message.Type.NEGOTIATION)); // Let the peer know we won't be upgrading
 
+                                callback.doCallback(new TcpSocket(socket, null, peerNegotiation != null ? peerNegotiation.publicKey : null)); // Just use a bare socket
 
                                 return; // Continue
                             }
 
-                            inCipher = peerNegotiation.cipher; // Set in cipher
-
                             ArrayList<Upgrade> supportedUpgrades = new ArrayList<>(); // Initialize supported upgrades array list
                             HashMap<Upgrade.Type, Upgrade> socketUpgrades = new HashMap<>(); // Initialize socket upgrades map
 
+                            Compression compression = (Compression) upgrades.get(Upgrade.Type.COMPRESSION); // Get the compression upgrade, if any
+                            Compression.Algorithm algorithm = compression != null ? compression.select(peerNegotiation.compressionAlgorithms) : null; // Select the first offered algorithm we support
+
                             // Iterate through available upgrades
                             for (Upgrade upgrade : peerNegotiation.availableUpgrades) {
-                                // Check has upgrade
-                                if (upgrades.containsKey(upgrade.getType())) {
+                                // Check has upgrade (compression only if we have an algorithm in common)
+                                if (upgrades.containsKey(upgrade.getType()) && (upgrade.getType() != Upgrade.Type.COMPRESSION || algorithm != null)) {
                                     supportedUpgrades.add(upgrades.get(upgrade.getType())); // Add upgrade to supported upgrades list
                                     socketUpgrades.put(upgrade.getType(), upgrades.get(upgrade.getType())); // Add the upgrade to the socket upgrades map
                                 }
                             }
 
-                            // Check has secio upgrade
-                            if (upgrades.containsKey(Upgrade.Type.SECIO)) {
-                                selfNegotiation = new Negotiation((Cipher) upgrades.get(Upgrade.Type.SECIO).getConfig("127.0.0.1"), supportedUpgrades, CommonTypes.MultiAddress.parsePublicKey(multiaddress)); // Initialize negotiation
-                            } else {
-                                selfNegotiation = new Negotiation(null, supportedUpgrades, CommonTypes.MultiAddress.parsePublicKey(multiaddress)); // Initialize negotiation
-                            }
+                            Secio secio = (Secio) socketUpgrades.get(Upgrade.Type.SECIO); // Get the secio upgrade, if both of us support it
+                            checkSecured(socket, secio != null); // Refuse to fall back to plaintext if we need secio
+
+                            KeyPair ephemeral = secio != null ? secio.generateEphemeralKeyPair() : null; // Generate a single-use key for the session
 
-                            (new ObjectOutputStream(socket.getOutputStream())).writeObject(selfNegotiation); // Write negotiation
+                            ArrayList<String> selectedAlgorithms = socketUpgrades.containsKey(Upgrade.Type.COMPRESSION) ? new ArrayList<>(Collections.singletonList(algorithm.toString())) : null; // Answer with the selected algorithm
 
-                            callback.doCallback(new TcpSocket(socket, socketUpgrades, inCipher, peerNegotiation.publicKey)); // Do callback
+                            selfNegotiation = new Negotiation(ephemeral != null ? ephemeral.getPublic() : null, supportedUpgrades, CommonTypes.MultiAddress.parsePublicKey(multiaddress), selectedAlgorithms); // Initialize negotiation
+
+                            Codec.writeFrame(socket.getOutputStream(), new Message(selfNegotiation, Message.Type.NEGOTIATION)); // Write negotiation
+
+                            SecureSession session = secio != null ? secio.establish(ephemeral, peerNegotiation.publicKey, peerNegotiation.ephemeralKey, false) : null; // Agree on the session keys
+
+                            FrameCompressor compressor = selectedAlgorithms != null ? new FrameCompressor(algorithm) : null; // Compress frames with the selected algorithm
+
+                            TcpSocket conn = new TcpSocket(socket, session, compressor, peerNegotiation.publicKey); // Upgrade the socket
+
+                            // Check has multiplexing upgrade
+                            if (socketUpgrades.containsKey(Upgrade.Type.MUX)) {
+                                new Session(conn, false, callback, executor).start(); // Do callback for each stream the peer opens
+
+                                return;
+                            }
+
+                            callback.doCallback(conn); // Do callback
 
                             return;
                         }
 
+                        checkSecured(socket, false); // Refuse to fall back to plaintext if we need secio
 
                         callback.doCallback(new TcpSocket(socket)); // Do callback
                     } catch (Exception e) {
@@ -163,11 +262,8 @@ public class Tcp implements Transport {
                 }
             }
 
-            ConnectionHandler connHandler = new ConnectionHandler(); // Initialize a new connection handler
-            connHandler.start(); // Start the connection handler
+            this.executor.execute(new ConnectionHandler()); // Handle the connection
         }
-
-        serverSocket.close(); // Close the socket
     }
 
     /**
@@ -179,20 +275,14 @@ public class Tcp implements Transport {
     public Connection dial(String address, Key sendingPublicKey) throws IOException, InvalidMultiAddressException,
             UnsupportedTransportException, ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException,
             NoSuchPaddingException, DecoderException, InvalidKeySpecException {
-        // Check multiAddr invalid
-        if (!CommonTypes.MultiAddress.isValid(address)) {
-            // Throw exception
-            throw new InvalidMultiAddressException(
-                    "attempted to dial improperly formatted address");
-        }
+        CommonTypes.MultiAddress parsed = CommonTypes.MultiAddress.parse(address); // Parse the address once (or get it from the interning table)
 
-        // Parse the desired connection transport, address, pub key, and port so we can
-        // check for
-        // compatibility
-        String transport = CommonTypes.MultiAddress.parseTransport(address);
-        String inetAddress = CommonTypes.MultiAddress.parseInetAddress(address);
-        int port = CommonTypes.MultiAddress.parsePort(address);
-        PublicKey peerPublicKey = CommonTypes.MultiAddress.parsePublicKey(address);
+        // Get the desired connection transport, address, pub key, and port so we can
+        // check for compatibility
+        String transport = parsed.transport;
+        String inetAddress = parsed.inetAddress;
+        int port = parsed.port;
+        PublicKey peerPublicKey = parsed.getPublicKey();
 
         // Check is not using tcp
         if (!transport.equals("tcp")) {
@@ -206,21 +296,24 @@ public class Tcp implements Transport {
             return this.fallbackTransport.dial(address, sendingPublicKey); // Try dialing with fallback
         }
 
-        ArrayList<Upgrade> upgrades = new ArrayList<>(Arrays.asList((Upgrade[]) this.upgrades.values().toArray())); // Convert upgrade map to ArrayList
+        ArrayList<Upgrade> upgrades = new ArrayList<>(this.upgrades.values()); // Convert upgrade map to ArrayList
+
+        Secio secio = (Secio) this.upgrades.get(Upgrade.Type.SECIO); // Get the secio upgrade, if any
+        KeyPair ephemeral = secio != null ? secio.generateEphemeralKeyPair() : null; // Generate a single-use key for the session
+
+        Compression compression = (Compression) this.upgrades.get(Upgrade.Type.COMPRESSION); // Get the compression upgrade, if any
 
         // Initialize a negotiation
-        Negotiation negotiation = this.upgrades.containsKey(Upgrade.Type.SECIO) ? new Negotiation(((Cipher) this.upgrades.get(Upgrade.Type.SECIO).getConfig("127.0.0.1")), upgrades, sendingPublicKey) : new Negotiation(null, upgrades, sendingPublicKey);
+        Negotiation negotiation = new Negotiation(ephemeral != null ? ephemeral.getPublic() : null, upgrades, sendingPublicKey, compression != null ? compression.offer() : null);
 
         // Initialize a negotiation message
         Message availableUpgradesMessage = new Message(negotiation, Message.Type.NEGOTIATION);
 
         Socket baseSocket = new Socket(inetAddress, port); // Connect without upgrading
-        ObjectOutputStream outStream = new ObjectOutputStream(baseSocket.getOutputStream()); // Get output stream
-        ObjectInputStream inStream = new ObjectInputStream(baseSocket.getInputStream()); // Get input stream
 
-        outStream.writeObject(availableUpgradesMessage); // Write to connection
+        Codec.writeFrame(baseSocket.getOutputStream(), availableUpgradesMessage); // Write to connection
 
-        Message response = (Message) inStream.readObject(); // Read an incoming message
+        Message response = Codec.readFrame(baseSocket.getInputStream()); // Read an incoming message
 
         // Check is negotiation
         if (response.type == Message.Type.NEGOTIATION) {
@@ -230,6 +323,8 @@ public class Tcp implements Transport {
 
             // Check no upgrades
             if (peerSupportedUpgrades == null || peerSupportedUpgrades.size() == 0) {
+                checkSecured(baseSocket, false); // Refuse to fall back to plaintext if we need secio
+
                 return new TcpSocket(baseSocket); // Just use a base socket
             }
 
@@ -250,9 +345,42 @@ public class Tcp implements Transport {
                 }
             }
 
-            return new TcpSocket(baseSocket, usableUpgrades, peerPublicKey); // Return final socket
+            checkSecured(baseSocket, usableUpgrades.containsKey(Upgrade.Type.SECIO)); // Refuse to fall back to plaintext if we need secio
+
+            SecureSession session = usableUpgrades.containsKey(Upgrade.Type.SECIO) ? secio.establish(ephemeral, peerPublicKey, ((Negotiation) response.contents).ephemeralKey, true) : null; // Agree on the session keys
+
+            Compression.Algorithm algorithm = usableUpgrades.containsKey(Upgrade.Type.COMPRESSION) ? compression.select(((Negotiation) response.contents).compressionAlgorithms) : null; // Use the algorithm the peer selected
+
+            TcpSocket conn = new TcpSocket(baseSocket, session, algorithm != null ? new FrameCompressor(algorithm) : null, peerPublicKey); // Upgrade the socket
+
+            // Check has multiplexing upgrade
+            if (usableUpgrades.containsKey(Upgrade.Type.MUX)) {
+                return new Session(conn, true, null, this.executor).start().openStream(); // Return the first stream of the session
+            }
+
+            return conn; // Return final socket
         } else {
+            checkSecured(baseSocket, false); // Refuse to fall back to plaintext if we need secio
+
             return new TcpSocket(baseSocket); // Nothing to negotiate
         }
     }
+
+    /**
+     * Closes a socket the peer didn't agree to secure, if secio is
+     * configured locally. Otherwise, an active attacker could strip secio
+     * from either side's negotiation, and both peers would fall back to
+     * plaintext.
+     *
+     * @param socket the negotiated socket
+     * @param secured whether or not both peers selected secio
+     */
+    private void checkSecured(Socket socket, boolean secured) throws IOException {
+        // Check secio is required, but wasn't selected
+        if (!secured && this.upgrades.containsKey(Upgrade.Type.SECIO)) {
+            socket.close(); // Don't talk to the peer in plaintext
+
+            throw new IOException("peer didn't negotiate secio, which is required"); // Throw exception
+        }
+    }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package com.dowlandaiello.melon.transport;
 
+import com.dowlandaiello.melon.common.CommonTypes;
 import com.dowlandaiello.melon.common.CommonTypes.MultiAddress.InvalidMultiAddressException;
 import com.dowlandaiello.melon.transport.connection.Connection;
 import org.apache.commons.codec.DecoderException;
@@ -12,6 +13,7 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Represents a generic, upgradable transport.
@@ -37,7 +39,9 @@ public interface Transport {
     }
 
     /**
-     * A callback executed after an incoming connection is successfully established.
+     * A callback executed after an incoming connection is successfully
+     * established. If the connection is multiplexed, the callback is executed
+     * once for each stream opened by the remote peer.
      *
      * @since 1.0
      */
@@ -50,6 +54,22 @@ public interface Transport {
         void doCallback(Connection conn) throws ClassNotFoundException, IllegalBlockSizeException, BadPaddingException, IOException;
     }
 
+    /**
+     * A callback executed once a listener has bound its port, and is ready
+     * to accept connections.
+     *
+     * @since 1.0
+     */
+    interface BindCallback {
+        /**
+         * Executes the target callback.
+         *
+         * @param port the port the listener is bound to (the one picked by
+         *             the system, if port 0 was asked for)
+         */
+        void bound(int port) throws IOException;
+    }
+
     /**
      * Applies a particular upgrade to a transport.
      * 
@@ -58,6 +78,17 @@ public interface Transport {
      */
     Transport withUpgrade(Upgrade upgrade);
 
+    /**
+     * Sets the executor used to handle incoming connections and streams.
+     * Transports that don't run any work of their own ignore the executor.
+     *
+     * @param executor the executor to use
+     * @return the updated transport
+     */
+    default Transport withExecutor(ExecutorService executor) {
+        return this; // Nothing to run on the executor
+    }
+
     /**
      * Constructs a new transport that falls back to the given fallback transport,
      * should a particular transport protocol denoted by the destination address not
@@ -79,7 +110,35 @@ public interface Transport {
     void listen(String multiaddress, Callback callback) throws InvalidMultiAddressException, IOException, ClassNotFoundException, BadPaddingException, IllegalBlockSizeException;
 
     /**
-     * Dials a given address, and returns the socket after connecting.
+     * Listens on the given multiaddress, and executes the given callback with
+     * each successfully established connection. The bind callback is run
+     * once the listener is ready to accept connections, so a listener asked
+     * to bind port 0 can publish the port it was given. Transports that
+     * can't tell when they are bound report the requested port as they
+     * start listening.
+     *
+     * @param multiaddress the multiaddress to listen on
+     * @param callback the callback to run after successfully establishing a
+     *                 connection
+     * @param bound the callback to run once the listener is bound
+     */
+    default void listen(String multiaddress, Callback callback, BindCallback bound) throws InvalidMultiAddressException, IOException, ClassNotFoundException, BadPaddingException, IllegalBlockSizeException {
+        bound.bound(CommonTypes.MultiAddress.parsePort(multiaddress)); // Report the requested port
+        this.listen(multiaddress, callback); // Listen
+    }
+
+    /**
+     * Stops each of the transport's listeners, which then return normally.
+     * Transports that don't listen on anything of their own ignore this.
+     */
+    default void close() throws IOException {
+    }
+
+    /**
+     * Dials a given address, and returns the socket after connecting. If both
+     * peers support the MUX upgrade, the returned connection is the first
+     * stream of a new session, and further streams to the same peer can be
+     * opened through its session.
      * 
      * @param address the address of the peer to dial
      * @return the connected socket
@@ -13,7 +13,9 @@ public interface Upgrade extends Serializable {
      * Represents the type of feature added by an upgrade.
      */
     enum Type {
-        SECIO
+        SECIO,
+        MUX,
+        COMPRESSION
     }
 
     /**
@@ -0,0 +1,151 @@
+package com.dowlandaiello.melon.transport.compress;
+
+import com.dowlandaiello.melon.transport.Upgrade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Represents a compression upgrade. The dialing peer offers the algorithms
+ * it supports in order of preference, and the listening peer selects the
+ * first of them it supports as well. Each frame is then compressed on its
+ * own (see FrameCompressor), before it is sealed by secio.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Compression implements Upgrade {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Represents an algorithm frames can be compressed with.
+     */
+    public enum Algorithm {
+        DEFLATE;
+
+        /**
+         * Gets the algorithm with the given name.
+         *
+         * @param name the name of the algorithm (i.e. "deflate")
+         * @return the algorithm, or null if it isn't known
+         */
+        public static Algorithm forName(String name) {
+            // Check each of the known algorithms
+            for (Algorithm algorithm : values()) {
+                // Check is the named algorithm
+                if (algorithm.toString().equals(name)) {
+                    return algorithm; // Return the algorithm
+                }
+            }
+
+            return null; // Not a known algorithm
+        }
+
+        /**
+         * Converts the algorithm to the name it is negotiated by.
+         *
+         * @return the name of the algorithm
+         */
+        public String toString() {
+            return this.name().toLowerCase(); // Return the name
+        }
+    }
+
+    /**
+     * The supported algorithms, in order of preference.
+     */
+    private final List<Algorithm> algorithms;
+
+    /**
+     * Initializes a new compression upgrade supporting deflate.
+     */
+    public Compression() {
+        this(Algorithm.DEFLATE); // Use deflate
+    }
+
+    /**
+     * Initializes a new compression upgrade supporting the given algorithms.
+     *
+     * @param algorithms the supported algorithms, in order of preference
+     */
+    public Compression(Algorithm... algorithms) {
+        // Check no algorithms
+        if (algorithms.length == 0) {
+            throw new IllegalArgumentException("compression requires at least one algorithm"); // Throw exception
+        }
+
+        this.algorithms = Arrays.asList(algorithms.clone()); // Set algorithms
+    }
+
+    /**
+     * Gets the names of the supported algorithms, in order of preference, to
+     * be offered in a negotiation.
+     *
+     * @return the names of the supported algorithms
+     */
+    public ArrayList<String> offer() {
+        ArrayList<String> names = new ArrayList<>(this.algorithms.size()); // Initialize the names list
+
+        // Name each of the algorithms
+        for (Algorithm algorithm : this.algorithms) {
+            names.add(algorithm.toString()); // Add the name
+        }
+
+        return names; // Return the names
+    }
+
+    /**
+     * Selects the first of the offered algorithms that is also supported.
+     *
+     * @param offered the names of the offered algorithms (may be null)
+     * @return the selected algorithm, or null if none is supported
+     */
+    public Algorithm select(List<String> offered) {
+        // Check nothing offered
+        if (offered == null) {
+            return null; // Nothing to select
+        }
+
+        // Check each of the offered algorithms
+        for (String name : offered) {
+            Algorithm algorithm = Algorithm.forName(name); // Get the offered algorithm
+
+            // Check is supported
+            if (algorithm != null && this.algorithms.contains(algorithm)) {
+                return algorithm; // Select the algorithm
+            }
+        }
+
+        return null; // No algorithm in common
+    }
+
+    /**
+     * Gets the upgrade type of an upgrade.
+     *
+     * @return the type of the upgrade
+     */
+    public Type getType() {
+        return Type.COMPRESSION; // Return the COMPRESSION type
+    }
+
+    /**
+     * Gets the respective config of an upgrade for a particular transport
+     * direction.
+     *
+     * @param address the peer address to get a config for
+     * @return the supported algorithms, in order of preference
+     */
+    public Object getConfig(String address) {
+        return this.algorithms; // Return the algorithms
+    }
+
+    /**
+     * Converts the upgrade to a string.
+     *
+     * @return the string representation of the upgrade
+     */
+    public String toString() {
+        return "compression"; // Return compression name
+    }
+}
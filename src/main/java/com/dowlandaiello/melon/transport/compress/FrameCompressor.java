@@ -0,0 +1,229 @@
+package com.dowlandaiello.melon.transport.compress;
+
+import com.dowlandaiello.melon.transport.connection.BufferPool;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses the frames of a single connection. Each frame
+ * is compressed on its own, so frames can be read without any state carried
+ * over from the ones before them. A compressed frame keeps its tag (with
+ * Codec.COMPRESSED_FLAG set), followed by the length of the rest of the
+ * frame as a varint, and the rest of the frame deflated. Frames smaller than
+ * MIN_COMPRESSED_SIZE, and frames deflate fails to shrink, are sent as they
+ * are. Frames are pooled (see BufferPool): a frame that is compressed or
+ * decompressed is released, and replaced by a newly leased one.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FrameCompressor {
+    /**
+     * The smallest frame body worth compressing, in bytes.
+     */
+    public static final int MIN_COMPRESSED_SIZE = 256;
+
+    /**
+     * The deflater used to compress outgoing frames.
+     */
+    private final Deflater deflater;
+
+    /**
+     * The inflater used to decompress incoming frames.
+     */
+    private final Inflater inflater;
+
+    /**
+     * The buffer used to check a frame doesn't run past its advertised
+     * length (guarded by the inflater).
+     */
+    private final byte[] probe;
+
+    /**
+     * Whether or not the compressor has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Initializes a new compressor for the given algorithm.
+     *
+     * @param algorithm the negotiated algorithm
+     */
+    public FrameCompressor(Compression.Algorithm algorithm) {
+        // Check is an algorithm we have an implementation for
+        if (algorithm != Compression.Algorithm.DEFLATE) {
+            throw new IllegalArgumentException(String.format("unsupported compression algorithm (%s)", algorithm)); // Throw exception
+        }
+
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true); // Favor latency over ratio, and skip the zlib header
+        this.inflater = new Inflater(true); // Read raw deflate data
+        this.probe = new byte[1]; // Initialize the probe
+    }
+
+    /**
+     * Compresses the body of a frame (everything following the length
+     * prefix), if doing so is worthwhile.
+     *
+     * @param frame the body of the frame (released if it is compressed)
+     * @return the compressed body, or the given body if it was left as is
+     */
+    public PooledBuffer compress(PooledBuffer frame) throws IOException {
+        ByteBuffer body = frame.buffer(); // Get the body of the frame
+        int length = body.remaining() - 1; // Get the length of everything following the tag
+
+        // Check too small to be worth compressing, or not on the heap
+        if (length < MIN_COMPRESSED_SIZE || !body.hasArray()) {
+            return frame; // Leave the frame as is
+        }
+
+        PooledBuffer lease = BufferPool.HEAP.lease(body.remaining()); // Anything larger than the frame itself isn't worth sending
+        ByteBuffer header = lease.buffer(); // Get the buffer of the compressed frame
+        byte[] compressed = header.array(); // Get the array of the compressed frame
+
+        header.put((byte) (body.get(body.position()) | Codec.COMPRESSED_FLAG)); // Write the tag
+        Codec.putVarint(header, length); // Write the uncompressed length
+
+        int size = header.position(); // Get the length of the header
+        int limit = header.limit(); // Get the length of the uncompressed frame
+
+        synchronized (this.deflater) {
+            // Check has been closed
+            if (this.closed) {
+                lease.release(); // Return the unused buffer
+
+                throw new IOException("compressor closed"); // Throw exception
+            }
+
+            this.deflater.reset(); // Start a new frame
+            this.deflater.setInput(body.array(), body.arrayOffset() + body.position() + 1, length); // Compress everything following the tag
+            this.deflater.finish(); // The frame is all the input there is
+
+            // Compress until finished, or until the output is no smaller than the input
+            while (!this.deflater.finished() && size < limit) {
+                size += this.deflater.deflate(compressed, size, limit - size); // Compress into the rest of the buffer
+            }
+
+            // Check incompressible
+            if (!this.deflater.finished() || size >= limit) {
+                lease.release(); // Return the unused buffer
+
+                return frame; // Leave the frame as is
+            }
+        }
+
+        header.limit(size).position(0); // Limit the buffer to the compressed frame
+        frame.release(); // Return the uncompressed frame
+
+        return lease; // Return the compressed frame
+    }
+
+    /**
+     * Decompresses the body of a frame, if it was compressed.
+     *
+     * @param frame the body of the frame (released if it is decompressed)
+     * @return the decompressed body, or the given body if it wasn't compressed
+     */
+    public PooledBuffer decompress(PooledBuffer frame) throws IOException {
+        ByteBuffer body = frame.buffer(); // Get the body of the frame
+        int tag = body.get(body.position()) & 0xff; // Read the tag
+
+        // Check wasn't compressed
+        if ((tag & Codec.COMPRESSED_FLAG) == 0) {
+            return frame; // Return the frame as is
+        }
+
+        body.get(); // Skip the tag
+
+        int length = Codec.getVarint(body); // Read the uncompressed length
+
+        // Check is too large
+        if (length < 0 || length >= Codec.MAX_FRAME_SIZE) {
+            throw new IOException(String.format("invalid compressed frame length (%d)", length)); // Throw exception
+        }
+
+        PooledBuffer lease = BufferPool.HEAP.lease(length + 1); // Lease a buffer for the decompressed frame
+
+        try {
+            this.inflate(body, lease.buffer().array(), length + 1, tag); // Decompress the frame
+        } catch (IOException | RuntimeException e) {
+            lease.release(); // Return the unused buffer
+
+            throw e; // Rethrow
+        }
+
+        frame.release(); // Return the compressed frame
+
+        return lease; // Return the decompressed frame
+    }
+
+    /**
+     * Decompresses the rest of a compressed frame.
+     *
+     * @param body the compressed rest of the frame (on the heap)
+     * @param decompressed the buffer to decompress into
+     * @param length the length of the decompressed frame
+     * @param tag the tag of the compressed frame
+     */
+    private void inflate(ByteBuffer body, byte[] decompressed, int length, int tag) throws IOException {
+        decompressed[0] = (byte) (tag & ~Codec.COMPRESSED_FLAG); // Restore the tag
+
+        synchronized (this.inflater) {
+            // Check has been closed
+            if (this.closed) {
+                throw new IOException("compressor closed"); // Throw exception
+            }
+
+            this.inflater.reset(); // Start a new frame
+            this.inflater.setInput(body.array(), body.arrayOffset() + body.position(), body.remaining()); // Decompress the rest of the frame
+
+            try {
+                int size = 1; // Get the number of decompressed bytes
+
+                // Decompress the rest of the frame
+                while (size < length) {
+                    int n = this.inflater.inflate(decompressed, size, length - size); // Decompress into the rest of the frame
+
+                    // Check made no progress
+                    if (n == 0) {
+                        throw new IOException(String.format("compressed frame ended %d bytes short", length - size)); // Throw exception
+                    }
+
+                    size += n; // Count the decompressed bytes
+                }
+
+                // Check the deflate stream continues past the advertised length
+                if (!this.inflater.finished() && this.inflater.inflate(this.probe) != 0) {
+                    throw new IOException("compressed frame is longer than advertised"); // Throw exception
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed frame", e); // Throw exception
+            }
+
+            // Check didn't reach the end of the deflate stream
+            if (!this.inflater.finished()) {
+                throw new IOException("compressed frame is truncated"); // Throw exception
+            }
+        }
+    }
+
+    /**
+     * Releases the native resources held by the compressor.
+     */
+    public void close() {
+        this.closed = true; // Refuse further frames
+
+        synchronized (this.deflater) {
+            this.deflater.end(); // Release the deflater
+        }
+
+        synchronized (this.inflater) {
+            this.inflater.end(); // Release the inflater
+        }
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Implements the per-frame compression upgrade.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+package com.dowlandaiello.melon.transport.compress;
@@ -0,0 +1,165 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Implements a lock-free, fixed-capacity queue. Each slot carries a sequence
+ * number telling producers and consumers whether it is free to fill or ready
+ * to take, so neither side ever has to lock the queue.
+ *
+ * @param <E> the type of the queued elements
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class BoundedQueue<E> {
+    /**
+     * The queued elements.
+     */
+    private final AtomicReferenceArray<E> elements;
+
+    /**
+     * The sequence number of each slot.
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * The mask used to map a position onto a slot.
+     */
+    private final int mask;
+
+    /**
+     * The position of the next element to be added.
+     */
+    private final AtomicLong tail;
+
+    /**
+     * The position of the next element to be taken.
+     */
+    private final AtomicLong head;
+
+    /**
+     * Initializes a new queue holding at least the given number of elements.
+     * The capacity is rounded up to the next power of two.
+     *
+     * @param capacity the minimum number of elements the queue can hold
+     */
+    public BoundedQueue(int capacity) {
+        // Check capacity is valid
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("invalid queue capacity: " + capacity); // Throw exception
+        }
+
+        int size = Integer.highestOneBit(capacity); // Get the largest power of two not above the capacity
+
+        // Check need to round up
+        if (size < capacity) {
+            size <<= 1; // Round up to the next power of two
+        }
+
+        this.elements = new AtomicReferenceArray<>(size); // Initialize the slots
+        this.sequences = new AtomicLongArray(size); // Initialize the sequence numbers
+        this.mask = size - 1; // Set mask
+        this.tail = new AtomicLong(); // Initialize the tail
+        this.head = new AtomicLong(); // Initialize the head
+
+        // Mark each of the slots as free for the first lap
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i); // Set the sequence number
+        }
+    }
+
+    /**
+     * Adds an element to the queue if there is room for it.
+     *
+     * @param element the element to add
+     * @return whether or not the element was added
+     */
+    public boolean offer(E element) {
+        // Try until the element is added, or the queue is found full
+        while (true) {
+            long position = this.tail.get(); // Get the position to add at
+            int slot = (int) position & this.mask; // Get the slot of the position
+
+            long diff = this.sequences.get(slot) - position; // Compare the slot's lap with ours
+
+            // Check the slot is free
+            if (diff == 0) {
+                // Check we claimed the slot
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.elements.set(slot, element); // Fill the slot
+                    this.sequences.set(slot, position + 1); // Publish the element to consumers
+
+                    return true; // Added!
+                }
+            } else if (diff < 0) {
+                return false; // The slot is still held from the previous lap, so the queue is full
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest element from the queue.
+     *
+     * @return the taken element, or null if the queue is empty
+     */
+    public E poll() {
+        // Try until an element is taken, or the queue is found empty
+        while (true) {
+            long position = this.head.get(); // Get the position to take from
+            int slot = (int) position & this.mask; // Get the slot of the position
+
+            long diff = this.sequences.get(slot) - (position + 1); // Compare the slot's lap with ours
+
+            // Check the slot has been filled
+            if (diff == 0) {
+                // Check we claimed the slot
+                if (this.head.compareAndSet(position, position + 1)) {
+                    E element = this.elements.getAndSet(slot, null); // Empty the slot
+                    this.sequences.set(slot, position + this.mask + 1); // Free the slot for the next lap
+
+                    return element; // Return the element
+                }
+            } else if (diff < 0) {
+                return null; // The slot hasn't been filled yet, so the queue is empty
+            }
+        }
+    }
+
+    /**
+     * Determines whether or not the queue is empty.
+     *
+     * @return whether or not the queue is empty
+     */
+    public boolean isEmpty() {
+        return this.head.get() >= this.tail.get(); // Return whether or not the head has caught up to the tail
+    }
+
+    /**
+     * Gets the approximate number of queued elements.
+     *
+     * @return the number of queued elements
+     */
+    public int size() {
+        return (int) Math.max(0, this.tail.get() - this.head.get()); // Return the distance between the head and tail
+    }
+
+    /**
+     * Gets the number of elements added to the queue since it was created.
+     *
+     * @return the number of added elements
+     */
+    public long added() {
+        return this.tail.get(); // Return the position of the next element to be added
+    }
+
+    /**
+     * Gets the number of elements the queue can hold.
+     *
+     * @return the capacity of the queue
+     */
+    public int capacity() {
+        return this.mask + 1; // Return the number of slots
+    }
+}
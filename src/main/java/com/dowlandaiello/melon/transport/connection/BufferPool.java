@@ -0,0 +1,353 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implements a shared, size-classed pool of buffers. Each lease is rounded
+ * up to the next power of two between MIN_POOLED_SIZE and MAX_POOLED_SIZE,
+ * and served from a lock-free queue of released buffers of that size, so
+ * steady traffic stops allocating once the pool has warmed up. Larger leases
+ * are allocated on their own, and left to the garbage collector once
+ * released.
+ *
+ * Buffers are handed out as reference-counted leases (see PooledBuffer). A
+ * sample of the leases (or every one of them, with LeakDetection.PARANOID)
+ * is tracked, and reported should it be garbage collected without having
+ * been released.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class BufferPool {
+    /**
+     * Represents how thoroughly leases are tracked for leaks.
+     */
+    public enum LeakDetection {
+        /**
+         * Leases aren't tracked.
+         */
+        DISABLED,
+
+        /**
+         * One in LEAK_SAMPLE_INTERVAL leases is tracked.
+         */
+        SAMPLED,
+
+        /**
+         * Every lease is tracked, along with the stack it was leased from.
+         */
+        PARANOID
+    }
+
+    /**
+     * Represents the tracker of a single lease, which is enqueued once the
+     * lease has been garbage collected.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    static class Leak extends PhantomReference<PooledBuffer> {
+        /**
+         * The pool the lease was taken from.
+         */
+        private final BufferPool pool;
+
+        /**
+         * The capacity of the leased buffer.
+         */
+        private final int capacity;
+
+        /**
+         * The stack the buffer was leased from (null unless paranoid).
+         */
+        private final Throwable site;
+
+        /**
+         * Initializes a new tracker of the given lease.
+         *
+         * @param lease the lease to track
+         * @param pool the pool the lease was taken from
+         * @param site the stack the buffer was leased from (null if not recorded)
+         */
+        private Leak(PooledBuffer lease, BufferPool pool, Throwable site) {
+            super(lease, pool.collected); // Enqueue once the lease is collected
+            this.pool = pool; // Set pool
+            this.capacity = lease.buffer().capacity(); // Set capacity
+            this.site = site; // Set site
+        }
+
+        /**
+         * Stops tracking the lease, since it has been released.
+         */
+        void dismiss() {
+            this.clear(); // Never enqueue the tracker
+            this.pool.tracked.remove(this); // Forget the tracker
+        }
+    }
+
+    /**
+     * The smallest buffer handed out by the pool, in bytes.
+     */
+    public static final int MIN_POOLED_SIZE = 256;
+
+    /**
+     * The largest buffer kept by the pool, in bytes.
+     */
+    public static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    /**
+     * The number of leases per tracked lease when leaks are sampled.
+     */
+    public static final int LEAK_SAMPLE_INTERVAL = 128;
+
+    /**
+     * The most memory kept in released buffers of a single size, in bytes.
+     */
+    private static final int MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The most released buffers kept of a single size.
+     */
+    private static final int MAX_RETAINED_BUFFERS = 1024;
+
+    /**
+     * The shared pool of heap buffers, used wherever bytes are handed to
+     * streams, ciphers or codecs that work on arrays.
+     */
+    public static final BufferPool HEAP = new BufferPool(false);
+
+    /**
+     * The shared pool of direct buffers, used wherever bytes are moved
+     * through a channel, which would otherwise copy heap buffers into
+     * temporary direct buffers of its own.
+     */
+    public static final BufferPool DIRECT = new BufferPool(true);
+
+    /**
+     * Whether or not the pool hands out direct buffers.
+     */
+    private final boolean direct;
+
+    /**
+     * The released buffers of each size class, smallest first.
+     */
+    private final ArrayList<BoundedQueue<ByteBuffer>> classes;
+
+    /**
+     * How thoroughly leases are tracked for leaks.
+     */
+    private volatile LeakDetection leakDetection;
+
+    /**
+     * The queue tracked leases are enqueued on once collected.
+     */
+    private final ReferenceQueue<PooledBuffer> collected;
+
+    /**
+     * The trackers of leases that haven't been released yet.
+     */
+    private final Set<Leak> tracked;
+
+    /**
+     * The number of leases reported as leaked.
+     */
+    private final AtomicLong leaks;
+
+    /**
+     * Initializes a new buffer pool.
+     *
+     * @param direct whether or not the pool should hand out direct buffers
+     */
+    public BufferPool(boolean direct) {
+        this.direct = direct; // Set direct
+        this.classes = new ArrayList<>(); // Initialize the size classes
+        this.leakDetection = LeakDetection.SAMPLED; // Sample leases for leaks by default
+        this.collected = new ReferenceQueue<>(); // Initialize the collected queue
+        this.tracked = ConcurrentHashMap.newKeySet(); // Initialize the tracked set
+        this.leaks = new AtomicLong(); // Nothing has leaked yet
+
+        // Initialize a queue for each size class
+        for (int size = MIN_POOLED_SIZE; size <= MAX_POOLED_SIZE; size <<= 1) {
+            this.classes.add(new BoundedQueue<>(Math.max(2, Math.min(MAX_RETAINED_BUFFERS, MAX_RETAINED_BYTES / size)))); // Keep a bounded number of buffers of the size
+        }
+    }
+
+    /**
+     * Determines whether or not the pool hands out direct buffers.
+     *
+     * @return whether or not the pool's buffers are direct
+     */
+    public boolean isDirect() {
+        return this.direct; // Return whether or not the pool is direct
+    }
+
+    /**
+     * Sets how thoroughly leases are tracked for leaks.
+     *
+     * @param leakDetection the level of leak detection
+     */
+    public void setLeakDetection(LeakDetection leakDetection) {
+        this.leakDetection = leakDetection; // Set leak detection
+    }
+
+    /**
+     * Gets how thoroughly leases are tracked for leaks.
+     *
+     * @return the level of leak detection
+     */
+    public LeakDetection getLeakDetection() {
+        return this.leakDetection; // Return leak detection
+    }
+
+    /**
+     * Gets the number of leases reported as leaked so far.
+     *
+     * @return the number of leaked leases
+     */
+    public long getLeakCount() {
+        this.reportLeaks(); // Report anything collected since the last lease
+
+        return this.leaks.get(); // Return the number of leaked leases
+    }
+
+    /**
+     * Gets the number of released buffers kept by the pool.
+     *
+     * @return the number of pooled buffers
+     */
+    public int getPooledCount() {
+        int count = 0; // The number of pooled buffers
+
+        // Count the buffers of each size class
+        for (BoundedQueue<ByteBuffer> queue : this.classes) {
+            count += queue.size(); // Count the buffers
+        }
+
+        return count; // Return the number of pooled buffers
+    }
+
+    /**
+     * Leases a buffer of at least the given length, positioned at zero and
+     * limited to the length. The lease must be released once it is no
+     * longer needed.
+     *
+     * @param length the number of bytes needed
+     * @return the lease
+     */
+    public PooledBuffer lease(int length) {
+        // Check length is valid
+        if (length < 0) {
+            throw new IllegalArgumentException("invalid buffer length: " + length); // Throw exception
+        }
+
+        ByteBuffer buffer; // The buffer to lease
+
+        // Check is small enough to be pooled
+        if (length <= MAX_POOLED_SIZE) {
+            int sizeClass = classOf(length); // Get the size class of the length
+
+            buffer = this.classes.get(sizeClass).poll(); // Take a released buffer of the size, if any
+
+            // Check no buffer of the size has been released
+            if (buffer == null) {
+                buffer = this.allocate(MIN_POOLED_SIZE << sizeClass); // Allocate a buffer of the size
+            }
+
+            buffer.clear(); // Forget whatever the last lease left behind
+        } else {
+            buffer = this.allocate(length); // Allocate a buffer just for the lease
+        }
+
+        buffer.limit(length); // Limit the buffer to the leased length
+
+        PooledBuffer lease = new PooledBuffer(this, buffer); // Initialize the lease
+
+        LeakDetection leakDetection = this.leakDetection; // Get the level of leak detection
+
+        // Check leases are tracked at all
+        if (leakDetection != LeakDetection.DISABLED) {
+            this.reportLeaks(); // Report anything collected since the last lease
+
+            // Check should track the lease
+            if (leakDetection == LeakDetection.PARANOID || ThreadLocalRandom.current().nextInt(LEAK_SAMPLE_INTERVAL) == 0) {
+                Leak leak = new Leak(lease, this, leakDetection == LeakDetection.PARANOID ? new Throwable("buffer leased here") : null); // Track the lease
+                this.tracked.add(leak); // Keep the tracker reachable
+
+                lease.track(leak); // Dismiss the tracker once released
+            }
+        }
+
+        return lease; // Return the lease
+    }
+
+    /**
+     * Returns a released buffer to the pool, unless it isn't of a pooled
+     * size, or the pool already keeps enough buffers of its size.
+     *
+     * @param buffer the released buffer
+     */
+    void recycle(ByteBuffer buffer) {
+        int capacity = buffer.capacity(); // Get the capacity of the buffer
+
+        // Check wasn't allocated by the pool
+        if (capacity > MAX_POOLED_SIZE || capacity != MIN_POOLED_SIZE << classOf(capacity)) {
+            return; // Leave the buffer to the garbage collector
+        }
+
+        this.classes.get(classOf(capacity)).offer(buffer); // Keep the buffer, if there's room
+    }
+
+    /**
+     * Reports each tracked lease that has been garbage collected without
+     * having been released.
+     */
+    private void reportLeaks() {
+        Reference<? extends PooledBuffer> collected; // The tracker of a collected lease
+
+        // Report each collected lease
+        while ((collected = this.collected.poll()) != null) {
+            Leak leak = (Leak) collected; // Get the tracker
+
+            // Check hasn't been reported yet
+            if (this.tracked.remove(leak)) {
+                this.leaks.incrementAndGet(); // Count the leak
+
+                new IllegalStateException(String.format("pooled buffer (%d bytes) was garbage collected without being released%s", leak.capacity, leak.site == null ? "; use LeakDetection.PARANOID to find where it was leased" : ""), leak.site).printStackTrace(); // Log the leak
+            }
+        }
+    }
+
+    /**
+     * Allocates a new buffer of the given capacity.
+     *
+     * @param capacity the capacity of the buffer
+     * @return the buffer
+     */
+    private ByteBuffer allocate(int capacity) {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity); // Return the buffer
+    }
+
+    /**
+     * Gets the size class of the given length, i.e. the power of two (above
+     * MIN_POOLED_SIZE) its buffers are rounded up to.
+     *
+     * @param length the length of the buffer
+     * @return the index of the size class
+     */
+    private static int classOf(int length) {
+        // Check fits the smallest class
+        if (length <= MIN_POOLED_SIZE) {
+            return 0; // Use the smallest class
+        }
+
+        return (32 - Integer.numberOfLeadingZeros(length - 1)) - Integer.numberOfTrailingZeros(MIN_POOLED_SIZE); // Return the index of the next power of two
+    }
+}
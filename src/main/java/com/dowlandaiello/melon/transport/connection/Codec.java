@@ -0,0 +1,909 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.common.CommonTypes.MultiAddress;
+import com.dowlandaiello.melon.transport.Upgrade;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Implements the binary wire format used to frame messages between peers.
+ * Each frame consists of a varint length, followed by a single type tag and
+ * the tag-specific payload. No class descriptors are written, and decoding
+ * doesn't rely on reflection. The codec only knows the payloads of the
+ * transport's own messages; each layer built on top of it registers the
+ * codecs of its own message types (see register).
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public final class Codec {
+    /**
+     * The maximum size of a single frame.
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The bit set in a frame's tag when the frame carries the raw bytes of a
+     * message, rather than an encoded object.
+     */
+    private static final int RAW_FLAG = 0x80;
+
+    /**
+     * The bit set in a frame's tag when the rest of the frame has been
+     * compressed (see FrameCompressor).
+     */
+    public static final int COMPRESSED_FLAG = 0x40;
+
+    /**
+     * The message types, indexed by tag (cached, since values() copies).
+     */
+    private static final Message.Type[] TYPES = Message.Type.values();
+
+    /**
+     * The encoders registered for each message type, indexed by tag.
+     */
+    private static final AtomicReferenceArray<Encoder> ENCODERS = new AtomicReferenceArray<>(TYPES.length);
+
+    /**
+     * The decoders registered for each message type, indexed by tag.
+     */
+    private static final AtomicReferenceArray<Decoder> DECODERS = new AtomicReferenceArray<>(TYPES.length);
+
+    /**
+     * Represents the encoder of the contents of a particular message type.
+     */
+    @FunctionalInterface
+    public interface Encoder {
+        /**
+         * Writes the contents of a message.
+         *
+         * @param writer the writer to write to
+         * @param contents the contents of the message
+         */
+        void write(Writer writer, Object contents) throws IOException;
+    }
+
+    /**
+     * Represents the decoder of the contents of a particular message type.
+     */
+    @FunctionalInterface
+    public interface Decoder {
+        /**
+         * Reads the contents of a message.
+         *
+         * @param body the rest of the frame's body
+         * @param lease the lease of the frame (null if it isn't pooled)
+         * @return the decoded contents
+         */
+        Serializable read(ByteBuffer body, PooledBuffer lease) throws IOException;
+    }
+
+    /**
+     * Represents an upgrade advertised by a remote peer. Only the type of the
+     * upgrade travels on the wire.
+     */
+    private static class RemoteUpgrade implements Upgrade {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The type of the upgrade.
+         */
+        private final Type type;
+
+        /**
+         * Initializes a new remote upgrade of the given type.
+         *
+         * @param type the type of the upgrade
+         */
+        private RemoteUpgrade(Type type) {
+            this.type = type; // Set type
+        }
+
+        /**
+         * Gets the upgrade type of an upgrade.
+         *
+         * @return the type of the upgrade
+         */
+        public Type getType() {
+            return this.type; // Return the type
+        }
+
+        /**
+         * Remote upgrades have no local configuration.
+         *
+         * @param address the peer address to get a config for
+         * @return null
+         */
+        public Object getConfig(String address) {
+            return null; // No config
+        }
+
+        /**
+         * Converts the upgrade to a string.
+         *
+         * @return the string representation of the upgrade
+         */
+        public String toString() {
+            return this.type.name().toLowerCase(); // Return the name of the type
+        }
+    }
+
+    /**
+     * Represents a growable buffer that encoded payloads are written into,
+     * leased from the shared heap pool.
+     */
+    public static final class Writer {
+        /**
+         * The lease of the buffer.
+         */
+        private PooledBuffer lease;
+
+        /**
+         * The bytes written so far (the array of the leased buffer).
+         */
+        private byte[] buffer;
+
+        /**
+         * The number of bytes written so far.
+         */
+        private int size;
+
+        /**
+         * Initializes a new writer, leaving room for a frame header.
+         */
+        private Writer() {
+            this.lease = BufferPool.HEAP.lease(BufferPool.MIN_POOLED_SIZE); // Most frames are small
+            this.buffer = this.lease.buffer().array(); // Write straight into the leased array
+            this.size = 5; // Leave room for the longest possible length prefix
+        }
+
+        /**
+         * Makes sure there's room for n more bytes.
+         *
+         * @param n the number of bytes about to be written
+         */
+        private void ensure(int n) {
+            // Check not enough room
+            if (this.size + n > this.buffer.length) {
+                PooledBuffer grown = BufferPool.HEAP.lease(Math.max(this.buffer.length * 2, this.size + n)); // Lease a larger buffer
+                System.arraycopy(this.buffer, 0, grown.buffer().array(), 0, this.size); // Copy the written bytes
+
+                this.lease.release(); // Return the smaller buffer
+                this.lease = grown; // Use the larger buffer
+                this.buffer = grown.buffer().array(); // Write straight into the leased array
+            }
+        }
+
+        /**
+         * Writes a single byte.
+         *
+         * @param b the byte to write
+         */
+        public void putByte(int b) {
+            this.ensure(1); // Make room
+            this.buffer[this.size++] = (byte) b; // Write the byte
+        }
+
+        /**
+         * Writes an unsigned varint.
+         *
+         * @param value the value to write
+         */
+        public void putVarint(int value) {
+            this.ensure(5); // Make room
+
+            // Write 7 bits at a time
+            while ((value & ~0x7f) != 0) {
+                this.buffer[this.size++] = (byte) ((value & 0x7f) | 0x80); // Write the low bits, with the continuation bit
+                value >>>= 7; // Move to the next bits
+            }
+
+            this.buffer[this.size++] = (byte) value; // Write the last bits
+        }
+
+        /**
+         * Writes a length-prefixed byte array (a zero length is used for null).
+         *
+         * @param b the bytes to write
+         */
+        public void putBytes(byte[] b) {
+            // Check is null
+            if (b == null) {
+                this.putVarint(0); // Write an empty array
+
+                return; // Done!
+            }
+
+            this.putVarint(b.length); // Write the length
+            this.ensure(b.length); // Make room
+            System.arraycopy(b, 0, this.buffer, this.size, b.length); // Write the bytes
+
+            this.size += b.length; // Move past the bytes
+        }
+
+        /**
+         * Writes a byte array as-is, without a length prefix.
+         *
+         * @param b the bytes to write
+         */
+        public void putRaw(byte[] b) {
+            this.ensure(b.length); // Make room
+            System.arraycopy(b, 0, this.buffer, this.size, b.length); // Write the bytes
+
+            this.size += b.length; // Move past the bytes
+        }
+
+        /**
+         * Writes the remaining bytes of a buffer as-is, without a length
+         * prefix or consuming them.
+         *
+         * @param b the bytes to write
+         */
+        public void putRaw(ByteBuffer b) {
+            this.ensure(b.remaining()); // Make room
+            b.duplicate().get(this.buffer, this.size, b.remaining()); // Write the bytes
+
+            this.size += b.remaining(); // Move past the bytes
+        }
+
+        /**
+         * Writes a length-prefixed UTF-8 string.
+         *
+         * @param s the string to write
+         */
+        public void putString(String s) {
+            this.putBytes(s.getBytes(StandardCharsets.UTF_8)); // Write the encoded string
+        }
+
+        /**
+         * Writes a multiaddress in its binary form, or as a string (after a
+         * zero byte, which no binary form starts with) if it has none.
+         *
+         * @param address the address to write
+         */
+        public void putAddress(String address) {
+            try {
+                MultiAddress parsed = MultiAddress.parse(address); // Parse the address (usually interned)
+                int length = parsed.getBinaryLength(); // Get the length of the binary form
+
+                // Check has a binary form
+                if (length > 0) {
+                    this.ensure(length); // Make room
+                    parsed.writeBinary(ByteBuffer.wrap(this.buffer, this.size, length)); // Write the binary form in place
+
+                    this.size += length; // Move past the address
+
+                    return; // Done!
+                }
+            } catch (MultiAddress.InvalidMultiAddressException e) {
+                // Fall back to the string form
+            }
+
+            this.putByte(0); // Mark the address as a string
+            this.putString(address); // Write the address
+        }
+
+        /**
+         * Writes the length prefix in front of the payload, and hands over
+         * the lease of the finished frame.
+         *
+         * @return the frame
+         */
+        private PooledBuffer toFrame() {
+            int length = this.size - 5; // Get the length of the body
+            int start = 5 - varintSize(length); // Get the start of the length prefix
+
+            ByteBuffer frame = this.lease.buffer(); // Get the leased buffer
+            frame.limit(this.size).position(start); // Limit the buffer to the frame
+            Codec.putVarint(frame.duplicate(), length); // Write the length prefix
+
+            return this.lease; // Return the frame
+        }
+    }
+
+    /**
+     * Prevents instantiation.
+     */
+    private Codec() {
+    }
+
+    /**
+     * Registers the encoder and decoder of a message type, replacing any
+     * registered before. Layers register their codecs before sending or
+     * receiving any of their messages.
+     *
+     * @param type the message type
+     * @param encoder the encoder of the type's contents
+     * @param decoder the decoder of the type's contents
+     */
+    public static void register(Message.Type type, Encoder encoder, Decoder decoder) {
+        ENCODERS.set(type.ordinal(), encoder); // Set the encoder
+        DECODERS.set(type.ordinal(), decoder); // Set the decoder
+    }
+
+    /**
+     * Encodes a message into a frame.
+     *
+     * @param message the message to encode
+     * @return the frame, ready to be written
+     */
+    public static ByteBuffer encode(Message message) throws IOException {
+        PooledBuffer frame = encodePooled(message); // Encode the message
+
+        try {
+            ByteBuffer copy = ByteBuffer.allocate(frame.buffer().remaining()); // Initialize a buffer the caller can keep
+            copy.put(frame.buffer()).flip(); // Copy the frame
+
+            return copy; // Return the frame
+        } finally {
+            frame.release(); // Return the leased frame
+        }
+    }
+
+    /**
+     * Encodes a message into a frame leased from the shared heap pool. The
+     * frame must be released once it has been written.
+     *
+     * @param message the message to encode
+     * @return the frame, ready to be written
+     */
+    public static PooledBuffer encodePooled(Message message) throws IOException {
+        Writer writer = new Writer(); // Initialize a writer for the frame
+
+        try {
+            write(writer, message); // Encode the message
+        } catch (IOException | RuntimeException e) {
+            writer.lease.release(); // Return the unfinished frame
+
+            throw e; // Rethrow
+        }
+
+        return writer.toFrame(); // Return the frame
+    }
+
+    /**
+     * Encodes a message into the given writer.
+     *
+     * @param writer the writer to encode into
+     * @param message the message to encode
+     */
+    private static void write(Writer writer, Message message) throws IOException {
+        // Check has raw bytes
+        if (message.bytes != null) {
+            writer.putByte(message.type.ordinal() | RAW_FLAG); // Write the tag
+            writer.putBytes(message.bytes); // Write the raw bytes
+
+            return; // Done!
+        }
+
+        writer.putByte(message.type.ordinal()); // Write the tag
+
+        switch (message.type) {
+            case NEGOTIATION:
+                Negotiation negotiation = (Negotiation) message.contents; // Get the negotiation
+
+                writer.putBytes(negotiation.publicKey != null ? negotiation.publicKey.getEncoded() : null); // Write the public key
+
+                writer.putVarint(negotiation.availableUpgrades != null ? negotiation.availableUpgrades.size() : 0); // Write the number of upgrades
+
+                // Check has upgrades
+                if (negotiation.availableUpgrades != null) {
+                    // Write the type of each upgrade
+                    for (Upgrade upgrade : negotiation.availableUpgrades) {
+                        writer.putByte(upgrade.getType().ordinal()); // Write the type
+                    }
+                }
+
+                writer.putBytes(negotiation.ephemeralKey != null ? negotiation.ephemeralKey.getEncoded() : null); // Write the ephemeral key
+
+                // Check offers compression algorithms
+                if (negotiation.compressionAlgorithms != null && negotiation.compressionAlgorithms.size() != 0) {
+                    writer.putVarint(negotiation.compressionAlgorithms.size()); // Write the number of algorithms
+
+                    // Write the name of each algorithm
+                    for (String algorithm : negotiation.compressionAlgorithms) {
+                        writer.putString(algorithm); // Write the name
+                    }
+                }
+
+                break;
+            default:
+                Encoder encoder = ENCODERS.get(message.type.ordinal()); // Get the encoder registered for the type
+
+                // Check no layer has registered an encoder for the type
+                if (encoder == null) {
+                    throw new IOException(String.format("no codec for message type %s", message.type)); // Throw exception
+                }
+
+                encoder.write(writer, message.contents); // Write the contents
+        }
+    }
+
+    /**
+     * Decodes the body of a frame (everything following the length prefix).
+     *
+     * @param body the body of the frame
+     * @return the decoded message
+     */
+    public static Message decode(ByteBuffer body) throws IOException {
+        return decode(body, null); // Decode the unpooled frame
+    }
+
+    /**
+     * Decodes the body of a pooled frame. The frame is still released by the
+     * caller: a stream chunk, which shares the frame's data, holds a
+     * reference of its own, released once the chunk has been consumed.
+     *
+     * @param body the body of the frame
+     * @return the decoded message
+     */
+    public static Message decode(PooledBuffer body) throws IOException {
+        return decode(body.buffer(), body); // Decode the frame
+    }
+
+    /**
+     * Gets the type of the message in the body of a frame, without decoding
+     * the message or moving the position of the body.
+     *
+     * @param body the body of the frame
+     * @return the type of the message, or null if the tag is unknown
+     */
+    public static Message.Type peekType(ByteBuffer body) {
+        // Check the body is empty
+        if (!body.hasRemaining()) {
+            return null; // No tag
+        }
+
+        int tag = (body.get(body.position()) & 0xff) & ~RAW_FLAG; // Peek the tag
+
+        return tag < TYPES.length ? TYPES[tag] : null; // Return the type of the message
+    }
+
+    /**
+     * Decodes the body of a frame.
+     *
+     * @param body the body of the frame
+     * @param lease the lease of the frame (null if it isn't pooled)
+     * @return the decoded message
+     */
+    private static Message decode(ByteBuffer body, PooledBuffer lease) throws IOException {
+        try {
+            int tag = body.get() & 0xff; // Read the tag
+
+            // Check unknown tag
+            if ((tag & ~RAW_FLAG) >= TYPES.length) {
+                throw new IOException(String.format("unknown frame tag (%d)", tag)); // Throw exception
+            }
+
+            Message.Type type = TYPES[tag & ~RAW_FLAG]; // Get the type of the message
+
+            // Check has raw bytes
+            if ((tag & RAW_FLAG) != 0) {
+                return new Message(getBytes(body), type); // Return the raw message
+            }
+
+            switch (type) {
+                case NEGOTIATION:
+                    byte[] encodedKey = getBytes(body); // Read the public key
+
+                    int numUpgrades = getCount(body); // Read the number of upgrades
+                    ArrayList<Upgrade> upgrades = new ArrayList<>(numUpgrades); // Initialize the upgrades list
+
+                    // Read each of the upgrades
+                    for (int i = 0; i < numUpgrades; i++) {
+                        int upgradeType = body.get() & 0xff; // Read the type
+
+                        // Check is a type we know of
+                        if (upgradeType < Upgrade.Type.values().length) {
+                            upgrades.add(new RemoteUpgrade(Upgrade.Type.values()[upgradeType])); // Add the upgrade
+                        }
+                    }
+
+                    byte[] encodedEphemeralKey = body.hasRemaining() ? getBytes(body) : new byte[0]; // Read the ephemeral key
+
+                    ArrayList<String> compressionAlgorithms = null; // Older peers don't offer any compression algorithms
+
+                    // Check offers compression algorithms
+                    if (body.hasRemaining()) {
+                        int numAlgorithms = getCount(body); // Read the number of algorithms
+                        compressionAlgorithms = new ArrayList<>(numAlgorithms); // Initialize the algorithms list
+
+                        // Read each of the algorithms
+                        for (int i = 0; i < numAlgorithms; i++) {
+                            compressionAlgorithms.add(getString(body)); // Read the name
+                        }
+                    }
+
+                    return new Message(new Negotiation(encodedEphemeralKey.length != 0 ? decodePublicKey(encodedEphemeralKey) : null, upgrades, encodedKey.length != 0 ? decodePublicKey(encodedKey) : null, compressionAlgorithms), type); // Return the negotiation
+                default:
+                    Decoder decoder = DECODERS.get(type.ordinal()); // Get the decoder registered for the type
+
+                    // Check no layer has registered a decoder for the type
+                    if (decoder == null) {
+                        throw new IOException(String.format("no codec for frame type %s", type)); // Throw exception
+                    }
+
+                    return new Message(decoder.read(body, lease), type); // Return the decoded message
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("truncated frame", e); // Throw exception
+        }
+    }
+
+    /**
+     * Writes a message to the given stream as a single frame.
+     *
+     * @param out the stream to write to
+     * @param message the message to write
+     */
+    public static void writeFrame(OutputStream out, Message message) throws IOException {
+        PooledBuffer frame = encodePooled(message); // Encode the message
+
+        try {
+            ByteBuffer buffer = frame.buffer(); // Get the frame's buffer
+
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()); // Write the frame
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Writes the body of a frame (everything following the length prefix) to
+     * the given stream as a single frame.
+     *
+     * @param out the stream to write to
+     * @param body the body of the frame
+     */
+    public static void writeBody(OutputStream out, ByteBuffer body) throws IOException {
+        PooledBuffer frame = BufferPool.HEAP.lease(varintSize(body.remaining()) + body.remaining()); // Lease a buffer for the frame
+
+        try {
+            ByteBuffer buffer = frame.buffer(); // Get the frame's buffer
+            putVarint(buffer, body.remaining()); // Write the length prefix
+            buffer.put(body.duplicate()); // Write the body
+
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position()); // Write the frame
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single frame from the given stream.
+     *
+     * @param in the stream to read from
+     * @return the decoded message
+     */
+    public static Message readFrame(InputStream in) throws IOException {
+        return decode(readBody(in)); // Return the decoded message
+    }
+
+    /**
+     * Reads the body of a single frame from the given stream, without
+     * decoding it.
+     *
+     * @param in the stream to read from
+     * @return the body of the frame
+     */
+    public static ByteBuffer readBody(InputStream in) throws IOException {
+        int length = readVarint(in); // Read the length of the frame
+
+        // Check frame too large
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException(String.format("invalid frame length (%d)", length)); // Throw exception
+        }
+
+        byte[] body = new byte[length]; // Initialize a buffer for the body
+        new DataInputStream(in).readFully(body); // Read the body
+
+        return ByteBuffer.wrap(body); // Return the body
+    }
+
+    /**
+     * Reads the body of a single frame from the given stream into a buffer
+     * leased from the shared heap pool. The body must be released once it
+     * has been handled.
+     *
+     * @param in the stream to read from
+     * @return the body of the frame
+     */
+    public static PooledBuffer readPooledBody(InputStream in) throws IOException {
+        int length = readVarint(in); // Read the length of the frame
+
+        // Check frame too large
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException(String.format("invalid frame length (%d)", length)); // Throw exception
+        }
+
+        PooledBuffer body = BufferPool.HEAP.lease(length); // Lease a buffer for the body
+
+        try {
+            readFully(in, body.buffer().array(), 0, length); // Read the body
+        } catch (IOException e) {
+            body.release(); // Return the buffer
+
+            throw e; // Rethrow
+        }
+
+        return body; // Return the body
+    }
+
+    /**
+     * Reads exactly len bytes from the given stream.
+     *
+     * @param in the stream to read from
+     * @param b the buffer to read into
+     * @param off the offset to start writing at
+     * @param len the number of bytes to read
+     */
+    public static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        // Read until the bytes have all arrived
+        while (len > 0) {
+            int n = in.read(b, off, len); // Read some bytes
+
+            // Check end of stream
+            if (n < 0) {
+                throw new EOFException("connection closed mid-frame"); // Throw exception
+            }
+
+            off += n; // Move past the read bytes
+            len -= n; // Count the read bytes
+        }
+    }
+
+    /**
+     * Reads an unsigned varint from the given stream.
+     *
+     * @param in the stream to read from
+     * @return the read value
+     */
+    public static int readVarint(InputStream in) throws IOException {
+        int value = 0; // The value read so far
+
+        // Read up to 5 groups of 7 bits
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read(); // Read a byte
+
+            // Check end of stream
+            if (b < 0) {
+                throw new EOFException("connection closed mid-frame"); // Throw exception
+            }
+
+            // Check the last group overflows an int
+            if (shift == 28 && (b & 0x70) != 0) {
+                throw new IOException("malformed varint"); // Throw exception
+            }
+
+            value |= (b & 0x7f) << shift; // Add the bits
+
+            // Check is the last byte
+            if ((b & 0x80) == 0) {
+                return value; // Return the value
+            }
+        }
+
+        throw new IOException("malformed varint"); // Throw exception
+    }
+
+    /**
+     * Attempts to read an unsigned varint from the given buffer, leaving its
+     * position untouched if the varint hasn't fully arrived yet.
+     *
+     * @param buffer the buffer to read from (in read mode)
+     * @return the read value, or -1 if the varint is incomplete
+     */
+    public static int tryReadVarint(ByteBuffer buffer) throws IOException {
+        int start = buffer.position(); // Remember where the varint starts
+        int value = 0; // The value read so far
+
+        // Read up to 5 groups of 7 bits
+        for (int shift = 0; shift < 35; shift += 7) {
+            // Check the varint is incomplete
+            if (!buffer.hasRemaining()) {
+                buffer.position(start); // Rewind
+
+                return -1; // Wait for more data
+            }
+
+            int b = buffer.get() & 0xff; // Read a byte
+
+            // Check the last group overflows an int
+            if (shift == 28 && (b & 0x70) != 0) {
+                throw new IOException("malformed varint"); // Throw exception
+            }
+
+            value |= (b & 0x7f) << shift; // Add the bits
+
+            // Check is the last byte
+            if ((b & 0x80) == 0) {
+                return value; // Return the value
+            }
+        }
+
+        throw new IOException("malformed varint"); // Throw exception
+    }
+
+    /**
+     * Gets the number of bytes needed to encode the given value as a varint.
+     *
+     * @param value the value to encode
+     * @return the size of the encoded value
+     */
+    public static int varintSize(int value) {
+        int size = 1; // Every varint takes at least one byte
+
+        // Count the remaining groups of 7 bits
+        while ((value & ~0x7f) != 0) {
+            size++; // Add a byte
+            value >>>= 7; // Move to the next bits
+        }
+
+        return size; // Return the size
+    }
+
+    /**
+     * Writes an unsigned varint to the given buffer.
+     *
+     * @param buffer the buffer to write to
+     * @param value the value to write
+     */
+    public static void putVarint(ByteBuffer buffer, int value) {
+        // Write 7 bits at a time
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80)); // Write the low bits, with the continuation bit
+            value >>>= 7; // Move to the next bits
+        }
+
+        buffer.put((byte) value); // Write the last bits
+    }
+
+    /**
+     * Reads an unsigned varint from the given buffer.
+     *
+     * @param buffer the buffer to read from
+     * @return the read value
+     */
+    public static int getVarint(ByteBuffer buffer) throws IOException {
+        int value = tryReadVarint(buffer); // Read the varint
+
+        // Check incomplete
+        if (value < 0) {
+            throw new IOException("truncated varint"); // Throw exception
+        }
+
+        return value; // Return the value
+    }
+
+    /**
+     * Reads the length of a length-prefixed field from the given buffer,
+     * rejecting lengths that run past the end of the buffer, so nothing is
+     * ever allocated from a length the frame can't back.
+     *
+     * @param buffer the buffer to read from
+     * @return the read length
+     */
+    private static int getLength(ByteBuffer buffer) throws IOException {
+        int length = getVarint(buffer); // Read the length
+
+        // Check runs past the end of the frame
+        if (length > buffer.remaining()) {
+            throw new IOException(String.format("field length (%d) runs past the end of the frame (%d bytes left)", length, buffer.remaining())); // Throw exception
+        }
+
+        return length; // Return the length
+    }
+
+    /**
+     * Reads the number of elements in a list from the given buffer. Every
+     * element takes at least one byte, so counts larger than the rest of the
+     * buffer are rejected.
+     *
+     * @param buffer the buffer to read from
+     * @return the read count
+     */
+    public static int getCount(ByteBuffer buffer) throws IOException {
+        return getCount(buffer, 0); // Read the count
+    }
+
+    /**
+     * Reads the number of elements in a list from the given buffer, where the
+     * count is written with the given offset added to it.
+     *
+     * @param buffer the buffer to read from
+     * @param offset the amount added to the count when it was written
+     * @return the read count (including the offset)
+     */
+    public static int getCount(ByteBuffer buffer, int offset) throws IOException {
+        int count = getVarint(buffer); // Read the count
+
+        // Check more elements than the frame has bytes left
+        if (count - offset > buffer.remaining()) {
+            throw new IOException(String.format("element count (%d) runs past the end of the frame (%d bytes left)", count - offset, buffer.remaining())); // Throw exception
+        }
+
+        return count; // Return the count
+    }
+
+    /**
+     * Reads a length-prefixed byte array from the given buffer.
+     *
+     * @param buffer the buffer to read from
+     * @return the read bytes
+     */
+    public static byte[] getBytes(ByteBuffer buffer) throws IOException {
+        byte[] b = new byte[getLength(buffer)]; // Initialize a buffer for the bytes
+        buffer.get(b); // Read the bytes
+
+        return b; // Return the bytes
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 string from the given buffer.
+     *
+     * @param buffer the buffer to read from
+     * @return the read string
+     */
+    public static String getString(ByteBuffer buffer) throws IOException {
+        int length = getLength(buffer); // Read the length of the string
+
+        // Check the buffer isn't backed by an accessible array (direct or read-only)
+        if (!buffer.hasArray()) {
+            byte[] b = new byte[length]; // Initialize a buffer for the string
+            buffer.get(b); // Copy the string
+
+            return new String(b, StandardCharsets.UTF_8); // Return the string
+        }
+
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8); // Decode the string without copying
+        buffer.position(buffer.position() + length); // Move past the string
+
+        return s; // Return the string
+    }
+
+    /**
+     * Reads a multiaddress written by Writer.putAddress from the given buffer.
+     *
+     * @param buffer the buffer to read from
+     * @return the canonical string form of the address
+     */
+    public static String getAddress(ByteBuffer buffer) throws IOException {
+        // Check is in string form
+        if (buffer.get(buffer.position()) == 0) {
+            buffer.get(); // Skip the marker
+
+            return getString(buffer); // Read the address
+        }
+
+        try {
+            return MultiAddress.readBinary(buffer).toString(); // Read the address
+        } catch (MultiAddress.InvalidMultiAddressException e) {
+            throw new IOException("malformed multiaddress", e); // Throw exception
+        }
+    }
+
+    /**
+     * Decodes an X.509-encoded elliptic curve public key.
+     *
+     * @param encoded the encoded key
+     * @return the decoded key
+     */
+    private static Key decodePublicKey(byte[] encoded) throws IOException {
+        try {
+            return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded)); // Return the decoded key
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IOException("peer sent an invalid public key", e); // Throw exception
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package com.dowlandaiello.melon.transport.connection;
 
+import com.dowlandaiello.melon.common.CommonTypes;
+
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Represents a generic transport connection.
@@ -54,6 +58,60 @@ public interface Connection {
     Object readObject()
             throws IOException, ClassNotFoundException, IllegalBlockSizeException, BadPaddingException;
 
+    /**
+     * Writes a message to the connection as a single binary frame.
+     *
+     * @param message the message to write
+     */
+    void writeMessage(CommonTypes.Message message) throws IOException;
+
+    /**
+     * Reads a single binary frame from the connection.
+     *
+     * @return the read message
+     */
+    CommonTypes.Message readMessage() throws IOException;
+
+    /**
+     * Reads a single binary frame from the connection, leaving it to the
+     * caller to decode it (see Codec.decode).
+     *
+     * @return the body of the read frame
+     */
+    ByteBuffer readFrame() throws IOException;
+
+    /**
+     * Reads a single binary frame from the connection into a buffer leased
+     * from the shared heap pool (see BufferPool), leaving it to the caller
+     * to decode it (see Codec.decode) and release it.
+     *
+     * @return the body of the read frame
+     */
+    PooledBuffer readPooledFrame() throws IOException;
+
+    /**
+     * Writes a region of a file to the connection as raw bytes, without
+     * reading it onto the heap. The peer reads the region with readFile, so
+     * its length has to be agreed on beforehand (e.g. in a message sent
+     * ahead of it). The file must stay open until the connection has been
+     * flushed.
+     *
+     * @param file the file to write from
+     * @param position the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    void writeFile(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Reads exactly count raw bytes from the connection into a region of a
+     * file. The region must start no later than the end of the file.
+     *
+     * @param file the file to read into
+     * @param position the offset of the first byte to read into
+     * @param count the number of bytes to read
+     */
+    void readFile(FileChannel file, long position, long count) throws IOException;
+
     /**
      * Flushes the connection.
      */
@@ -64,6 +122,14 @@ public interface Connection {
      */
     void close() throws IOException;
 
+    /**
+     * Determines whether or not the connection has been closed, by either
+     * peer.
+     *
+     * @return whether or not the connection is closed
+     */
+    boolean isClosed();
+
     /**
      * Get the multiaddress of the connected peer.
      *
@@ -0,0 +1,226 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a single selector thread servicing the reads and writes of
+ * many non-blocking connections.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class EventLoop extends Thread {
+    /**
+     * Represents a fixed set of event loops that connections are spread
+     * across.
+     */
+    public static class Group {
+        /**
+         * The event loops in the group.
+         */
+        private final EventLoop[] loops;
+
+        /**
+         * The index of the next loop to hand out.
+         */
+        private final AtomicInteger next;
+
+        /**
+         * Initializes a new event loop group with one loop per available core.
+         */
+        public Group() throws IOException {
+            this(Runtime.getRuntime().availableProcessors()); // Size the group to the number of cores
+        }
+
+        /**
+         * Initializes a new event loop group with the given number of loops.
+         *
+         * @param size the number of event loops to start
+         */
+        public Group(int size) throws IOException {
+            this.loops = new EventLoop[Math.max(1, size)]; // Initialize the loops array
+            this.next = new AtomicInteger(); // Start handing out loops from the first one
+
+            // Start each of the loops
+            for (int i = 0; i < this.loops.length; i++) {
+                this.loops[i] = new EventLoop(String.format("melon-event-loop-%d", i)); // Initialize the loop
+                this.loops[i].start(); // Start the loop
+            }
+        }
+
+        /**
+         * Gets the next event loop in the group, in round-robin order.
+         *
+         * @return the next event loop
+         */
+        public EventLoop next() {
+            return this.loops[Math.floorMod(this.next.getAndIncrement(), this.loops.length)]; // Return the next loop
+        }
+
+        /**
+         * Stops each of the loops in the group.
+         */
+        public void shutdown() {
+            // Stop each of the loops
+            for (EventLoop loop : this.loops) {
+                loop.shutdown(); // Stop the loop
+            }
+        }
+    }
+
+    /**
+     * The selector used to wait for ready channels.
+     */
+    private final Selector selector;
+
+    /**
+     * The tasks queued for execution on the loop thread.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+
+    /**
+     * Whether or not the loop is still running.
+     */
+    private volatile boolean running;
+
+    /**
+     * Initializes a new event loop with the given thread name.
+     *
+     * @param name the name of the loop thread
+     */
+    public EventLoop(String name) throws IOException {
+        super(name); // Name the loop thread
+
+        this.selector = Selector.open(); // Open a selector
+        this.tasks = new ConcurrentLinkedQueue<>(); // Initialize the task queue
+        this.running = true; // The loop is running until shut down
+
+        this.setDaemon(true); // Don't keep the JVM alive just for the loop
+    }
+
+    /**
+     * Registers a connection with the loop, so that its channel is read from
+     * and written to by the loop thread.
+     *
+     * @param socket the connection to register
+     */
+    public void register(NioSocket socket) {
+        this.execute(() -> {
+            try {
+                SocketChannel channel = socket.getChannel(); // Get the channel of the connection
+
+                socket.attach(channel.register(this.selector, SelectionKey.OP_READ, socket)); // Register for reads
+            } catch (IOException e) {
+                socket.closeQuietly(); // Drop the connection
+            }
+        }); // Register on the loop thread, since registration blocks while a select is in progress
+    }
+
+    /**
+     * Queues a task for execution on the loop thread.
+     *
+     * @param task the task to execute
+     */
+    public void execute(Runnable task) {
+        // Check is already running on the loop
+        if (this.inLoop()) {
+            task.run(); // Run the task right away
+
+            return; // Done!
+        }
+
+        this.tasks.add(task); // Queue the task
+        this.selector.wakeup(); // Wake the selector so the task runs promptly
+    }
+
+    /**
+     * Determines whether or not the current thread is the loop thread.
+     *
+     * @return whether or not the caller is running on the loop
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == this; // Compare with the loop thread
+    }
+
+    /**
+     * Stops the loop, and closes all of the connections registered with it.
+     */
+    public void shutdown() {
+        this.running = false; // Stop the loop
+        this.selector.wakeup(); // Wake the selector so the loop notices
+    }
+
+    /**
+     * Runs the loop.
+     */
+    public void run() {
+        // Do while the loop hasn't been shut down
+        while (this.running) {
+            try {
+                this.selector.select(); // Wait for ready channels
+
+                this.runTasks(); // Run any queued tasks
+
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator(); // Get the ready keys
+
+                // Iterate through the ready keys
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next(); // Get the key
+                    keys.remove(); // Don't handle the key twice
+
+                    NioSocket socket = (NioSocket) key.attachment(); // Get the connection attached to the key
+
+                    try {
+                        // Check can read
+                        if (key.isValid() && key.isReadable()) {
+                            socket.onReadable(); // Read from the channel
+                        }
+
+                        // Check can write
+                        if (key.isValid() && key.isWritable()) {
+                            socket.onWritable(); // Write to the channel
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        socket.closeQuietly(); // Drop the connection
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // Log the exception
+            }
+        }
+
+        // Close each of the registered connections
+        for (SelectionKey key : this.selector.keys()) {
+            ((NioSocket) key.attachment()).closeQuietly(); // Close the connection
+        }
+
+        try {
+            this.selector.close(); // Close the selector
+        } catch (IOException e) {
+            e.printStackTrace(); // Log the exception
+        }
+    }
+
+    /**
+     * Runs each of the queued tasks.
+     */
+    private void runTasks() {
+        Runnable task; // The task being run
+
+        // Run each of the tasks
+        while ((task = this.tasks.poll()) != null) {
+            try {
+                task.run(); // Run the task
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // Log the exception, and keep the loop running
+            }
+        }
+    }
+}
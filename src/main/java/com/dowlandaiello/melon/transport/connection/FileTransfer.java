@@ -0,0 +1,144 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Implements a set of helper methods used by connections to move regions of
+ * files to and from the network without reading them onto the heap.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FileTransfer {
+    /**
+     * The largest part of a file mapped into memory at once, in bytes.
+     */
+    public static final long MAP_WINDOW = 64 * 1024 * 1024;
+
+    /**
+     * Represents a method used to consume a mapped window of a file.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public interface WindowConsumer {
+        /**
+         * Consumes a mapped window of a file.
+         *
+         * @param window the mapped window, positioned at its first byte
+         */
+        void accept(MappedByteBuffer window) throws IOException;
+    }
+
+    /**
+     * Prevents instantiation.
+     */
+    private FileTransfer() {
+    }
+
+    /**
+     * Checks that a region lies within a file.
+     *
+     * @param file the file holding the region
+     * @param position the offset of the first byte of the region
+     * @param count the number of bytes in the region
+     */
+    public static void checkRegion(FileChannel file, long position, long count) throws IOException {
+        // Check the region is out of bounds
+        if (position < 0 || count < 0 || position > file.size() - count) {
+            throw new IOException(String.format("invalid file region (position %d, count %d, size %d)", position, count, file.size())); // Throw exception
+        }
+    }
+
+    /**
+     * Checks that a region can be written to a file, i.e. that it starts no
+     * later than the end of the file.
+     *
+     * @param file the file the region is written to
+     * @param position the offset of the first byte of the region
+     * @param count the number of bytes in the region
+     */
+    public static void checkDestination(FileChannel file, long position, long count) throws IOException {
+        // Check the region starts past the end of the file
+        if (position < 0 || count < 0 || position > file.size()) {
+            throw new IOException(String.format("invalid file region (position %d, count %d, size %d)", position, count, file.size())); // Throw exception
+        }
+    }
+
+    /**
+     * Transfers a region of a file to a channel, with sendfile where the
+     * platform supports it for the channel.
+     *
+     * @param file the file to transfer from
+     * @param position the offset of the first byte to transfer
+     * @param count the number of bytes to transfer
+     * @param target the channel to transfer to (must be blocking)
+     */
+    public static void transferTo(FileChannel file, long position, long count, WritableByteChannel target) throws IOException {
+        checkRegion(file, position, count); // Make sure the region exists
+
+        long end = position + count; // Get the end of the region
+
+        // Transfer until the whole region has been sent
+        while (position < end) {
+            position += file.transferTo(position, end - position, target); // Transfer as much as the channel accepts
+        }
+    }
+
+    /**
+     * Transfers exactly count bytes from a channel into a region of a file.
+     * The region must start no later than the end of the file.
+     *
+     * @param source the channel to transfer from (must be blocking)
+     * @param file the file to transfer to
+     * @param position the offset of the first byte to write
+     * @param count the number of bytes to transfer
+     */
+    public static void transferFrom(ReadableByteChannel source, FileChannel file, long position, long count) throws IOException {
+        checkDestination(file, position, count); // Make sure the region can be written
+
+        long end = position + count; // Get the end of the region
+
+        // Transfer until the whole region has been received
+        while (position < end) {
+            long transferred = file.transferFrom(source, position, end - position); // Transfer as much as has arrived
+
+            // Check the source has ended
+            if (transferred == 0) {
+                throw new EOFException(String.format("connection ended %d bytes short of the file region", end - position)); // Throw exception
+            }
+
+            position += transferred; // Move past the transferred bytes
+        }
+    }
+
+    /**
+     * Maps a region of a file into memory one window at a time, handing each
+     * window to a consumer, so at most MAP_WINDOW bytes of address space are
+     * mapped per window. Each window is unmapped by the garbage collector
+     * once it is no longer referenced.
+     *
+     * @param file the file to map
+     * @param position the offset of the first byte to map
+     * @param count the number of bytes to map
+     * @param consumer the consumer of each window
+     */
+    public static void forEachWindow(FileChannel file, long position, long count, WindowConsumer consumer) throws IOException {
+        checkRegion(file, position, count); // Make sure the region exists
+
+        long end = position + count; // Get the end of the region
+
+        // Map each window of the region
+        while (position < end) {
+            long size = Math.min(MAP_WINDOW, end - position); // Get the size of the window
+
+            consumer.accept(file.map(FileChannel.MapMode.READ_ONLY, position, size)); // Consume the window
+            position += size; // Move on to the next window
+        }
+    }
+}
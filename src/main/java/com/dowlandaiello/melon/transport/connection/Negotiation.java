@@ -2,7 +2,6 @@ package com.dowlandaiello.melon.transport.connection;
 
 import com.dowlandaiello.melon.transport.Upgrade;
 
-import javax.crypto.Cipher;
 import java.io.Serializable;
 import java.security.Key;
 import java.util.ArrayList;
@@ -15,9 +14,10 @@ public class Negotiation implements Serializable {
     private static final long serialVersionUID = 1L;
 
     /**
-     * The cipher used to decrypt communications.
+     * The single-use public key the peer will use to agree on session keys
+     * (null if the peer doesn't support secio).
      */
-    public Cipher cipher;
+    public Key ephemeralKey;
 
     /**
      * The upgrades supported by the connected peer.
@@ -29,16 +29,38 @@ public class Negotiation implements Serializable {
      */
     public Key publicKey;
 
+    /**
+     * The names of the compression algorithms offered by the peer, in order
+     * of preference (null if the peer doesn't support compression). A peer
+     * answering a negotiation offers only the algorithm it selected.
+     */
+    public ArrayList<String> compressionAlgorithms;
+
     /**
      * Initializes a new negotiation instance with the given public key and
      * upgrade set.
      *
-     * @param cipher the cipher to use
+     * @param ephemeralKey the single-use public key used to agree on session keys
+     * @param availableUpgrades the upgrades to use
+     * @param publicKey the public key of the peer
+     */
+    public Negotiation(Key ephemeralKey, ArrayList<Upgrade> availableUpgrades, Key publicKey) {
+        this(ephemeralKey, availableUpgrades, publicKey, null); // No compression algorithms
+    }
+
+    /**
+     * Initializes a new negotiation instance with the given public key,
+     * upgrade set and compression algorithms.
+     *
+     * @param ephemeralKey the single-use public key used to agree on session keys
      * @param availableUpgrades the upgrades to use
+     * @param publicKey the public key of the peer
+     * @param compressionAlgorithms the offered compression algorithms (null if none)
      */
-    public Negotiation(Cipher cipher, ArrayList<Upgrade> availableUpgrades, Key publicKey) {
-        this.cipher = cipher; // Set cipher
+    public Negotiation(Key ephemeralKey, ArrayList<Upgrade> availableUpgrades, Key publicKey, ArrayList<String> compressionAlgorithms) {
+        this.ephemeralKey = ephemeralKey; // Set ephemeral key
         this.availableUpgrades = availableUpgrades; // Set upgrades
         this.publicKey = publicKey; // Set public key
+        this.compressionAlgorithms = compressionAlgorithms; // Set compression algorithms
     }
 }
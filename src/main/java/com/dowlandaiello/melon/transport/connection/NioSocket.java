@@ -0,0 +1,1141 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.*;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.Key;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents a non-blocking TCP connection serviced by an event loop. The
+ * loop performs all reads and writes on the underlying channel. Once the
+ * connection is handed to a Pipeline, the loop pushes each frame into it as
+ * soon as it has arrived, so no thread is held per connection; until then,
+ * callers block on the connection's in-memory buffers.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class NioSocket implements Connection, Pipeline.Source {
+    /**
+     * Represents the listener side of the connection handshake, which is run
+     * on the event loop once the first frame has arrived.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public interface Handshake {
+        /**
+         * Handles the remote peer's opening message, and writes a response.
+         *
+         * @param socket the connection being negotiated
+         * @param message the first message read from the peer
+         * @return the public key of the remote peer (if any)
+         */
+        Key negotiate(NioSocket socket, CommonTypes.Message message) throws Exception;
+
+        /**
+         * Called once the handshake has completed successfully.
+         *
+         * @param socket the negotiated connection
+         */
+        void established(NioSocket socket);
+    }
+
+    /**
+     * Represents a region of a file waiting to be written to the channel.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class FileRegion {
+        /**
+         * The file holding the region.
+         */
+        final FileChannel file;
+
+        /**
+         * The offset of the next byte of the region to write.
+         */
+        long position;
+
+        /**
+         * The offset just past the last byte of the region.
+         */
+        final long end;
+
+        /**
+         * Initializes a new region of the given file.
+         *
+         * @param file the file holding the region
+         * @param position the offset of the first byte of the region
+         * @param count the number of bytes in the region
+         */
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file; // Set file
+            this.position = position; // Set position
+            this.end = position + count; // Set end
+        }
+    }
+
+    /**
+     * The initial size of the buffer the loop reads the channel into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The least free space at the end of the inbound buffer worth reading
+     * into. Below it, the unread data is moved to the front of the buffer
+     * (or the buffer is grown) before the next read.
+     */
+    private static final int MIN_READ_SPACE = 8 * 1024;
+
+    /**
+     * The amount of unread inbound data after which the loop stops reading
+     * from the channel until the connection has been drained.
+     */
+    private static final int MAX_BUFFERED_INBOUND = 4 * 1024 * 1024;
+
+    /**
+     * The channel attached to the connection.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The event loop servicing the connection.
+     */
+    private final EventLoop loop;
+
+    /**
+     * The selection key of the channel (only touched on the loop).
+     */
+    private SelectionKey key;
+
+    /**
+     * The lease of the direct buffer the loop reads the channel into (null
+     * once released).
+     */
+    private PooledBuffer inboundLease;
+
+    /**
+     * The data read from the channel (in write mode). The bytes between the
+     * read index and the position haven't been consumed yet.
+     */
+    private ByteBuffer inbound;
+
+    /**
+     * The offset of the first unconsumed byte of the inbound buffer.
+     */
+    private int readIndex;
+
+    /**
+     * The length (prefix included) of the frame at the read index, while it
+     * hasn't fully arrived yet, or zero.
+     */
+    private int partialFrameLength;
+
+    /**
+     * The pipeline frames are pushed into (null while the connection is read
+     * by callers; only touched on the loop).
+     */
+    private Pipeline pipeline;
+
+    /**
+     * Whether or not the pipeline has asked for delivery to pause (only
+     * touched on the loop).
+     */
+    private boolean deliveryPaused;
+
+    /**
+     * The lock guarding the inbound buffer.
+     */
+    private final Object inboundLock;
+
+    /**
+     * A blocking stream view of the inbound buffer.
+     */
+    private final InputStream inboundStream;
+
+    /**
+     * The buffers and file regions waiting to be written to the channel.
+     */
+    private final ConcurrentLinkedQueue<Object> outbound;
+
+    /**
+     * Whether or not a flush of the outbound queue has been scheduled on the loop.
+     */
+    private final AtomicBoolean flushScheduled;
+
+    /**
+     * Whether or not the loop has stopped reading from the channel.
+     */
+    private volatile boolean readPaused;
+
+    /**
+     * Whether or not the connection has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Whether or not the connection is to be closed once its queued data has
+     * been written.
+     */
+    private volatile boolean closing;
+
+    /**
+     * Whether or not queued data was discarded when the connection was closed.
+     */
+    private volatile boolean discarded;
+
+    /**
+     * The pending handshake (if the connection hasn't been negotiated yet).
+     */
+    private volatile Handshake handshake;
+
+    /**
+     * The multiaddress of the connected peer.
+     */
+    private volatile String remoteAddress;
+
+    /**
+     * Initializes a new non-blocking TCP connection with the given channel,
+     * and registers it with the given event loop.
+     *
+     * @param channel the non-blocking channel to wrap
+     * @param loop the event loop to service the connection with
+     * @param peerPublicKey the public key of the remote peer (if known)
+     * @param handshake the handshake to complete before the connection is
+     *                  established (null if already negotiated)
+     */
+    public NioSocket(SocketChannel channel, EventLoop loop, Key peerPublicKey, Handshake handshake) throws IOException {
+        this.channel = channel; // Set channel
+        this.loop = loop; // Set loop
+        this.inboundLease = BufferPool.DIRECT.lease(READ_BUFFER_SIZE); // Lease an inbound buffer
+        this.inbound = this.inboundLease.buffer(); // Set inbound
+        this.inboundLock = new Object(); // Initialize the inbound lock
+        this.inboundStream = new InboundStream(); // Initialize the inbound stream view
+        this.outbound = new ConcurrentLinkedQueue<>(); // Initialize the outbound queue
+        this.flushScheduled = new AtomicBoolean(); // No flush scheduled yet
+        this.handshake = handshake; // Set handshake
+        this.remoteAddress = formatMultiaddress(channel, peerPublicKey); // Set the address of the remote peer
+
+        channel.configureBlocking(false); // Make sure the channel doesn't block the loop
+
+        loop.register(this); // Register with the loop
+    }
+
+    /**
+     * Serializes an object into a frame, length-prefixed the same way as
+     * every other frame on the connection (see Codec).
+     *
+     * @param obj the object to serialize
+     * @return the framed object
+     */
+    private static ByteBuffer frame(Serializable obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(); // Initialize a buffer to serialize into
+
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(obj); // Serialize the object
+        }
+
+        // Check frame too large
+        if (bytes.size() > Codec.MAX_FRAME_SIZE) {
+            throw new IOException(String.format("invalid frame length (%d)", bytes.size())); // Throw exception
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(Codec.varintSize(bytes.size()) + bytes.size()); // Allocate the frame
+        Codec.putVarint(frame, bytes.size()); // Write the length prefix
+        frame.put(bytes.toByteArray()); // Write the serialized object
+        frame.flip(); // Prepare the frame for writing
+
+        return frame; // Return the frame
+    }
+
+    /**
+     * Deserializes the body of a frame.
+     *
+     * @param body the body of the frame
+     * @return the deserialized object
+     */
+    private static Object unframe(ByteBuffer body) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining()))) {
+            return in.readObject(); // Return the deserialized object
+        }
+    }
+
+    /**
+     * Writes a single byte to the connection.
+     *
+     * @param b the byte to write to the connection
+     */
+    public void write(int b) throws IOException {
+        this.enqueue(ByteBuffer.wrap(new byte[]{(byte) b})); // Queue the byte
+    }
+
+    /**
+     * Reads a single byte from the connection.
+     *
+     * @return the read byte
+     */
+    public int read() throws IOException {
+        byte[] b = new byte[1]; // Initialize a buffer for the byte
+
+        return this.take(b, 0, 1) < 0 ? -1 : b[0] & 0xff; // Return the read byte
+    }
+
+    /**
+     * Writes a byte array to the connection.
+     */
+    public void write(byte[] b) throws IOException {
+        this.enqueue(ByteBuffer.wrap(b.clone())); // Queue a copy, since the caller may reuse the array
+    }
+
+    /**
+     * Reads some number of bytes from the connection into the buffer b.
+     *
+     * @param b the buffer to read into
+     * @return the number of read bytes
+     */
+    public int read(byte[] b) throws IOException {
+        return this.take(b, 0, b.length); // Return the number of read bytes
+    }
+
+    /**
+     * Writes an object to the connection.
+     *
+     * @param obj the object to write
+     */
+    public void writeObject(Serializable obj) throws IOException {
+        this.enqueue(frame(obj)); // Queue the framed object
+    }
+
+    /**
+     * Reads an object from the connection.
+     *
+     * @return the read object
+     */
+    public Object readObject() throws IOException, ClassNotFoundException {
+        return unframe(this.readFrame()); // Return the read object
+    }
+
+    /**
+     * Writes a message to the connection as a single binary frame. The frame
+     * is encoded into a pooled buffer, which the loop releases once it has
+     * been written.
+     *
+     * @param message the message to write
+     */
+    public void writeMessage(CommonTypes.Message message) throws IOException {
+        this.enqueue(Codec.encodePooled(message)); // Queue the encoded frame
+    }
+
+    /**
+     * Reads a single binary frame from the connection.
+     *
+     * @return the read message
+     */
+    public CommonTypes.Message readMessage() throws IOException {
+        PooledBuffer frame = this.readPooledFrame(); // Read the frame
+
+        try {
+            return Codec.decode(frame); // Return the decoded frame
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single binary frame from the connection, without decoding it.
+     *
+     * @return the body of the read frame
+     */
+    public ByteBuffer readFrame() throws IOException {
+        return Codec.readBody(this.inboundStream); // Return the read frame
+    }
+
+    /**
+     * Reads a single binary frame from the connection into a pooled buffer,
+     * without decoding it.
+     *
+     * @return the body of the read frame
+     */
+    public PooledBuffer readPooledFrame() throws IOException {
+        return Codec.readPooledBody(this.inboundStream); // Return the read frame
+    }
+
+    /**
+     * Queues a region of a file to be written to the connection as raw
+     * bytes. The loop hands the region straight to FileChannel.transferTo,
+     * so it is sent with sendfile, without passing through the heap.
+     *
+     * @param file the file to write from
+     * @param position the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public void writeFile(FileChannel file, long position, long count) throws IOException {
+        FileTransfer.checkRegion(file, position, count); // Make sure the region exists
+
+        this.enqueue(new FileRegion(file, position, count)); // Queue the region
+    }
+
+    /**
+     * Reads exactly count raw bytes from the connection into a region of a
+     * file, moving everything buffered by the loop at once.
+     *
+     * @param file the file to read into
+     * @param position the offset of the first byte to read into
+     * @param count the number of bytes to read
+     */
+    public void readFile(FileChannel file, long position, long count) throws IOException {
+        FileTransfer.checkDestination(file, position, count); // Make sure the region can be written
+
+        long end = position + count; // Get the end of the region
+
+        // Move inbound data into the file until the whole region has been read
+        while (position < end) {
+            long moved = this.takeInto(file, position, end - position); // Move the buffered data
+
+            // Check the connection has been closed
+            if (moved < 0) {
+                throw new EOFException(String.format("connection ended %d bytes short of the file region", end - position)); // Throw exception
+            }
+
+            position += moved; // Move past the read bytes
+        }
+    }
+
+    /**
+     * Flushes the connection, blocking until all queued data has been written
+     * to the channel. Must not be called from the event loop.
+     */
+    public void flush() throws IOException {
+        synchronized (this.outbound) {
+            // Wait for the loop to drain the outbound queue
+            while (!this.outbound.isEmpty() && !this.closed) {
+                try {
+                    this.outbound.wait(); // Wait for the loop
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Preserve the interrupt
+
+                    throw new InterruptedIOException("interrupted while flushing connection"); // Throw exception
+                }
+            }
+        }
+
+        // Check the connection was closed before everything was written
+        if (!this.outbound.isEmpty() || this.discarded) {
+            throw new IOException("connection closed before flush completed"); // Throw exception
+        }
+    }
+
+    /**
+     * Closes the connection once any queued data has been written. Writes
+     * are refused from then on.
+     */
+    public void close() throws IOException {
+        this.closing = true; // Refuse further writes
+
+        this.loop.execute(this::drain); // Close on the loop, once the queued data has been written
+    }
+
+    /**
+     * Determines whether or not the connection has been closed.
+     *
+     * @return whether or not the connection is closed
+     */
+    public boolean isClosed() {
+        return this.closed; // Return whether or not the connection is closed
+    }
+
+    /**
+     * Get the multiaddress of the connected peer.
+     *
+     * @return the multiaddress of the connected peer
+     */
+    public String getRemoteMultiaddress() {
+        return this.remoteAddress; // Return the active remote multiaddress
+    }
+
+    /**
+     * Gets the channel attached to the connection.
+     *
+     * @return the channel
+     */
+    SocketChannel getChannel() {
+        return this.channel; // Return the channel
+    }
+
+    /**
+     * Sets the selection key of the connection's channel.
+     *
+     * @param key the selection key
+     */
+    void attach(SelectionKey key) {
+        this.key = key; // Set key
+
+        // Check closed before we were registered
+        if (this.closed) {
+            this.closeQuietly(); // Cancel the key
+        } else if (this.closing) {
+            this.drain(); // Finish writing, now that the loop can wait for the channel
+        }
+    }
+
+    /**
+     * Starts pushing each frame received on the connection into the given
+     * pipeline from the loop, beginning with the frames already buffered.
+     * The connection must not be read by callers from then on.
+     *
+     * @param pipeline the pipeline to deliver frames to
+     */
+    public void deliverTo(Pipeline pipeline) {
+        this.loop.execute(() -> {
+            this.pipeline = pipeline; // Set pipeline
+
+            // Check closed before the pipeline was attached
+            if (this.closed) {
+                this.shutdown(true); // Hand off what was received, and let the pipeline know
+
+                return; // Done!
+            }
+
+            this.deliverFrames(); // Deliver the frames already buffered
+        }); // Attach on the loop
+    }
+
+    /**
+     * Resumes pushing frames into the pipeline once it has caught up. May be
+     * called from any thread.
+     */
+    public void resumeDelivery() {
+        this.loop.execute(() -> {
+            this.deliveryPaused = false; // The pipeline has caught up
+
+            // Check still open
+            if (!this.closed) {
+                this.deliverFrames(); // Deliver the frames buffered in the meantime, and resume reading
+            }
+        }); // Resume on the loop
+    }
+
+    /**
+     * Reads from the channel straight into the inbound buffer, and pushes
+     * each complete frame into the pipeline (if any). Called by the loop.
+     */
+    void onReadable() throws IOException {
+        int read; // The number of read bytes
+
+        synchronized (this.inboundLock) {
+            this.ensureWritable(); // Make room at the end of the inbound buffer
+
+            read = this.channel.read(this.inbound); // Read from the channel
+
+            // Check too much data is waiting to be consumed by callers
+            if (this.pipeline == null && this.inbound.position() - this.readIndex >= MAX_BUFFERED_INBOUND) {
+                this.pauseReading(); // Stop reading until drained
+            }
+
+            this.inboundLock.notifyAll(); // Wake any waiting readers
+        }
+
+        // Check the peer has closed the connection
+        if (read < 0) {
+            this.shutdown(true); // Close the connection, keeping what the peer sent beforehand
+
+            return; // Done!
+        }
+
+        // Check still negotiating
+        if (this.handshake != null) {
+            this.tryHandshake(); // Try to complete the handshake
+        } else if (this.pipeline != null) {
+            this.deliverFrames(); // Push the frames that have arrived
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue to the channel as it will accept.
+     * Called by the loop.
+     */
+    void onWritable() throws IOException {
+        Object pending; // The buffer or file region being written
+
+        // Write each of the queued buffers and file regions
+        while ((pending = this.outbound.peek()) != null) {
+            boolean written; // Whether or not all of it has been written
+
+            // Check is a file region
+            if (pending instanceof FileRegion) {
+                FileRegion region = (FileRegion) pending; // Get the region
+
+                // Check the file has been truncated since the region was queued
+                if (region.position >= region.file.size()) {
+                    throw new EOFException("file truncated before its region was written"); // Throw exception
+                }
+
+                region.position += region.file.transferTo(region.position, region.end - region.position, this.channel); // Send as much of the region as the channel accepts
+                written = region.position >= region.end; // Check the whole region has been sent
+            } else {
+                ByteBuffer buffer = pending instanceof PooledBuffer ? ((PooledBuffer) pending).buffer() : (ByteBuffer) pending; // Get the buffer
+
+                this.channel.write(buffer); // Write to the channel
+                written = !buffer.hasRemaining(); // Check the whole buffer has been written
+            }
+
+            // Check the channel is full
+            if (!written) {
+                // Check is registered
+                if (this.key != null && this.key.isValid()) {
+                    this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE); // Wait until the channel is writable
+                }
+
+                return; // Continue once the channel is writable
+            }
+
+            this.outbound.poll(); // Remove the written buffer or region
+
+            // Check is pooled
+            if (pending instanceof PooledBuffer) {
+                ((PooledBuffer) pending).release(); // Return the written buffer
+            }
+        }
+
+        // Check is registered
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE); // Nothing left to write
+        }
+
+        synchronized (this.outbound) {
+            this.outbound.notifyAll(); // Wake any flushing callers
+        }
+
+        // Check was waiting for the queued data to be written before closing
+        if (this.closing && !this.closed) {
+            this.shutdown(false); // Close the connection
+        }
+    }
+
+    /**
+     * Writes as much of the outbound queue to the channel as it will accept,
+     * dropping the connection if the write fails. Called by the loop.
+     */
+    private void drain() {
+        // Check already closed
+        if (this.closed) {
+            return; // Nothing left to write
+        }
+
+        try {
+            this.onWritable(); // Write the queued buffers
+        } catch (IOException e) {
+            this.closeQuietly(); // Drop the connection
+        }
+    }
+
+    /**
+     * Closes the connection immediately, discarding any queued data. Called
+     * by the loop.
+     */
+    void closeQuietly() {
+        this.shutdown(false); // Close the connection
+    }
+
+    /**
+     * Closes the connection immediately, discarding any queued data, and
+     * lets the pipeline (if any) know. Called by the loop.
+     *
+     * @param eof whether or not the peer closed the connection, in which case
+     *            what it sent beforehand is still handed to the pipeline (or
+     *            left for callers to read)
+     */
+    private void shutdown(boolean eof) {
+        this.closed = true; // Mark the connection as closed
+
+        // Check is registered
+        if (this.key != null) {
+            this.key.cancel(); // Stop selecting the channel
+        }
+
+        try {
+            this.channel.close(); // Close the channel
+        } catch (IOException e) {
+            e.printStackTrace(); // Log the exception
+        }
+
+        Object pending; // The discarded buffer or file region
+
+        // Discard each of the queued buffers and file regions
+        while ((pending = this.outbound.poll()) != null) {
+            this.discarded = true; // Let flushing callers know
+
+            // Check is pooled
+            if (pending instanceof PooledBuffer) {
+                ((PooledBuffer) pending).release(); // Return the discarded buffer
+            }
+        }
+
+        synchronized (this.inboundLock) {
+            // Check the inbound buffer hasn't been released yet
+            if (this.inbound != null) {
+                // Check the frames that have arrived should still be handed off
+                if (eof && this.pipeline != null) {
+                    try {
+                        PooledBuffer frame; // The next complete frame
+
+                        // Hand off each complete frame, however far behind the pipeline is
+                        while ((frame = this.nextFrame()) != null) {
+                            this.pipeline.offer(frame); // Hand off the frame
+                        }
+                    } catch (IOException e) {
+                        // The rest of the data is unusable anyway
+                    }
+                }
+
+                // Check nothing is left for callers to read
+                if (!eof || this.pipeline != null || this.handshake != null || this.readIndex == this.inbound.position()) {
+                    this.releaseInbound(); // Return the inbound buffer
+                }
+            }
+
+            this.inboundLock.notifyAll(); // Wake any waiting readers
+        }
+
+        synchronized (this.outbound) {
+            this.outbound.notifyAll(); // Wake any flushing callers
+        }
+
+        // Check frames were pushed into a pipeline
+        if (this.pipeline != null) {
+            this.pipeline.closed(); // Let the pipeline know
+        }
+    }
+
+    /**
+     * Queues a buffer (pooled or not) or file region to be written by the
+     * loop. Pooled buffers are released once written or discarded.
+     *
+     * @param buffer the buffer or file region to write
+     */
+    private void enqueue(Object buffer) throws IOException {
+        this.outbound.add(buffer); // Queue the buffer
+
+        // Check closed or closing (checked after queueing, so the loop either discards the buffer or we do)
+        if (this.closed || this.closing) {
+            // Check the loop hasn't discarded the buffer already, and is pooled
+            if (this.outbound.remove(buffer) && buffer instanceof PooledBuffer) {
+                ((PooledBuffer) buffer).release(); // Return the buffer
+            }
+
+            throw new IOException("attempted to write to a closed connection"); // Throw exception
+        }
+
+        // Check no flush is scheduled yet
+        if (this.flushScheduled.compareAndSet(false, true)) {
+            this.loop.execute(() -> {
+                this.flushScheduled.set(false); // Allow further flushes to be scheduled
+
+                this.drain(); // Write the queued buffers
+            }); // Write on the loop
+        }
+    }
+
+    /**
+     * Moves up to len bytes from the inbound buffer into b, blocking until at
+     * least one byte is available.
+     *
+     * @param b the buffer to read into
+     * @param off the offset to start writing at
+     * @param len the maximum number of bytes to read
+     * @return the number of read bytes, or -1 if the connection is closed
+     */
+    private int take(byte[] b, int off, int len) throws IOException {
+        // Check nothing to read
+        if (len == 0) {
+            return 0; // Nothing to read
+        }
+
+        synchronized (this.inboundLock) {
+            // Wait for data
+            if (!this.awaitInbound()) {
+                return -1; // End of stream
+            }
+
+            ByteBuffer view = this.unreadView(); // Get a view of the unread bytes
+
+            int read = Math.min(len, view.remaining()); // Get the number of bytes we can read
+            view.get(b, off, read); // Read the bytes
+
+            this.consume(read); // Discard the read bytes
+
+            return read; // Return the number of read bytes
+        }
+    }
+
+    /**
+     * Moves up to count bytes from the inbound buffer into a file, blocking
+     * until at least one byte is available. Everything buffered is written
+     * at once, rather than a small read at a time.
+     *
+     * @param file the file to write into
+     * @param position the offset to start writing at
+     * @param count the maximum number of bytes to move
+     * @return the number of moved bytes, or -1 if the connection is closed
+     */
+    private long takeInto(FileChannel file, long position, long count) throws IOException {
+        synchronized (this.inboundLock) {
+            // Wait for data
+            if (!this.awaitInbound()) {
+                return -1; // End of stream
+            }
+
+            ByteBuffer view = this.unreadView(); // Get a view of the unread bytes
+            view.limit(view.position() + (int) Math.min(count, view.remaining())); // Take no more than was asked for
+
+            int moved = view.remaining(); // Get the number of bytes to move
+
+            // Write until the whole view is in the file
+            while (view.hasRemaining()) {
+                position += file.write(view, position); // Write the bytes
+            }
+
+            this.consume(moved); // Discard the moved bytes
+
+            return moved; // Return the number of moved bytes
+        }
+    }
+
+    /**
+     * Waits until the inbound buffer has unread data. Must hold the inbound
+     * lock.
+     *
+     * @return whether or not there is data, rather than the connection
+     *         having been closed
+     */
+    private boolean awaitInbound() throws IOException {
+        // Wait for data
+        while (this.inbound == null || this.readIndex == this.inbound.position()) {
+            // Check closed
+            if (this.closed) {
+                // Check the inbound buffer hasn't been released yet
+                if (this.inbound != null) {
+                    this.releaseInbound(); // Nothing more will arrive
+                }
+
+                return false; // End of stream
+            }
+
+            try {
+                this.inboundLock.wait(); // Wait for the loop to read more data
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Preserve the interrupt
+
+                throw new InterruptedIOException("interrupted while reading from connection"); // Throw exception
+            }
+        }
+
+        return true; // Data is available
+    }
+
+    /**
+     * Gets a view of the unread bytes of the inbound buffer. Must hold the
+     * inbound lock.
+     *
+     * @return the view, positioned at the read index
+     */
+    private ByteBuffer unreadView() {
+        ByteBuffer view = this.inbound.duplicate(); // Get a view of the buffer
+        view.flip(); // Limit the view to the data read so far
+        view.position(this.readIndex); // Skip the consumed bytes
+
+        return view; // Return the view
+    }
+
+    /**
+     * Consumes the given number of unread bytes, and resumes reading from the
+     * channel if it was paused, and has now been drained enough. The unread
+     * bytes are never moved here; the buffer simply starts over at the front
+     * once everything has been consumed. Must hold the inbound lock.
+     *
+     * @param count the number of bytes consumed
+     */
+    private void consume(int count) {
+        this.readIndex += count; // Move past the consumed bytes
+
+        // Check everything has been consumed
+        if (this.readIndex == this.inbound.position()) {
+            this.readIndex = 0; // Start over at the front
+            this.inbound.position(0); // Start over at the front
+        }
+
+        // Check reading was paused, and has now been drained enough
+        if (this.readPaused && this.inbound.position() - this.readIndex < MAX_BUFFERED_INBOUND / 2) {
+            this.readPaused = false; // Resume reading
+
+            this.loop.execute(this::resumeReading); // Resume on the loop
+        }
+    }
+
+    /**
+     * Makes sure there's room at the end of the inbound buffer for the next
+     * read: at least MIN_READ_SPACE, and enough for the rest of a frame
+     * that's partially arrived. The unread bytes are only moved to the front
+     * of the buffer once the end is nearly full, and the buffer is only
+     * grown if that isn't enough. Called by the loop, holding the inbound
+     * lock.
+     */
+    private void ensureWritable() {
+        int unread = this.inbound.position() - this.readIndex; // Get the number of unread bytes
+
+        // Check everything has been consumed
+        if (unread == 0) {
+            this.readIndex = 0; // Start over at the front
+            this.inbound.position(0); // Start over at the front
+
+            // Check the buffer was grown for a large frame, and can shrink again
+            if (this.inbound.limit() > READ_BUFFER_SIZE) {
+                this.moveInbound(READ_BUFFER_SIZE); // Go back to a buffer of the initial size
+            }
+        }
+
+        int needed = Math.max(MIN_READ_SPACE, this.partialFrameLength - unread); // Get the room needed at the end of the buffer
+
+        // Check there's enough room already
+        if (this.inbound.remaining() >= needed) {
+            return; // Nothing to do
+        }
+
+        // Check moving the unread bytes to the front makes enough room
+        if (this.inbound.limit() - unread >= needed) {
+            this.inbound.limit(this.inbound.position()); // Limit the buffer to the data read so far
+            this.inbound.position(this.readIndex); // Skip the consumed bytes
+            this.inbound.compact(); // Move the unread bytes to the front
+
+            this.readIndex = 0; // The unread bytes now start at the front
+        } else {
+            this.moveInbound(Math.max(this.inbound.limit() * 2, unread + needed)); // Grow the buffer
+        }
+    }
+
+    /**
+     * Moves the unread bytes into a newly leased inbound buffer of the given
+     * size, and returns the old one. Must hold the inbound lock.
+     *
+     * @param size the size of the new buffer
+     */
+    private void moveInbound(int size) {
+        PooledBuffer lease = BufferPool.DIRECT.lease(size); // Lease the new buffer
+        lease.buffer().put(this.unreadView()); // Move the unread bytes
+
+        this.inboundLease.release(); // Return the old buffer
+        this.inboundLease = lease; // Set inbound lease
+        this.inbound = lease.buffer(); // Set inbound
+        this.readIndex = 0; // The unread bytes now start at the front
+    }
+
+    /**
+     * Returns the inbound buffer once nothing more will be read from it.
+     * Must hold the inbound lock.
+     */
+    private void releaseInbound() {
+        this.inboundLease.release(); // Return the buffer
+        this.inboundLease = null; // Forget the lease
+        this.inbound = null; // Forget the buffer
+        this.readIndex = 0; // Nothing left to read
+    }
+
+    /**
+     * Takes the next complete frame out of the inbound buffer, copying its
+     * body into a pooled heap buffer. Must hold the inbound lock.
+     *
+     * @return the body of the frame, or null if it hasn't fully arrived yet
+     */
+    private PooledBuffer nextFrame() throws IOException {
+        ByteBuffer view = this.unreadView(); // Get a view of the unread bytes
+
+        int length = Codec.tryReadVarint(view); // Peek the length of the frame
+
+        // Check the length prefix hasn't fully arrived yet
+        if (length < 0) {
+            return null; // Wait for more data
+        }
+
+        // Check frame too large
+        if (length == 0 || length > Codec.MAX_FRAME_SIZE) {
+            throw new IOException(String.format("invalid frame length (%d)", length)); // Throw exception
+        }
+
+        // Check the body hasn't fully arrived yet
+        if (view.remaining() < length) {
+            this.partialFrameLength = view.position() - this.readIndex + length; // Make room for the whole frame before reading on
+
+            return null; // Wait for more data
+        }
+
+        this.partialFrameLength = 0; // The frame has fully arrived
+
+        PooledBuffer body = BufferPool.HEAP.lease(length); // Lease a buffer for the body
+
+        view.limit(view.position() + length); // Limit the view to the body
+        body.buffer().put(view).flip(); // Copy the body
+
+        this.readIndex = view.limit(); // Move past the frame
+
+        return body; // Return the body
+    }
+
+    /**
+     * Pushes each complete frame in the inbound buffer into the pipeline,
+     * until the pipeline asks for delivery to pause, in which case the loop
+     * stops reading from the channel until delivery is resumed. Called by the
+     * loop.
+     */
+    private void deliverFrames() {
+        try {
+            synchronized (this.inboundLock) {
+                PooledBuffer frame; // The next complete frame
+
+                // Hand off each complete frame, until the pipeline falls behind
+                while (!this.deliveryPaused && (frame = this.nextFrame()) != null) {
+                    this.deliveryPaused = !this.pipeline.offer(frame); // Hand off the frame
+                }
+            }
+        } catch (IOException e) {
+            this.closeQuietly(); // Drop the connection
+
+            return; // Done!
+        }
+
+        // Check the pipeline has fallen behind
+        if (this.deliveryPaused) {
+            this.pauseReading(); // Stop reading until delivery is resumed
+        } else if (this.readPaused) {
+            this.resumeReading(); // Read again
+        }
+    }
+
+    /**
+     * Stops reading from the channel. Called by the loop.
+     */
+    private void pauseReading() {
+        this.readPaused = true; // Remember to resume reading
+
+        // Check still registered
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ); // Stop reading
+        }
+    }
+
+    /**
+     * Reads from the channel again, unless the pipeline has asked for
+     * delivery to pause. Called by the loop.
+     */
+    private void resumeReading() {
+        // Check the pipeline hasn't caught up yet
+        if (this.deliveryPaused) {
+            return; // Resumed along with delivery
+        }
+
+        this.readPaused = false; // Reading is no longer paused
+
+        // Check still registered
+        if (this.key != null && this.key.isValid()) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ); // Resume reading
+        }
+    }
+
+    /**
+     * Attempts to complete the pending handshake with the first complete frame
+     * in the inbound buffer. Called by the loop.
+     */
+    private void tryHandshake() {
+        PooledBuffer body; // The body of the opening frame
+
+        try {
+            synchronized (this.inboundLock) {
+                body = this.nextFrame(); // Take the opening frame
+            }
+        } catch (IOException e) {
+            this.closeQuietly(); // Drop the connection
+
+            return; // Done!
+        }
+
+        // Check the frame hasn't fully arrived yet
+        if (body == null) {
+            return; // Wait for more data
+        }
+
+        Handshake handshake = this.handshake; // Get the pending handshake
+        this.handshake = null; // The handshake is complete either way
+
+        try {
+            this.remoteAddress = formatMultiaddress(this.channel, handshake.negotiate(this, Codec.decode(body))); // Negotiate, and set the address of the remote peer
+        } catch (Exception e) {
+            e.printStackTrace(); // Log the exception
+
+            this.closeQuietly(); // Drop the connection
+
+            return; // Done!
+        } finally {
+            body.release(); // Return the frame
+        }
+
+        handshake.established(this); // Hand off the established connection
+    }
+
+    /**
+     * Constructs the multiaddress of the peer on the other side of a channel.
+     *
+     * @param channel the connected channel
+     * @param peerPublicKey the public key of the peer (if any)
+     * @return the multiaddress of the peer, or an empty string if unknown
+     */
+    private static String formatMultiaddress(SocketChannel channel, Key peerPublicKey) throws IOException {
+        SocketAddress remoteSocketAddress = channel.getRemoteAddress(); // Get the socket address of the remote peer
+
+        // Check has enough information to construct a multiaddress
+        if (peerPublicKey == null || !(remoteSocketAddress instanceof InetSocketAddress)) {
+            return ""; // Unknown address
+        }
+
+        InetAddress address = ((InetSocketAddress) remoteSocketAddress).getAddress(); // Get the address of the remote peer
+
+        return String.format("/ip%d/%s/%s/%d/%s", (address instanceof Inet4Address ? 4 : 6), address.getHostAddress(), "tcp", ((InetSocketAddress) remoteSocketAddress).getPort(), Hex.encodeHexString(peerPublicKey.getEncoded())); // Construct a multiaddress
+    }
+
+    /**
+     * Represents a blocking stream view of the inbound buffer.
+     */
+    private class InboundStream extends InputStream {
+        /**
+         * Reads a single byte from the connection.
+         *
+         * @return the read byte, or -1 if the connection is closed
+         */
+        public int read() throws IOException {
+            return NioSocket.this.read(); // Return the read byte
+        }
+
+        /**
+         * Reads up to len bytes from the connection.
+         *
+         * @param b the buffer to read into
+         * @param off the offset to start writing at
+         * @param len the maximum number of bytes to read
+         * @return the number of read bytes, or -1 if the connection is closed
+         */
+        public int read(byte[] b, int off, int len) throws IOException {
+            return NioSocket.this.take(b, off, len); // Return the number of read bytes
+        }
+    }
+}
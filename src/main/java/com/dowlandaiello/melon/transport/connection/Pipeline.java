@@ -0,0 +1,601 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Represents the long-lived inbound side of a connection. Raw frames are
+ * either pushed into the pipeline by the connection itself as they arrive
+ * (see Source), or pulled off of the connection by a blocking reader running
+ * on its own executor; decoding and dispatching each frame to the handler
+ * registered for its message type happens on a separate worker pool, so a
+ * bounded pool of workers is never tied up by readers waiting on their
+ * connections. Frames from a single connection are still handled one at a
+ * time, in the order they were received, while frames from different
+ * connections are handled in parallel. Frames are read into pooled buffers
+ * (see BufferPool), which are released once their messages have been
+ * dispatched.
+ *
+ * Request/response exchanges on a connection (see exchange) never read the
+ * connection themselves while a pipeline is reading it: the pipeline picks
+ * the response out of the frames it receives, before they reach the
+ * workers, and hands it to the waiting exchange.
+ *
+ * Handlers that buffer what they receive for a slower consumer (such as
+ * incoming streams) hold the pipeline while they're full, rather than
+ * blocking a worker: the frames already received are still dispatched, but
+ * the connection isn't read any further until every hold is released.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Pipeline implements Runnable {
+    /**
+     * Represents a method used to handle inbound messages of a given type.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public interface Dispatcher {
+        /**
+         * Handles a message received on a connection.
+         *
+         * @param conn the connection the message was received on
+         * @param message the received message
+         */
+        void dispatch(Connection conn, CommonTypes.Message message) throws Exception;
+    }
+
+    /**
+     * Represents a connection that pushes its frames into a pipeline as they
+     * arrive, rather than being read by a blocking reader.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public interface Source {
+        /**
+         * Starts handing each frame received on the connection to the
+         * pipeline's offer(), and calls the pipeline's closed() once the
+         * connection has been closed.
+         *
+         * @param pipeline the pipeline to deliver frames to
+         */
+        void deliverTo(Pipeline pipeline);
+
+        /**
+         * Resumes delivering frames after the pipeline refused one. May be
+         * called from any thread.
+         */
+        void resumeDelivery();
+    }
+
+    /**
+     * Represents a response an exchange on the connection is waiting for.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class Expectation {
+        /**
+         * The type of the response.
+         */
+        final CommonTypes.Message.Type type;
+
+        /**
+         * Determines whether or not a message of the type is the response.
+         */
+        final Predicate<CommonTypes.Message> matcher;
+
+        /**
+         * The future completed with the response.
+         */
+        final CompletableFuture<CommonTypes.Message> response;
+
+        /**
+         * Initializes a new expectation.
+         *
+         * @param type the type of the response
+         * @param matcher determines whether or not a message of the type is the response
+         */
+        Expectation(CommonTypes.Message.Type type, Predicate<CommonTypes.Message> matcher) {
+            this.type = type; // Set type
+            this.matcher = matcher; // Set matcher
+            this.response = new CompletableFuture<>(); // Initialize the response
+        }
+    }
+
+    /**
+     * The pipeline reading each connection, so exchanges on a connection can
+     * be answered through its pipeline.
+     */
+    private static final ConcurrentHashMap<Connection, Pipeline> READING = new ConcurrentHashMap<>();
+
+    /**
+     * The lock held by exchanges on each connection that isn't read by a
+     * pipeline, so concurrent exchanges don't read each other's responses.
+     * It is kept apart from the connection's own monitor, which its writes
+     * may hold.
+     */
+    private static final Map<Connection, Object> EXCHANGE_LOCKS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * The default number of frames that may be read ahead of the workers
+     * before the connection stops being read.
+     */
+    public static final int DEFAULT_READ_AHEAD = 256;
+
+    /**
+     * The largest number of frames handled by a single run of the drain
+     * task, so one busy connection can't hog a worker.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * The connection to read from.
+     */
+    private final Connection connection;
+
+    /**
+     * The handler of each message type.
+     */
+    private final EnumMap<CommonTypes.Message.Type, Dispatcher> dispatchers;
+
+    /**
+     * The executor used to decode and dispatch frames.
+     */
+    private final Executor workers;
+
+    /**
+     * The frames read, but not yet handled.
+     */
+    private final ConcurrentLinkedQueue<PooledBuffer> pending;
+
+    /**
+     * The number of frames that may be read ahead of the workers.
+     */
+    private final int readAhead;
+
+    /**
+     * The number of pending frames.
+     */
+    private final AtomicInteger queued;
+
+    /**
+     * Whether or not delivery has been paused until the workers catch up.
+     */
+    private final AtomicBoolean paused;
+
+    /**
+     * The number of holds keeping delivery paused.
+     */
+    private final AtomicInteger holds;
+
+    /**
+     * Whether or not the drain task is queued or running.
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * Whether or not the connection has been closed.
+     */
+    private final AtomicBoolean closed;
+
+    /**
+     * The task run once the connection has been closed (null if none).
+     */
+    private volatile Runnable closeHandler;
+
+    /**
+     * The responses waited for by exchanges on the connection.
+     */
+    private final ConcurrentLinkedQueue<Expectation> expectations;
+
+    /**
+     * Initializes a new pipeline for the given connection.
+     *
+     * @param connection the connection to read from
+     * @param workers the executor used to decode and dispatch frames
+     */
+    public Pipeline(Connection connection, Executor workers) {
+        this(connection, workers, DEFAULT_READ_AHEAD); // Use the default read-ahead
+    }
+
+    /**
+     * Initializes a new pipeline for the given connection.
+     *
+     * @param connection the connection to read from
+     * @param workers the executor used to decode and dispatch frames
+     * @param readAhead the number of frames that may be read ahead of the workers
+     */
+    public Pipeline(Connection connection, Executor workers, int readAhead) {
+        this.connection = connection; // Set connection
+        this.dispatchers = new EnumMap<>(CommonTypes.Message.Type.class); // Initialize the dispatchers map
+        this.workers = workers; // Set workers
+        this.pending = new ConcurrentLinkedQueue<>(); // Initialize the pending queue
+        this.readAhead = readAhead; // Set read-ahead
+        this.queued = new AtomicInteger(); // Initialize the pending frame count
+        this.paused = new AtomicBoolean(); // Initialize the pause flag
+        this.holds = new AtomicInteger(); // Initialize the hold count
+        this.scheduled = new AtomicBoolean(); // Initialize the drain flag
+        this.closed = new AtomicBoolean(); // Initialize the closed flag
+        this.expectations = new ConcurrentLinkedQueue<>(); // Initialize the expectations queue
+    }
+
+    /**
+     * Registers the handler of a message type. Frames of types without a
+     * handler are dropped, releasing any contents sharing the frame (see
+     * ReferenceCounted).
+     *
+     * @param type the type of message to handle
+     * @param dispatcher the handler of the messages
+     * @return the pipeline
+     */
+    public Pipeline on(CommonTypes.Message.Type type, Dispatcher dispatcher) {
+        this.dispatchers.put(type, dispatcher); // Register the dispatcher
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Sets the task run once the connection has been closed, and the
+     * pipeline has stopped reading it. The task is run on the workers.
+     *
+     * @param handler the task to run
+     * @return the pipeline
+     */
+    public Pipeline onClose(Runnable handler) {
+        this.closeHandler = handler; // Set the close handler
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Starts reading the connection. A connection that pushes its own frames
+     * (see Source) is read without tying up a thread; any other connection
+     * is read by a blocking reader running on the given executor, which must
+     * not be the executor the pipeline's frames are dispatched on.
+     *
+     * @param readers the executor used to run a blocking reader
+     * @return the pipeline
+     */
+    public Pipeline start(Executor readers) {
+        READING.put(this.connection, this); // Answer exchanges on the connection through the pipeline
+
+        // Check the connection pushes its own frames
+        if (this.connection instanceof Source) {
+            ((Source) this.connection).deliverTo(this); // Start receiving frames
+        } else {
+            readers.execute(this); // Start reading
+        }
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Reads frames from the connection until it is closed, handing each of
+     * them off to the workers. Blocks for as long as the connection is open.
+     */
+    public void run() {
+        try {
+            // Read until the connection is closed
+            while (true) {
+                // Check the workers have fallen behind
+                if (!this.offer(this.connection.readPooledFrame())) {
+                    this.awaitResume(); // Wait for the workers to catch up
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+        } catch (IOException e) {
+            // The connection was closed
+        } finally {
+            try {
+                this.connection.close(); // Close the connection
+            } catch (IOException e) {
+                e.printStackTrace(); // Log the exception
+            }
+
+            this.closed(); // Clean up after the connection
+        }
+    }
+
+    /**
+     * Hands a frame received on the connection off to the workers. The frame
+     * is always queued, but once the workers have fallen read-ahead frames
+     * behind, delivery should pause until the pipeline resumes it.
+     *
+     * @param frame the body of the received frame
+     * @return whether or not more frames may be delivered right away
+     */
+    public boolean offer(PooledBuffer frame) {
+        // Check the frame is the response to an exchange
+        if (!this.expectations.isEmpty() && this.answer(frame)) {
+            frame.release(); // Return the frame
+
+            return !this.paused.get(); // Carry on as before
+        }
+
+        this.pending.add(frame); // Queue the frame
+
+        boolean full = this.queued.incrementAndGet() >= this.readAhead || this.holds.get() > 0; // Check the workers have fallen behind, or are held
+
+        // Check the workers have fallen behind, or are held
+        if (full) {
+            this.paused.set(true); // Pause delivery, before the drain task can look for it
+        }
+
+        this.schedule(); // Make sure the queue is being drained
+
+        return !full; // Return whether or not delivery may continue
+    }
+
+    /**
+     * Stops the connection from being read any further, until the hold is
+     * released. Doesn't block, so may be called from the workers.
+     */
+    public void hold() {
+        this.holds.incrementAndGet(); // Take the hold, which the next offered frame pauses delivery for
+    }
+
+    /**
+     * Releases a hold taken with hold(), resuming delivery once no holds are
+     * left.
+     */
+    public void unhold() {
+        // Check was the last hold
+        if (this.holds.decrementAndGet() == 0) {
+            this.resume(); // Let the connection deliver more frames, if it was paused
+        }
+    }
+
+    /**
+     * Gets the pipeline reading a connection.
+     *
+     * @param conn the connection
+     * @return the pipeline reading the connection, or null if there is none
+     */
+    public static Pipeline of(Connection conn) {
+        return READING.get(conn); // Return the pipeline reading the connection
+    }
+
+    /**
+     * Lets the pipeline know the connection has been closed. The frames
+     * already received are still dispatched, and the close handler is run
+     * once (on the workers).
+     */
+    public void closed() {
+        // Check is the first to notice the close
+        if (!this.closed.compareAndSet(false, true)) {
+            return; // Already cleaned up
+        }
+
+        READING.remove(this.connection, this); // Stop answering exchanges
+
+        Expectation expectation; // The next unanswered exchange
+
+        // Fail each of the unanswered exchanges
+        while ((expectation = this.expectations.poll()) != null) {
+            expectation.response.completeExceptionally(new IOException("connection closed before the response arrived")); // Fail the exchange
+        }
+
+        Runnable handler = this.closeHandler; // Get the close handler
+
+        // Check has a close handler
+        if (handler != null) {
+            this.workers.execute(handler); // Clean up after the connection
+        }
+    }
+
+    /**
+     * Writes a request to a connection, and waits for the first message of
+     * the same type that the given matcher accepts as its response. If the
+     * connection is read by a pipeline, the pipeline hands the response over,
+     * and every other message is dispatched as usual; otherwise, the
+     * connection is read directly, skipping other messages, while holding a
+     * lock of the connection's own. The exchange is failed once the
+     * connection is closed, which is how it should be cut short.
+     *
+     * @param conn the connection to exchange messages on
+     * @param request the request to write
+     * @param matcher determines whether or not a message of the request's
+     *                type is the response
+     * @return the response
+     */
+    public static CommonTypes.Message exchange(Connection conn, CommonTypes.Message request, Predicate<CommonTypes.Message> matcher) throws IOException {
+        Pipeline pipeline = READING.get(conn); // Get the pipeline reading the connection
+
+        // Check the connection isn't read by a pipeline
+        if (pipeline == null) {
+            return exchangeDirectly(conn, request, matcher); // Read the response ourselves
+        }
+
+        Expectation expectation = new Expectation(request.type, matcher); // Initialize the expectation
+        pipeline.expectations.add(expectation); // Wait for the response
+
+        // Check closed before the expectation was added (checked after adding, so either the pipeline fails it or we do)
+        if (pipeline.closed.get()) {
+            pipeline.expectations.remove(expectation); // Forget the expectation
+
+            throw new IOException("connection closed before the response arrived"); // Throw exception
+        }
+
+        try {
+            conn.writeMessage(request); // Send the request
+            conn.flush(); // Flush the request
+
+            return expectation.response.get(); // Wait for the response
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+
+            throw new InterruptedIOException("interrupted while waiting for a response"); // Throw exception
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("exchange failed", e.getCause()); // Rethrow the failure
+        } finally {
+            pipeline.expectations.remove(expectation); // The exchange is done
+        }
+    }
+
+    /**
+     * Writes a request to a connection that isn't read by a pipeline, and
+     * reads until its response arrives. Unrelated messages are skipped.
+     *
+     * @param conn the connection to exchange messages on
+     * @param request the request to write
+     * @param matcher determines whether or not a message of the request's
+     *                type is the response
+     * @return the response
+     */
+    private static CommonTypes.Message exchangeDirectly(Connection conn, CommonTypes.Message request, Predicate<CommonTypes.Message> matcher) throws IOException {
+        Object lock = EXCHANGE_LOCKS.computeIfAbsent(conn, (Connection c) -> new Object()); // Get the exchange lock of the connection
+
+        // Hold the lock, so concurrent exchanges don't read each other's responses
+        synchronized (lock) {
+            conn.writeMessage(request); // Send the request
+            conn.flush(); // Flush the request
+
+            // Read until the response arrives
+            while (true) {
+                CommonTypes.Message message = conn.readMessage(); // Read a message
+
+                // Check is the response
+                if (message.type == request.type && matcher.test(message)) {
+                    return message; // Return the response
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands a frame to the exchange waiting for it, if it is the response to
+     * one. Only frames of a type an exchange is waiting for are decoded.
+     *
+     * @param frame the body of the received frame
+     * @return whether or not the frame answered an exchange
+     */
+    private boolean answer(PooledBuffer frame) {
+        CommonTypes.Message.Type type = Codec.peekType(frame.buffer()); // Get the type of the frame
+        CommonTypes.Message message = null; // The decoded frame (decoded lazily)
+
+        // Offer the frame to each of the waiting exchanges
+        for (Expectation expectation : this.expectations) {
+            // Check is waiting for a different type of message
+            if (expectation.type != type) {
+                continue; // Move on to the next exchange
+            }
+
+            // Check hasn't been decoded yet
+            if (message == null) {
+                try {
+                    message = Codec.decode(frame.buffer().duplicate()); // Decode a copy, leaving the frame as it is
+                } catch (IOException e) {
+                    return false; // Leave the malformed frame to the workers
+                }
+            }
+
+            // Check is the response, and no one else has taken the exchange
+            if (expectation.matcher.test(message) && this.expectations.remove(expectation)) {
+                expectation.response.complete(message); // Hand over the response
+
+                return true; // The frame has been handled
+            }
+        }
+
+        return false; // Not a response
+    }
+
+    /**
+     * Blocks the calling reader until the workers have caught up, and
+     * delivery has been resumed.
+     */
+    private synchronized void awaitResume() throws InterruptedException {
+        // Wait until delivery is resumed
+        while (this.paused.get()) {
+            this.wait(); // Wait for the drain task
+        }
+    }
+
+    /**
+     * Resumes delivery, once the workers have caught up with a paused
+     * connection.
+     */
+    private void resume() {
+        // Check delivery isn't paused, the workers haven't caught up yet, or delivery is held
+        if (!this.paused.get() || this.queued.get() > this.readAhead / 2 || this.holds.get() > 0 || !this.paused.compareAndSet(true, false)) {
+            return; // Nothing to resume
+        }
+
+        // Check the connection pushes its own frames
+        if (this.connection instanceof Source) {
+            ((Source) this.connection).resumeDelivery(); // Let the connection deliver again
+        } else {
+            synchronized (this) {
+                this.notifyAll(); // Wake the reader
+            }
+        }
+    }
+
+    /**
+     * Submits the drain task, unless it is already queued or running.
+     */
+    private void schedule() {
+        // Check the drain task isn't already scheduled
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.workers.execute(this::drain); // Submit the drain task
+        }
+    }
+
+    /**
+     * Decodes and dispatches pending frames, resubmitting itself if the batch
+     * limit is reached before the queue is empty.
+     */
+    private void drain() {
+        PooledBuffer frame; // The frame being handled
+
+        // Handle pending frames until the batch is done, or the queue is empty
+        for (int handled = 0; handled < MAX_BATCH && (frame = this.pending.poll()) != null; handled++) {
+            try {
+                CommonTypes.Message message = Codec.decode(frame); // Decode the frame
+
+                Dispatcher dispatcher = this.dispatchers.get(message.type); // Get the handler of the message
+
+                // Check has a handler
+                if (dispatcher != null) {
+                    dispatcher.dispatch(this.connection, message); // Handle the message
+                } else if (message.contents instanceof ReferenceCounted) {
+                    ((ReferenceCounted) message.contents).release(); // Nobody will consume the message's share of the frame
+                }
+            } catch (Exception e) {
+                e.printStackTrace(); // Log the exception, but keep handling frames
+            } finally {
+                frame.release(); // Return the frame
+                this.queued.decrementAndGet(); // Count the handled frame
+            }
+        }
+
+        this.resume(); // Let the connection deliver more frames, if it was paused
+
+        this.scheduled.set(false); // Allow the drain task to be submitted again
+
+        // Check more frames arrived while we were finishing up
+        if (!this.pending.isEmpty()) {
+            this.schedule(); // Drain them
+        } else if (this.paused.get()) {
+            this.resume(); // Delivery was paused after we last looked, by a frame we've already handled
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Represents a reference-counted buffer leased from a BufferPool. A lease
+ * starts out with a single reference; each holder that keeps the buffer past
+ * the point its owner is done with it retains it, and every reference is
+ * released exactly once. The buffer goes back to its pool once the last
+ * reference has been released, so it must not be touched after that.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class PooledBuffer implements ReferenceCounted {
+    /**
+     * Updates the reference count of each buffer without a lock.
+     */
+    private static final AtomicIntegerFieldUpdater<PooledBuffer> REF_COUNT = AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "refCount");
+
+    /**
+     * The pool the buffer was leased from (null if it isn't pooled).
+     */
+    private final BufferPool pool;
+
+    /**
+     * The leased buffer.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The number of references to the buffer that haven't been released.
+     */
+    private volatile int refCount;
+
+    /**
+     * The tracker reporting the buffer should it never be released (null if
+     * the buffer isn't tracked).
+     */
+    private BufferPool.Leak leak;
+
+    /**
+     * Initializes a new lease of the given buffer, holding a single
+     * reference.
+     *
+     * @param pool the pool the buffer was leased from (null if it isn't pooled)
+     * @param buffer the leased buffer
+     */
+    PooledBuffer(BufferPool pool, ByteBuffer buffer) {
+        this.pool = pool; // Set pool
+        this.buffer = buffer; // Set buffer
+        this.refCount = 1; // The lease holds the first reference
+    }
+
+    /**
+     * Wraps a buffer that doesn't belong to any pool, so it can be handed to
+     * code expecting a lease. Releasing it does nothing but invalidate it.
+     *
+     * @param buffer the buffer to wrap
+     * @return the lease
+     */
+    public static PooledBuffer unpooled(ByteBuffer buffer) {
+        return new PooledBuffer(null, buffer); // Return the lease
+    }
+
+    /**
+     * Gets the leased buffer. Its position and limit belong to the holders
+     * of the lease, and start out at zero and the leased length.
+     *
+     * @return the buffer
+     */
+    public ByteBuffer buffer() {
+        // Check has been released
+        if (this.refCount <= 0) {
+            throw new IllegalStateException("pooled buffer used after being released"); // Throw exception
+        }
+
+        return this.buffer; // Return the buffer
+    }
+
+    /**
+     * Gets the number of references to the buffer that haven't been released.
+     *
+     * @return the reference count
+     */
+    public int refCount() {
+        return this.refCount; // Return the reference count
+    }
+
+    /**
+     * Adds a reference to the buffer, which must be released on its own.
+     *
+     * @return the buffer
+     */
+    public PooledBuffer retain() {
+        // Add a reference, unless the buffer has already been released
+        while (true) {
+            int count = this.refCount; // Get the current count
+
+            // Check has been released
+            if (count <= 0) {
+                throw new IllegalStateException("pooled buffer retained after being released"); // Throw exception
+            }
+
+            // Check no other reference was added or released in the meantime
+            if (REF_COUNT.compareAndSet(this, count, count + 1)) {
+                return this; // Allow chaining
+            }
+        }
+    }
+
+    /**
+     * Releases a reference to the buffer, returning the buffer to its pool
+     * if it was the last.
+     *
+     * @return whether or not the last reference was released
+     */
+    public boolean release() {
+        int count = REF_COUNT.decrementAndGet(this); // Release the reference
+
+        // Check released more often than retained
+        if (count < 0) {
+            throw new IllegalStateException("pooled buffer released more often than it was retained"); // Throw exception
+        }
+
+        // Check references remain
+        if (count != 0) {
+            return false; // Still in use
+        }
+
+        // Check is tracked
+        if (this.leak != null) {
+            this.leak.dismiss(); // The buffer didn't leak
+        }
+
+        // Check belongs to a pool
+        if (this.pool != null) {
+            this.pool.recycle(this.buffer); // Return the buffer to its pool
+        }
+
+        return true; // The buffer has been released
+    }
+
+    /**
+     * Tracks the buffer, so it is reported if it is garbage collected
+     * without having been released.
+     *
+     * @param leak the tracker of the buffer
+     */
+    void track(BufferPool.Leak leak) {
+        this.leak = leak; // Set leak
+    }
+}
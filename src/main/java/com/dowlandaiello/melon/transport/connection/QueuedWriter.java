@@ -0,0 +1,395 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Represents the single writer of a connection. Messages sent through the
+ * writer are queued in a bounded, lock-free queue, and written to the
+ * connection one at a time by a drain task run on an executor, so concurrent
+ * senders never interleave their frames, and a slow peer costs at most one
+ * queue's worth of memory. Senders that must not lose a message, and pace
+ * themselves to the connection (such as stream publishers), use sendAndWait
+ * instead.
+ *
+ * The drain task blocks on the connection for as long as a write takes, so
+ * it should be run on a thread of its own (see Workers.newBlockingExecutor),
+ * rather than on an executor shared with the senders: a sender waiting for
+ * room could otherwise wait on a drain task queued behind itself. Each run
+ * of the drain task ends after MAX_BATCH messages or MAX_DRAIN_NANOS, so a
+ * busy peer never holds a thread for long.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class QueuedWriter {
+    /**
+     * Represents the action taken when a message is sent while the queue is
+     * full.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public enum Policy {
+        /**
+         * Wait for the writer to make room for the message.
+         */
+        BLOCK,
+
+        /**
+         * Discard the oldest queued message to make room for the message.
+         * While a message sent with sendAndWait is queued, the message is
+         * refused with a QueueFullException instead.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Refuse the message by throwing a QueueFullException.
+         */
+        FAIL
+    }
+
+    /**
+     * Represents an exception thrown when a message is refused by a full
+     * queue.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    public static class QueueFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Initializes a new QueueFullException.
+         *
+         * @param multiaddress the address of the peer whose queue is full
+         */
+        public QueueFullException(String multiaddress) {
+            super(String.format("outbound queue to %s is full", multiaddress)); // Set message
+        }
+    }
+
+    /**
+     * The default number of messages queued per connection.
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The largest number of messages written by a single run of the drain
+     * task, so one busy connection can't hog the executor.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * The longest a single run of the drain task keeps writing (in
+     * nanoseconds) before resubmitting itself, so a slow connection can't
+     * hog the executor either.
+     */
+    private static final long MAX_DRAIN_NANOS = 50_000_000L;
+
+    /**
+     * The connection to write to.
+     */
+    private final Connection connection;
+
+    /**
+     * The messages waiting to be written.
+     */
+    private final BoundedQueue<CommonTypes.Message> queue;
+
+    /**
+     * The action taken when the queue is full.
+     */
+    private final Policy policy;
+
+    /**
+     * The executor used to run the drain task.
+     */
+    private final Executor executor;
+
+    /**
+     * Whether or not the drain task is queued or running.
+     */
+    private final AtomicBoolean scheduled;
+
+    /**
+     * The monitor senders wait on while the queue is full, or until a paced
+     * message has been written.
+     */
+    private final Object notFull;
+
+    /**
+     * The number of senders waiting on the drain task.
+     */
+    private final AtomicInteger waiting;
+
+    /**
+     * The number of messages written or discarded by DROP_OLDEST, in queue
+     * order.
+     */
+    private final AtomicLong handled;
+
+    /**
+     * The number of senders waiting in sendAndWait.
+     */
+    private final AtomicInteger paced;
+
+    /**
+     * The exception that stopped the writer (if any).
+     */
+    private volatile IOException failure;
+
+    /**
+     * Initializes a new writer for the given connection.
+     *
+     * @param connection the connection to write to
+     * @param capacity the number of messages that may be queued
+     * @param policy the action taken when the queue is full
+     * @param executor the executor used to write to the connection
+     */
+    public QueuedWriter(Connection connection, int capacity, Policy policy, Executor executor) {
+        this.connection = connection; // Set connection
+        this.queue = new BoundedQueue<>(capacity); // Initialize the queue
+        this.policy = policy; // Set policy
+        this.executor = executor; // Set executor
+        this.scheduled = new AtomicBoolean(); // Initialize the drain flag
+        this.notFull = new Object(); // Initialize the monitor
+        this.waiting = new AtomicInteger(); // Initialize the waiter count
+        this.handled = new AtomicLong(); // Initialize the handled message count
+        this.paced = new AtomicInteger(); // Initialize the paced sender count
+    }
+
+    /**
+     * Queues a message to be written to the connection, applying the
+     * writer's policy if the queue is full.
+     *
+     * @param message the message to write
+     */
+    public void send(CommonTypes.Message message) throws IOException {
+        // Check the writer has stopped
+        if (this.failure != null) {
+            throw this.failure; // Throw the exception that stopped the writer
+        }
+
+        // Try until the message has been queued
+        while (!this.queue.offer(message)) {
+            switch (this.policy) {
+                case DROP_OLDEST:
+                    // Check a paced message may be the oldest
+                    if (this.paced.get() > 0) {
+                        this.schedule(); // Make sure the queue is being drained
+
+                        throw new QueueFullException(this.connection.getRemoteMultiaddress()); // Throw exception
+                    }
+
+                    // Check made room for the message
+                    if (this.queue.poll() != null) {
+                        this.handled.incrementAndGet(); // Count the discarded message
+                    }
+
+                    break;
+                case FAIL:
+                    this.schedule(); // Make sure the queue is being drained
+
+                    throw new QueueFullException(this.connection.getRemoteMultiaddress()); // Throw exception
+                default:
+                    this.awaitRoom(); // Wait for the drain task to make room
+            }
+        }
+
+        this.schedule(); // Make sure the queue is being drained
+    }
+
+    /**
+     * Queues a message to be written to the connection, waiting for room in
+     * the queue whatever the writer's policy, then waits until the message
+     * has been written. The message is never discarded, so its contents may
+     * be reused once this returns.
+     *
+     * @param message the message to write
+     */
+    public void sendAndWait(CommonTypes.Message message) throws IOException {
+        // Check the writer has stopped
+        if (this.failure != null) {
+            throw this.failure; // Throw the exception that stopped the writer
+        }
+
+        this.paced.incrementAndGet(); // Keep DROP_OLDEST from discarding the message
+
+        try {
+            // Wait until the message has been queued
+            while (!this.queue.offer(message)) {
+                this.awaitRoom(); // Wait for the drain task to make room
+            }
+
+            long mark = this.queue.added(); // Get a count of messages including ours
+
+            this.schedule(); // Make sure the queue is being drained
+
+            this.awaitWhile(() -> this.handled.get() < mark); // Wait for the message to be written
+        } finally {
+            this.paced.decrementAndGet(); // Stop waiting
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting to be written.
+     *
+     * @return the number of queued messages
+     */
+    public int getQueued() {
+        return this.queue.size(); // Return the number of queued messages
+    }
+
+    /**
+     * Determines whether or not the writer has stopped after failing to
+     * write to its connection.
+     *
+     * @return whether or not the writer has failed
+     */
+    public boolean isFailed() {
+        return this.failure != null; // Return whether or not a failure has been recorded
+    }
+
+    /**
+     * Gets the connection the writer writes to.
+     *
+     * @return the connection
+     */
+    public Connection getConnection() {
+        return this.connection; // Return the connection
+    }
+
+    /**
+     * Stops the writer once its connection has been closed. The queued
+     * messages are discarded, and senders waiting for room, along with any
+     * later sends, fail.
+     */
+    public void close() {
+        // Check hasn't stopped yet
+        if (this.failure == null) {
+            this.failure = new IOException("attempted to write to a closed connection"); // Stop the writer
+        }
+
+        // Discard the queued messages
+        while (this.queue.poll() != null) {
+            // Nothing to do
+        }
+
+        this.wakeWaiters(); // Let blocked senders see the failure
+    }
+
+    /**
+     * Waits for the drain task to take a message from the queue.
+     */
+    private void awaitRoom() throws IOException {
+        this.schedule(); // Make sure the queue is being drained
+
+        this.awaitWhile(() -> this.queue.size() >= this.queue.capacity()); // Wait while the queue is full
+    }
+
+    /**
+     * Waits for the drain task for as long as the given condition holds, or
+     * until the writer stops.
+     *
+     * @param blocked the condition to wait out
+     */
+    private void awaitWhile(BooleanSupplier blocked) throws IOException {
+        this.waiting.incrementAndGet(); // Let the drain task know we're waiting
+
+        try {
+            synchronized (this.notFull) {
+                // Wait while the condition holds
+                while (blocked.getAsBoolean() && this.failure == null) {
+                    this.notFull.wait(); // Wait for the drain task
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+
+            throw new InterruptedIOException("interrupted while waiting on outbound queue"); // Throw exception
+        } finally {
+            this.waiting.decrementAndGet(); // Stop waiting
+        }
+
+        // Check the writer stopped while we were waiting
+        if (this.failure != null) {
+            throw this.failure; // Throw the exception that stopped the writer
+        }
+    }
+
+    /**
+     * Submits the drain task, unless it is already queued or running.
+     */
+    private void schedule() {
+        // Check the drain task isn't already scheduled
+        if (this.scheduled.compareAndSet(false, true)) {
+            this.executor.execute(this::drain); // Submit the drain task
+        }
+    }
+
+    /**
+     * Writes queued messages to the connection, resubmitting itself if the
+     * batch or time limit is reached before the queue is empty. A write that
+     * fails, with an IOException or anything unchecked, stops the writer.
+     */
+    private void drain() {
+        int written = 0; // The number of messages written in this run
+        long deadline = System.nanoTime() + MAX_DRAIN_NANOS; // Stop writing once the run has taken this long
+
+        try {
+            CommonTypes.Message message; // The message being written
+
+            // Write until the batch is done, the run has taken too long, or the queue is empty
+            while (written < MAX_BATCH && System.nanoTime() - deadline < 0 && (message = this.queue.poll()) != null) {
+                this.wakeWaiters(); // Let blocked senders use the freed slot
+
+                this.connection.writeMessage(message); // Write the message
+                written++; // Count the message
+
+                this.handled.incrementAndGet(); // Count the written message
+            }
+
+            this.wakeWaiters(); // Let paced senders know the batch has been written
+
+            this.connection.flush(); // Push the batch out
+        } catch (IOException | RuntimeException e) {
+            this.failure = e instanceof IOException ? (IOException) e : new IOException("failed to write to connection", e); // Stop the writer
+
+            // Discard the remaining messages
+            while (this.queue.poll() != null) {
+                // Nothing to do
+            }
+
+            this.wakeWaiters(); // Let blocked senders see the failure
+
+            return; // Done!
+        } finally {
+            this.scheduled.set(false); // Allow the drain task to be submitted again, however the run ended
+        }
+
+        // Check more messages arrived while we were finishing up
+        if (!this.queue.isEmpty()) {
+            this.schedule(); // Drain them
+        }
+    }
+
+    /**
+     * Wakes any senders waiting for room in the queue.
+     */
+    private void wakeWaiters() {
+        // Check anyone is waiting
+        if (this.waiting.get() > 0) {
+            synchronized (this.notFull) {
+                this.notFull.notifyAll(); // Wake the waiting senders
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.dowlandaiello.melon.transport.connection;
+
+/**
+ * Represents something holding a reference to pooled memory (such as a
+ * message sharing the data of the frame it was decoded from), which must be
+ * released exactly once, by whoever consumes it, or by whoever drops it
+ * without handing it on.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public interface ReferenceCounted {
+    /**
+     * Releases the reference, after which the memory it held must no longer
+     * be touched.
+     *
+     * @return whether or not the last reference to the memory was released
+     */
+    boolean release();
+}
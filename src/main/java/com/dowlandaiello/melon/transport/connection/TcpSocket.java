@@ -1,16 +1,19 @@
 package com.dowlandaiello.melon.transport.connection;
 
-import com.dowlandaiello.melon.transport.Upgrade;
-import com.dowlandaiello.melon.transport.secio.Secio;
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.transport.compress.FrameCompressor;
+import com.dowlandaiello.melon.transport.secio.SecureSession;
 import org.apache.commons.codec.binary.Hex;
 
-import javax.crypto.*;
 import java.io.*;
 import java.net.*;
-import java.security.InvalidKeyException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 
 /**
  * Represents an upgradable TCP connection.
@@ -35,173 +38,115 @@ public class TcpSocket implements Connection {
     private final DataInputStream dataInStream;
 
     /**
-     * The output stream to write objects to.
+     * The output stream to write objects to (created on first use, since the
+     * stream header would otherwise corrupt binary frames).
      */
-    private final ObjectOutputStream objOutStream;
+    private ObjectOutputStream objOutStream;
 
     /**
-     * The input stream to read objects from.
+     * The input stream to read objects from (created on first use, since
+     * reading the stream header would otherwise block).
      */
-    private final ObjectInputStream objInStream;
+    private ObjectInputStream objInStream;
 
     /**
-     * The cipher-supporting output stream to write data to.
+     * The secio session of the connection (null if secio isn't used).
      */
-    private final CipherOutputStream cipherOutStream;
+    private final SecureSession session;
 
     /**
-     * The cipher-supporting input stream to read data from.
+     * The compressor of the connection's frames (null if compression isn't
+     * used).
      */
-    private final CipherInputStream cipherInStream;
+    private final FrameCompressor compressor;
 
     /**
-     * The cipher associated with the connection's cipher in stream.
+     * The output stream sealing each raw write into an encrypted record.
      */
-    private final Cipher cipherIn;
+    private final OutputStream secureOutStream;
 
     /**
-     * The cipher associated with the connection's cipher out stream.
+     * The input stream opening each encrypted record read by a raw read.
      */
-    private final Cipher cipherOut;
+    private final InputStream secureInStream;
 
     /**
      * The multiaddress of the connected peer.
      */
     private final String remoteAddress;
 
+    /**
+     * A channel view of the raw output stream.
+     */
+    private final WritableByteChannel outChannel;
+
+    /**
+     * A channel view of the raw input stream, which opens secio records if
+     * the connection has a session.
+     */
+    private final ReadableByteChannel inChannel;
+
     /**
      * Initializes a new TCP connection with a given socket.
      *
      * @param socket the socket to wrap in a new TCP connection
      */
     public TcpSocket(Socket socket) throws IOException {
-        this.socket = socket; // Set socket
-        this.dataOutStream = new DataOutputStream(socket.getOutputStream()); // Set data output stream
-        this.dataInStream = new DataInputStream(socket.getInputStream()); // Set data input stream
-        this.objOutStream = new ObjectOutputStream(socket.getOutputStream()); // Set object output stream
-        this.objInStream = new ObjectInputStream(socket.getInputStream()); // Set object input stream
-
-        // Set cipher streams to null since SECIO is not supported
-        this.cipherOutStream = null;
-        this.cipherInStream = null;
-
-        // Set ciphers to null since SECIO is not supported
-        this.cipherOut = null;
-        this.cipherIn = null;
-
-        // Set the address of the remote peer
-        this.remoteAddress = "";
+        this(socket, null, null); // No secio session, no known peer
     }
 
     /**
-     * Initializes a new TCP connection with a given socket, upgrade set, and communications cipher.
+     * Initializes a new TCP connection with a given socket and secio session.
      *
      * @param socket the socket to wrap in a new TCP socket instance
-     * @param upgrades the upgrades ot use with the new socket instance
-     * @param cipherIn the cipher used to decrypt incoming communications
+     * @param session the secio session of the connection (null if secio isn't used)
+     * @param peerPublicKey the public key of the connected peer (null if not known)
      */
-    public TcpSocket(Socket socket, HashMap<Upgrade.Type, Upgrade> upgrades, Cipher cipherIn, Key peerPublicKey) throws IOException {
-        this.socket = socket; // Set socket
-        this.dataOutStream = new DataOutputStream(socket.getOutputStream()); // Set data output stream
-        this.dataInStream = new DataInputStream(socket.getInputStream()); // Set data input stream
-        this.objOutStream = new ObjectOutputStream(socket.getOutputStream()); // Set object output stream
-        this.objInStream = new ObjectInputStream(socket.getInputStream()); // Set object input stream
-
-        Secio secio = upgrades.containsKey(Upgrade.Type.SECIO) ? (Secio) upgrades.get(Upgrade.Type.SECIO) : null; // Get secio upgrade
-
-        // Check no secio support
-        if (secio != null) {
-            secio.registerPeerCipher(socket.getRemoteSocketAddress().toString(), cipherIn); // Register the cipher
-
-            Cipher cipherOut = (Cipher) secio.getConfig("127.0.0.1"); // Get outbound cipher
-
-            // Set cipher streams
-            this.cipherOutStream = new CipherOutputStream(socket.getOutputStream(), cipherOut);
-            this.cipherInStream = new CipherInputStream(socket.getInputStream(), cipherIn);
-
-            this.cipherOut = cipherOut; // Set cipher out
-            this.cipherIn = cipherIn; // Set cipher in
-
-            SocketAddress remoteSocketAddress = socket.getRemoteSocketAddress(); // Get the socket address of the remote peer
-
-            // Check socket has socket address
-            if (remoteSocketAddress instanceof InetSocketAddress) {
-                InetAddress address = ((InetSocketAddress) remoteSocketAddress).getAddress(); // Get the address of the remote peer
-
-                this.remoteAddress = String.format("/ip%d/%s/%s/%d/%s", (address instanceof Inet4Address ? 4 : 6), address.getHostAddress(), "tcp", socket.getPort(), Hex.encodeHexString(peerPublicKey.getEncoded())); // Construct a multiaddress
-            } else {
-                this.remoteAddress = ""; // Set the address of the remote peer to an empty string
-            }
-
-            return; // Done!
-        }
-
-        // Set cipher streams to null since SECIO is not supported
-        this.cipherOutStream = null;
-        this.cipherInStream = null;
-
-        // Set ciphers to null since SECIO is not supported
-        this.cipherOut = null;
-        this.cipherIn = null;
-
-        // Set the address of the remote peer
-        this.remoteAddress = "";
+    public TcpSocket(Socket socket, SecureSession session, Key peerPublicKey) throws IOException {
+        this(socket, session, null, peerPublicKey); // No compression
     }
 
     /**
-     * Initializes a new TCP connection with a given socket and upgrade set.
+     * Initializes a new TCP connection with a given socket, secio session and
+     * frame compressor.
+     *
+     * @param socket the socket to wrap in a new TCP socket instance
+     * @param session the secio session of the connection (null if secio isn't used)
+     * @param compressor the compressor of the connection's frames (null if compression isn't used)
+     * @param peerPublicKey the public key of the connected peer (null if not known)
      */
-    public TcpSocket(Socket socket, HashMap<Upgrade.Type, Upgrade> upgrades, Key peerPublicKey)
-            throws IOException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    public TcpSocket(Socket socket, SecureSession session, FrameCompressor compressor, Key peerPublicKey) throws IOException {
         this.socket = socket; // Set socket
         this.dataOutStream = new DataOutputStream(socket.getOutputStream()); // Set data output stream
         this.dataInStream = new DataInputStream(socket.getInputStream()); // Set data input stream
-        this.objOutStream = new ObjectOutputStream(socket.getOutputStream()); // Set object output stream
-        this.objInStream = new ObjectInputStream(socket.getInputStream()); // Set object input stream
 
-        Secio secio = upgrades.containsKey(Upgrade.Type.SECIO) ? (Secio) upgrades.get(Upgrade.Type.SECIO) : null; // Get secio upgrade
-
-        // Check no secio support
-        if (secio != null) {
-            // Get the inbound cipher instance
-            Cipher cipherIn = Cipher.getInstance("AES/ECB/PKCS5Padding"); // Get cipher instance
-            cipherIn.init(Cipher.DECRYPT_MODE, peerPublicKey); // Initialize cipher
-
-            secio.registerPeerCipher(socket.getRemoteSocketAddress().toString(), cipherIn); // Register the cipher
-
-            Cipher cipherOut = (Cipher) secio.getConfig("127.0.0.1"); // Get outbound cipher
-
-            // Set cipher streams
-            this.cipherOutStream = new CipherOutputStream(socket.getOutputStream(), cipherOut);
-            this.cipherInStream = new CipherInputStream(socket.getInputStream(), cipherIn);
-
-            this.cipherOut = cipherOut; // Set cipher out
-            this.cipherIn = cipherIn; // Set cipher in
+        this.session = session; // Set session
+        this.compressor = compressor; // Set compressor
+
+        // Check has secio session
+        if (session != null) {
+            // Set secure streams
+            this.secureOutStream = session.sealing(this.dataOutStream);
+            this.secureInStream = session.opening(this.dataInStream);
+        } else {
+            // Set secure streams to null since SECIO is not supported
+            this.secureOutStream = null;
+            this.secureInStream = null;
+        }
 
-            SocketAddress remoteSocketAddress = socket.getRemoteSocketAddress(); // Get the socket address of the remote peer
+        this.outChannel = Channels.newChannel(this.dataOutStream); // Set output channel
+        this.inChannel = Channels.newChannel(this.secureInStream != null ? this.secureInStream : this.dataInStream); // Set input channel
 
-            // Check socket has socket address
-            if (remoteSocketAddress instanceof InetSocketAddress) {
-                InetAddress address = ((InetSocketAddress) remoteSocketAddress).getAddress(); // Get the address of the remote peer
+        SocketAddress remoteSocketAddress = socket.getRemoteSocketAddress(); // Get the socket address of the remote peer
 
-                this.remoteAddress = String.format("/ip%d/%s/%s/%d/%s", (address instanceof Inet4Address ? 4 : 6), address.getHostAddress(), "tcp", socket.getPort(), Hex.encodeHexString(peerPublicKey.getEncoded())); // Construct a multiaddress
-            } else {
-                this.remoteAddress = ""; // Set the address of the remote peer to an empty string
-            }
+        // Check socket has socket address, and the peer is known
+        if (peerPublicKey != null && remoteSocketAddress instanceof InetSocketAddress) {
+            InetAddress address = ((InetSocketAddress) remoteSocketAddress).getAddress(); // Get the address of the remote peer
 
-            return; // Done!
+            this.remoteAddress = String.format("/ip%d/%s/%s/%d/%s", (address instanceof Inet4Address ? 4 : 6), address.getHostAddress(), "tcp", socket.getPort(), Hex.encodeHexString(peerPublicKey.getEncoded())); // Construct a multiaddress
+        } else {
+            this.remoteAddress = ""; // Set the address of the remote peer to an empty string
         }
-
-        // Set cipher streams to null since SECIO is not supported
-        this.cipherOutStream = null;
-        this.cipherInStream = null;
-
-        // Set ciphers to null since SECIO is not supported
-        this.cipherOut = null;
-        this.cipherIn = null;
-
-        // Set the address of the remote peer
-        this.remoteAddress = "";
     }
 
     /**
@@ -211,8 +156,8 @@ public class TcpSocket implements Connection {
      */
     public void write(int b) throws IOException {
         // Check has secio upgrade
-        if (this.cipherOutStream != null) {
-            this.cipherOutStream.write(b); // Write to connection
+        if (this.secureOutStream != null) {
+            this.secureOutStream.write(b); // Write to connection
 
             return; // Return
         }
@@ -227,8 +172,8 @@ public class TcpSocket implements Connection {
      */
     public int read() throws IOException {
         // Check has secio upgrade
-        if (this.cipherInStream != null) {
-            return this.cipherInStream.read(); // Return read byte
+        if (this.secureInStream != null) {
+            return this.secureInStream.read(); // Return read byte
         }
 
         return this.dataInStream.read(); // Return read byte
@@ -239,8 +184,8 @@ public class TcpSocket implements Connection {
      */
     public void write(byte[] b) throws IOException {
         // Check has secio upgrade
-        if (this.cipherOutStream != null) {
-            this.cipherOutStream.write(b); // Write to connection w/secio
+        if (this.secureOutStream != null) {
+            this.secureOutStream.write(b); // Write to connection w/secio
 
             return; // Return
         }
@@ -256,8 +201,8 @@ public class TcpSocket implements Connection {
      */
     public int read(byte[] b) throws IOException {
         // Check has secio upgrade
-        if (this.cipherInStream != null) {
-            return this.cipherInStream.read(b); // Return number of read bytes
+        if (this.secureInStream != null) {
+            return this.secureInStream.read(b); // Return number of read bytes
         }
 
         return this.dataInStream.read(b); // Return number of read bytes
@@ -268,12 +213,24 @@ public class TcpSocket implements Connection {
      * 
      * @param obj the object to write
      */
-    public void writeObject(Serializable obj) throws IOException, IllegalBlockSizeException {
-        // Check has secio upgrade
-        if (this.cipherOutStream != null) {
-            SealedObject sealed = new SealedObject(obj, this.cipherOut); // Seal object
+    public void writeObject(Serializable obj) throws IOException {
+        // Check has secio session
+        if (this.session != null) {
+            ExposedByteArrayOutputStream serialized = new ExposedByteArrayOutputStream(); // Initialize a buffer for the object
+
+            // Serialize the object
+            try (ObjectOutputStream objOut = new ObjectOutputStream(serialized)) {
+                objOut.writeObject(obj); // Write object
+            }
+
+            this.session.writeRecord(this.dataOutStream, serialized.buffer(), 0, serialized.size()); // Seal the object into a single record
+
+            return; // Done!
+        }
 
-            this.objOutStream.writeObject(sealed); // Write sealed object
+        // Check object stream not yet opened
+        if (this.objOutStream == null) {
+            this.objOutStream = new ObjectOutputStream(this.socket.getOutputStream()); // Set object output stream
         }
 
         this.objOutStream.writeObject(obj); // Write object
@@ -284,25 +241,170 @@ public class TcpSocket implements Connection {
      * 
      * @return the read object
      */
-    public Object readObject()
-            throws IOException, ClassNotFoundException, IllegalBlockSizeException, BadPaddingException {
-        // Check has secio upgrade
-        if (this.cipherInStream != null) {
-            SealedObject sealed = (SealedObject) this.objInStream.readObject(); // Read sealed object
+    public Object readObject() throws IOException, ClassNotFoundException {
+        // Check has secio session
+        if (this.session != null) {
+            ByteBuffer record = this.session.readRecord(this.dataInStream); // Read the record holding the object
+
+            // Deserialize the object
+            try (ObjectInputStream objIn = new ObjectInputStream(new ByteArrayInputStream(record.array(), 0, record.limit()))) {
+                return objIn.readObject(); // Return read object
+            }
+        }
 
-            return sealed.getObject(this.cipherIn); // Return decrypted object
+        // Check object stream not yet opened
+        if (this.objInStream == null) {
+            this.objInStream = new ObjectInputStream(this.socket.getInputStream()); // Set object input stream
         }
 
         return this.objInStream.readObject(); // Return read object
     }
 
+    /**
+     * Writes a message to the connection as a single binary frame. Writes
+     * are serialized, so frames written from different threads never
+     * interleave. Frames are compressed before they are sealed, since
+     * sealed records can't be compressed. Frames are encoded into pooled
+     * buffers, which are released once written.
+     *
+     * @param message the message to write
+     */
+    public synchronized void writeMessage(CommonTypes.Message message) throws IOException {
+        // Check has neither secio session nor compression
+        if (this.session == null && this.compressor == null) {
+            Codec.writeFrame(this.dataOutStream, message); // Write the frame
+
+            return; // Done!
+        }
+
+        PooledBuffer frame = Codec.encodePooled(message); // Encode the message
+
+        try {
+            Codec.tryReadVarint(frame.buffer()); // Skip the frame's length, since the body may change length
+
+            // Check compresses frames
+            if (this.compressor != null) {
+                frame = this.compressor.compress(frame); // Compress the body
+            }
+
+            ByteBuffer body = frame.buffer(); // Get the body of the frame
+
+            // Check has secio session
+            if (this.session != null) {
+                this.session.writeRecord(this.dataOutStream, body.array(), body.arrayOffset() + body.position(), body.remaining()); // Seal the body of the frame into a single record
+
+                return; // Done!
+            }
+
+            Codec.writeBody(this.dataOutStream, body); // Write the body with a new length prefix
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single binary frame from the connection.
+     *
+     * @return the read message
+     */
+    public CommonTypes.Message readMessage() throws IOException {
+        PooledBuffer frame = this.readPooledFrame(); // Read the frame
+
+        try {
+            return Codec.decode(frame); // Return the decoded frame
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single binary frame from the connection, without decoding it.
+     *
+     * @return the body of the read frame
+     */
+    public ByteBuffer readFrame() throws IOException {
+        PooledBuffer frame = this.readPooledFrame(); // Read the frame
+
+        try {
+            ByteBuffer body = ByteBuffer.allocate(frame.buffer().remaining()); // Initialize a buffer the caller can keep
+            body.put(frame.buffer()).flip(); // Copy the frame
+
+            return body; // Return the read frame
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single binary frame from the connection into a pooled buffer,
+     * without decoding it.
+     *
+     * @return the body of the read frame
+     */
+    public PooledBuffer readPooledFrame() throws IOException {
+        PooledBuffer frame = this.session != null ? this.session.readPooledRecord(this.dataInStream) : Codec.readPooledBody(this.dataInStream); // Read the body of the frame, opening its record if secio is used
+
+        // Check compresses frames
+        if (this.compressor != null) {
+            try {
+                return this.compressor.decompress(frame); // Return the decompressed body
+            } catch (IOException | RuntimeException e) {
+                frame.release(); // Return the frame
+
+                throw e; // Rethrow
+            }
+        }
+
+        return frame; // Return the read frame
+    }
+
+    /**
+     * Writes a region of a file to the connection as raw bytes. Plaintext
+     * connections hand the region to FileChannel.transferTo, which uses
+     * sendfile when the socket has a channel. Secio connections seal the
+     * region from memory-mapped windows of the file instead. Writes are
+     * serialized with writeMessage, so frames never interleave with the
+     * region.
+     *
+     * @param file the file to write from
+     * @param position the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public synchronized void writeFile(FileChannel file, long position, long count) throws IOException {
+        // Check has secio session
+        if (this.session != null) {
+            this.session.writeFile(this.dataOutStream, file, position, count); // Seal the region
+
+            return; // Done!
+        }
+
+        SocketChannel channel = this.socket.getChannel(); // Get the socket's channel, if it has one
+
+        FileTransfer.transferTo(file, position, count, channel != null ? channel : this.outChannel); // Transfer the region
+    }
+
+    /**
+     * Reads exactly count raw bytes from the connection into a region of a
+     * file.
+     *
+     * @param file the file to read into
+     * @param position the offset of the first byte to read into
+     * @param count the number of bytes to read
+     */
+    public void readFile(FileChannel file, long position, long count) throws IOException {
+        FileTransfer.transferFrom(this.inChannel, file, position, count); // Transfer the region
+    }
+
     /**
      * Flushes the connection.
      */
     public void flush() throws IOException {
         this.dataOutStream.flush(); // Flush data output stream
-        this.objOutStream.flush(); // Flush object output stream
-        this.cipherOutStream.flush(); // Flush cipher output stream
+
+        // Check has object output stream
+        if (this.objOutStream != null) {
+            this.objOutStream.flush(); // Flush object output stream
+        }
     }
 
     /**
@@ -311,12 +413,32 @@ public class TcpSocket implements Connection {
     public void close() throws IOException {
         this.dataOutStream.close(); // Close data outs stream
         this.dataInStream.close(); // Close data in stream
-        this.objOutStream.close(); // Close obj out stream
-        this.objInStream.close(); // Close obj in stream
-        this.cipherOutStream.close(); // Close cipher in stream
-        this.cipherInStream.close(); // Close cipher in stream
+
+        // Check has object output stream
+        if (this.objOutStream != null) {
+            this.objOutStream.close(); // Close obj out stream
+        }
+
+        // Check has object input stream
+        if (this.objInStream != null) {
+            this.objInStream.close(); // Close obj in stream
+        }
 
         this.socket.close(); // Close socket
+
+        // Check compresses frames
+        if (this.compressor != null) {
+            this.compressor.close(); // Release the compressor
+        }
+    }
+
+    /**
+     * Determines whether or not the connection has been closed.
+     *
+     * @return whether or not the socket is closed
+     */
+    public boolean isClosed() {
+        return this.socket.isClosed() || this.socket.isInputShutdown() || this.socket.isOutputShutdown(); // Return whether or not the socket is closed
     }
 
     /**
@@ -327,4 +449,19 @@ public class TcpSocket implements Connection {
     public String getRemoteMultiaddress() {
         return this.remoteAddress; // Return the active remote multiaddress
     }
-}
\ No newline at end of file
+
+    /**
+     * Represents a byte array output stream whose buffer can be read without
+     * copying it.
+     */
+    private static class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        /**
+         * Gets the buffer of the stream. Only the first size() bytes are valid.
+         *
+         * @return the buffer of the stream
+         */
+        private byte[] buffer() {
+            return this.buf; // Return the buffer
+        }
+    }
+}
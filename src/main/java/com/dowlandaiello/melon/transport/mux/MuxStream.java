@@ -0,0 +1,549 @@
+package com.dowlandaiello.melon.transport.mux;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FileTransfer;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Represents a single logical stream within a multiplexed session. Each
+ * direction of a stream is flow-controlled independently: a writer blocks
+ * once it has used up the window granted by the remote peer, and the window
+ * is only granted back as the remote peer consumes the data.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class MuxStream implements Connection {
+    /**
+     * The session the stream belongs to.
+     */
+    private final Session session;
+
+    /**
+     * The id of the stream.
+     */
+    private final int id;
+
+    /**
+     * The data received from the peer, but not yet consumed.
+     */
+    private final ArrayDeque<ByteBuffer> inbound;
+
+    /**
+     * The lock guarding the state of the stream.
+     */
+    private final Object lock;
+
+    /**
+     * The lock held for the whole of each write, so the chunks of concurrent
+     * writes are never interleaved with each other.
+     */
+    private final Object writeLock;
+
+    /**
+     * The number of bytes buffered in the inbound queue.
+     */
+    private int buffered;
+
+    /**
+     * The number of bytes consumed since the last window update was sent.
+     */
+    private int consumed;
+
+    /**
+     * The number of bytes we may still send before waiting on the peer.
+     */
+    private int sendWindow;
+
+    /**
+     * Whether or not the peer has finished writing to the stream.
+     */
+    private boolean remoteClosed;
+
+    /**
+     * Whether or not we have finished writing to the stream.
+     */
+    private boolean localClosed;
+
+    /**
+     * Whether or not the stream has been aborted.
+     */
+    private boolean reset;
+
+    /**
+     * A blocking stream view of the inbound data.
+     */
+    private final InputStream inStream;
+
+    /**
+     * A stream view of the outbound direction.
+     */
+    private final OutputStream outStream;
+
+    /**
+     * The output stream to write objects to (created on first use).
+     */
+    private ObjectOutputStream objOutStream;
+
+    /**
+     * The input stream to read objects from (created on first use).
+     */
+    private ObjectInputStream objInStream;
+
+    /**
+     * Initializes a new stream with the given id.
+     *
+     * @param session the session the stream belongs to
+     * @param id the id of the stream
+     */
+    MuxStream(Session session, int id) {
+        this.session = session; // Set session
+        this.id = id; // Set id
+        this.inbound = new ArrayDeque<>(); // Initialize the inbound queue
+        this.lock = new Object(); // Initialize the lock
+        this.writeLock = new Object(); // Initialize the write lock
+        this.sendWindow = Session.INITIAL_WINDOW; // Start with the initial window
+
+        // Initialize the stream views
+        this.inStream = new InputStream() {
+            public int read() throws IOException {
+                return MuxStream.this.read(); // Return the read byte
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return MuxStream.this.take(b, off, len); // Return the number of read bytes
+            }
+        };
+        this.outStream = new OutputStream() {
+            public void write(int b) throws IOException {
+                MuxStream.this.write(b); // Write the byte
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                MuxStream.this.send(b, off, len); // Write the bytes
+            }
+        };
+    }
+
+    /**
+     * Gets the id of the stream.
+     *
+     * @return the id of the stream
+     */
+    public int getId() {
+        return this.id; // Return the id
+    }
+
+    /**
+     * Gets the session the stream belongs to, which can be used to open
+     * further streams to the same peer.
+     *
+     * @return the session
+     */
+    public Session getSession() {
+        return this.session; // Return the session
+    }
+
+    /**
+     * Writes a single byte to the stream.
+     *
+     * @param b the byte to write to the stream
+     */
+    public void write(int b) throws IOException {
+        this.send(new byte[]{(byte) b}, 0, 1); // Write the byte
+    }
+
+    /**
+     * Reads a single byte from the stream.
+     *
+     * @return the read byte
+     */
+    public int read() throws IOException {
+        byte[] b = new byte[1]; // Initialize a buffer for the byte
+
+        return this.take(b, 0, 1) < 0 ? -1 : b[0] & 0xff; // Return the read byte
+    }
+
+    /**
+     * Writes a byte array to the stream.
+     */
+    public void write(byte[] b) throws IOException {
+        this.send(b, 0, b.length); // Write the bytes
+    }
+
+    /**
+     * Reads some number of bytes from the stream into the buffer b.
+     *
+     * @param b the buffer to read into
+     * @return the number of read bytes
+     */
+    public int read(byte[] b) throws IOException {
+        return this.take(b, 0, b.length); // Return the number of read bytes
+    }
+
+    /**
+     * Writes an object to the stream.
+     *
+     * @param obj the object to write
+     */
+    public void writeObject(Serializable obj) throws IOException {
+        synchronized (this.writeLock) {
+            // Check object stream not yet opened
+            if (this.objOutStream == null) {
+                this.objOutStream = new ObjectOutputStream(this.outStream); // Set object output stream
+            }
+
+            this.objOutStream.writeObject(obj); // Write object
+            this.objOutStream.flush(); // Push the object out as stream data
+        }
+    }
+
+    /**
+     * Reads an object from the stream.
+     *
+     * @return the read object
+     */
+    public Object readObject() throws IOException, ClassNotFoundException {
+        // Check object stream not yet opened
+        if (this.objInStream == null) {
+            this.objInStream = new ObjectInputStream(this.inStream); // Set object input stream
+        }
+
+        return this.objInStream.readObject(); // Return read object
+    }
+
+    /**
+     * Writes a message to the stream as a single binary frame.
+     *
+     * @param message the message to write
+     */
+    public void writeMessage(CommonTypes.Message message) throws IOException {
+        PooledBuffer lease = Codec.encodePooled(message); // Encode the message
+
+        try {
+            ByteBuffer frame = lease.buffer(); // Get the encoded frame
+
+            this.send(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining()); // Write the frame
+        } finally {
+            lease.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single binary frame from the stream.
+     *
+     * @return the read message
+     */
+    public CommonTypes.Message readMessage() throws IOException {
+        PooledBuffer frame = this.readPooledFrame(); // Read the frame
+
+        try {
+            return Codec.decode(frame); // Return the decoded frame
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Reads a single binary frame from the stream, without decoding it.
+     *
+     * @return the body of the read frame
+     */
+    public ByteBuffer readFrame() throws IOException {
+        return Codec.readBody(this.inStream); // Return the read frame
+    }
+
+    /**
+     * Reads a single binary frame from the stream into a pooled buffer,
+     * without decoding it.
+     *
+     * @return the body of the read frame
+     */
+    public PooledBuffer readPooledFrame() throws IOException {
+        return Codec.readPooledBody(this.inStream); // Return the read frame
+    }
+
+    /**
+     * Writes a region of a file to the stream as raw bytes. The region is
+     * copied through a fixed-size buffer into flow-controlled data frames,
+     * since each frame needs its own header.
+     *
+     * @param file the file to write from
+     * @param position the offset of the first byte to write
+     * @param count the number of bytes to write
+     */
+    public void writeFile(FileChannel file, long position, long count) throws IOException {
+        synchronized (this.writeLock) {
+            FileTransfer.transferTo(file, position, count, Channels.newChannel(this.outStream)); // Transfer the region
+        }
+    }
+
+    /**
+     * Reads exactly count raw bytes from the stream into a region of a file.
+     *
+     * @param file the file to read into
+     * @param position the offset of the first byte to read into
+     * @param count the number of bytes to read
+     */
+    public void readFile(FileChannel file, long position, long count) throws IOException {
+        FileTransfer.transferFrom(Channels.newChannel(this.inStream), file, position, count); // Transfer the region
+    }
+
+    /**
+     * Flushes the stream. Stream data is handed to the session as soon as it
+     * is written, so this simply flushes the underlying connection.
+     */
+    public void flush() throws IOException {
+        synchronized (this.writeLock) {
+            this.session.getConnection().flush(); // Flush the underlying connection
+        }
+    }
+
+    /**
+     * Closes our half of the stream. The stream is forgotten once the peer
+     * has closed its half as well.
+     */
+    public void close() throws IOException {
+        boolean remove; // Whether or not both halves are now closed
+
+        synchronized (this.lock) {
+            // Check already closed
+            if (this.localClosed || this.reset) {
+                return; // Nothing to do
+            }
+
+            this.localClosed = true; // Mark our half as closed
+            remove = this.remoteClosed; // Check the peer is already done
+
+            this.lock.notifyAll(); // Wake any blocked writers
+        }
+
+        synchronized (this.writeLock) {
+            this.session.writeFrame(this.id, Session.FIN, null, 0, 0); // Let the peer know we're done, once any write in progress has given up
+        }
+
+        // Check both halves are closed
+        if (remove) {
+            this.session.removeStream(this.id); // Forget the stream
+        }
+    }
+
+    /**
+     * Determines whether or not either half of the stream, or its session,
+     * has been closed.
+     *
+     * @return whether or not the stream is closed
+     */
+    public boolean isClosed() {
+        synchronized (this.lock) {
+            return this.localClosed || this.remoteClosed || this.reset || this.session.isClosed(); // Return whether or not the stream is closed
+        }
+    }
+
+    /**
+     * Get the multiaddress of the connected peer.
+     *
+     * @return the multiaddress of the connected peer
+     */
+    public String getRemoteMultiaddress() {
+        return this.session.getConnection().getRemoteMultiaddress(); // Return the address of the session's peer
+    }
+
+    /**
+     * Buffers data received from the peer. Called by the session as it
+     * routes frames.
+     *
+     * @param data the received data
+     */
+    void onData(ByteBuffer data) throws IOException {
+        boolean overflow; // Whether or not the peer overran its window
+
+        synchronized (this.lock) {
+            overflow = this.buffered + data.remaining() > Session.INITIAL_WINDOW; // Check the peer respected our window
+
+            // Check the data is acceptable
+            if (!overflow && !this.reset) {
+                this.inbound.add(data); // Buffer the data
+                this.buffered += data.remaining(); // Count the data
+
+                this.lock.notifyAll(); // Wake any waiting readers
+            }
+        }
+
+        // Check the peer overran its window
+        if (overflow) {
+            this.onReset(); // Abort the stream
+            this.session.writeFrame(this.id, Session.RST, null, 0, 0); // Let the peer know
+        }
+    }
+
+    /**
+     * Grows the send window of the stream. Called by the session as it
+     * routes frames.
+     *
+     * @param delta the number of additional bytes we may send
+     */
+    void onWindowUpdate(int delta) {
+        synchronized (this.lock) {
+            this.sendWindow += delta; // Grow the window
+
+            this.lock.notifyAll(); // Wake any blocked writers
+        }
+    }
+
+    /**
+     * Marks the peer's half of the stream as closed. Called by the session as
+     * it routes frames.
+     */
+    void onFin() {
+        boolean remove; // Whether or not both halves are now closed
+
+        synchronized (this.lock) {
+            this.remoteClosed = true; // Mark the peer's half as closed
+            remove = this.localClosed; // Check we're already done
+
+            this.lock.notifyAll(); // Wake any waiting readers
+        }
+
+        // Check both halves are closed
+        if (remove) {
+            this.session.removeStream(this.id); // Forget the stream
+        }
+    }
+
+    /**
+     * Aborts the stream.
+     */
+    void onReset() {
+        synchronized (this.lock) {
+            this.reset = true; // Mark the stream as aborted
+            this.inbound.clear(); // Discard any buffered data
+            this.buffered = 0; // Nothing is buffered anymore
+
+            this.lock.notifyAll(); // Wake any blocked readers or writers
+        }
+
+        this.session.removeStream(this.id); // Forget the stream
+    }
+
+    /**
+     * Writes data to the stream in window-sized chunks, blocking whenever the
+     * peer's window is exhausted. The write lock is held until the last
+     * chunk has been written, so a frame is never split up by another write.
+     *
+     * @param b the data to write
+     * @param off the offset of the data
+     * @param len the length of the data
+     */
+    private void send(byte[] b, int off, int len) throws IOException {
+        synchronized (this.writeLock) {
+            // Write until all of the data has been sent
+            while (len > 0) {
+                int chunk; // The size of the next chunk
+
+                synchronized (this.lock) {
+                    // Wait for the peer to grant us some window
+                    while (this.sendWindow == 0 && !this.reset && !this.localClosed) {
+                        try {
+                            this.lock.wait(); // Wait for a window update
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt(); // Preserve the interrupt
+
+                            throw new InterruptedIOException("interrupted while writing to stream"); // Throw exception
+                        }
+                    }
+
+                    // Check can't write
+                    if (this.reset || this.localClosed) {
+                        throw new IOException("attempted to write to a closed stream"); // Throw exception
+                    }
+
+                    chunk = Math.min(len, Math.min(this.sendWindow, Session.MAX_CHUNK)); // Take as much of the window as we can
+                    this.sendWindow -= chunk; // Use up the window
+                }
+
+                this.session.writeFrame(this.id, Session.DATA, b, off, chunk); // Write the chunk
+
+                off += chunk; // Move past the chunk
+                len -= chunk; // Count the chunk
+            }
+        }
+    }
+
+    /**
+     * Moves up to len bytes from the inbound queue into b, blocking until at
+     * least one byte is available. Window updates are sent once half of the
+     * window has been consumed.
+     *
+     * @param b the buffer to read into
+     * @param off the offset to start writing at
+     * @param len the maximum number of bytes to read
+     * @return the number of read bytes, or -1 if the peer has closed the stream
+     */
+    private int take(byte[] b, int off, int len) throws IOException {
+        // Check nothing to read
+        if (len == 0) {
+            return 0; // Nothing to read
+        }
+
+        int read = 0; // The number of bytes read
+        int update = 0; // The window to grant back to the peer
+
+        synchronized (this.lock) {
+            // Wait for data
+            while (this.buffered == 0) {
+                // Check the stream is done
+                if (this.remoteClosed || this.reset) {
+                    return -1; // End of stream
+                }
+
+                try {
+                    this.lock.wait(); // Wait for the session to deliver more data
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Preserve the interrupt
+
+                    throw new InterruptedIOException("interrupted while reading from stream"); // Throw exception
+                }
+            }
+
+            // Read until the buffer is full, or nothing is left
+            while (read < len && !this.inbound.isEmpty()) {
+                ByteBuffer head = this.inbound.peek(); // Get the oldest chunk
+
+                int n = Math.min(len - read, head.remaining()); // Get the number of bytes we can read
+                head.get(b, off + read, n); // Read the bytes
+
+                // Check the chunk has been consumed
+                if (!head.hasRemaining()) {
+                    this.inbound.poll(); // Discard the chunk
+                }
+
+                read += n; // Count the bytes
+            }
+
+            this.buffered -= read; // Stop counting the read bytes
+            this.consumed += read; // Count the consumed bytes
+
+            // Check has consumed enough to grant the window back
+            if (this.consumed >= Session.INITIAL_WINDOW / 2) {
+                update = this.consumed; // Grant the consumed bytes back
+                this.consumed = 0; // Reset the count
+            }
+        }
+
+        // Check should send a window update
+        if (update > 0 && !this.session.isClosed()) {
+            this.session.writeWindowUpdate(this.id, update); // Let the peer send more
+        }
+
+        return read; // Return the number of read bytes
+    }
+}
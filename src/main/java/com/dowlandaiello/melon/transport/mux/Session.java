@@ -0,0 +1,306 @@
+package com.dowlandaiello.melon.transport.mux;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.transport.Transport;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.Pipeline;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Represents a multiplexed session over a single connection. Each logical
+ * stream is carried in MUX frames tagged with the stream's id, so a large
+ * transfer on one stream never blocks the others. The connection is read by
+ * a Pipeline, so a connection serviced by an event loop (see NioSocket)
+ * doesn't tie up a thread for as long as the session is open.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Session {
+    /**
+     * The number of bytes a peer may send on a stream before it has to wait
+     * for a window update.
+     */
+    public static final int INITIAL_WINDOW = 256 * 1024;
+
+    /**
+     * The largest amount of stream data carried in a single frame.
+     */
+    static final int MAX_CHUNK = 64 * 1024;
+
+    /**
+     * The flags identifying each kind of MUX frame.
+     */
+    static final byte SYN = 0, DATA = 1, WINDOW = 2, FIN = 3, RST = 4;
+
+    /**
+     * The connection carrying the session.
+     */
+    private final Connection connection;
+
+    /**
+     * The open streams, keyed by id.
+     */
+    private final ConcurrentHashMap<Integer, MuxStream> streams;
+
+    /**
+     * The id of the next stream opened locally. The dialing side uses odd
+     * ids, and the listening side even ones, so the two never collide.
+     */
+    private final AtomicInteger nextStreamId;
+
+    /**
+     * The callback run for each stream opened by the remote peer (null to
+     * refuse remotely-opened streams).
+     */
+    private final Transport.Callback acceptor;
+
+    /**
+     * The executor used to route the session's frames, read connections
+     * that aren't serviced by an event loop, and run the acceptor.
+     */
+    private final Executor executor;
+
+    /**
+     * The lock serializing frame writes to the connection.
+     */
+    private final Object writeLock;
+
+    /**
+     * Whether or not the session has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Initializes a new session over the given connection.
+     *
+     * @param connection the connection to multiplex
+     * @param initiator whether or not the local peer dialed the connection
+     * @param acceptor the callback to run for each stream opened by the
+     *                 remote peer (null to refuse them)
+     * @param executor the executor used to route the session's frames, read
+     *                 connections that aren't serviced by an event loop, and
+     *                 run the acceptor
+     */
+    public Session(Connection connection, boolean initiator, Transport.Callback acceptor, Executor executor) {
+        this.connection = connection; // Set connection
+        this.streams = new ConcurrentHashMap<>(); // Initialize the streams map
+        this.nextStreamId = new AtomicInteger(initiator ? 1 : 2); // Start from our half of the id space
+        this.acceptor = acceptor; // Set acceptor
+        this.executor = executor; // Set executor
+        this.writeLock = new Object(); // Initialize the write lock
+    }
+
+    /**
+     * Starts reading frames from the connection with a pipeline, which
+     * routes each of them to its stream in the order they arrived. A
+     * connection that pushes its own frames (see Pipeline.Source) is read
+     * without tying up a thread; any other connection is read by a single
+     * blocking reader on the session's executor, regardless of how many
+     * streams are open. The session is closed once the connection is.
+     *
+     * @return the started session
+     */
+    public Session start() {
+        new Pipeline(this.connection, this.executor)
+                .on(Message.Type.MUX, this::route)
+                .onClose(this::closed)
+                .start(this.executor); // Start reading
+
+        return this; // Allow chaining
+    }
+
+    /**
+     * Opens a new stream to the remote peer.
+     *
+     * @return the opened stream
+     */
+    public MuxStream openStream() throws IOException {
+        // Check closed
+        if (this.closed) {
+            throw new IOException("attempted to open a stream on a closed session"); // Throw exception
+        }
+
+        MuxStream stream = new MuxStream(this, this.nextStreamId.getAndAdd(2)); // Initialize the stream
+        this.streams.put(stream.getId(), stream); // Track the stream
+
+        this.writeFrame(stream.getId(), SYN, null, 0, 0); // Let the peer know about the stream
+
+        return stream; // Return the stream
+    }
+
+    /**
+     * Gets the connection carrying the session.
+     *
+     * @return the underlying connection
+     */
+    public Connection getConnection() {
+        return this.connection; // Return the connection
+    }
+
+    /**
+     * Determines whether or not the session has been closed.
+     *
+     * @return whether or not the session is closed
+     */
+    public boolean isClosed() {
+        return this.closed; // Return whether or not the session is closed
+    }
+
+    /**
+     * Closes the session, each of its streams, and the underlying connection.
+     */
+    public void close() throws IOException {
+        this.closed = true; // Mark the session as closed
+
+        // Reset each of the open streams
+        for (MuxStream stream : this.streams.values()) {
+            stream.onReset(); // Reset the stream
+        }
+
+        this.streams.clear(); // Forget the streams
+        this.connection.close(); // Close the connection
+    }
+
+    /**
+     * Writes a single MUX frame to the connection.
+     *
+     * @param streamId the id of the stream the frame belongs to
+     * @param flag the kind of frame
+     * @param data the stream data carried by the frame (if any)
+     * @param off the offset of the data
+     * @param len the length of the data
+     */
+    void writeFrame(int streamId, byte flag, byte[] data, int off, int len) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(Codec.varintSize(streamId) + 1 + len); // Allocate the frame
+        Codec.putVarint(frame, streamId); // Write the stream id
+        frame.put(flag); // Write the flag
+
+        // Check has data
+        if (len > 0) {
+            frame.put(data, off, len); // Write the data
+        }
+
+        synchronized (this.writeLock) {
+            this.connection.writeMessage(new Message(frame.array(), Message.Type.MUX)); // Write the frame
+        }
+    }
+
+    /**
+     * Writes a window update for the given stream.
+     *
+     * @param streamId the id of the stream
+     * @param delta the number of bytes the peer may now send
+     */
+    void writeWindowUpdate(int streamId, int delta) throws IOException {
+        ByteBuffer update = ByteBuffer.allocate(Codec.varintSize(delta)); // Allocate the update
+        Codec.putVarint(update, delta); // Write the delta
+
+        this.writeFrame(streamId, WINDOW, update.array(), 0, update.capacity()); // Write the update
+    }
+
+    /**
+     * Stops tracking the given stream.
+     *
+     * @param streamId the id of the stream
+     */
+    void removeStream(int streamId) {
+        this.streams.remove(streamId); // Forget the stream
+    }
+
+    /**
+     * Routes a MUX frame received on the connection to its stream.
+     *
+     * @param conn the connection the frame was received on
+     * @param message the received frame
+     */
+    private void route(Connection conn, Message message) throws IOException {
+        // Check the session has been closed, or the frame has no body
+        if (this.closed || message.bytes == null) {
+            return; // Drop the frame
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(message.bytes); // Wrap the frame
+        int streamId = Codec.getVarint(frame); // Read the stream id
+        byte flag = frame.get(); // Read the flag
+
+        MuxStream stream = this.streams.get(streamId); // Get the stream
+
+        switch (flag) {
+            case SYN:
+                this.accept(streamId); // Accept the stream
+
+                break;
+            case DATA:
+                // Check stream exists
+                if (stream != null) {
+                    stream.onData(frame.slice()); // Hand the data to the stream
+                }
+
+                break;
+            case WINDOW:
+                // Check stream exists
+                if (stream != null) {
+                    stream.onWindowUpdate(Codec.getVarint(frame)); // Grow the stream's send window
+                }
+
+                break;
+            case FIN:
+                // Check stream exists
+                if (stream != null) {
+                    stream.onFin(); // Let the stream know the peer is done writing
+                }
+
+                break;
+            case RST:
+                // Check stream exists
+                if (stream != null) {
+                    stream.onReset(); // Abort the stream
+                }
+
+                break;
+        }
+    }
+
+    /**
+     * Closes the session once its connection has been closed.
+     */
+    private void closed() {
+        try {
+            this.close(); // Close the session
+        } catch (IOException e) {
+            e.printStackTrace(); // Log the exception
+        }
+    }
+
+    /**
+     * Accepts a stream opened by the remote peer.
+     *
+     * @param streamId the id of the stream
+     */
+    private void accept(int streamId) throws IOException {
+        // Check can't accept the stream
+        if (this.acceptor == null || this.streams.containsKey(streamId) || (streamId & 1) == (this.nextStreamId.get() & 1)) {
+            this.writeFrame(streamId, RST, null, 0, 0); // Refuse the stream
+
+            return; // Done!
+        }
+
+        MuxStream stream = new MuxStream(this, streamId); // Initialize the stream
+        this.streams.put(streamId, stream); // Track the stream
+
+        this.executor.execute(() -> {
+            try {
+                this.acceptor.doCallback(stream); // Do callback
+            } catch (Exception e) {
+                e.printStackTrace(); // Log errors
+            }
+        });
+    }
+}
@@ -0,0 +1,43 @@
+package com.dowlandaiello.melon.transport.mux;
+
+import com.dowlandaiello.melon.transport.Upgrade;
+
+/**
+ * Represents a stream multiplexing upgrade. Once negotiated, a single
+ * connection carries many independent, flow-controlled streams.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Yamux implements Upgrade {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Gets the upgrade type of an upgrade.
+     *
+     * @return the type of the upgrade
+     */
+    public Type getType() {
+        return Type.MUX; // Return the MUX type
+    }
+
+    /**
+     * Gets the respective config of an upgrade for a particular transport
+     * direction.
+     *
+     * @param address the peer address to get a config for
+     * @return the initial receive window of each stream
+     */
+    public Object getConfig(String address) {
+        return Session.INITIAL_WINDOW; // Return the initial window
+    }
+
+    /**
+     * Converts the upgrade to a string.
+     *
+     * @return the string representation of the upgrade
+     */
+    public String toString() {
+        return "yamux"; // Return yamux name
+    }
+}
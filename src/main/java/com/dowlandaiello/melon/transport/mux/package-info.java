@@ -0,0 +1,7 @@
+/**
+ * Implements stream multiplexing over a single connection.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+package com.dowlandaiello.melon.transport.mux;
\ No newline at end of file
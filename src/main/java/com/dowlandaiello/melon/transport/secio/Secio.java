@@ -2,17 +2,27 @@ package com.dowlandaiello.melon.transport.secio;
 
 import com.dowlandaiello.melon.transport.Upgrade;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import java.security.InvalidKeyException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
 import java.security.KeyPair;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Map;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
 
 /**
- * Represents a secio upgrade.
- * 
+ * Represents a secio upgrade. Each connection agrees on its own session keys
+ * through two ECDH exchanges: one between single-use ephemeral keys, which
+ * keeps past sessions secret should an identity key leak, and one between
+ * the identity keys of both peers, which proves each peer holds the private
+ * key behind the public key it advertised. Both secrets are run through
+ * HKDF-SHA256 to derive an AES-GCM key for each direction.
+ *
  * @author Dowland Aiello
  * @since 1.0
  */
@@ -20,38 +30,96 @@ public class Secio implements Upgrade {
     private static final long serialVersionUID = 1L;
 
     /**
-     * The cipher instance used for outbound communications.
+     * The curve used for identity and ephemeral keys.
      */
-    private final Cipher cipherOut;
+    public static final String CURVE = "secp256r1";
 
     /**
-     * The cipher instances used for inbound connections.
+     * The length of each session key, in bytes.
      */
-    private Map<String, Cipher> cipherIn;
+    private static final int KEY_LENGTH = 16;
 
     /**
-     * Initializes a new secio upgrade with the given sender keypair.
-     * @param senderKeypair the keypair used to encrypt outgoing communications
+     * The salt used to extract session keys from the shared secrets.
      */
-    public Secio(KeyPair senderKeypair) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
-        Cipher cipherOut = Cipher.getInstance("AES/ECB/PKCS5Padding"); // Get cipher instance
+    private static final byte[] SALT = "melon-secio-v1".getBytes(StandardCharsets.UTF_8);
 
-        cipherOut.init(Cipher.ENCRYPT_MODE, senderKeypair.getPrivate()); // Initialize cipher
+    /**
+     * The keypair identifying the local peer (never sent to remote peers).
+     */
+    private final transient KeyPair identity;
 
-        this.cipherOut = cipherOut; // Set cipher out
-        this.cipherIn = new HashMap<>(); // Set cipher in
+    /**
+     * Initializes a new secio upgrade with the given identity keypair.
+     *
+     * @param identity the secp256r1 keypair identifying the local peer
+     */
+    public Secio(KeyPair identity) {
+        this.identity = identity; // Set identity
     }
 
     /**
-     * Registers a new cipher instance for the specified peer.
+     * Generates a single-use keypair for a new session.
+     *
+     * @return the generated keypair
      */
-    public void registerPeerCipher(String address, Cipher cipher) {
-        this.cipherIn.put(address, cipher); // Add cipher to map of ciphers
+    public KeyPair generateEphemeralKeyPair() throws IOException {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC"); // Initialize keypair generator
+            generator.initialize(new ECGenParameterSpec(CURVE), new SecureRandom()); // Use the identity curve
+
+            return generator.generateKeyPair(); // Return the keypair
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to generate ephemeral key", e); // Throw exception
+        }
+    }
+
+    /**
+     * Derives the session of a connection from the keys exchanged during
+     * negotiation.
+     *
+     * @param ephemeral the local ephemeral keypair
+     * @param peerIdentity the identity public key of the remote peer
+     * @param peerEphemeral the ephemeral public key of the remote peer
+     * @param initiator whether or not the local peer dialed the connection
+     * @return the established session
+     */
+    public SecureSession establish(KeyPair ephemeral, Key peerIdentity, Key peerEphemeral, boolean initiator) throws IOException {
+        // Check the peer didn't send both of its keys
+        if (peerIdentity == null || peerEphemeral == null) {
+            throw new IOException("peer didn't send the keys required to establish a secio session"); // Throw exception
+        }
+
+        try {
+            byte[] ephemeralSecret = agree(ephemeral.getPrivate(), peerEphemeral); // Agree on the ephemeral secret
+            byte[] identitySecret = agree(this.identity.getPrivate(), peerIdentity); // Agree on the identity secret
+
+            byte[] initiatorKey = initiator ? ephemeral.getPublic().getEncoded() : peerEphemeral.getEncoded(); // Get the dialer's ephemeral key
+            byte[] responderKey = initiator ? peerEphemeral.getEncoded() : ephemeral.getPublic().getEncoded(); // Get the listener's ephemeral key
+
+            Mac hmac = Mac.getInstance("HmacSHA256"); // Initialize an hmac instance
+
+            hmac.init(new SecretKeySpec(SALT, "HmacSHA256")); // Extract with the protocol salt
+            hmac.update(ephemeralSecret); // Add the ephemeral secret
+            byte[] prk = hmac.doFinal(identitySecret); // Add the identity secret
+
+            hmac.init(new SecretKeySpec(prk, "HmacSHA256")); // Expand the extracted key
+            hmac.update(initiatorKey); // Bind the session to the dialer's ephemeral key
+            hmac.update(responderKey); // Bind the session to the listener's ephemeral key
+            byte[] okm = hmac.doFinal(new byte[]{1}); // Derive both directional keys
+
+            SecretKeySpec initiatorToResponder = new SecretKeySpec(Arrays.copyOfRange(okm, 0, KEY_LENGTH), "AES"); // Get the dialer's sending key
+            SecretKeySpec responderToInitiator = new SecretKeySpec(Arrays.copyOfRange(okm, KEY_LENGTH, KEY_LENGTH * 2), "AES"); // Get the listener's sending key
+
+            return initiator ? new SecureSession(initiatorToResponder, responderToInitiator) : new SecureSession(responderToInitiator, initiatorToResponder); // Return the session
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to establish secio session", e); // Throw exception
+        }
     }
 
     /**
      * Gets the upgrade type of an upgrade.
-     * 
+     *
      * @return the type of the upgrade
      */
     public Type getType() {
@@ -61,25 +129,36 @@ public class Secio implements Upgrade {
     /**
      * Gets the respective config of an upgrade for a particular transport
      * direction.
-     * 
+     *
      * @param address the peer address to get a secio config for
-     * @return the upgrade's configuration
+     * @return the public identity key of the local peer, which is the same for every address
      */
     public Object getConfig(String address) {
-        // Check is localhost
-        if (address.contains("127.0.0.1")) {
-            return this.cipherOut; // Return cipher used for outbound communications
-        }
-
-        return this.cipherIn.get(address); // Return cipher used for communication with specified address
+        return this.identity.getPublic(); // Return the public identity key
     }
 
     /**
      * Converts the upgrade to a string.
-     * 
+     *
      * @return the string representation of the upgrade
      */
     public String toString() {
         return "secio"; // Return secio name
     }
-}
\ No newline at end of file
+
+    /**
+     * Performs an ECDH key agreement.
+     *
+     * @param privateKey the local private key
+     * @param publicKey the remote public key
+     * @return the shared secret
+     */
+    private static byte[] agree(Key privateKey, Key publicKey) throws GeneralSecurityException {
+        KeyAgreement agreement = KeyAgreement.getInstance("ECDH"); // Initialize a key agreement instance
+
+        agreement.init(privateKey); // Use the local private key
+        agreement.doPhase(publicKey, true); // Use the remote public key
+
+        return agreement.generateSecret(); // Return the shared secret
+    }
+}
@@ -0,0 +1,388 @@
+package com.dowlandaiello.melon.transport.secio;
+
+import com.dowlandaiello.melon.transport.connection.BufferPool;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.FileTransfer;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Represents the encrypted session of a single secio connection. Data is
+ * sealed into AES-GCM records, each of which carries a varint length, the
+ * ciphertext, and a 16 byte authentication tag. Each direction has its own
+ * key, and the nonce of a record is its sequence number in that direction,
+ * so nonces are never sent on the wire, and a dropped, replayed, or
+ * reordered record fails authentication.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SecureSession {
+    /**
+     * The cipher used to seal and open records.
+     */
+    public static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    /**
+     * The length of the authentication tag appended to each record, in bytes.
+     */
+    public static final int TAG_LENGTH = 16;
+
+    /**
+     * The length of the nonce of each record, in bytes.
+     */
+    private static final int NONCE_LENGTH = 12;
+
+    /**
+     * The largest number of bytes of a file sealed into a single record
+     * (leaving room for the tag and length, so each record fits a 64 KB
+     * pooled buffer).
+     */
+    private static final int FILE_RECORD_LENGTH = 64 * 1024 - 32;
+
+    /**
+     * An empty buffer, read before the first record has been opened.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * The key used to seal outbound records.
+     */
+    private final SecretKey sendKey;
+
+    /**
+     * The key used to open inbound records.
+     */
+    private final SecretKey receiveKey;
+
+    /**
+     * The cipher used to seal outbound records.
+     */
+    private final Cipher sealer;
+
+    /**
+     * The cipher used to open inbound records.
+     */
+    private final Cipher opener;
+
+    /**
+     * The sequence number of the next outbound record.
+     */
+    private long sendSequence;
+
+    /**
+     * The sequence number of the next inbound record.
+     */
+    private long receiveSequence;
+
+    /**
+     * Initializes a new session with the given directional keys.
+     *
+     * @param sendKey the key used to seal outbound records
+     * @param receiveKey the key used to open inbound records
+     */
+    public SecureSession(SecretKey sendKey, SecretKey receiveKey) throws GeneralSecurityException {
+        this.sendKey = sendKey; // Set send key
+        this.receiveKey = receiveKey; // Set receive key
+        this.sealer = Cipher.getInstance(TRANSFORMATION); // Initialize the sealing cipher
+        this.opener = Cipher.getInstance(TRANSFORMATION); // Initialize the opening cipher
+    }
+
+    /**
+     * Seals the given bytes into a single record, and writes it to a stream.
+     * Each record costs a fixed TAG_LENGTH bytes, plus its length prefix.
+     *
+     * @param out the stream to write the record to
+     * @param b the bytes to seal
+     * @param off the offset of the first byte to seal
+     * @param len the number of bytes to seal
+     */
+    public void writeRecord(OutputStream out, byte[] b, int off, int len) throws IOException {
+        int sealedLength = len + TAG_LENGTH; // Get the length of the ciphertext
+        int headerLength = Codec.varintSize(sealedLength); // Get the length of the record's header
+
+        PooledBuffer record = BufferPool.HEAP.lease(headerLength + sealedLength); // Lease a buffer for the record
+
+        try {
+            Codec.putVarint(record.buffer(), sealedLength); // Write the length of the ciphertext
+
+            // Hold the sealing lock, so records are written in nonce order
+            synchronized (this.sealer) {
+                this.seal(b, off, len, record.buffer().array(), headerLength); // Encrypt the bytes
+
+                out.write(record.buffer().array(), 0, headerLength + sealedLength); // Write the record
+            }
+        } finally {
+            record.release(); // Return the record's buffer
+        }
+    }
+
+    /**
+     * Seals the remaining bytes of a buffer into a single record, and writes
+     * it to a stream. The bytes are copied straight into a pooled record
+     * buffer and sealed in place, so a direct or memory-mapped buffer is
+     * never copied onto the heap by anything else.
+     *
+     * @param out the stream to write the record to
+     * @param plaintext the bytes to seal (consumed)
+     */
+    public void writeRecord(OutputStream out, ByteBuffer plaintext) throws IOException {
+        int len = plaintext.remaining(); // Get the number of bytes to seal
+        int sealedLength = len + TAG_LENGTH; // Get the length of the ciphertext
+        int headerLength = Codec.varintSize(sealedLength); // Get the length of the record's header
+
+        PooledBuffer lease = BufferPool.HEAP.lease(headerLength + sealedLength); // Lease a buffer for the record
+
+        try {
+            byte[] record = lease.buffer().array(); // Get the record's array
+
+            Codec.putVarint(lease.buffer(), sealedLength); // Write the length of the ciphertext
+            plaintext.get(record, headerLength, len); // Copy the bytes into the record
+
+            // Hold the sealing lock, so records are written in nonce order
+            synchronized (this.sealer) {
+                this.seal(record, headerLength, len, record, headerLength); // Encrypt the bytes in place
+
+                out.write(record, 0, headerLength + sealedLength); // Write the record
+            }
+        } finally {
+            lease.release(); // Return the record's buffer
+        }
+    }
+
+    /**
+     * Seals a region of a file into records of at most FILE_RECORD_LENGTH
+     * bytes each, and writes them to a stream. The file is read through
+     * memory-mapped windows, so it is never copied onto the heap, and the
+     * records are opened by the peer as a plain stream of bytes.
+     *
+     * @param out the stream to write the records to
+     * @param file the file to seal
+     * @param position the offset of the first byte to seal
+     * @param count the number of bytes to seal
+     */
+    public void writeFile(OutputStream out, FileChannel file, long position, long count) throws IOException {
+        FileTransfer.forEachWindow(file, position, count, (MappedByteBuffer window) -> {
+            // Seal each record of the window
+            while (window.hasRemaining()) {
+                ByteBuffer chunk = window.slice(); // Get the rest of the window
+                chunk.limit(Math.min(FILE_RECORD_LENGTH, chunk.remaining())); // Take a single record's worth
+
+                this.writeRecord(out, chunk); // Seal the record
+                window.position(window.position() + chunk.limit()); // Move past the sealed bytes
+            }
+        }); // Seal each window of the region
+    }
+
+    /**
+     * Reads a single record from a stream, and opens it.
+     *
+     * @param in the stream to read the record from
+     * @return the plaintext of the record
+     */
+    public ByteBuffer readRecord(InputStream in) throws IOException {
+        PooledBuffer record = this.readPooledRecord(in); // Read the record
+
+        try {
+            ByteBuffer plaintext = ByteBuffer.allocate(record.buffer().remaining()); // Initialize a buffer the caller can keep
+            plaintext.put(record.buffer()).flip(); // Copy the plaintext
+
+            return plaintext; // Return the plaintext
+        } finally {
+            record.release(); // Return the record's buffer
+        }
+    }
+
+    /**
+     * Reads a single record from a stream, and opens it into a buffer leased
+     * from the shared heap pool. The plaintext must be released once it has
+     * been handled.
+     *
+     * @param in the stream to read the record from
+     * @return the plaintext of the record
+     */
+    public PooledBuffer readPooledRecord(InputStream in) throws IOException {
+        synchronized (this.opener) {
+            int sealedLength = Codec.readVarint(in); // Read the length of the ciphertext
+
+            // Check the record has an invalid length
+            if (sealedLength < TAG_LENGTH || sealedLength > Codec.MAX_FRAME_SIZE + TAG_LENGTH) {
+                throw new IOException(String.format("invalid secio record length (%d)", sealedLength)); // Throw exception
+            }
+
+            PooledBuffer sealed = BufferPool.HEAP.lease(sealedLength); // Lease a buffer for the ciphertext
+            PooledBuffer plaintext = null; // The lease of the plaintext
+
+            try {
+                Codec.readFully(in, sealed.buffer().array(), 0, sealedLength); // Read the ciphertext
+
+                plaintext = BufferPool.HEAP.lease(sealedLength - TAG_LENGTH); // Lease a buffer for the plaintext
+
+                this.opener.init(Cipher.DECRYPT_MODE, this.receiveKey, nonce(this.receiveSequence++)); // Use the next nonce
+                this.opener.doFinal(sealed.buffer().array(), 0, sealedLength, plaintext.buffer().array(), 0); // Decrypt and authenticate the record
+
+                PooledBuffer opened = plaintext; // Hand the plaintext to the caller
+                plaintext = null; // Don't release the handed over plaintext
+
+                return opened; // Return the plaintext
+            } catch (GeneralSecurityException e) {
+                throw new IOException("secio record failed authentication", e); // Throw exception
+            } finally {
+                sealed.release(); // Return the ciphertext's buffer
+
+                // Check failed before the plaintext was handed over
+                if (plaintext != null) {
+                    plaintext.release(); // Return the plaintext's buffer
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps a stream, sealing each write into its own record.
+     *
+     * @param out the stream to write records to
+     * @return the sealing stream
+     */
+    public OutputStream sealing(OutputStream out) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                this.write(new byte[]{(byte) b}, 0, 1); // Seal the byte
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                // Check has nothing to write
+                if (len == 0) {
+                    return; // Don't send empty records
+                }
+
+                SecureSession.this.writeRecord(out, b, off, len); // Write the record
+            }
+
+            public void flush() throws IOException {
+                out.flush(); // Flush the stream
+            }
+
+            public void close() throws IOException {
+                out.close(); // Close the stream
+            }
+        };
+    }
+
+    /**
+     * Wraps a stream, opening each record read from it.
+     *
+     * @param in the stream to read records from
+     * @return the opening stream
+     */
+    public InputStream opening(InputStream in) {
+        return new InputStream() {
+            /**
+             * The lease of the record being read (null before the first).
+             */
+            private PooledBuffer lease;
+
+            /**
+             * The plaintext of the record being read.
+             */
+            private ByteBuffer record = EMPTY;
+
+            public int read() throws IOException {
+                this.fill(); // Make sure there is plaintext to read
+
+                return this.record.get() & 0xff; // Return the next byte
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                // Check has nothing to read
+                if (len == 0) {
+                    return 0; // Nothing read
+                }
+
+                this.fill(); // Make sure there is plaintext to read
+
+                int n = Math.min(len, this.record.remaining()); // Read at most the rest of the record
+                this.record.get(b, off, n); // Read the bytes
+
+                return n; // Return the number of read bytes
+            }
+
+            public int available() {
+                return this.record.remaining(); // Return the plaintext left in the record
+            }
+
+            public void close() throws IOException {
+                this.drop(); // Return the buffer of the record being read
+                in.close(); // Close the stream
+            }
+
+            /**
+             * Reads and opens records until one has plaintext. The end of
+             * the underlying stream is reported as an EOFException.
+             */
+            private void fill() throws IOException {
+                // Open records until one has plaintext
+                while (!this.record.hasRemaining()) {
+                    this.drop(); // Return the buffer of the consumed record
+
+                    this.lease = SecureSession.this.readPooledRecord(in); // Open the next record
+                    this.record = this.lease.buffer(); // Read the record's plaintext
+                }
+            }
+
+            /**
+             * Releases the record being read, if any.
+             */
+            private void drop() {
+                // Check holds a record
+                if (this.lease != null) {
+                    this.lease.release(); // Return the record's buffer
+                    this.lease = null; // Forget the record
+                    this.record = EMPTY; // Nothing left to read
+                }
+            }
+        };
+    }
+
+    /**
+     * Encrypts bytes with the next outbound nonce. Must hold the sealing
+     * lock.
+     *
+     * @param in the bytes to encrypt
+     * @param inOff the offset of the first byte to encrypt
+     * @param len the number of bytes to encrypt
+     * @param out the buffer to write the ciphertext and tag to (may be in)
+     * @param outOff the offset to write the ciphertext at
+     */
+    private void seal(byte[] in, int inOff, int len, byte[] out, int outOff) throws IOException {
+        try {
+            this.sealer.init(Cipher.ENCRYPT_MODE, this.sendKey, nonce(this.sendSequence++)); // Use the next nonce
+            this.sealer.doFinal(in, inOff, len, out, outOff); // Encrypt the bytes
+        } catch (GeneralSecurityException e) {
+            throw new IOException("unable to seal record", e); // Throw exception
+        }
+    }
+
+    /**
+     * Builds the nonce of the record with the given sequence number.
+     *
+     * @param sequence the sequence number of the record
+     * @return the parameters of the record
+     */
+    private static GCMParameterSpec nonce(long sequence) {
+        byte[] iv = new byte[NONCE_LENGTH]; // Initialize the nonce
+        ByteBuffer.wrap(iv, NONCE_LENGTH - 8, 8).putLong(sequence); // Write the sequence number
+
+        return new GCMParameterSpec(TAG_LENGTH * 8, iv); // Return the parameters
+    }
+}
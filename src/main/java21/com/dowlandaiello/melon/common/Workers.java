@@ -0,0 +1,87 @@
+package com.dowlandaiello.melon.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implements a set of helper methods used to construct the executors that
+ * melon runs its background work on. This is the Java 21 version of the
+ * class, which is loaded from the multi-release jar and supports virtual
+ * threads.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class Workers {
+    /**
+     * Prevents instantiation.
+     */
+    private Workers() {
+    }
+
+    /**
+     * Determines whether or not the running JVM supports virtual threads.
+     *
+     * @return whether or not virtual threads are supported
+     */
+    public static boolean supportsVirtualThreads() {
+        return true; // Virtual threads are available
+    }
+
+    /**
+     * Constructs an executor that runs each task on its own virtual thread.
+     *
+     * @param name the prefix of the names of the executor's threads
+     * @return the virtual thread executor
+     */
+    public static ExecutorService newVirtualThreadExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(String.format("%s-", name), 0).factory()); // Return the executor
+    }
+
+    /**
+     * Constructs an executor for tasks that block for as long as a
+     * connection is open (such as connection readers), running each task on
+     * its own virtual thread.
+     *
+     * @param name the prefix of the names of the executor's threads
+     * @return the blocking executor
+     */
+    public static ExecutorService newBlockingExecutor(String name) {
+        return newVirtualThreadExecutor(name); // Block on virtual threads
+    }
+
+    /**
+     * Constructs an executor that runs tasks on a fixed number of daemon
+     * threads, queueing any tasks submitted while all of them are busy.
+     *
+     * @param name the prefix of the names of the executor's threads
+     * @param threads the number of threads to run tasks on
+     * @return the bounded executor
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), daemonThreadFactory(name)); // Return the executor
+    }
+
+    /**
+     * Constructs a thread factory that names its threads with the given
+     * prefix, and doesn't keep the JVM alive.
+     *
+     * @param name the prefix of the names of the threads
+     * @return the thread factory
+     */
+    public static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger(); // The number of threads created so far
+
+        return (Runnable task) -> {
+            Thread thread = new Thread(task, String.format("%s-%d", name, count.getAndIncrement())); // Initialize the thread
+            thread.setDaemon(true); // Don't keep the JVM alive just for the thread
+
+            return thread; // Return the thread
+        };
+    }
+}
@@ -0,0 +1,69 @@
+package com.dowlandaiello.melon.common;
+
+import com.dowlandaiello.melon.common.CommonTypes.MultiAddress;
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the interning of parsed multiaddresses.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class MultiAddressTest extends TestCase {
+    /**
+     * The key used by every address in the tests.
+     */
+    private static final String KEY = "00112233";
+
+    /**
+     * Tests that the least recently used address is evicted once the
+     * interning table is full.
+     */
+    public void testEvictsLeastRecentlyUsed() throws MultiAddress.InvalidMultiAddressException {
+        MultiAddress first = MultiAddress.parse("/ip4/10.0.0.1/tcp/1/" + KEY); // Parse an address
+        MultiAddress used = MultiAddress.parse("/ip4/10.0.0.2/tcp/1/" + KEY); // Parse an address that will be kept in use
+
+        assertSame(first, MultiAddress.parse("/ip4/10.0.0.1/tcp/1/" + KEY)); // Check the address was interned
+
+        // Fill the table
+        for (int port = 0; port < MultiAddress.MAX_INTERNED; port++) {
+            MultiAddress.parse(String.format("/ip4/10.0.1.1/tcp/%d/%s", port, KEY)); // Parse an ephemeral address
+
+            // Check should use the address
+            if (port % 64 == 0) {
+                assertSame(used, MultiAddress.parse("/ip4/10.0.0.2/tcp/1/" + KEY)); // Use the address, keeping it interned
+            }
+        }
+
+        assertNotSame(first, MultiAddress.parse("/ip4/10.0.0.1/tcp/1/" + KEY)); // Check the unused address was evicted
+        assertSame(used, MultiAddress.parse("/ip4/10.0.0.2/tcp/1/" + KEY)); // Check the used address was kept
+    }
+
+    /**
+     * Tests that addresses read off the wire aren't interned, but resolve
+     * to the interned instance when there is one.
+     */
+    public void testDoesNotInternWireAddresses() throws MultiAddress.InvalidMultiAddressException {
+        MultiAddress address = MultiAddress.parse("/ip4/10.0.2.1/tcp/1/" + KEY); // Parse an address
+        ByteBuffer buffer = ByteBuffer.allocate(address.getBinaryLength()); // Initialize a buffer for the binary form
+        address.writeBinary(buffer); // Write the binary form
+
+        assertSame(address, MultiAddress.readBinary((ByteBuffer) buffer.flip())); // Check resolves to the interned address
+
+        MultiAddress other = MultiAddress.parse("/ip4/10.0.2.2/tcp/1/" + KEY); // Parse another address
+        buffer = ByteBuffer.allocate(other.getBinaryLength()); // Initialize a buffer for the binary form
+        other.writeBinary(buffer); // Write the binary form
+
+        // Fill the table, evicting the address
+        for (int port = 0; port < MultiAddress.MAX_INTERNED; port++) {
+            MultiAddress.parse(String.format("/ip4/10.0.3.1/tcp/%d/%s", port, KEY)); // Parse an ephemeral address
+        }
+
+        MultiAddress read = MultiAddress.readBinary((ByteBuffer) buffer.flip()); // Read the address off the "wire"
+
+        assertEquals(other, read); // Check the address was read
+        assertNotSame(read, MultiAddress.parse(read.toString())); // Check reading the address didn't intern it
+    }
+}
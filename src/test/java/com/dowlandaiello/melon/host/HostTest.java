@@ -0,0 +1,305 @@
+package com.dowlandaiello.melon.host;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.pubsub.Handler;
+import com.dowlandaiello.melon.pubsub.Message;
+import com.dowlandaiello.melon.pubsub.MessageStream;
+import com.dowlandaiello.melon.pubsub.SubscriptionManager;
+import com.dowlandaiello.melon.transport.Tcp;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.secio.Secio;
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests hosts talking to each other over real connections.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class HostTest extends TestCase {
+    /**
+     * The longest a test waits for a listener to bind, or to stop once its
+     * host is closed (in seconds).
+     */
+    private static final int LISTEN_TIMEOUT = 10;
+
+    /**
+     * The hosts started by the test, closed once it's done.
+     */
+    private List<Host> hosts;
+
+    /**
+     * The threads running the hosts' listeners.
+     */
+    private List<Thread> listeners;
+
+    /**
+     * The exceptions thrown by the listeners.
+     */
+    private List<Throwable> listenerFailures;
+
+    /**
+     * Initializes the lists of started hosts and their listeners.
+     */
+    @Override
+    protected void setUp() {
+        this.hosts = new ArrayList<>(); // Nothing has been started yet
+        this.listeners = new ArrayList<>(); // Nothing is listening yet
+        this.listenerFailures = new CopyOnWriteArrayList<>(); // Nothing has failed yet
+    }
+
+    /**
+     * Closes each of the started hosts, waits for their listeners to stop,
+     * and fails the test if any of the listeners threw.
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        // Close each of the hosts
+        for (Host host : this.hosts) {
+            host.close(); // Close the host
+        }
+
+        // Wait for each of the listeners to stop
+        for (Thread listener : this.listeners) {
+            listener.join(TimeUnit.SECONDS.toMillis(LISTEN_TIMEOUT)); // Wait for the listener to stop
+
+            assertFalse(listener.isAlive()); // Check the listener stopped once its host was closed
+        }
+
+        // Check a listener threw
+        if (!this.listenerFailures.isEmpty()) {
+            AssertionFailedError failure = new AssertionFailedError("listener failed: " + this.listenerFailures.get(0)); // Fail the test
+            failure.initCause(this.listenerFailures.get(0)); // Keep the listener's stack trace
+
+            throw failure; // Fail the test
+        }
+    }
+
+    /**
+     * Tests that a host whose executor has a single thread still reads
+     * each of its connections, since readers don't run on that executor.
+     */
+    public void testSingleThreadedExecutor() throws Exception {
+        Host host = this.newHost(Host.ExecutorOption.bounded(1)); // Initialize a host with a single worker
+        CountDownLatch received = new CountDownLatch(3); // Wait for a message from each peer
+
+        host.pubsub.subscribe("test", (Message message) -> received.countDown()); // Count the received messages
+
+        String address = this.listen(host); // Start listening
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC"); // Get a key pair generator
+        generator.initialize(new ECGenParameterSpec("secp256r1")); // Use the same curve as a host
+
+        ArrayList<Connection> peers = new ArrayList<>(); // The connections to the host
+
+        // Connect several peers to the host
+        for (int i = 0; i < 3; i++) {
+            KeyPair identity = generator.generateKeyPair(); // Generate the peer's identity
+
+            peers.add(new Tcp().withUpgrade(new Secio(identity)).dial(address, identity.getPublic())); // Connect to the host
+        }
+
+        // Publish a message from each of the peers
+        for (Connection peer : peers) {
+            peer.writeMessage(new CommonTypes.Message(new Message("test", "hello"), CommonTypes.Message.Type.PUBSUB)); // Send the message
+            peer.flush(); // Flush the message
+        }
+
+        assertTrue(received.await(10, TimeUnit.SECONDS)); // Check every message was received
+
+        // Close each of the connections
+        for (Connection peer : peers) {
+            peer.close(); // Close the connection
+        }
+
+        long deadline = System.currentTimeMillis() + 10000; // Give the host ten seconds to notice
+
+        // Wait for the host to forget the closed connections
+        while (!host.peerstore.getRegisteredPeers().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50); // Check again shortly
+        }
+
+        assertTrue(host.peerstore.getRegisteredPeers().isEmpty()); // Check every closed connection was unregistered
+
+        host.executor.shutdownNow(); // Stop the single worker, which belongs to the test
+    }
+
+    /**
+     * Tests that two hosts deliver messages to each other in both
+     * directions, once one has dialed the other, since the dialed
+     * connection is read the same way as the accepted one.
+     */
+    public void testPublishBothWays() throws Exception {
+        Host listener = this.newHost(); // Initialize the host being dialed
+        Host dialer = this.newHost(); // Initialize the host dialing it
+        CountDownLatch listenerReceived = new CountDownLatch(1); // Wait for a message on the listener
+        CountDownLatch dialerReceived = new CountDownLatch(1); // Wait for a message on the dialer
+
+        listener.pubsub.subscribe("test", (Message message) -> listenerReceived.countDown()); // Count the listener's messages
+        dialer.pubsub.subscribe("test", (Message message) -> dialerReceived.countDown()); // Count the dialer's messages
+
+        String address = this.listen(listener); // Start listening
+
+        dialer.peerstore.bootstrap(address, dialer.transport, dialer.keypair.getPublic()); // Connect to the listener
+
+        assertTrue(publishUntilReceived(dialer, listenerReceived)); // Check the dialer's message was received
+        assertTrue(publishUntilReceived(listener, dialerReceived)); // Check the listener's message was received
+    }
+
+    /**
+     * Tests that a streamed message is handed to every handler subscribed to
+     * its topic, and that a stream the subscriber refuses isn't counted as
+     * delivered.
+     */
+    public void testPublishStream() throws Exception {
+        Host listener = this.newHost(); // Initialize the host being dialed
+        Host dialer = this.newHost(); // Initialize the host dialing it
+        byte[] payload = new byte[3 * SubscriptionManager.STREAM_CHUNK_SIZE + 17]; // A payload spanning several chunks
+        CountDownLatch received = new CountDownLatch(2); // Wait for the payload on each handler
+        AtomicInteger complete = new AtomicInteger(); // The number of handlers that read the whole payload
+
+        new Random(1).nextBytes(payload); // Fill the payload
+
+        // Subscribe a couple of handlers to the streamed topic
+        for (int i = 0; i < 2; i++) {
+            listener.pubsub.subscribe("stream", new Handler() {
+                public void handleIncomingMessage(Message message) {
+                }
+
+                public void handleIncomingStream(MessageStream stream) throws IOException {
+                    ByteArrayOutputStream read = new ByteArrayOutputStream(); // The read payload
+                    byte[] buffer = new byte[8192]; // Read a little at a time
+                    int length; // The number of bytes read
+
+                    // Read the whole stream
+                    while ((length = stream.read(buffer)) > 0) {
+                        read.write(buffer, 0, length); // Keep the bytes
+                    }
+
+                    // Check the whole payload was read
+                    if (Arrays.equals(payload, read.toByteArray())) {
+                        complete.incrementAndGet(); // Count the handler
+                    }
+
+                    received.countDown(); // Done with the stream
+                }
+            }); // Read the whole payload
+        }
+
+        // Subscribe more handlers to a topic than can be run at once
+        for (int i = 0; i <= SubscriptionManager.MAX_STREAM_HANDLERS; i++) {
+            listener.pubsub.subscribe("crowded", (Message message) -> { }); // Subscribe another handler
+        }
+
+        String address = this.listen(listener); // Start listening
+
+        dialer.peerstore.bootstrap(address, dialer.transport, dialer.keypair.getPublic()); // Connect to the listener
+
+        int peers = 0; // The number of peers the stream was delivered to
+
+        // Wait for the dialer to learn the listener's subscriptions
+        for (int i = 0; i < 50 && peers == 0; i++) {
+            peers = dialer.pubsub.publishStream("stream", new ByteArrayInputStream(payload)); // Stream the payload
+
+            // Check the stream wasn't delivered
+            if (peers == 0) {
+                Thread.sleep(100); // Try again shortly
+            }
+        }
+
+        assertEquals(1, peers); // Check the stream was delivered to the listener
+        assertTrue(received.await(10, TimeUnit.SECONDS)); // Check both handlers were handed the stream
+        assertEquals(2, complete.get()); // Check both handlers read the whole payload
+        assertEquals(0, dialer.pubsub.publishStream("crowded", new ByteArrayInputStream(payload))); // Check the refused stream wasn't counted
+    }
+
+    /**
+     * Publishes a message from a host until one has been received, or ten
+     * seconds have passed. A new peer may only join the mesh of a topic on
+     * the next heartbeat, so the first few messages may not reach it.
+     *
+     * @param host the host to publish from
+     * @param received the latch counted down once a message is received
+     * @return whether or not a message was received
+     */
+    private static boolean publishUntilReceived(Host host, CountDownLatch received) throws Exception {
+        // Publish until a message is received
+        for (int i = 0; i < 50; i++) {
+            host.pubsub.publish(new Message("test", "hello")); // Publish a message
+
+            // Check the message was received
+            if (received.await(200, TimeUnit.MILLISECONDS)) {
+                return true; // Done!
+            }
+        }
+
+        return false; // Nothing was received
+    }
+
+    /**
+     * Initializes a host, which is closed once the test is done.
+     *
+     * @param opts the options to apply to the host
+     * @return the host
+     */
+    private Host newHost(Host.Option... opts) throws Exception {
+        Host host = new Host(opts); // Initialize the host
+        this.hosts.add(host); // Close the host once the test is done
+
+        return host; // Return the host
+    }
+
+    /**
+     * Starts a host listening on a port picked by the system, and waits for
+     * it to start accepting connections. Anything the listener throws fails
+     * the test.
+     *
+     * @param host the host to start
+     * @return the address of the host
+     */
+    private String listen(Host host) throws Exception {
+        CompletableFuture<Integer> bound = new CompletableFuture<>(); // Completed with the port once bound
+
+        Thread listener = new Thread(() -> {
+            try {
+                host.listen(4, 0, bound::complete); // Listen on any free port
+            } catch (Exception e) {
+                this.listenerFailures.add(e); // Fail the test
+                bound.completeExceptionally(e); // Stop waiting for the listener
+            }
+        }); // Initialize the listener
+        listener.setDaemon(true); // Don't keep the JVM alive just for the listener
+        listener.start(); // Start listening
+
+        this.listeners.add(listener); // Wait for the listener to stop once the test is done
+
+        int port; // The port the listener is bound to
+
+        try {
+            port = bound.get(LISTEN_TIMEOUT, TimeUnit.SECONDS); // Wait for the listener to bind
+        } catch (ExecutionException e) {
+            throw new AssertionFailedError("listener failed to bind: " + e.getCause()); // Fail the test
+        }
+
+        return String.format("/ip4/127.0.0.1/tcp/%d/%s", port, Hex.encodeHexString(host.keypair.getPublic().getEncoded())); // Return the address of the host
+    }
+}
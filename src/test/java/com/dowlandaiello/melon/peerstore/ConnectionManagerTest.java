@@ -0,0 +1,195 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the connection manager: that connections past the high watermark
+ * are trimmed down to the low watermark, lowest scoring first, and that idle
+ * connections are reaped, sparing protected peers and new connections, even
+ * after a connection fails to close.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class ConnectionManagerTest extends TestCase {
+    /**
+     * The peerstore whose connections are managed.
+     */
+    private SmolStore peerstore;
+
+    /**
+     * The connection manager under test.
+     */
+    private ConnectionManager manager;
+
+    /**
+     * Initializes a connection manager over an empty peerstore.
+     */
+    @Override
+    protected void setUp() {
+        this.peerstore = new SmolStore(); // Initialize the peerstore
+        this.manager = new ConnectionManager(this.peerstore); // Initialize the connection manager
+    }
+
+    /**
+     * Tests that connections are only trimmed past the high watermark, once
+     * out of their grace period, and that the quietest unprotected ones are
+     * trimmed until the low watermark is reached.
+     */
+    public void testWatermarkTrimming() {
+        this.manager.setWatermarks(3, 4); // Trim down to 3 past 4
+        this.manager.setIdleTimeout(0); // Never reap idle connections
+
+        List<Connection> connections = this.register(6); // Register 6 peers
+        this.manager.protect(address(5)); // Protect a quiet peer
+
+        this.manager.sweep(); // Sweep while each connection is in its grace period
+
+        assertEquals(6, this.manager.getConnectionCount()); // Check nothing was trimmed
+
+        // Make the first two connections busy
+        for (int i = 0; i < 5; i++) {
+            this.manager.recordActivity(connections.get(0)); // Record a message
+            this.manager.recordActivity(connections.get(1)); // Record a message
+        }
+
+        this.manager.sweep(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ConnectionManager.GRACE_PERIOD + 1000)); // Sweep once the grace period is over
+
+        assertEquals(3, this.manager.getConnectionCount()); // Check trimmed down to the low watermark
+
+        // Check each of the connections
+        for (int i = 0; i < connections.size(); i++) {
+            boolean kept = i == 0 || i == 1 || i == 5; // The busy and protected connections are kept
+
+            assertEquals(kept, this.peerstore.getRegisteredPeers().containsKey(address(i))); // Check the peer is registered only if kept
+            assertEquals(!kept, connections.get(i).isClosed()); // Check the connection is closed only if trimmed
+        }
+    }
+
+    /**
+     * Tests that nothing is trimmed at or below the high watermark.
+     */
+    public void testBelowHighWatermark() {
+        this.manager.setWatermarks(1, 4); // Trim down to 1 past 4
+
+        List<Connection> connections = this.register(4); // Register 4 peers
+
+        this.manager.sweep(); // Start tracking the connections
+        this.manager.sweep(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ConnectionManager.GRACE_PERIOD + 1000)); // Sweep once the grace period is over
+
+        assertEquals(4, this.manager.getConnectionCount()); // Check nothing was trimmed
+
+        // Check each of the connections
+        for (Connection conn : connections) {
+            assertFalse(conn.isClosed()); // Check the connection is open
+        }
+    }
+
+    /**
+     * Tests that idle connections are reaped, even below the watermarks,
+     * unless they are protected or have been active since.
+     */
+    public void testIdleReaping() throws Exception {
+        this.manager.setIdleTimeout(50); // Reap connections idle for 50ms
+
+        List<Connection> connections = this.register(3); // Register 3 peers
+        this.manager.protect(address(2)); // Protect an idle peer
+
+        this.manager.sweep(); // Start tracking the connections
+
+        Thread.sleep(100); // Let the connections go idle
+
+        this.manager.recordActivity(connections.get(0)); // Keep the first connection active
+        this.manager.sweep(); // Reap the idle connections
+
+        assertTrue(this.peerstore.getRegisteredPeers().containsKey(address(0))); // Check the active peer was kept
+        assertFalse(this.peerstore.getRegisteredPeers().containsKey(address(1))); // Check the idle peer was reaped
+        assertTrue(connections.get(1).isClosed()); // Check the idle connection was closed
+        assertTrue(this.peerstore.getRegisteredPeers().containsKey(address(2))); // Check the protected peer was kept
+        assertFalse(connections.get(2).isClosed()); // Check the protected connection is open
+    }
+
+    /**
+     * Tests that a connection closed elsewhere is unregistered by the next
+     * sweep.
+     */
+    public void testForgetsClosedConnections() throws Exception {
+        List<Connection> connections = this.register(2); // Register 2 peers
+
+        connections.get(0).close(); // Close the first connection
+
+        this.manager.sweep(); // Sweep the connections
+
+        assertFalse(this.peerstore.getRegisteredPeers().containsKey(address(0))); // Check the closed peer was unregistered
+        assertEquals(1, this.manager.getConnectionCount()); // Check the open connection is left
+    }
+
+    /**
+     * Tests that a connection whose close throws doesn't stop the next
+     * sweep from reaping the other idle connections.
+     */
+    public void testSurvivesThrowingClose() {
+        this.manager.setIdleTimeout(50); // Reap connections idle for 50ms
+
+        Connection broken = new FakeConnection(address(0)) {
+            @Override
+            public void close() {
+                throw new IllegalStateException("broken connection"); // Fail the close
+            }
+        }; // Initialize a connection that can't be closed
+
+        this.peerstore.registerPeer(address(0), broken); // Register the peer
+
+        long now = System.nanoTime(); // Get the current time
+
+        this.manager.sweep(now); // Start tracking the connection
+        this.manager.sweep(now + TimeUnit.MILLISECONDS.toNanos(100)); // Reap the idle connection, which throws
+
+        assertFalse(this.peerstore.getRegisteredPeers().containsKey(address(0))); // Check the broken peer was unregistered anyway
+
+        Connection conn = new FakeConnection(address(1)); // Initialize a working connection
+        this.peerstore.registerPeer(address(1), conn); // Register the peer
+
+        this.manager.sweep(now); // Start tracking the connection
+        this.manager.sweep(now + TimeUnit.MILLISECONDS.toNanos(100)); // Reap the idle connection
+
+        assertFalse(this.peerstore.getRegisteredPeers().containsKey(address(1))); // Check the idle peer was reaped
+        assertTrue(conn.isClosed()); // Check the idle connection was closed
+    }
+
+    /**
+     * Registers a number of peers, each with a connection of its own.
+     *
+     * @param count the number of peers to register
+     * @return the connection of each peer, in order
+     */
+    private List<Connection> register(int count) {
+        List<Connection> connections = new ArrayList<>(count); // The registered connections
+
+        // Register each of the peers
+        for (int i = 0; i < count; i++) {
+            Connection conn = new FakeConnection(address(i)); // Initialize the peer's connection
+
+            this.peerstore.registerPeer(address(i), conn); // Register the peer
+            connections.add(conn); // Collect the connection
+        }
+
+        return connections; // Return the connections
+    }
+
+    /**
+     * Gets the address of the peer at the given index.
+     *
+     * @param index the index of the peer
+     * @return the peer's multiaddress
+     */
+    private static String address(int index) {
+        return "/ip4/127.0.0.1/tcp/" + (3000 + index); // Return the address
+    }
+}
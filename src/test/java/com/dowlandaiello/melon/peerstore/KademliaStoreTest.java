@@ -0,0 +1,322 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.transport.Transport;
+import com.dowlandaiello.melon.transport.Upgrade;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Hex;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the Kademlia routing table: which bucket each id falls in, that a
+ * full bucket keeps newcomers as replacements, that iterative lookups find
+ * the closest peers in a network, and that lookup senders are only added
+ * when they are who they say they are.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class KademliaStoreTest extends TestCase {
+    /**
+     * The number of peers in the simulated network.
+     */
+    private static final int NETWORK_SIZE = 32;
+
+    /**
+     * The source of the peers' keys (seeded, so every run builds the same
+     * network).
+     */
+    private Random random;
+
+    /**
+     * Seeds the source of the peers' keys.
+     */
+    @Override
+    protected void setUp() {
+        this.random = new Random(42); // Seed the keys
+    }
+
+    /**
+     * Tests that an id falls in the bucket of the highest bit in which it
+     * differs from ours.
+     */
+    public void testBucketIndex() {
+        KademliaStore store = new KademliaStore(this.newKey()); // Initialize a store
+        byte[] local = store.getLocalId(); // Get our id
+
+        assertEquals(-1, store.bucketIndex(local)); // Check our own id has no bucket
+
+        // Check each of the bits
+        for (int bit = 0; bit < KademliaStore.ID_BITS; bit++) {
+            byte[] id = local.clone(); // Copy our id
+            id[bit / 8] ^= (byte) (0x80 >>> (bit % 8)); // Flip the bit
+
+            assertEquals(KademliaStore.ID_BITS - 1 - bit, store.bucketIndex(id)); // Check the bucket
+        }
+    }
+
+    /**
+     * Tests that a full bucket keeps newcomers as replacements, and promotes
+     * the most recently seen one once a peer in the bucket is removed.
+     */
+    public void testFullBucket() {
+        KademliaStore store = new KademliaStore(this.newKey()); // Initialize a store
+        List<String> farthest = new ArrayList<>(); // Peers in the farthest bucket
+
+        // Collect peers until the farthest bucket overflows by two
+        while (farthest.size() < KademliaStore.K + 2) {
+            String address = address(this.newKey()); // Make up a peer
+
+            // Check falls in the farthest bucket
+            if (store.bucketIndex(KademliaStore.idOf(address)) == KademliaStore.ID_BITS - 1) {
+                farthest.add(address); // Collect the peer
+            }
+        }
+
+        // Add each of the peers that fit
+        for (int i = 0; i < KademliaStore.K; i++) {
+            assertTrue(store.addContact(farthest.get(i))); // Check the peer was added
+        }
+
+        assertFalse(store.addContact(farthest.get(KademliaStore.K))); // Check the next peer is kept as a replacement
+        assertFalse(store.addContact(farthest.get(KademliaStore.K + 1))); // Check the last peer is kept as a replacement
+        assertEquals(KademliaStore.K, store.size()); // Check the bucket didn't grow
+
+        store.removeContact(farthest.get(0)); // Remove a peer from the bucket
+
+        assertEquals(KademliaStore.K, store.size()); // Check a replacement took its place
+        assertTrue(ids(store.getClosestPeers(store.getLocalId(), Integer.MAX_VALUE)).contains(Hex.encodeHexString(KademliaStore.idOf(farthest.get(KademliaStore.K + 1))))); // Check the most recently seen replacement was promoted
+    }
+
+    /**
+     * Tests that a lookup through a single known peer finds the K peers in
+     * the network closest to the target.
+     */
+    public void testIterativeLookup() {
+        HashMap<String, KademliaStore> network = new HashMap<>(); // The peers in the network, by address
+
+        // Build the network
+        for (int i = 0; i < NETWORK_SIZE; i++) {
+            Key key = this.newKey(); // Make up a key
+
+            network.put(address(key), new KademliaStore(key)); // Add the peer
+        }
+
+        List<String> addresses = new ArrayList<>(network.keySet()); // The addresses of the peers
+        String searcher = addresses.get(0); // The peer doing the lookup
+
+        // Let each of the other peers know about every other peer
+        for (String address : addresses.subList(1, addresses.size())) {
+            // Add each of the peers
+            for (String other : addresses) {
+                network.get(address).addContact(other); // Add the peer
+            }
+        }
+
+        KademliaStore store = network.get(searcher); // Get the searcher's store
+        store.addContact(addresses.get(1)); // Only know of a single peer
+
+        byte[] target = KademliaStore.idOf(address(this.newKey())); // Look up an id nobody has
+        StubTransport transport = new StubTransport(network); // Route queries through the network
+
+        List<String> found = store.lookup(target, transport, null); // Look the id up
+
+        List<String> expected = new ArrayList<>(addresses.subList(1, addresses.size())); // Every peer but the searcher
+        expected.sort((String a, String b) -> new BigInteger(1, xor(KademliaStore.idOf(a), target)).compareTo(new BigInteger(1, xor(KademliaStore.idOf(b), target)))); // Sort the peers by distance
+
+        assertEquals(ids(expected.subList(0, KademliaStore.K)), ids(found)); // Check the closest peers were found
+        assertTrue(transport.dials.get() > 1); // Check more than the known peer was queried
+        assertTrue(store.size() > 1); // Check the peers that answered were added to the table
+    }
+
+    /**
+     * Tests that the sender of a lookup is only added to the routing table
+     * when the connection it was sent on authenticated the key in the
+     * address it claims.
+     */
+    public void testFindNodeSender() throws IOException {
+        KademliaStore store = new KademliaStore(this.newKey()); // Initialize a store
+        String sender = address(this.newKey()); // Make up a sender
+        Message request = new Message(new FindNodeMessage(store.getLocalId(), sender, null), Message.Type.FIND_NODE); // Build a request from the sender
+
+        store.handleFindNode(connection(null, new LinkedBlockingQueue<>()), request); // Send the request unauthenticated
+
+        assertEquals(0, store.size()); // Check the sender wasn't added
+
+        store.handleFindNode(connection(address(this.newKey()), new LinkedBlockingQueue<>()), request); // Send the request as someone else
+
+        assertEquals(0, store.size()); // Check the sender wasn't added
+
+        LinkedBlockingQueue<Message> responses = new LinkedBlockingQueue<>(); // The responses written back
+        store.handleFindNode(connection(sender, responses), request); // Send the request as the sender
+
+        assertEquals(1, store.size()); // Check the sender was added
+        assertNotNull(((FindNodeMessage) responses.poll().contents).closest); // Check the request was answered
+    }
+
+    /**
+     * Makes up a key for a peer.
+     *
+     * @return the key
+     */
+    private Key newKey() {
+        byte[] encoded = new byte[33]; // Initialize the key
+        this.random.nextBytes(encoded); // Randomize it
+
+        return new SecretKeySpec(encoded, "RAW"); // Return the key
+    }
+
+    /**
+     * Builds the address of the peer with the given key.
+     *
+     * @param key the key of the peer
+     * @return the address of the peer
+     */
+    private static String address(Key key) {
+        return "/ip4/127.0.0.1/tcp/3000/" + Hex.encodeHexString(key.getEncoded()); // Return the address
+    }
+
+    /**
+     * Gets the hex-encoded ids of the given peers.
+     *
+     * @param addresses the addresses of the peers
+     * @return the ids of the peers
+     */
+    private static Set<String> ids(List<String> addresses) {
+        Set<String> ids = new HashSet<>(); // The ids
+
+        // Collect the id of each of the peers
+        for (String address : addresses) {
+            ids.add(Hex.encodeHexString(KademliaStore.idOf(address))); // Collect the id
+        }
+
+        return ids; // Return the ids
+    }
+
+    /**
+     * Gets the distance between two ids.
+     *
+     * @param a the first id
+     * @param b the second id
+     * @return the xor of the ids
+     */
+    private static byte[] xor(byte[] a, byte[] b) {
+        byte[] distance = new byte[a.length]; // Initialize the distance
+
+        // Xor each of the bytes
+        for (int i = 0; i < a.length; i++) {
+            distance[i] = (byte) (a[i] ^ b[i]); // Xor the byte
+        }
+
+        return distance; // Return the distance
+    }
+
+    /**
+     * Builds a connection authenticated as the given address, recording the
+     * messages written to it.
+     *
+     * @param remote the authenticated address (null for none)
+     * @param written the queue the written messages are put on
+     * @return the connection
+     */
+    private static Connection connection(String remote, LinkedBlockingQueue<Message> written) {
+        return new FakeConnection(remote) {
+            @Override
+            public void writeMessage(Message message) {
+                written.add(message); // Record the message
+            }
+
+            @Override
+            public Message readMessage() throws IOException {
+                return take(written); // Return the next recorded message
+            }
+        }; // Return the connection
+    }
+
+    /**
+     * Represents a transport connecting to peers of a simulated network, in
+     * which each request written to a connection is answered by the dialed
+     * peer's store, and its response read back from the same connection.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class StubTransport implements Transport {
+        /**
+         * The peers in the network, by hex-encoded id.
+         */
+        private final ConcurrentHashMap<String, KademliaStore> byId;
+
+        /**
+         * The number of dials made.
+         */
+        final AtomicInteger dials = new AtomicInteger();
+
+        /**
+         * Initializes a new transport for the given network.
+         *
+         * @param network the peers in the network, by address
+         */
+        StubTransport(HashMap<String, KademliaStore> network) {
+            this.byId = new ConcurrentHashMap<>(); // Initialize the id index
+
+            // Index each of the peers by id
+            for (String address : network.keySet()) {
+                this.byId.put(Hex.encodeHexString(KademliaStore.idOf(address)), network.get(address)); // Index the peer
+            }
+        }
+
+        public Transport withUpgrade(Upgrade upgrade) {
+            return this; // Nothing to upgrade
+        }
+
+        public Transport withFallback(Transport fallback) {
+            return this; // Nothing to fall back to
+        }
+
+        public void listen(String multiaddress, Callback callback) {
+            throw new UnsupportedOperationException("listen"); // The store shouldn't listen
+        }
+
+        public Connection dial(String address, Key sendingPublicKey) throws IOException {
+            this.dials.incrementAndGet(); // Count the dial
+
+            KademliaStore peer = this.byId.get(Hex.encodeHexString(KademliaStore.idOf(address))); // Get the dialed peer
+
+            // Check the peer exists
+            if (peer == null) {
+                throw new IOException("connection refused"); // Fail the dial
+            }
+
+            LinkedBlockingQueue<Message> responses = new LinkedBlockingQueue<>(); // The responses of the peer
+            Connection reply = connection(null, responses); // The peer's end of the connection
+
+            return new FakeConnection(address) {
+                @Override
+                public void writeMessage(Message message) throws IOException {
+                    peer.handleFindNode(reply, message); // Let the peer answer the request
+                }
+
+                @Override
+                public Message readMessage() throws IOException {
+                    return take(responses); // Return the peer's response
+                }
+            }; // Return the connection
+        }
+    }
+}
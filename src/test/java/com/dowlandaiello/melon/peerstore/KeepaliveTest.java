@@ -0,0 +1,251 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests the keepalive: that round-trip time samples are averaged, that pings
+ * are answered and pongs sampled, that dead peers are evicted, and that a
+ * throwing connection doesn't stop the pings.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class KeepaliveTest extends TestCase {
+    /**
+     * The address each test's peer is registered under.
+     */
+    private static final String ADDRESS = "/ip4/127.0.0.1/tcp/3000";
+
+    /**
+     * The peerstore kept alive.
+     */
+    private SmolStore peerstore;
+
+    /**
+     * The keepalive under test.
+     */
+    private Keepalive keepalive;
+
+    /**
+     * The executor sending the keepalive's pings.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Initializes a keepalive over an empty peerstore.
+     */
+    @Override
+    protected void setUp() {
+        PeerstoreCodecs.register(); // Register the ping codec
+
+        this.peerstore = new SmolStore(); // Initialize the peerstore
+        this.keepalive = new Keepalive(this.peerstore); // Initialize the keepalive
+        this.executor = Executors.newSingleThreadExecutor(); // Initialize the ping executor
+        this.keepalive.setExecutor(this.executor); // Send pings on the executor
+    }
+
+    /**
+     * Stops the ping executor.
+     */
+    @Override
+    protected void tearDown() {
+        this.executor.shutdownNow(); // Stop the executor
+    }
+
+    /**
+     * Tests that the first sample sets the estimate, and later ones are
+     * folded in with exponentially weighted moving averages.
+     */
+    public void testRoundTripAveraging() {
+        Keepalive.RoundTrip roundTrip = new Keepalive.RoundTrip(); // Initialize an estimate
+
+        roundTrip.update(100); // Take the first sample
+
+        assertEquals(100.0, roundTrip.getSmoothedRtt(), 1e-9); // Check starts from the sample
+        assertEquals(50.0, roundTrip.getJitter(), 1e-9); // Check starts from half the sample
+
+        roundTrip.update(200); // Take a slower sample
+
+        assertEquals(62.5, roundTrip.getJitter(), 1e-9); // Check 0.75 * 50 + 0.25 * |100 - 200|
+        assertEquals(112.5, roundTrip.getSmoothedRtt(), 1e-9); // Check 0.875 * 100 + 0.125 * 200
+
+        roundTrip.update(112.5); // Take a sample matching the estimate
+
+        assertEquals(46.875, roundTrip.getJitter(), 1e-9); // Check the jitter shrinks
+        assertEquals(112.5, roundTrip.getSmoothedRtt(), 1e-9); // Check the estimate holds
+        assertEquals(3, roundTrip.getSamples()); // Check counted each sample
+    }
+
+    /**
+     * Tests that a dialed connection is pinged, that only the pong of the
+     * outstanding ping is sampled, and that the sampled peer is ranked.
+     */
+    public void testPingsDialedConnections() throws Exception {
+        LinkedBlockingQueue<Message> written = new LinkedBlockingQueue<>(); // The messages written to the peer
+        Connection conn = connection(written, null, new CountDownLatch(1)); // Initialize the connection
+
+        this.peerstore.registerPeer(ADDRESS, conn); // Register the peer
+        this.keepalive.attach(conn, true); // Read by a pipeline, and pinged by us
+
+        this.keepalive.tick(); // Ping the peer
+
+        Message ping = written.poll(5, TimeUnit.SECONDS); // Wait for the ping
+
+        assertNotNull(ping); // Check the peer was pinged
+        assertFalse(((PingMessage) ping.contents).pong); // Check is a ping
+
+        long nonce = ((PingMessage) ping.contents).nonce; // Get the nonce of the ping
+
+        this.keepalive.handleMessage(conn, new Message(new PingMessage(nonce + 1, true), Message.Type.PING)); // Answer a different ping
+
+        assertNull(this.keepalive.getRoundTrip(ADDRESS)); // Check the stray pong wasn't sampled
+
+        this.keepalive.tick(); // Tick while the ping is outstanding
+
+        assertNull(written.poll(100, TimeUnit.MILLISECONDS)); // Check the peer wasn't pinged twice
+
+        this.keepalive.handleMessage(conn, new Message(new PingMessage(nonce, true), Message.Type.PING)); // Answer the ping
+
+        assertEquals(1, this.keepalive.getRoundTrip(ADDRESS).getSamples()); // Check the pong was sampled
+        assertEquals(Collections.singletonList(ADDRESS), this.keepalive.getPeersByLatency()); // Check the peer is ranked
+
+        this.keepalive.handleMessage(conn, new Message(new PingMessage(nonce, true), Message.Type.PING)); // Answer the ping again
+
+        assertEquals(1, this.keepalive.getRoundTrip(ADDRESS).getSamples()); // Check the duplicate wasn't sampled
+    }
+
+    /**
+     * Tests that a ping is answered with a pong carrying its nonce.
+     */
+    public void testAnswersPings() throws Exception {
+        LinkedBlockingQueue<Message> written = new LinkedBlockingQueue<>(); // The messages written to the peer
+        Connection conn = connection(written, null, new CountDownLatch(1)); // Initialize the connection
+
+        this.keepalive.attach(conn); // Read by a pipeline, and pinged by the peer
+        this.keepalive.handleMessage(conn, new Message(new PingMessage(7, false), Message.Type.PING)); // Ping us
+
+        PingMessage pong = (PingMessage) written.take().contents; // Get the answer
+
+        assertTrue(pong.pong); // Check is a pong
+        assertEquals(7, pong.nonce); // Check answers the ping
+    }
+
+    /**
+     * Tests that a peer whose connection fails while it is pinged is
+     * unregistered, and its connection closed.
+     */
+    public void testEvictsDeadPeer() throws Exception {
+        CountDownLatch closed = new CountDownLatch(1); // Counted down once the connection is closed
+        Connection conn = connection(new LinkedBlockingQueue<>(), new IOException("connection reset"), closed); // Initialize a connection that fails reads
+
+        this.peerstore.registerPeer(ADDRESS, conn); // Register the peer
+
+        this.keepalive.tick(); // Ping the peer
+
+        assertTrue(closed.await(5, TimeUnit.SECONDS)); // Check the connection was closed
+        assertFalse(this.peerstore.getRegisteredPeers().containsKey(ADDRESS)); // Check the peer was unregistered
+        assertNull(this.keepalive.getRoundTrip(ADDRESS)); // Check has no estimate
+    }
+
+    /**
+     * Tests that a peer whose connection has already been closed is
+     * unregistered without being pinged.
+     */
+    public void testEvictsClosedConnection() throws Exception {
+        LinkedBlockingQueue<Message> written = new LinkedBlockingQueue<>(); // The messages written to the peer
+        CountDownLatch closed = new CountDownLatch(1); // Counted down once the connection is closed
+        Connection conn = connection(written, null, closed); // Initialize the connection
+
+        conn.close(); // Close the connection
+
+        this.peerstore.registerPeer(ADDRESS, conn); // Register the peer
+
+        this.keepalive.tick(); // Evict the peer
+
+        assertFalse(this.peerstore.getRegisteredPeers().containsKey(ADDRESS)); // Check the peer was unregistered
+        assertNull(written.poll(100, TimeUnit.MILLISECONDS)); // Check the peer wasn't pinged
+    }
+
+    /**
+     * Tests that a connection throwing while the keepalive ticks doesn't
+     * stop later ticks from pinging it.
+     */
+    public void testSurvivesThrowingConnection() throws Exception {
+        LinkedBlockingQueue<Message> written = new LinkedBlockingQueue<>(); // The messages written to the peer
+        AtomicBoolean broken = new AtomicBoolean(); // Whether or not the connection throws
+
+        Connection conn = new FakeConnection(ADDRESS) {
+            @Override
+            public void writeMessage(Message message) {
+                written.add(message); // Record the message
+            }
+
+            @Override
+            public boolean isClosed() {
+                // Check is broken
+                if (broken.get()) {
+                    throw new IllegalStateException("broken connection"); // Fail the check
+                }
+
+                return super.isClosed(); // Return whether or not the connection is closed
+            }
+        }; // Initialize a connection that can be broken
+
+        this.peerstore.registerPeer(ADDRESS, conn); // Register the peer
+        broken.set(true); // Break the connection
+
+        this.keepalive.tick(); // Tick while the connection throws
+
+        broken.set(false); // Fix the connection
+
+        this.keepalive.tick(); // Tick again
+
+        assertNotNull(written.poll(5, TimeUnit.SECONDS)); // Check the peer was pinged
+    }
+
+    /**
+     * Initializes a connection recording each message written to it.
+     *
+     * @param written the queue each written message is added to
+     * @param readFailure the exception thrown by each read (null to block
+     *                    reads forever)
+     * @param closed the latch counted down once the connection is closed
+     * @return the connection
+     */
+    private static Connection connection(LinkedBlockingQueue<Message> written, IOException readFailure, CountDownLatch closed) {
+        return new FakeConnection(ADDRESS) {
+            @Override
+            public void writeMessage(Message message) {
+                written.add(message); // Record the message
+            }
+
+            @Override
+            public Message readMessage() throws IOException {
+                // Check reads fail
+                if (readFailure != null) {
+                    throw readFailure; // Fail the read
+                }
+
+                return take(new LinkedBlockingQueue<Message>()); // Block until interrupted
+            }
+
+            @Override
+            public void close() {
+                this.markClosed(); // Mark the connection as closed
+                closed.countDown(); // Let the test know
+            }
+        }; // Return the connection
+    }
+}
@@ -0,0 +1,264 @@
+package com.dowlandaiello.melon.peerstore;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests that the memory-mapped peerstore remembers peers across restarts,
+ * compacts its file down to the peers worth keeping, and recovers from torn
+ * or corrupt records by treating them as the end of the log.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class MappedStoreTest extends TestCase {
+    /**
+     * The directory holding the store file.
+     */
+    private Path directory;
+
+    /**
+     * The store file.
+     */
+    private Path file;
+
+    /**
+     * The address of a peer with a key, which is stored in its binary form.
+     */
+    private String keyed;
+
+    /**
+     * The address of a peer without a key, which is stored as a string.
+     */
+    private String unkeyed;
+
+    /**
+     * Initializes a directory for the store file, and the peers' addresses.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("mappedstore"); // Initialize the directory
+        this.file = this.directory.resolve("peers"); // Put the store file in it
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC"); // Get a key pair generator
+        generator.initialize(new ECGenParameterSpec("secp256r1")); // Use the same curve as a host
+
+        this.keyed = CommonTypes.MultiAddress.parse("/ip4/127.0.0.1/tcp/3000/" + Hex.encodeHexString(generator.generateKeyPair().getPublic().getEncoded())).toString(); // Build a keyed address
+        this.unkeyed = "/ip4/10.0.0.1/tcp/4000/peer"; // Use an address with no binary form
+    }
+
+    /**
+     * Removes the directory holding the store file.
+     */
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            // Remove each of the files
+            for (Path path : (Iterable<Path>) files::iterator) {
+                Files.delete(path); // Remove the file
+            }
+        }
+
+        Files.delete(this.directory); // Remove the directory
+    }
+
+    /**
+     * Tests that peers and their statistics survive reopening the store.
+     */
+    public void testReloadAfterRestart() throws IOException {
+        MappedStore store = new MappedStore(this.file); // Open the store
+        store.recordAttempt(this.keyed, true); // Connect to the keyed peer
+        store.recordAttempt(this.keyed, true); // Connect to it again
+        store.recordAttempt(this.unkeyed, true); // Connect to the other peer
+        store.recordAttempt(this.unkeyed, false); // Fail to connect to it
+        store.flush(); // Write the records out
+
+        List<MappedStore.KnownPeer> peers = new MappedStore(this.file).getBestPeers(10); // Reopen the store
+
+        assertEquals(2, peers.size()); // Check both peers were remembered
+        assertEquals(this.keyed, peers.get(0).multiaddress); // Check the more reliable peer comes first
+        assertEquals(2, peers.get(0).successes); // Check its successes
+        assertTrue(peers.get(0).publicKey.length > 0); // Check its key was restored from the binary address
+        assertEquals(this.unkeyed, peers.get(1).multiaddress); // Check the other peer
+        assertEquals(1, peers.get(1).successes); // Check its successes
+        assertEquals(1, peers.get(1).failures); // Check its failures
+    }
+
+    /**
+     * Tests that peers that connected to us aren't remembered, since they
+     * were registered under the ephemeral port they connected from.
+     */
+    public void testSkipsInboundPeers() throws IOException {
+        MappedStore store = new MappedStore(this.file); // Open the store
+        store.registerInboundPeer(this.keyed, connection()); // Accept a connection from the peer
+
+        assertTrue(store.getBestPeers(10).isEmpty()); // Check the peer wasn't remembered
+        assertTrue(store.getDialableAddresses().isEmpty()); // Check the address isn't handed out
+
+        store.registerPeer(this.keyed, connection()); // Dial the peer
+
+        assertEquals(1, store.getBestPeers(10).size()); // Check the dialed peer was remembered
+    }
+
+    /**
+     * Tests that filling the file compacts it down to the latest record of
+     * each peer, without growing it, and drops peers that were never seen.
+     */
+    public void testCompact() throws IOException {
+        MappedStore store = new MappedStore(this.file); // Open the store
+        store.recordAttempt(this.unkeyed, false); // Fail to connect to a peer, which is never seen
+
+        long size = -1; // The size of the file once it has been created
+        int attempts = 0; // The number of connections recorded
+
+        // Record connections until the file has been compacted at least once
+        while (attempts < 10000) {
+            store.recordAttempt(this.keyed, true); // Connect to the peer
+            attempts++; // Count the connection
+
+            // Check is the first record
+            if (size < 0) {
+                size = Files.size(this.file); // Remember the size of the file
+            }
+        }
+
+        store.flush(); // Write the records out
+
+        assertEquals(size, Files.size(this.file)); // Check the file was compacted rather than grown
+
+        List<MappedStore.KnownPeer> peers = new MappedStore(this.file).getBestPeers(10); // Reopen the store
+
+        assertEquals(1, peers.size()); // Check the peer that was never seen was dropped
+        assertEquals(this.keyed, peers.get(0).multiaddress); // Check the remaining peer
+        assertEquals(attempts, peers.get(0).successes); // Check no connection was lost in compaction
+    }
+
+    /**
+     * Tests that a record with a corrupt field length ends the log, rather
+     * than failing the load, and is overwritten by the next record.
+     */
+    public void testCorruptRecord() throws IOException {
+        MappedStore store = new MappedStore(this.file); // Open the store
+        store.recordAttempt(this.keyed, true); // Connect to a peer
+        store.flush(); // Write the record out
+
+        ByteBuffer corrupt = ByteBuffer.allocate(21); // Allocate a record with a string address
+        corrupt.putLong(System.currentTimeMillis()).putInt(1).putInt(0); // Write the statistics
+        corrupt.put((byte) 0).putInt(Integer.MAX_VALUE); // Write an address length running past the record
+        this.appendRaw(corrupt.array()); // Append the record
+
+        this.assertRecovers(); // Check the store recovers
+    }
+
+    /**
+     * Tests that a record whose length runs past the end of the file ends
+     * the log, rather than failing the load.
+     */
+    public void testTornRecord() throws IOException {
+        MappedStore store = new MappedStore(this.file); // Open the store
+        store.recordAttempt(this.keyed, true); // Connect to a peer
+        store.flush(); // Write the record out
+
+        this.appendLength(Integer.MAX_VALUE - 4); // Append a length running past the end of the file
+
+        this.assertRecovers(); // Check the store recovers
+    }
+
+    /**
+     * Asserts that reopening the store keeps the keyed peer, drops whatever
+     * follows it, and appends new records in its place.
+     */
+    private void assertRecovers() throws IOException {
+        MappedStore reopened = new MappedStore(this.file); // Reopen the store
+
+        List<MappedStore.KnownPeer> peers = reopened.getBestPeers(10); // Get the known peers
+
+        assertEquals(1, peers.size()); // Check only the intact record was read
+        assertEquals(this.keyed, peers.get(0).multiaddress); // Check the intact peer
+
+        reopened.recordAttempt(this.unkeyed, true); // Append a record over the broken one
+        reopened.flush(); // Write the record out
+
+        assertEquals(2, new MappedStore(this.file).getBestPeers(10).size()); // Check both records are read back
+    }
+
+    /**
+     * Appends a raw record after the last record in the store file.
+     *
+     * @param record the body of the record
+     */
+    private void appendRaw(byte[] record) throws IOException {
+        MappedByteBuffer mapped = this.mapFile(); // Map the file
+        int end = endOf(mapped); // Find the end of the log
+
+        mapped.position(end + 4); // Skip the length
+        mapped.put(record); // Write the record
+        mapped.putInt(end, record.length); // Write the length
+        mapped.force(); // Write the record out
+    }
+
+    /**
+     * Appends only the length of a record after the last record in the store
+     * file.
+     *
+     * @param length the length to write
+     */
+    private void appendLength(int length) throws IOException {
+        MappedByteBuffer mapped = this.mapFile(); // Map the file
+
+        mapped.putInt(endOf(mapped), length); // Write the length
+        mapped.force(); // Write the length out
+    }
+
+    /**
+     * Maps the whole store file.
+     *
+     * @return the mapping
+     */
+    private MappedByteBuffer mapFile() throws IOException {
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()); // Return the mapping
+        }
+    }
+
+    /**
+     * Finds the offset following the last record of a mapped store file.
+     *
+     * @param mapped the mapped file
+     * @return the end of the log
+     */
+    private static int endOf(MappedByteBuffer mapped) {
+        int position = 8; // Start after the header
+
+        // Skip each of the written records
+        while (mapped.getInt(position) > 0) {
+            position += 4 + mapped.getInt(position); // Skip the record
+        }
+
+        return position; // Return the end of the log
+    }
+
+    /**
+     * Builds a connection that is never used, for registering peers.
+     *
+     * @return the connection
+     */
+    private static Connection connection() {
+        return new FakeConnection(); // Return the connection
+    }
+}
@@ -0,0 +1,364 @@
+package com.dowlandaiello.melon.pubsub;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+import com.dowlandaiello.melon.peerstore.SmolStore;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests the maintenance of the gossip router's meshes: that a joined topic
+ * gets a mesh of D peers, that the heartbeat tops up a mesh below D_LOW and
+ * prunes one above D_HIGH back to D, that full messages only go to the mesh
+ * while peers outside of it are sent gossip, and that leaving a topic prunes
+ * its mesh.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class GossipRouterTest extends TestCase {
+    /**
+     * The topic the tests publish to.
+     */
+    private static final String TOPIC = "melon/test";
+
+    /**
+     * The number of peers subscribed to the topic.
+     */
+    private static final int PEERS = 20;
+
+    /**
+     * The peerstore holding the connected peers.
+     */
+    private SmolStore peerstore;
+
+    /**
+     * The topics each connected peer is subscribed to.
+     */
+    private SubscriptionIndex index;
+
+    /**
+     * The messages sent to each peer.
+     */
+    private ConcurrentHashMap<Connection, List<CommonTypes.Message>> sent;
+
+    /**
+     * The router under test.
+     */
+    private GossipRouter router;
+
+    /**
+     * The peers subscribed to the topic, in order.
+     */
+    private List<Connection> peers;
+
+    /**
+     * Connects a number of peers subscribed to the topic, and attaches a
+     * router whose heartbeat is driven by the tests.
+     */
+    @Override
+    protected void setUp() {
+        this.peerstore = new SmolStore(); // Initialize the peerstore
+        this.index = new SubscriptionIndex(); // Initialize the index
+        this.sent = new ConcurrentHashMap<>(); // Nothing has been sent yet
+        this.peers = new ArrayList<>(); // Initialize the peers list
+
+        // Connect each of the peers
+        for (int i = 0; i < PEERS; i++) {
+            this.peers.add(this.connect(i, TOPIC)); // Connect the peer
+        }
+
+        this.router = new GossipRouter(); // Initialize the router
+        this.router.attach(this.peerstore, this.index, (Connection conn, CommonTypes.Message message) -> this.sent.computeIfAbsent(conn, (Connection c) -> new CopyOnWriteArrayList<>()).add(message)); // Record each sent message
+        this.router.close(); // Stop the scheduled heartbeat, so the tests can drive it
+    }
+
+    /**
+     * Stops the router.
+     */
+    @Override
+    protected void tearDown() {
+        this.router.close(); // Stop the router
+    }
+
+    /**
+     * Tests that joining a topic grafts D of its subscribers, and only them.
+     */
+    public void testJoinBuildsMesh() {
+        this.router.join(TOPIC); // Join the topic
+
+        Set<Connection> mesh = this.router.getMesh(TOPIC); // Get the mesh
+
+        assertEquals(GossipRouter.D, mesh.size()); // Check the mesh has the target degree
+
+        // Check each of the peers
+        for (Connection peer : this.peers) {
+            assertEquals(mesh.contains(peer), this.controls(peer, true).contains(TOPIC)); // Check only the mesh was grafted
+        }
+    }
+
+    /**
+     * Tests that the heartbeat drops disconnected and unsubscribed peers
+     * from a mesh, and tops it back up to D once it falls below D_LOW.
+     */
+    public void testTopsUpSmallMesh() {
+        this.router.join(TOPIC); // Join the topic
+
+        List<Connection> mesh = new ArrayList<>(this.router.getMesh(TOPIC)); // Get the mesh
+        Set<Connection> departed = new HashSet<>(mesh.subList(0, GossipRouter.D - GossipRouter.D_LOW + 1)); // Drop the mesh below D_LOW
+        Connection unsubscribed = mesh.get(0); // A peer leaving the topic, rather than disconnecting
+
+        this.index.update(unsubscribed, new SubscriptionMessage(new ArrayList<>(), new ArrayList<>(Collections.singletonList(TOPIC)))); // Unsubscribe the peer
+
+        // Disconnect each of the other departed peers
+        for (Connection peer : departed) {
+            // Check isn't the unsubscribed peer
+            if (peer != unsubscribed) {
+                this.peerstore.unregisterPeer(address(this.peers.indexOf(peer)), peer); // Disconnect the peer
+            }
+        }
+
+        this.sent.clear(); // Forget the grafts sent so far
+        this.router.heartbeat(); // Maintain the mesh
+
+        Set<Connection> maintained = this.router.getMesh(TOPIC); // Get the maintained mesh
+
+        assertEquals(GossipRouter.D, maintained.size()); // Check the mesh is back to the target degree
+
+        // Check each of the departed peers
+        for (Connection peer : departed) {
+            assertFalse(maintained.contains(peer)); // Check the peer was dropped
+        }
+
+        // Check each of the peers in the mesh
+        for (Connection peer : maintained) {
+            assertEquals(!mesh.contains(peer), this.controls(peer, true).contains(TOPIC)); // Check only the newcomers were grafted
+        }
+    }
+
+    /**
+     * Tests that the heartbeat prunes a mesh above D_HIGH back to D, letting
+     * each pruned peer know.
+     */
+    public void testPrunesLargeMesh() throws Exception {
+        this.router.join(TOPIC); // Join the topic
+
+        GossipMessage graft = new GossipMessage(); // Initialize a graft
+        graft.graft.add(TOPIC); // Graft the topic
+
+        // Have each of the peers graft us
+        for (Connection peer : this.peers) {
+            this.router.handleControl(peer, graft); // Graft us
+        }
+
+        assertEquals(PEERS, this.router.getMesh(TOPIC).size()); // Check each of the peers joined the mesh
+
+        this.sent.clear(); // Forget the grafts sent so far
+        this.router.heartbeat(); // Maintain the mesh
+
+        Set<Connection> maintained = this.router.getMesh(TOPIC); // Get the maintained mesh
+
+        assertEquals(GossipRouter.D, maintained.size()); // Check the mesh is back to the target degree
+
+        // Check each of the peers
+        for (Connection peer : this.peers) {
+            assertEquals(!maintained.contains(peer), this.controls(peer, false).contains(TOPIC)); // Check only the pruned peers were told
+        }
+    }
+
+    /**
+     * Tests that a mesh within bounds is left alone by the heartbeat.
+     */
+    public void testLeavesMeshWithinBounds() {
+        this.router.join(TOPIC); // Join the topic
+
+        Set<Connection> mesh = this.router.getMesh(TOPIC); // Get the mesh
+
+        this.sent.clear(); // Forget the grafts sent so far
+        this.router.heartbeat(); // Maintain the mesh
+
+        assertEquals(mesh, this.router.getMesh(TOPIC)); // Check the mesh is unchanged
+        assertTrue(this.sent.isEmpty()); // Check no control messages were sent
+    }
+
+    /**
+     * Tests that full messages only go to the mesh, that peers outside of it
+     * are sent gossip about them, and that relayed messages aren't sent back
+     * where they came from.
+     */
+    public void testPublishAndGossip() throws Exception {
+        this.router.join(TOPIC); // Join the topic
+
+        Set<Connection> mesh = this.router.getMesh(TOPIC); // Get the mesh
+        Message message = new Message(TOPIC, "hello"); // Initialize a message
+
+        this.sent.clear(); // Forget the grafts sent so far
+        this.router.publish(message); // Publish the message
+
+        // Check each of the peers
+        for (Connection peer : this.peers) {
+            assertEquals(mesh.contains(peer) ? 1 : 0, this.messages(peer).size()); // Check only the mesh was sent the message
+        }
+
+        this.sent.clear(); // Forget the published messages
+        this.router.heartbeat(); // Send gossip
+
+        int gossiped = 0; // The number of peers sent gossip
+
+        // Check each of the peers
+        for (Connection peer : this.peers) {
+            List<byte[]> ids = this.advertised(peer); // Get the ids advertised to the peer
+
+            // Check was sent gossip
+            if (!ids.isEmpty()) {
+                assertFalse(mesh.contains(peer)); // Check isn't in the mesh
+                assertTrue(Arrays.equals(message.id, ids.get(0))); // Check the message was advertised
+
+                gossiped++; // Count the peer
+            }
+        }
+
+        assertEquals(GossipRouter.D_LAZY, gossiped); // Check D_LAZY peers were sent gossip
+
+        Connection from = mesh.iterator().next(); // A mesh peer relaying a message to us
+        Message relayed = new Message(TOPIC, "relayed"); // Initialize the relayed message
+
+        this.sent.clear(); // Forget the gossip
+        assertTrue(this.router.deliver(from, relayed)); // Check the message is new
+        assertFalse(this.router.deliver(from, relayed)); // Check the duplicate is dropped
+
+        // Check each of the peers
+        for (Connection peer : this.peers) {
+            assertEquals(mesh.contains(peer) && peer != from ? 1 : 0, this.messages(peer).size()); // Check the rest of the mesh was sent the message once
+        }
+    }
+
+    /**
+     * Tests that leaving a topic tears down its mesh, pruning each of its
+     * peers.
+     */
+    public void testLeavePrunesMesh() {
+        this.router.join(TOPIC); // Join the topic
+
+        Set<Connection> mesh = this.router.getMesh(TOPIC); // Get the mesh
+
+        this.sent.clear(); // Forget the grafts sent so far
+        this.router.leave(TOPIC); // Leave the topic
+
+        assertNull(this.router.getMesh(TOPIC)); // Check the mesh was torn down
+
+        // Check each of the peers
+        for (Connection peer : this.peers) {
+            assertEquals(mesh.contains(peer), this.controls(peer, false).contains(TOPIC)); // Check only the mesh was pruned
+        }
+    }
+
+    /**
+     * Connects a peer subscribed to the given topic.
+     *
+     * @param index the index of the peer
+     * @param topic the topic the peer is subscribed to
+     * @return the connection to the peer
+     */
+    private Connection connect(int index, String topic) {
+        Connection conn = connection(index); // Initialize the connection
+
+        this.peerstore.registerPeer(address(index), conn); // Register the peer
+        this.index.update(conn, new SubscriptionMessage(new ArrayList<>(Collections.singletonList(topic)), new ArrayList<>())); // Subscribe the peer
+
+        return conn; // Return the connection
+    }
+
+    /**
+     * Gets the topics grafted or pruned by each control message sent to a
+     * peer.
+     *
+     * @param peer the peer
+     * @param graft whether to get the grafted (true), or pruned (false)
+     *              topics
+     * @return the topics
+     */
+    private List<String> controls(Connection peer, boolean graft) {
+        List<String> topics = new ArrayList<>(); // The grafted or pruned topics
+
+        // Collect the topics of each control message
+        for (CommonTypes.Message message : this.sent.getOrDefault(peer, Collections.emptyList())) {
+            // Check is a control message
+            if (message.contents instanceof GossipMessage) {
+                topics.addAll(graft ? ((GossipMessage) message.contents).graft : ((GossipMessage) message.contents).prune); // Collect the topics
+            }
+        }
+
+        return topics; // Return the topics
+    }
+
+    /**
+     * Gets the ids advertised to a peer for the topic.
+     *
+     * @param peer the peer
+     * @return the advertised ids
+     */
+    private List<byte[]> advertised(Connection peer) {
+        List<byte[]> ids = new ArrayList<>(); // The advertised ids
+
+        // Collect the ids of each control message
+        for (CommonTypes.Message message : this.sent.getOrDefault(peer, Collections.emptyList())) {
+            // Check is a control message advertising the topic
+            if (message.contents instanceof GossipMessage && ((GossipMessage) message.contents).ihave.containsKey(TOPIC)) {
+                ids.addAll(((GossipMessage) message.contents).ihave.get(TOPIC)); // Collect the ids
+            }
+        }
+
+        return ids; // Return the ids
+    }
+
+    /**
+     * Gets the pubsub messages sent to a peer.
+     *
+     * @param peer the peer
+     * @return the sent messages
+     */
+    private List<Message> messages(Connection peer) {
+        List<Message> messages = new ArrayList<>(); // The sent messages
+
+        // Collect each of the pubsub messages
+        for (CommonTypes.Message message : this.sent.getOrDefault(peer, Collections.emptyList())) {
+            // Check is a pubsub message
+            if (message.contents instanceof Message) {
+                messages.add((Message) message.contents); // Collect the message
+            }
+        }
+
+        return messages; // Return the messages
+    }
+
+    /**
+     * Gets the address of the peer at the given index.
+     *
+     * @param index the index of the peer
+     * @return the peer's multiaddress
+     */
+    private static String address(int index) {
+        return "/ip4/127.0.0.1/tcp/" + (3000 + index); // Return the address
+    }
+
+    /**
+     * Initializes a connection the router only compares and hashes, since
+     * each message sent to it is recorded by the sender.
+     *
+     * @param index the index of the peer
+     * @return the connection
+     */
+    private static Connection connection(int index) {
+        return new FakeConnection(address(index)); // Return the connection
+    }
+}
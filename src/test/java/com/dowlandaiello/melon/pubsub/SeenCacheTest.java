@@ -0,0 +1,124 @@
+package com.dowlandaiello.melon.pubsub;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests that the seen cache drops duplicate ids, remembers ids for as long
+ * as its ttl says, and forgets the oldest generation once it fills up.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SeenCacheTest extends TestCase {
+    /**
+     * The source of the random ids.
+     */
+    private Random random;
+
+    /**
+     * Seeds the source of the random ids.
+     */
+    @Override
+    protected void setUp() {
+        this.random = new Random(42); // Use the same ids every run
+    }
+
+    /**
+     * Tests that each id is only new the first time it is added, and that
+     * many distinct ids aren't mistaken for each other.
+     */
+    public void testDedup() {
+        SeenCache cache = new SeenCache(); // Use the defaults
+        List<byte[]> ids = this.ids(10000); // Generate the ids
+
+        // Add each of the ids
+        for (byte[] id : ids) {
+            assertFalse(cache.contains(id)); // Check the id hasn't been seen
+            assertTrue(cache.add(id)); // Check the id is new
+        }
+
+        // Add each of the ids again
+        for (byte[] id : ids) {
+            assertTrue(cache.contains(id)); // Check the id has been seen
+            assertFalse(cache.add(id)); // Check the id is a duplicate
+        }
+    }
+
+    /**
+     * Tests that an id is remembered for at least half of the ttl, and
+     * forgotten once the ttl has passed.
+     */
+    public void testExpiry() throws InterruptedException {
+        SeenCache cache = new SeenCache(1024, 200); // Rotate every 100 milliseconds
+        byte[] id = this.id(); // Generate the id
+
+        assertTrue(cache.add(id)); // Add the id
+
+        Thread.sleep(120); // Wait past the first rotation
+        cache.add(this.id()); // Rotate the id into the previous generation
+
+        assertTrue(cache.contains(id)); // Check the id is still remembered
+        assertFalse(cache.add(id)); // Check the id is still a duplicate
+
+        Thread.sleep(120); // Wait past the second rotation
+        cache.add(this.id()); // Rotate the id out
+
+        assertFalse(cache.contains(id)); // Check the id has been forgotten
+        assertTrue(cache.add(id)); // Check the id is new again
+    }
+
+    /**
+     * Tests that a full generation is rotated early, so ids are forgotten
+     * after two generations' worth of newer ids, however young they are.
+     */
+    public void testCapacity() {
+        SeenCache cache = new SeenCache(8, SeenCache.DEFAULT_TTL); // Hold eight ids per generation
+        byte[] first = this.id(); // Generate the oldest id
+
+        assertTrue(cache.add(first)); // Add the oldest id
+
+        // Fill the rest of the first generation, and all of the second
+        for (int i = 1; i < 16; i++) {
+            assertTrue(cache.add(this.id())); // Add a newer id
+        }
+
+        assertTrue(cache.contains(first)); // Check the oldest id is still in the previous generation
+
+        cache.add(this.id()); // Rotate the first generation out
+
+        assertFalse(cache.contains(first)); // Check the oldest id has been forgotten
+    }
+
+    /**
+     * Generates the given number of random ids.
+     *
+     * @param count the number of ids to generate
+     * @return the ids
+     */
+    private List<byte[]> ids(int count) {
+        List<byte[]> ids = new ArrayList<>(); // Initialize the ids list
+
+        // Generate each of the ids
+        for (int i = 0; i < count; i++) {
+            ids.add(this.id()); // Generate the id
+        }
+
+        return ids; // Return the ids
+    }
+
+    /**
+     * Generates a random id the size of a message id.
+     *
+     * @return the id
+     */
+    private byte[] id() {
+        byte[] id = new byte[32]; // The size of a sha3-256 hash
+        this.random.nextBytes(id); // Fill the id
+
+        return id; // Return the id
+    }
+}
@@ -0,0 +1,114 @@
+package com.dowlandaiello.melon.pubsub;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests matching topics against plain and wildcard patterns, and removing
+ * values and patterns from the trie.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class TopicTrieTest extends TestCase {
+    /**
+     * The trie being tested.
+     */
+    private TopicTrie<String> trie;
+
+    /**
+     * Fills the trie with a value per pattern, named after the pattern.
+     */
+    @Override
+    protected void setUp() {
+        this.trie = new TopicTrie<>(); // Initialize the trie
+
+        // Add each of the patterns
+        for (String pattern : Arrays.asList("orders", "orders/eu/de", "orders/eu/*", "orders/*/de", "metrics/#", "#", "*/eu")) {
+            this.trie.add(pattern, pattern); // Add the pattern's value
+        }
+    }
+
+    /**
+     * Tests that a plain pattern only matches its own topic.
+     */
+    public void testExactMatch() {
+        assertMatches("orders", "orders", "#"); // Check the plain topic
+        assertMatches("orders/us", "#"); // Check a topic with no pattern of its own
+    }
+
+    /**
+     * Tests that a "*" level matches exactly one level.
+     */
+    public void testSingleLevel() {
+        assertMatches("orders/eu/de", "orders/eu/de", "orders/eu/*", "orders/*/de", "#"); // Check every matching pattern is found
+        assertMatches("orders/eu/fr", "orders/eu/*", "#"); // Check the wildcard matches any level
+        assertMatches("orders/eu", "*/eu", "#"); // Check a leading wildcard
+        assertMatches("orders/eu/de/berlin", "#"); // Check a wildcard doesn't match more than one level
+
+        assertTrue(TopicTrie.matches("orders/*/de", "orders/us/de")); // Check a single pattern matches
+        assertFalse(TopicTrie.matches("orders/*", "orders")); // Check a wildcard doesn't match a missing level
+    }
+
+    /**
+     * Tests that a trailing "#" level matches any number of levels,
+     * including none.
+     */
+    public void testMultiLevel() {
+        assertMatches("metrics", "metrics/#", "#"); // Check no further levels
+        assertMatches("metrics/cpu", "metrics/#", "#"); // Check one further level
+        assertMatches("metrics/cpu/core/0", "metrics/#", "#"); // Check many further levels
+        assertMatches("metricsx", "#"); // Check a level isn't matched by prefix
+
+        assertTrue(TopicTrie.matches("metrics/#", "metrics/cpu/core")); // Check a single pattern matches
+
+        try {
+            this.trie.add("metrics/#/cpu", "invalid"); // Add a pattern with "#" before its last level
+
+            fail("'#' was accepted before the last level"); // The pattern should have been refused
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that removing one value leaves the rest of a pattern's values,
+     * and that removing every value leaves the pattern unmatched.
+     */
+    public void testRemove() {
+        this.trie.add("orders/eu/*", "second"); // Add another value under a wildcard pattern
+
+        assertTrue(this.trie.remove("orders/eu/*", "orders/eu/*")); // Remove the first value
+        assertFalse(this.trie.remove("orders/eu/*", "orders/eu/*")); // Check it can't be removed twice
+        assertTrue(this.trie.containsPattern("orders/eu/*")); // Check the pattern still has a value
+        assertMatches("orders/eu/fr", "#", "second"); // Check only the remaining value matches
+
+        assertTrue(this.trie.removeAll("orders/eu/*")); // Remove the rest of the pattern's values
+        assertFalse(this.trie.containsPattern("orders/eu/*")); // Check the pattern is gone
+        assertFalse(this.trie.patterns().contains("orders/eu/*")); // Check the pattern isn't listed
+        assertMatches("orders/eu/fr", "#"); // Check the pattern no longer matches
+
+        assertTrue(this.trie.removeAll("#")); // Remove the catch-all pattern
+        assertMatches("orders/eu/de", "orders/eu/de", "orders/*/de"); // Check the deeper patterns were kept
+        assertFalse(this.trie.removeAll("unknown/topic")); // Check removing an unknown pattern does nothing
+    }
+
+    /**
+     * Asserts that exactly the given values match a topic.
+     *
+     * @param topic the topic to match
+     * @param expected the values expected to match
+     */
+    private void assertMatches(String topic, String... expected) {
+        List<String> matched = this.trie.match(topic); // Match the topic
+        List<String> sortedExpected = Arrays.asList(expected); // Get the expected values
+
+        Collections.sort(matched); // Ignore the order of the matches
+        Collections.sort(sortedExpected); // Ignore the order of the expected values
+
+        assertEquals(sortedExpected, matched); // Check the matches
+    }
+}
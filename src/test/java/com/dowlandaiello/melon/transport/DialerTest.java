@@ -0,0 +1,242 @@
+package com.dowlandaiello.melon.transport;
+
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.security.Key;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that the dialer shares a single in-flight dial between concurrent
+ * callers, reuses live connections, and dials again once a connection has
+ * closed or a dial has failed.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class DialerTest extends TestCase {
+    /**
+     * The address dialed by each test.
+     */
+    private static final String ADDRESS = "/ip4/127.0.0.1/tcp/3000";
+
+    /**
+     * The number of callers dialing at once.
+     */
+    private static final int CALLERS = 8;
+
+    /**
+     * The executor running the concurrent callers.
+     */
+    private ExecutorService callers;
+
+    /**
+     * Initializes the callers' executor.
+     */
+    @Override
+    protected void setUp() {
+        this.callers = Executors.newFixedThreadPool(CALLERS); // Give each caller its own thread
+    }
+
+    /**
+     * Stops the callers' executor.
+     */
+    @Override
+    protected void tearDown() {
+        this.callers.shutdownNow(); // Stop the callers
+    }
+
+    /**
+     * Tests that concurrent dials to the same address share a single dial
+     * of the underlying transport, and all get the same connection.
+     */
+    public void testSingleFlight() throws Exception {
+        StubTransport transport = new StubTransport(false); // Initialize a transport whose dials wait to be let through
+        Dialer dialer = new Dialer(transport); // Initialize the dialer
+
+        List<Future<Connection>> dials = this.dialConcurrently(dialer); // Dial from each of the callers
+
+        assertTrue(transport.entered.await(10, TimeUnit.SECONDS)); // Wait for the first dial to reach the transport
+        transport.gate.countDown(); // Let the dial through
+
+        Connection conn = dials.get(0).get(10, TimeUnit.SECONDS); // Get the first caller's connection
+
+        // Check each of the callers got the same connection
+        for (Future<Connection> dial : dials) {
+            assertSame(conn, dial.get(10, TimeUnit.SECONDS)); // Check the connection
+        }
+
+        assertEquals(1, transport.dials.get()); // Check the transport was only dialed once
+    }
+
+    /**
+     * Tests that a live connection is reused, and a closed one is replaced.
+     */
+    public void testReuseAndRedial() throws Exception {
+        StubTransport transport = new StubTransport(true); // Initialize a transport whose dials go straight through
+        Dialer dialer = new Dialer(transport); // Initialize the dialer
+
+        Connection first = dialer.dial(ADDRESS, null); // Dial the peer
+
+        assertSame(first, dialer.dial(ADDRESS, null)); // Check the live connection was reused
+        assertEquals(1, transport.dials.get()); // Check the transport was only dialed once
+
+        first.close(); // Close the connection
+
+        Connection second = dialer.dial(ADDRESS, null); // Dial the peer again
+
+        assertNotSame(first, second); // Check a new connection was made
+        assertEquals(2, transport.dials.get()); // Check the transport was dialed again
+    }
+
+    /**
+     * Tests that a closed connection is forgotten once the dialer is told
+     * about it, without waiting for its address to be dialed again.
+     */
+    public void testDisconnected() throws Exception {
+        Dialer dialer = new Dialer(new StubTransport(true)); // Initialize the dialer
+
+        Connection conn = dialer.dial(ADDRESS, null); // Dial the peer
+        conn.close(); // Close the connection
+
+        dialer.disconnected(conn); // Let the dialer know
+
+        assertNull(dialer.getConnection(ADDRESS)); // Check the connection was forgotten
+    }
+
+    /**
+     * Tests that a failed dial is reported to every caller waiting on it,
+     * and that the address can be dialed again afterwards.
+     */
+    public void testSharedFailure() throws Exception {
+        StubTransport transport = new StubTransport(false); // Initialize a transport whose dials wait to be let through
+        transport.failing.set(true); // Fail the dials
+        Dialer dialer = new Dialer(transport); // Initialize the dialer
+
+        List<Future<Connection>> dials = this.dialConcurrently(dialer); // Dial from each of the callers
+
+        assertTrue(transport.entered.await(10, TimeUnit.SECONDS)); // Wait for the first dial to reach the transport
+        transport.gate.countDown(); // Let the dial through
+
+        // Check each of the callers saw the failure
+        for (Future<Connection> dial : dials) {
+            try {
+                dial.get(10, TimeUnit.SECONDS); // Wait for the dial
+
+                fail("a failed dial returned a connection"); // The dial should have failed
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException); // Check the failure was passed on as it was thrown
+            }
+        }
+
+        int failed = transport.dials.get(); // Get the number of failed dials
+
+        transport.failing.set(false); // Let dials succeed
+
+        assertNotNull(dialer.dial(ADDRESS, null)); // Check the address can be dialed again
+        assertEquals(failed + 1, transport.dials.get()); // Check the transport was dialed again
+    }
+
+    /**
+     * Dials the test address from each of the callers at once.
+     *
+     * @param dialer the dialer to dial with
+     * @return the dials
+     */
+    private List<Future<Connection>> dialConcurrently(Dialer dialer) {
+        CountDownLatch start = new CountDownLatch(1); // The latch starting every caller at once
+        List<Future<Connection>> dials = new ArrayList<>(); // The dials
+
+        // Start each of the callers
+        for (int i = 0; i < CALLERS; i++) {
+            dials.add(this.callers.submit(() -> {
+                start.await(); // Wait for the other callers
+
+                return dialer.dial(ADDRESS, null); // Dial the peer
+            })); // Start the caller
+        }
+
+        start.countDown(); // Let the callers dial
+
+        return dials; // Return the dials
+    }
+
+    /**
+     * Represents a transport counting its dials, each of which makes a new
+     * stub connection once let through.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class StubTransport implements Transport {
+        /**
+         * The number of dials made.
+         */
+        final AtomicInteger dials = new AtomicInteger();
+
+        /**
+         * Whether or not dials fail.
+         */
+        final AtomicBoolean failing = new AtomicBoolean();
+
+        /**
+         * The latch released once the first dial reaches the transport.
+         */
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        /**
+         * The gate dials wait on until it is opened.
+         */
+        final CountDownLatch gate;
+
+        /**
+         * Initializes a new stub transport.
+         *
+         * @param open whether or not dials go straight through
+         */
+        StubTransport(boolean open) {
+            this.gate = new CountDownLatch(open ? 0 : 1); // Initialize the gate
+        }
+
+        public Transport withUpgrade(Upgrade upgrade) {
+            return this; // Nothing to upgrade
+        }
+
+        public Transport withFallback(Transport fallback) {
+            return this; // Nothing to fall back to
+        }
+
+        public void listen(String multiaddress, Callback callback) {
+            throw new UnsupportedOperationException("listen"); // The dialer shouldn't listen
+        }
+
+        public Connection dial(String address, Key sendingPublicKey) throws IOException {
+            this.dials.incrementAndGet(); // Count the dial
+            this.entered.countDown(); // Let the test know a dial has arrived
+
+            try {
+                this.gate.await(); // Wait until the dial is let through
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted", e); // Stop dialing
+            }
+
+            // Check dials fail
+            if (this.failing.get()) {
+                throw new IOException("connection refused"); // Fail the dial
+            }
+
+            return new FakeConnection(address); // Return a new connection
+        }
+    }
+}
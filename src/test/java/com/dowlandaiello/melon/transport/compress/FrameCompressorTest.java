@@ -0,0 +1,170 @@
+package com.dowlandaiello.melon.transport.compress;
+
+import com.dowlandaiello.melon.transport.connection.BufferPool;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that frames survive a round trip through the compressor, that
+ * frames below the size threshold are left alone, and that frames deflate
+ * can't shrink are sent as they are.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FrameCompressorTest extends TestCase {
+    /**
+     * The compressor under test.
+     */
+    private FrameCompressor compressor;
+
+    /**
+     * Initializes the compressor.
+     */
+    @Override
+    protected void setUp() {
+        this.compressor = new FrameCompressor(Compression.Algorithm.DEFLATE); // Initialize the compressor
+    }
+
+    /**
+     * Releases the compressor.
+     */
+    @Override
+    protected void tearDown() {
+        this.compressor.close(); // Release the compressor
+    }
+
+    /**
+     * Tests that a compressible frame is compressed, keeps its tag, and
+     * decompresses to the original frame.
+     */
+    public void testRoundTrip() throws IOException {
+        byte[] body = compressible(4096); // Build a compressible frame
+
+        PooledBuffer compressed = this.compressor.compress(lease(body)); // Compress the frame
+
+        assertTrue(compressed.buffer().remaining() < body.length); // Check the frame shrank
+        assertEquals(body[0] | Codec.COMPRESSED_FLAG, compressed.buffer().get(0) & 0xff); // Check the tag was kept, and flagged
+
+        PooledBuffer decompressed = this.compressor.decompress(compressed); // Decompress the frame
+
+        try {
+            assertEquals(0, compressed.refCount()); // Check the compressed frame was released
+            assertTrue(Arrays.equals(body, bytes(decompressed))); // Check the frame survived
+        } finally {
+            decompressed.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Tests that frames shorter than MIN_COMPRESSED_SIZE (not counting the
+     * tag) are left as they are, and frames of that size are compressed.
+     */
+    public void testThreshold() throws IOException {
+        PooledBuffer small = lease(compressible(FrameCompressor.MIN_COMPRESSED_SIZE - 1)); // Build a frame just under the threshold
+
+        assertSame(small, this.compressor.compress(small)); // Check the frame was left as is
+        assertEquals(1, small.refCount()); // Check the frame wasn't released
+        assertSame(small, this.compressor.decompress(small)); // Check an uncompressed frame is passed through
+        small.release(); // Return the frame
+
+        PooledBuffer large = lease(compressible(FrameCompressor.MIN_COMPRESSED_SIZE)); // Build a frame at the threshold
+        PooledBuffer compressed = this.compressor.compress(large); // Compress the frame
+
+        try {
+            assertNotSame(large, compressed); // Check the frame was compressed
+            assertEquals(0, large.refCount()); // Check the uncompressed frame was released
+        } finally {
+            compressed.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Tests that a frame deflate can't shrink is sent as it is.
+     */
+    public void testSkipsIncompressible() throws IOException {
+        byte[] body = new byte[4096]; // Initialize a frame
+        new Random(42).nextBytes(body); // Fill it with noise
+
+        PooledBuffer frame = lease(body); // Lease the frame
+
+        try {
+            assertSame(frame, this.compressor.compress(frame)); // Check the frame was left as is
+            assertEquals(1, frame.refCount()); // Check the frame wasn't released
+            assertTrue(Arrays.equals(body, bytes(frame))); // Check the frame is untouched
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Tests that a truncated compressed frame is rejected with an
+     * IOException.
+     */
+    public void testRejectsTruncatedFrames() throws IOException {
+        PooledBuffer compressed = this.compressor.compress(lease(compressible(4096))); // Compress a frame
+        byte[] truncated = Arrays.copyOf(bytes(compressed), compressed.buffer().remaining() / 2); // Cut the frame in half
+        compressed.release(); // Return the frame
+
+        PooledBuffer frame = lease(truncated); // Lease the truncated frame
+
+        try {
+            this.compressor.decompress(frame); // Decompress the frame
+
+            fail("a truncated frame was decompressed"); // The frame should have been rejected
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            frame.release(); // Return the frame
+        }
+    }
+
+    /**
+     * Builds a compressible frame body of the given length, following a tag.
+     *
+     * @param length the length of everything following the tag
+     * @return the frame body
+     */
+    private static byte[] compressible(int length) {
+        byte[] body = new byte[length + 1]; // Initialize the body
+        body[0] = 3; // Use an arbitrary tag
+
+        // Fill the body with a repeating pattern
+        for (int i = 1; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 4); // Write a letter of the pattern
+        }
+
+        return body; // Return the body
+    }
+
+    /**
+     * Leases a buffer holding the given bytes.
+     *
+     * @param bytes the bytes to hold
+     * @return the lease
+     */
+    private static PooledBuffer lease(byte[] bytes) {
+        PooledBuffer lease = BufferPool.HEAP.lease(bytes.length); // Lease a buffer
+        lease.buffer().put(bytes).flip(); // Copy the bytes
+
+        return lease; // Return the lease
+    }
+
+    /**
+     * Copies the remaining bytes of a lease, without consuming them.
+     *
+     * @param lease the lease to copy
+     * @return the bytes
+     */
+    private static byte[] bytes(PooledBuffer lease) {
+        byte[] bytes = new byte[lease.buffer().remaining()]; // Initialize a buffer for the bytes
+        lease.buffer().duplicate().get(bytes); // Copy the bytes
+
+        return bytes; // Return the bytes
+    }
+}
@@ -0,0 +1,118 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests the reference counting of pooled buffers, that misuse of a released
+ * buffer is caught, that released buffers are reused, and that buffers
+ * garbage collected without being released are reported as leaks.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class BufferPoolTest extends TestCase {
+    /**
+     * Tests that a buffer is only returned to its pool once every reference
+     * to it has been released.
+     */
+    public void testRetainRelease() {
+        BufferPool pool = new BufferPool(false); // Initialize a pool
+        PooledBuffer lease = pool.lease(100); // Lease a buffer
+
+        assertEquals(1, lease.refCount()); // Check the lease holds a single reference
+        assertEquals(100, lease.buffer().limit()); // Check the buffer is limited to the leased length
+        assertTrue(lease.buffer().capacity() >= BufferPool.MIN_POOLED_SIZE); // Check the buffer was rounded up to a size class
+
+        assertSame(lease, lease.retain()); // Add a reference
+        assertEquals(2, lease.refCount()); // Check the reference was counted
+
+        assertFalse(lease.release()); // Release the added reference
+        assertEquals(0, pool.getPooledCount()); // Check the buffer is still in use
+
+        assertTrue(lease.release()); // Release the last reference
+        assertEquals(1, pool.getPooledCount()); // Check the buffer went back to the pool
+    }
+
+    /**
+     * Tests that a released buffer is handed out again by the next lease of
+     * its size class.
+     */
+    public void testReuse() {
+        BufferPool pool = new BufferPool(false); // Initialize a pool
+        PooledBuffer first = pool.lease(300); // Lease a buffer
+        ByteBuffer buffer = first.buffer(); // Remember the buffer
+        first.release(); // Return the buffer
+
+        PooledBuffer second = pool.lease(500); // Lease a buffer of the same size class
+
+        try {
+            assertSame(buffer, second.buffer()); // Check the buffer was reused
+            assertEquals(0, second.buffer().position()); // Check the buffer was reset
+            assertEquals(500, second.buffer().limit()); // Check the buffer was limited to the new length
+        } finally {
+            second.release(); // Return the buffer
+        }
+    }
+
+    /**
+     * Tests that releasing a buffer more often than it was retained fails.
+     */
+    public void testDoubleRelease() {
+        PooledBuffer lease = new BufferPool(false).lease(10); // Lease a buffer
+        lease.release(); // Release the only reference
+
+        try {
+            lease.release(); // Release it again
+
+            fail("a buffer was released twice"); // The release should have failed
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that using or retaining a released buffer fails.
+     */
+    public void testUseAfterRelease() {
+        PooledBuffer lease = new BufferPool(false).lease(10); // Lease a buffer
+        lease.release(); // Release the only reference
+
+        try {
+            lease.buffer(); // Use the buffer
+
+            fail("a released buffer was used"); // The use should have failed
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        try {
+            lease.retain(); // Retain the buffer
+
+            fail("a released buffer was retained"); // The retain should have failed
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that a tracked buffer garbage collected without being released
+     * is reported, and that a released one isn't.
+     */
+    public void testLeakDetection() throws InterruptedException {
+        BufferPool pool = new BufferPool(false); // Initialize a pool
+        pool.setLeakDetection(BufferPool.LeakDetection.PARANOID); // Track every lease
+
+        pool.lease(10).release(); // Lease and release a buffer
+        pool.lease(10); // Lease a buffer, and drop it without releasing it
+
+        // Wait for the dropped buffer to be collected
+        for (int i = 0; i < 50 && pool.getLeakCount() == 0; i++) {
+            System.gc(); // Ask for a collection
+            Thread.sleep(20); // Give the collector a moment
+        }
+
+        assertEquals(1, pool.getLeakCount()); // Check only the dropped buffer was reported
+    }
+}
@@ -0,0 +1,348 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.peerstore.BootstrapMessage;
+import com.dowlandaiello.melon.peerstore.FindNodeMessage;
+import com.dowlandaiello.melon.peerstore.PeerstoreCodecs;
+import com.dowlandaiello.melon.peerstore.PingMessage;
+import com.dowlandaiello.melon.pubsub.GossipMessage;
+import com.dowlandaiello.melon.pubsub.PubsubCodecs;
+import com.dowlandaiello.melon.pubsub.StreamChunk;
+import com.dowlandaiello.melon.pubsub.SubscriptionMessage;
+import com.dowlandaiello.melon.transport.Upgrade;
+import com.dowlandaiello.melon.transport.compress.Compression;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that every message type survives a round trip through the codec,
+ * and that malformed frames are rejected with an IOException rather than
+ * allocating from, or crashing on, lengths taken from the wire.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class CodecTest extends TestCase {
+    /**
+     * The address of a peer, which is written in its binary form.
+     */
+    private String address;
+
+    /**
+     * The identity of the peer.
+     */
+    private KeyPair identity;
+
+    /**
+     * Registers the codecs of each layer's messages, and generates an
+     * identity and an address for it.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        PubsubCodecs.register(); // Register the pubsub layer's codecs
+        PeerstoreCodecs.register(); // Register the peerstore layer's codecs
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC"); // Get a key pair generator
+        generator.initialize(new ECGenParameterSpec("secp256r1")); // Use the same curve as a host
+
+        this.identity = generator.generateKeyPair(); // Generate the identity
+        this.address = "/ip4/127.0.0.1/tcp/3000/" + Hex.encodeHexString(this.identity.getPublic().getEncoded()); // Build an address for the identity
+    }
+
+    /**
+     * Tests a negotiation round trip.
+     */
+    public void testNegotiation() throws IOException {
+        ArrayList<Upgrade> upgrades = new ArrayList<>(); // Initialize the upgrades list
+        upgrades.add(new Compression()); // Offer compression
+
+        Negotiation negotiation = (Negotiation) roundTrip(new Message(new Negotiation(this.identity.getPublic(), upgrades, this.identity.getPublic(), new ArrayList<>(Arrays.asList("deflate", "none"))), Message.Type.NEGOTIATION)).contents; // Round trip the negotiation
+
+        assertTrue(Arrays.equals(this.identity.getPublic().getEncoded(), negotiation.publicKey.getEncoded())); // Check the public key
+        assertTrue(Arrays.equals(this.identity.getPublic().getEncoded(), negotiation.ephemeralKey.getEncoded())); // Check the ephemeral key
+        assertEquals(1, negotiation.availableUpgrades.size()); // Check the number of upgrades
+        assertEquals(Upgrade.Type.COMPRESSION, negotiation.availableUpgrades.get(0).getType()); // Check the upgrade
+        assertEquals(Arrays.asList("deflate", "none"), negotiation.compressionAlgorithms); // Check the algorithms
+    }
+
+    /**
+     * Tests a bootstrap request and response round trip.
+     */
+    public void testBootstrap() throws IOException {
+        assertNull(((BootstrapMessage) roundTrip(new Message(new BootstrapMessage(null), Message.Type.BOOTSTRAP)).contents).peerAddresses); // Check the request has no addresses
+
+        ArrayList<String> addresses = new ArrayList<>(Arrays.asList(this.address, "not-an-address")); // One binary address, and one that falls back to its string form
+
+        assertEquals(addresses, ((BootstrapMessage) roundTrip(new Message(new BootstrapMessage(addresses), Message.Type.BOOTSTRAP)).contents).peerAddresses); // Check the addresses
+    }
+
+    /**
+     * Tests a pubsub message round trip.
+     */
+    public void testPubsub() throws IOException {
+        com.dowlandaiello.melon.pubsub.Message message = new com.dowlandaiello.melon.pubsub.Message("orders/eu", "hello"); // Initialize the message
+
+        com.dowlandaiello.melon.pubsub.Message decoded = PubsubCodecs.decodeContents((com.dowlandaiello.melon.pubsub.Message) roundTrip(new Message(message, Message.Type.PUBSUB)).contents); // Round trip the message
+
+        assertTrue(Arrays.equals(message.id, decoded.id)); // Check the id
+        assertEquals("orders/eu", decoded.topic); // Check the topic
+        assertEquals("hello", decoded.contents); // Check the contents
+    }
+
+    /**
+     * Tests a gossip message round trip.
+     */
+    public void testGossip() throws IOException {
+        GossipMessage gossip = new GossipMessage(); // Initialize the gossip
+        gossip.graft.add("a"); // Graft a topic
+        gossip.prune.add("b"); // Prune a topic
+        gossip.ihave.put("c", new ArrayList<>(Arrays.asList(new byte[]{1, 2}, new byte[]{3}))); // Advertise some ids
+        gossip.iwant.add(new byte[]{4, 5, 6}); // Request an id
+
+        GossipMessage decoded = (GossipMessage) roundTrip(new Message(gossip, Message.Type.GOSSIP)).contents; // Round trip the gossip
+
+        assertEquals(gossip.graft, decoded.graft); // Check the grafted topics
+        assertEquals(gossip.prune, decoded.prune); // Check the pruned topics
+        assertEquals(1, decoded.ihave.size()); // Check the advertised topics
+        assertTrue(Arrays.equals(new byte[]{3}, decoded.ihave.get("c").get(1))); // Check the advertised ids
+        assertTrue(Arrays.equals(new byte[]{4, 5, 6}, decoded.iwant.get(0))); // Check the requested id
+    }
+
+    /**
+     * Tests a subscription announcement round trip.
+     */
+    public void testSubscription() throws IOException {
+        SubscriptionMessage decoded = (SubscriptionMessage) roundTrip(new Message(new SubscriptionMessage(new ArrayList<>(Arrays.asList("a", "b/#")), new ArrayList<>(Arrays.asList("c"))), Message.Type.SUBSCRIPTION)).contents; // Round trip the announcement
+
+        assertEquals(Arrays.asList("a", "b/#"), decoded.subscribe); // Check the subscribed-to topics
+        assertEquals(Arrays.asList("c"), decoded.unsubscribe); // Check the unsubscribed-from topics
+    }
+
+    /**
+     * Tests a lookup request and response round trip.
+     */
+    public void testFindNode() throws IOException {
+        FindNodeMessage request = (FindNodeMessage) roundTrip(new Message(new FindNodeMessage(new byte[]{9, 8, 7}, this.address, null), Message.Type.FIND_NODE)).contents; // Round trip the request
+
+        assertTrue(Arrays.equals(new byte[]{9, 8, 7}, request.target)); // Check the target
+        assertEquals(this.address, request.sender); // Check the sender
+        assertNull(request.closest); // Check is a request
+
+        FindNodeMessage response = (FindNodeMessage) roundTrip(new Message(new FindNodeMessage(new byte[]{9}, null, new ArrayList<>(Arrays.asList(this.address))), Message.Type.FIND_NODE)).contents; // Round trip the response
+
+        assertNull(response.sender); // Check the sender doesn't listen
+        assertEquals(Arrays.asList(this.address), response.closest); // Check the closest peers
+    }
+
+    /**
+     * Tests a ping round trip.
+     */
+    public void testPing() throws IOException {
+        PingMessage pong = (PingMessage) roundTrip(new Message(new PingMessage(Long.MIN_VALUE + 42, true), Message.Type.PING)).contents; // Round trip the pong
+
+        assertEquals(Long.MIN_VALUE + 42, pong.nonce); // Check the nonce
+        assertTrue(pong.pong); // Check is a pong
+    }
+
+    /**
+     * Tests a stream chunk, and the replies to a stream, round trip.
+     */
+    public void testStream() throws IOException {
+        StreamChunk chunk = (StreamChunk) roundTrip(new Message(new StreamChunk(300, "files", ByteBuffer.wrap(new byte[]{1, 2, 3}), true, false), Message.Type.STREAM)).contents; // Round trip the chunk
+
+        assertEquals(300, chunk.streamId); // Check the id
+        assertEquals("files", chunk.topic); // Check the topic
+        assertEquals(ByteBuffer.wrap(new byte[]{1, 2, 3}), chunk.data); // Check the data
+        assertTrue(chunk.last); // Check is the last chunk
+        assertFalse(chunk.aborted); // Check wasn't aborted
+        assertFalse(chunk.reply); // Check isn't a reply
+
+        StreamChunk refusal = (StreamChunk) roundTrip(new Message(StreamChunk.reply(300, false), Message.Type.STREAM)).contents; // Round trip a refusal
+
+        assertEquals(300, refusal.streamId); // Check the id
+        assertTrue(refusal.reply); // Check is a reply
+        assertTrue(refusal.aborted); // Check the stream was refused
+        assertFalse(((StreamChunk) roundTrip(new Message(StreamChunk.reply(300, true), Message.Type.STREAM)).contents).aborted); // Check an acceptance round trips
+    }
+
+    /**
+     * Tests a raw message round trip.
+     */
+    public void testRaw() throws IOException {
+        Message decoded = roundTrip(new Message(new byte[]{1, 2, 3, 4}, Message.Type.MUX)); // Round trip the message
+
+        assertEquals(Message.Type.MUX, decoded.type); // Check the type
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4}, decoded.bytes)); // Check the bytes
+    }
+
+    /**
+     * Tests that frames held in direct and read-only buffers, which have no
+     * accessible array, are decoded too.
+     */
+    public void testDirectAndReadOnlyBuffers() throws IOException {
+        byte[] body = body(new Message(new SubscriptionMessage(new ArrayList<>(Arrays.asList("a", "b/#")), new ArrayList<>()), Message.Type.SUBSCRIPTION)); // Encode an announcement
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(body.length); // Allocate a direct buffer
+        direct.put(body).flip(); // Copy the body
+
+        assertEquals(Arrays.asList("a", "b/#"), ((SubscriptionMessage) Codec.decode(direct).contents).subscribe); // Check the direct frame
+        assertEquals(Arrays.asList("a", "b/#"), ((SubscriptionMessage) Codec.decode(ByteBuffer.wrap(body).asReadOnlyBuffer()).contents).subscribe); // Check the read-only frame
+    }
+
+    /**
+     * Tests that a length or count running past the end of the frame is
+     * rejected for every type that starts with one.
+     */
+    public void testRejectsOversizedLengths() {
+        int[] tags = {Message.Type.NEGOTIATION.ordinal(), Message.Type.BOOTSTRAP.ordinal(), Message.Type.PUBSUB.ordinal(), Message.Type.GOSSIP.ordinal(), Message.Type.SUBSCRIPTION.ordinal(), Message.Type.FIND_NODE.ordinal(), 0x80 | Message.Type.MUX.ordinal()}; // The tags of every type starting with a length or count
+
+        // Try each of the tags
+        for (int tag : tags) {
+            assertMalformed(new byte[]{(byte) tag, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07}); // The largest int
+            assertMalformed(new byte[]{(byte) tag, (byte) 0x80, (byte) 0x80, 0x01, 0, 0}); // A length of 16384 in a tiny frame
+        }
+    }
+
+    /**
+     * Tests that varints overflowing an int are rejected, rather than being
+     * read as negative lengths.
+     */
+    public void testRejectsNegativeVarints() throws IOException {
+        assertMalformed(new byte[]{(byte) (0x80 | Message.Type.MUX.ordinal()), (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f}); // -1
+        assertMalformed(new byte[]{(byte) Message.Type.STREAM.ordinal(), (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 0}); // Integer.MIN_VALUE
+
+        try {
+            Codec.tryReadVarint(ByteBuffer.wrap(new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x1f})); // Read an overflowing varint
+
+            fail("overflowing varint was accepted"); // Fail
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Tests that unknown tags are rejected.
+     */
+    public void testRejectsUnknownTags() {
+        assertMalformed(new byte[]{0x3f, 0}); // Unknown tag
+        assertMalformed(new byte[0]); // No tag at all
+    }
+
+    /**
+     * Tests that every truncation of every message type, and every frame
+     * with a corrupted byte, either decodes or is rejected with an
+     * IOException.
+     */
+    public void testMalformedFrames() throws IOException {
+        GossipMessage gossip = new GossipMessage(); // Initialize a gossip message
+        gossip.ihave.put("c", new ArrayList<>(Arrays.asList(new byte[]{1, 2}))); // Advertise an id
+        gossip.iwant.add(new byte[]{3}); // Request an id
+
+        Message[] messages = {
+                new Message(new Negotiation(this.identity.getPublic(), new ArrayList<>(Arrays.asList((Upgrade) new Compression())), this.identity.getPublic(), new ArrayList<>(Arrays.asList("deflate"))), Message.Type.NEGOTIATION),
+                new Message(new BootstrapMessage(new ArrayList<>(Arrays.asList(this.address, "x"))), Message.Type.BOOTSTRAP),
+                new Message(new com.dowlandaiello.melon.pubsub.Message("t", "hello"), Message.Type.PUBSUB),
+                new Message(gossip, Message.Type.GOSSIP),
+                new Message(new SubscriptionMessage(new ArrayList<>(Arrays.asList("a")), new ArrayList<>(Arrays.asList("b"))), Message.Type.SUBSCRIPTION),
+                new Message(new FindNodeMessage(new byte[]{1}, this.address, new ArrayList<>(Arrays.asList(this.address))), Message.Type.FIND_NODE),
+                new Message(new PingMessage(1, false), Message.Type.PING),
+                new Message(new StreamChunk(1, "t", ByteBuffer.wrap(new byte[]{1}), false, false), Message.Type.STREAM),
+                new Message(new byte[]{1, 2}, Message.Type.MUX),
+        }; // One of each type of message
+
+        Random random = new Random(42); // Corrupt the same bytes every run
+
+        // Mangle each of the messages
+        for (Message message : messages) {
+            byte[] body = body(message); // Encode the message
+
+            // Decode each truncation of the message
+            for (int length = 0; length < body.length; length++) {
+                assertDecodesOrRejects(Arrays.copyOf(body, length)); // Decode the truncated frame
+            }
+
+            // Decode copies of the message with a random byte corrupted
+            for (int i = 0; i < 500; i++) {
+                byte[] corrupted = body.clone(); // Copy the frame
+                corrupted[random.nextInt(corrupted.length)] = (byte) random.nextInt(256); // Corrupt a byte
+
+                assertDecodesOrRejects(corrupted); // Decode the corrupted frame
+            }
+        }
+    }
+
+    /**
+     * Encodes and decodes a message.
+     *
+     * @param message the message to round trip
+     * @return the decoded message
+     */
+    private static Message roundTrip(Message message) throws IOException {
+        Message decoded = Codec.decode(ByteBuffer.wrap(body(message))); // Decode the frame
+
+        assertEquals(message.type, decoded.type); // Check the type
+
+        return decoded; // Return the decoded message
+    }
+
+    /**
+     * Encodes a message, and strips the length prefix off of its frame.
+     *
+     * @param message the message to encode
+     * @return the body of the frame
+     */
+    private static byte[] body(Message message) throws IOException {
+        ByteBuffer frame = Codec.encode(message); // Encode the message
+        Codec.getVarint(frame); // Skip the length prefix
+
+        byte[] body = new byte[frame.remaining()]; // Initialize a buffer for the body
+        frame.get(body); // Copy the body
+
+        return body; // Return the body
+    }
+
+    /**
+     * Asserts that decoding the given body fails with an IOException.
+     *
+     * @param body the body of the frame
+     */
+    private static void assertMalformed(byte[] body) {
+        try {
+            Codec.decode(ByteBuffer.wrap(body)); // Decode the frame
+
+            fail(String.format("malformed frame was accepted: %s", Hex.encodeHexString(body))); // Fail
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Asserts that decoding the given body either succeeds, or fails with an
+     * IOException.
+     *
+     * @param body the body of the frame
+     */
+    private static void assertDecodesOrRejects(byte[] body) {
+        try {
+            Message decoded = Codec.decode(ByteBuffer.wrap(body)); // Decode the frame
+
+            // Check is a pubsub message
+            if (decoded.contents instanceof com.dowlandaiello.melon.pubsub.Message) {
+                PubsubCodecs.decodeContents((com.dowlandaiello.melon.pubsub.Message) decoded.contents); // Decode the contents too
+            }
+        } catch (IOException e) {
+            // Rejected
+        } catch (RuntimeException | OutOfMemoryError e) {
+            throw new AssertionError(String.format("decoding %s threw %s", Hex.encodeHexString(body), e), e); // Fail
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Represents a connection for tests, which connects to nothing. Closing it
+ * only marks it as closed, flushing it does nothing, and any read or write
+ * fails unless a test overrides it, since the code under test shouldn't make
+ * calls the test didn't expect. Connections are compared by identity.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FakeConnection implements Connection {
+    /**
+     * The multiaddress of the peer, if any.
+     */
+    private final String remoteAddress;
+
+    /**
+     * Whether or not the connection has been closed.
+     */
+    private final AtomicBoolean closed;
+
+    /**
+     * Initializes a new connection to no peer in particular.
+     */
+    public FakeConnection() {
+        this(null); // No address
+    }
+
+    /**
+     * Initializes a new connection to the peer with the given multiaddress.
+     *
+     * @param remoteAddress the multiaddress of the peer
+     */
+    public FakeConnection(String remoteAddress) {
+        this.remoteAddress = remoteAddress; // Set remote address
+        this.closed = new AtomicBoolean(); // Not closed yet
+    }
+
+    public void write(int b) throws IOException {
+        throw unexpected("write"); // The test didn't expect the call
+    }
+
+    public int read() throws IOException {
+        throw unexpected("read"); // The test didn't expect the call
+    }
+
+    public void write(byte[] b) throws IOException {
+        throw unexpected("write"); // The test didn't expect the call
+    }
+
+    public int read(byte[] b) throws IOException {
+        throw unexpected("read"); // The test didn't expect the call
+    }
+
+    public void writeObject(Serializable obj) throws IOException {
+        throw unexpected("writeObject"); // The test didn't expect the call
+    }
+
+    public Object readObject() throws IOException {
+        throw unexpected("readObject"); // The test didn't expect the call
+    }
+
+    public void writeMessage(CommonTypes.Message message) throws IOException {
+        throw unexpected("writeMessage"); // The test didn't expect the call
+    }
+
+    public CommonTypes.Message readMessage() throws IOException {
+        throw unexpected("readMessage"); // The test didn't expect the call
+    }
+
+    public ByteBuffer readFrame() throws IOException {
+        throw unexpected("readFrame"); // The test didn't expect the call
+    }
+
+    public PooledBuffer readPooledFrame() throws IOException {
+        throw unexpected("readPooledFrame"); // The test didn't expect the call
+    }
+
+    public void writeFile(FileChannel file, long position, long count) throws IOException {
+        throw unexpected("writeFile"); // The test didn't expect the call
+    }
+
+    public void readFile(FileChannel file, long position, long count) throws IOException {
+        throw unexpected("readFile"); // The test didn't expect the call
+    }
+
+    public void flush() throws IOException {
+        // Nothing to flush
+    }
+
+    public void close() throws IOException {
+        this.markClosed(); // Mark the connection as closed
+    }
+
+    public boolean isClosed() {
+        return this.closed.get(); // Return whether or not the connection is closed
+    }
+
+    public String getRemoteMultiaddress() {
+        return this.remoteAddress; // Return the multiaddress of the peer
+    }
+
+    @Override
+    public String toString() {
+        return this.remoteAddress == null ? "FakeConnection" : "connection to " + this.remoteAddress; // Describe the connection
+    }
+
+    /**
+     * Marks the connection as closed.
+     *
+     * @return whether or not the connection was open until now
+     */
+    protected boolean markClosed() {
+        return this.closed.compareAndSet(false, true); // Mark the connection as closed
+    }
+
+    /**
+     * Takes the next element off of a queue, waiting for one to be put on
+     * it, for reads served from a queue.
+     *
+     * @param queue the queue
+     * @param <T> the type of the queued elements
+     * @return the element
+     */
+    protected static <T> T take(BlockingQueue<T> queue) throws IOException {
+        try {
+            return queue.take(); // Return the next element
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Preserve the interrupt
+
+            throw new InterruptedIOException("interrupted while reading"); // Throw exception
+        }
+    }
+
+    /**
+     * Builds the exception thrown by a call the test didn't expect.
+     *
+     * @param method the name of the called method
+     * @return the exception
+     */
+    private static UnsupportedOperationException unexpected(String method) {
+        return new UnsupportedOperationException(method); // Return the exception
+    }
+}
@@ -0,0 +1,235 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the file transfer helpers: that a region of a file sent to a channel
+ * is received intact into another file, that a source ending early is
+ * reported, that regions outside a file are refused, and that mapped
+ * windows cover exactly the requested region.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class FileTransferTest extends TestCase {
+    /**
+     * The size of the transferred file (not a multiple of any buffer size).
+     */
+    private static final int FILE_SIZE = 3 * 1024 * 1024 + 17;
+
+    /**
+     * The directory holding the test's files.
+     */
+    private File directory;
+
+    /**
+     * The contents of the source file.
+     */
+    private byte[] contents;
+
+    /**
+     * The file transferred from.
+     */
+    private FileChannel source;
+
+    /**
+     * The file transferred to.
+     */
+    private FileChannel destination;
+
+    /**
+     * Writes a source file of random bytes, and opens an empty destination
+     * file.
+     */
+    @Override
+    protected void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("melon-transfer").toFile(); // Initialize the directory
+        this.contents = new byte[FILE_SIZE]; // Initialize the contents
+        new Random(42).nextBytes(this.contents); // Fill the contents
+
+        File sourceFile = new File(this.directory, "source"); // Get the source file
+        Files.write(sourceFile.toPath(), this.contents); // Write the source file
+
+        this.source = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ); // Open the source file
+        this.destination = FileChannel.open(new File(this.directory, "destination").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE); // Open the destination file
+    }
+
+    /**
+     * Closes and deletes the test's files.
+     */
+    @Override
+    protected void tearDown() throws IOException {
+        this.source.close(); // Close the source file
+        this.destination.close(); // Close the destination file
+
+        // Delete each of the files
+        for (File file : this.directory.listFiles()) {
+            file.delete(); // Delete the file
+        }
+
+        this.directory.delete(); // Delete the directory
+    }
+
+    /**
+     * Tests that a whole file sent through a channel is received intact.
+     */
+    public void testRoundTrip() throws Exception {
+        this.transfer(0, FILE_SIZE, 0); // Transfer the whole file
+
+        assertEquals(FILE_SIZE, this.destination.size()); // Check the size
+        assertTrue(Arrays.equals(this.contents, this.read(0, FILE_SIZE))); // Check the contents
+    }
+
+    /**
+     * Tests that a region from the middle of a file is received at the end
+     * of another.
+     */
+    public void testRegionRoundTrip() throws Exception {
+        this.destination.write(ByteBuffer.wrap(new byte[100])); // Write some leading bytes
+
+        this.transfer(1000, 50000, 100); // Transfer a region after the leading bytes
+
+        assertEquals(50100, this.destination.size()); // Check the size
+        assertTrue(Arrays.equals(Arrays.copyOfRange(this.contents, 1000, 51000), this.read(100, 50000))); // Check the contents
+    }
+
+    /**
+     * Tests that a source ending before the whole region has arrived is
+     * reported.
+     */
+    public void testShortSource() throws Exception {
+        Pipe pipe = Pipe.open(); // Open a channel pair
+
+        pipe.sink().write(ByteBuffer.wrap(this.contents, 0, 10)); // Send fewer bytes than expected
+        pipe.sink().close(); // End the source
+
+        try {
+            FileTransfer.transferFrom(pipe.source(), this.destination, 0, 20); // Receive the region
+
+            fail("expected the short source to be reported"); // The source ended early
+        } catch (EOFException e) {
+            assertTrue(e.getMessage().contains("10 bytes short")); // Check reports the missing bytes
+        } finally {
+            pipe.source().close(); // Close the source
+        }
+    }
+
+    /**
+     * Tests that regions outside of a file are refused.
+     */
+    public void testInvalidRegions() throws Exception {
+        assertInvalid(() -> FileTransfer.checkRegion(this.source, -1, 10)); // Check a negative position is refused
+        assertInvalid(() -> FileTransfer.checkRegion(this.source, 0, -1)); // Check a negative count is refused
+        assertInvalid(() -> FileTransfer.checkRegion(this.source, FILE_SIZE - 10, 11)); // Check a region past the end is refused
+        assertInvalid(() -> FileTransfer.checkRegion(this.source, Long.MAX_VALUE, 10)); // Check an overflowing region is refused
+        assertInvalid(() -> FileTransfer.checkDestination(this.destination, 1, 10)); // Check a gap before the region is refused
+
+        FileTransfer.checkRegion(this.source, FILE_SIZE - 10, 10); // Check a region up to the end is allowed
+        FileTransfer.checkDestination(this.destination, 0, 10); // Check a region at the end is allowed
+    }
+
+    /**
+     * Tests that the mapped windows of a region cover exactly the region.
+     */
+    public void testWindows() throws Exception {
+        ByteArrayOutputStream mapped = new ByteArrayOutputStream(); // The mapped bytes
+
+        FileTransfer.forEachWindow(this.source, 5, FILE_SIZE - 10, (MappedByteBuffer window) -> {
+            byte[] bytes = new byte[window.remaining()]; // Initialize a buffer for the window
+            window.get(bytes); // Read the window
+            mapped.write(bytes); // Collect the window
+        }); // Map the region
+
+        assertTrue(Arrays.equals(Arrays.copyOfRange(this.contents, 5, FILE_SIZE - 5), mapped.toByteArray())); // Check the contents
+    }
+
+    /**
+     * Sends a region of the source file through a pipe, and receives it into
+     * the destination file.
+     *
+     * @param position the offset of the first byte sent
+     * @param count the number of bytes sent
+     * @param destinationPosition the offset the region is received at
+     */
+    private void transfer(long position, long count, long destinationPosition) throws Exception {
+        Pipe pipe = Pipe.open(); // Open a channel pair
+
+        CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+            try {
+                FileTransfer.transferTo(this.source, position, count, pipe.sink()); // Send the region
+                pipe.sink().close(); // End the stream
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Fail the send
+            }
+        }); // Send the region on another thread, since the pipe only buffers so much
+
+        FileTransfer.transferFrom(pipe.source(), this.destination, destinationPosition, count); // Receive the region
+        pipe.source().close(); // Close the source
+
+        sent.get(10, TimeUnit.SECONDS); // Check the send succeeded
+    }
+
+    /**
+     * Reads a region of the destination file.
+     *
+     * @param position the offset of the first byte to read
+     * @param count the number of bytes to read
+     * @return the read bytes
+     */
+    private byte[] read(long position, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count); // Initialize the buffer
+
+        // Read until the buffer is full
+        while (buffer.hasRemaining()) {
+            // Check the file has ended
+            if (this.destination.read(buffer, position + buffer.position()) < 0) {
+                break; // Stop reading
+            }
+        }
+
+        return buffer.array(); // Return the read bytes
+    }
+
+    /**
+     * Represents a region check.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private interface Check {
+        /**
+         * Runs the check.
+         */
+        void run() throws IOException;
+    }
+
+    /**
+     * Asserts that a region check refuses its region.
+     *
+     * @param check the check to run
+     */
+    private static void assertInvalid(Check check) {
+        try {
+            check.run(); // Run the check
+
+            fail("expected the region to be refused"); // The region was allowed
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("invalid file region")); // Check the region was refused
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.peerstore.PeerstoreCodecs;
+import com.dowlandaiello.melon.peerstore.PingMessage;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Tests that a pipeline reading ahead a single frame hands every frame to
+ * its dispatcher, in order, without ever losing the wakeup that resumes a
+ * paused connection, whether the connection pushes its frames or is read by
+ * a blocking reader, and while handlers hold and release the pipeline.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class PipelineTest extends TestCase {
+    /**
+     * The number of frames sent through each pipeline.
+     */
+    private static final int FRAMES = 100000;
+
+    /**
+     * The longest a paused connection waits to be resumed before the wakeup
+     * is considered lost (in seconds).
+     */
+    private static final int RESUME_TIMEOUT = 5;
+
+    /**
+     * The workers dispatching the frames.
+     */
+    private ExecutorService workers;
+
+    /**
+     * The executor running blocking readers.
+     */
+    private ExecutorService readers;
+
+    /**
+     * Registers the ping codec, and initializes the workers and readers.
+     */
+    @Override
+    protected void setUp() {
+        PeerstoreCodecs.register(); // Register the codecs of the pings used as frames
+
+        this.workers = Executors.newFixedThreadPool(2); // Dispatch on a couple of threads
+        this.readers = Executors.newCachedThreadPool(); // Give each reader its own thread
+    }
+
+    /**
+     * Stops the workers and readers.
+     */
+    @Override
+    protected void tearDown() {
+        this.workers.shutdownNow(); // Stop the workers
+        this.readers.shutdownNow(); // Stop the readers
+    }
+
+    /**
+     * Tests a connection that pushes its frames, pausing after every frame.
+     */
+    public void testSourceReadAheadOne() throws Exception {
+        Pushing source = new Pushing(); // Push the frames ourselves
+        Counting counter = new Counting(null); // Count the dispatched frames
+
+        source.pipeline = new Pipeline(source, this.workers, 1).on(Message.Type.PING, counter); // Read ahead a single frame
+        source.pipeline.start(this.readers); // Start receiving frames
+
+        source.push(FRAMES); // Push each of the frames
+
+        counter.await(FRAMES); // Wait for the frames to be dispatched
+    }
+
+    /**
+     * Tests a connection read by a blocking reader, pausing after every
+     * frame.
+     */
+    public void testReaderReadAheadOne() throws Exception {
+        AtomicLong next = new AtomicLong(); // The number of the next frame to read
+        Counting counter = new Counting(null); // Count the dispatched frames
+        CountDownLatch closed = new CountDownLatch(1); // Counted down once the reader stops
+
+        Connection conn = new FakeConnection() {
+            @Override
+            public PooledBuffer readPooledFrame() throws IOException {
+                long seq = next.getAndIncrement(); // Get the number of the frame
+
+                // Check every frame has been read
+                if (seq >= FRAMES) {
+                    throw new IOException("closed"); // End the connection
+                }
+
+                return frame(seq); // Return the frame
+            }
+        }; // Read the frames
+
+        new Pipeline(conn, this.workers, 1).on(Message.Type.PING, counter).onClose(closed::countDown).start(this.readers); // Start reading
+
+        counter.await(FRAMES); // Wait for the frames to be dispatched
+
+        assertTrue(closed.await(RESUME_TIMEOUT, TimeUnit.SECONDS)); // Check the reader stopped once the connection ended
+    }
+
+    /**
+     * Tests a connection that pushes its frames while its handler holds the
+     * pipeline every few frames, and another thread releases the hold.
+     */
+    public void testHoldReadAheadOne() throws Exception {
+        ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor(); // Releases the holds
+
+        try {
+            Pushing source = new Pushing(); // Push the frames ourselves
+            Counting counter = new Counting((Long seq) -> {
+                // Check should hold the pipeline
+                if (seq % 97 == 0) {
+                    source.pipeline.hold(); // Stop the connection from being read
+                    releaser.schedule(source.pipeline::unhold, 100, TimeUnit.MICROSECONDS); // Release the hold shortly
+                }
+            }); // Count the dispatched frames, holding every few
+
+            source.pipeline = new Pipeline(source, this.workers, 1).on(Message.Type.PING, counter); // Read ahead a single frame
+            source.pipeline.start(this.readers); // Start receiving frames
+
+            source.push(FRAMES / 4); // Push each of the frames
+
+            counter.await(FRAMES / 4); // Wait for the frames to be dispatched
+        } finally {
+            releaser.shutdownNow(); // Stop releasing holds
+        }
+    }
+
+    /**
+     * Builds the body of the frame numbered seq.
+     *
+     * @param seq the number of the frame
+     * @return the body of the frame
+     */
+    private static PooledBuffer frame(long seq) throws IOException {
+        ByteBuffer frame = Codec.encode(new Message(new PingMessage(seq, false), Message.Type.PING)); // Encode the frame
+        Codec.getVarint(frame); // Skip the length prefix
+
+        return PooledBuffer.unpooled(frame.slice()); // Return the body
+    }
+
+    /**
+     * Represents a connection that pushes frames into its pipeline, waiting
+     * to be resumed each time the pipeline pauses it.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class Pushing extends FakeConnection implements Pipeline.Source {
+        /**
+         * The pipeline frames are pushed into.
+         */
+        volatile Pipeline pipeline;
+
+        /**
+         * Released each time the pipeline resumes delivery.
+         */
+        private final Semaphore resumed = new Semaphore(0);
+
+        public void deliverTo(Pipeline pipeline) {
+            // Frames are pushed by push
+        }
+
+        public void resumeDelivery() {
+            this.resumed.release(); // Let the pusher continue
+        }
+
+        /**
+         * Pushes the given number of frames, failing if the pipeline doesn't
+         * resume delivery after pausing it.
+         *
+         * @param count the number of frames to push
+         */
+        void push(int count) throws Exception {
+            // Push each of the frames
+            for (long seq = 0; seq < count; seq++) {
+                // Check the pipeline paused delivery
+                if (!this.pipeline.offer(frame(seq))) {
+                    assertTrue("lost the wakeup after frame " + seq, this.resumed.tryAcquire(RESUME_TIMEOUT, TimeUnit.SECONDS)); // Wait to be resumed
+                }
+            }
+        }
+    }
+
+    /**
+     * Represents a dispatcher counting the frames it is handed, checking
+     * they arrive in order.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class Counting implements Pipeline.Dispatcher {
+        /**
+         * Run on the number of each dispatched frame (null if nothing).
+         */
+        private final Consumer<Long> onFrame;
+
+        /**
+         * The number of dispatched frames.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        /**
+         * The number of the first frame dispatched out of order (-1 if none).
+         */
+        private volatile long outOfOrder = -1;
+
+        /**
+         * Initializes a new counting dispatcher.
+         *
+         * @param onFrame run on the number of each dispatched frame (null if nothing)
+         */
+        Counting(Consumer<Long> onFrame) {
+            this.onFrame = onFrame; // Set the frame callback
+        }
+
+        public void dispatch(Connection conn, Message message) {
+            long seq = ((PingMessage) message.contents).nonce; // Get the number of the frame
+
+            // Check the frame arrived out of order
+            if (seq != this.count.get() && this.outOfOrder < 0) {
+                this.outOfOrder = seq; // Remember the frame
+            }
+
+            // Check has a frame callback
+            if (this.onFrame != null) {
+                this.onFrame.accept(seq); // Run the callback
+            }
+
+            this.count.incrementAndGet(); // Count the frame
+        }
+
+        /**
+         * Waits for the given number of frames to have been dispatched, and
+         * checks they were dispatched in order.
+         *
+         * @param expected the number of frames to wait for
+         */
+        void await(int expected) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 30000; // Give up after thirty seconds
+
+            // Wait for the frames
+            while (this.count.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5); // Wait a bit
+            }
+
+            assertEquals(expected, this.count.get()); // Check every frame was dispatched
+            assertEquals(-1, this.outOfOrder); // Check the frames were dispatched in order
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.dowlandaiello.melon.transport.connection;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests the bounded queue, and the queued writer under each of its overflow
+ * policies, with several producers sending at once: no message is written
+ * twice, each producer's messages are written in the order they were sent,
+ * and a full queue is handled as the policy says.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class QueuedWriterTest extends TestCase {
+    /**
+     * The number of producers sending at once.
+     */
+    private static final int PRODUCERS = 4;
+
+    /**
+     * The capacity of each writer's queue.
+     */
+    private static final int CAPACITY = 8;
+
+    /**
+     * The executor running the writers' drain tasks.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Initializes the drain executor.
+     */
+    @Override
+    protected void setUp() {
+        this.executor = Executors.newFixedThreadPool(2); // Drain on a couple of threads
+    }
+
+    /**
+     * Stops the drain executor.
+     */
+    @Override
+    protected void tearDown() {
+        this.executor.shutdownNow(); // Stop the executor
+    }
+
+    /**
+     * Tests that every element offered by concurrent producers is polled
+     * exactly once by concurrent consumers.
+     */
+    public void testBoundedQueue() throws Exception {
+        int perProducer = 50000; // The number of elements each producer offers
+        BoundedQueue<Integer> queue = new BoundedQueue<>(CAPACITY); // Initialize the queue
+        AtomicIntegerArray seen = new AtomicIntegerArray(PRODUCERS * perProducer); // The number of times each element was polled
+        AtomicInteger polled = new AtomicInteger(); // The number of polled elements
+        List<Thread> threads = new ArrayList<>(); // The producers and consumers
+
+        // Start each of the producers
+        for (int p = 0; p < PRODUCERS; p++) {
+            int first = p * perProducer; // The first element of the producer
+
+            threads.add(new Thread(() -> {
+                // Offer each of the producer's elements
+                for (int i = first; i < first + perProducer; i++) {
+                    // Wait for room
+                    while (!queue.offer(i)) {
+                        Thread.yield(); // Let the consumers catch up
+                    }
+                }
+            })); // Add the producer
+        }
+
+        // Start as many consumers
+        for (int c = 0; c < PRODUCERS; c++) {
+            threads.add(new Thread(() -> {
+                // Poll until every element has been taken
+                while (polled.get() < PRODUCERS * perProducer) {
+                    Integer element = queue.poll(); // Take an element
+
+                    // Check took an element
+                    if (element != null) {
+                        seen.incrementAndGet(element); // Count the element
+                        polled.incrementAndGet(); // Count the poll
+                    } else {
+                        Thread.yield(); // Let the producers catch up
+                    }
+                }
+            })); // Add the consumer
+        }
+
+        runAll(threads); // Run the producers and consumers
+
+        // Check each of the elements
+        for (int i = 0; i < seen.length(); i++) {
+            assertEquals(1, seen.get(i)); // Check the element was polled exactly once
+        }
+
+        assertTrue(queue.isEmpty()); // Check nothing is left over
+        assertEquals(PRODUCERS * perProducer, queue.added()); // Check every element was counted
+    }
+
+    /**
+     * Tests that BLOCK writes every message, in each producer's order.
+     */
+    public void testBlock() throws Exception {
+        int perProducer = 2000; // The number of messages each producer sends
+        RecordingConnection conn = new RecordingConnection(true); // Record the writes
+        QueuedWriter writer = new QueuedWriter(conn, CAPACITY, QueuedWriter.Policy.BLOCK, this.executor); // Initialize the writer
+
+        runAll(producers(writer, perProducer, new AtomicInteger())); // Send from each of the producers
+
+        conn.awaitWrites(PRODUCERS * perProducer); // Wait for the queue to drain
+
+        assertEquals(PRODUCERS * perProducer, conn.written.size()); // Check every message was written
+        assertInOrder(conn.written); // Check each producer's order was kept
+    }
+
+    /**
+     * Tests that DROP_OLDEST never refuses a message, and keeps at most a
+     * queue's worth of messages (plus the one being written) while the
+     * connection is stalled.
+     */
+    public void testDropOldest() throws Exception {
+        int perProducer = 500; // The number of messages each producer sends
+        RecordingConnection conn = new RecordingConnection(false); // Stall the writes
+        QueuedWriter writer = new QueuedWriter(conn, CAPACITY, QueuedWriter.Policy.DROP_OLDEST, this.executor); // Initialize the writer
+        AtomicInteger refused = new AtomicInteger(); // The number of refused messages
+
+        runAll(producers(writer, perProducer, refused)); // Send from each of the producers
+
+        assertEquals(0, refused.get()); // Check nothing was refused
+        assertTrue(writer.getQueued() <= CAPACITY); // Check the queue stayed bounded
+
+        conn.open(); // Let the writes through
+        conn.awaitWrites(1); // Wait for the stalled write
+
+        Thread.sleep(200); // Give the writer time to write the rest
+
+        assertTrue(conn.written.size() <= CAPACITY + 1); // Check the oldest messages were dropped
+        assertInOrder(conn.written); // Check each producer's order was kept
+    }
+
+    /**
+     * Tests that FAIL refuses exactly the messages that don't fit, and
+     * writes every message it accepted.
+     */
+    public void testFail() throws Exception {
+        int perProducer = 500; // The number of messages each producer sends
+        RecordingConnection conn = new RecordingConnection(false); // Stall the writes
+        QueuedWriter writer = new QueuedWriter(conn, CAPACITY, QueuedWriter.Policy.FAIL, this.executor); // Initialize the writer
+        AtomicInteger refused = new AtomicInteger(); // The number of refused messages
+
+        runAll(producers(writer, perProducer, refused)); // Send from each of the producers
+
+        int accepted = PRODUCERS * perProducer - refused.get(); // Get the number of accepted messages
+
+        assertTrue(accepted <= CAPACITY + 1); // Check only a queue's worth was accepted (plus the one being written)
+
+        conn.open(); // Let the writes through
+        conn.awaitWrites(accepted); // Wait for the accepted messages
+
+        assertEquals(accepted, conn.written.size()); // Check every accepted message was written
+        assertInOrder(conn.written); // Check each producer's order was kept
+    }
+
+    /**
+     * Tests that a sender on a single-threaded worker pool waits under BLOCK
+     * for a stalled connection, and finishes once the connection drains,
+     * since the writer drains on its own executor rather than behind the
+     * sender.
+     */
+    public void testBlockOnWorker() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor(); // The only worker, shared by every sender
+        RecordingConnection conn = new RecordingConnection(false); // Stall the writes
+        QueuedWriter writer = new QueuedWriter(conn, CAPACITY, QueuedWriter.Policy.BLOCK, this.executor); // Initialize the writer
+
+        try {
+            Future<?> sent = single.submit(() -> {
+                // Send more messages than fit in the queue
+                for (int i = 0; i < CAPACITY * 4; i++) {
+                    writer.send(message(0, i)); // Send a message
+                }
+
+                return null; // Done!
+            }); // Fill the queue from the worker
+
+            try {
+                sent.get(200, TimeUnit.MILLISECONDS); // Wait for the worker
+
+                fail("the worker wasn't made to wait for room"); // The queue should have filled up
+            } catch (TimeoutException e) {
+                // Expected
+            }
+
+            assertEquals(CAPACITY, writer.getQueued()); // Check the worker is waiting on a full queue
+
+            conn.open(); // Let the writes through
+
+            sent.get(10, TimeUnit.SECONDS); // Check the worker finished
+            conn.awaitWrites(CAPACITY * 4); // Wait for the queue to drain
+
+            assertEquals(CAPACITY * 4, conn.written.size()); // Check every message was written
+            assertInOrder(conn.written); // Check the order was kept
+        } finally {
+            single.shutdownNow(); // Stop the worker
+        }
+    }
+
+    /**
+     * Tests that a write failing with an unchecked exception stops the
+     * writer, rather than leaving its drain task marked as scheduled with
+     * senders waiting on it forever.
+     */
+    public void testUncheckedWriteFailure() throws Exception {
+        Connection conn = new FakeConnection() {
+            @Override
+            public void writeMessage(Message message) {
+                throw new IllegalStateException("broken connection"); // Fail the write
+            }
+        }; // Initialize a connection whose writes fail
+        QueuedWriter writer = new QueuedWriter(conn, CAPACITY, QueuedWriter.Policy.BLOCK, this.executor); // Initialize the writer
+
+        Future<?> sent = this.executor.submit(() -> {
+            writer.sendAndWait(message(0, 0)); // Wait for the write
+
+            return null; // Done!
+        }); // Send from a separate thread, so a hang fails the test
+
+        try {
+            sent.get(10, TimeUnit.SECONDS); // Wait for the send
+
+            fail("the failed write wasn't reported"); // The send should have failed
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException); // Check the failure was reported as an IOException
+            assertTrue(e.getCause().getCause() instanceof IllegalStateException); // Check the cause was kept
+        }
+
+        assertTrue(writer.isFailed()); // Check the writer stopped
+
+        try {
+            writer.send(message(0, 1)); // Send another message
+
+            fail("a stopped writer accepted a message"); // The send should have failed
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Builds producers, each of which sends the given number of messages
+     * through the writer, counting the ones that are refused.
+     *
+     * @param writer the writer to send through
+     * @param perProducer the number of messages each producer sends
+     * @param refused the count of refused messages
+     * @return the producers
+     */
+    private static List<Thread> producers(QueuedWriter writer, int perProducer, AtomicInteger refused) {
+        List<Thread> producers = new ArrayList<>(); // Initialize the producers list
+
+        // Build each of the producers
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p; // The id of the producer
+
+            producers.add(new Thread(() -> {
+                // Send each of the producer's messages
+                for (int i = 0; i < perProducer; i++) {
+                    try {
+                        writer.send(message(producer, i)); // Send the message
+                    } catch (QueuedWriter.QueueFullException e) {
+                        refused.incrementAndGet(); // Count the refused message
+                    } catch (IOException e) {
+                        throw new RuntimeException(e); // Nothing else should fail
+                    }
+                }
+            })); // Add the producer
+        }
+
+        return producers; // Return the producers
+    }
+
+    /**
+     * Builds the message numbered seq of a producer.
+     *
+     * @param producer the id of the producer
+     * @param seq the number of the message
+     * @return the message
+     */
+    private static Message message(int producer, int seq) {
+        return new Message(new int[] {producer, seq}, Message.Type.PUBSUB); // Carry the producer and number as the contents
+    }
+
+    /**
+     * Asserts that each producer's written messages are in the order they
+     * were sent, and that none was written twice.
+     *
+     * @param written the written messages
+     */
+    private static void assertInOrder(ConcurrentLinkedQueue<Message> written) {
+        int[] last = new int[PRODUCERS]; // The number of the last message written for each producer
+
+        Arrays.fill(last, -1); // Nothing has been written yet
+
+        // Check each of the written messages
+        for (Message message : written) {
+            int[] id = (int[]) message.contents; // Get the producer and number of the message
+
+            assertTrue(id[1] > last[id[0]]); // Check the message came after the producer's last one
+            last[id[0]] = id[1]; // Remember the message
+        }
+    }
+
+    /**
+     * Starts each of the given threads, and waits for all of them to finish.
+     *
+     * @param threads the threads to run
+     */
+    private static void runAll(List<Thread> threads) throws InterruptedException {
+        // Start each of the threads
+        for (Thread thread : threads) {
+            thread.start(); // Start the thread
+        }
+
+        // Wait for each of the threads
+        for (Thread thread : threads) {
+            thread.join(30000); // Wait for the thread
+            assertFalse(thread.isAlive()); // Check the thread finished
+        }
+    }
+
+    /**
+     * Represents a connection recording the messages written to it, which
+     * can be stalled until opened.
+     *
+     * @author Dowland Aiello
+     * @since 1.0
+     */
+    private static class RecordingConnection extends FakeConnection {
+        /**
+         * The written messages.
+         */
+        final ConcurrentLinkedQueue<Message> written = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The gate writes wait on until the connection is opened.
+         */
+        private final CountDownLatch gate;
+
+        /**
+         * Initializes a new recording connection.
+         *
+         * @param open whether or not writes go through right away
+         */
+        RecordingConnection(boolean open) {
+            super("/ip4/127.0.0.1/tcp/0"); // A placeholder address
+
+            this.gate = new CountDownLatch(open ? 0 : 1); // Initialize the gate
+        }
+
+        /**
+         * Lets stalled writes through.
+         */
+        void open() {
+            this.gate.countDown(); // Open the gate
+        }
+
+        /**
+         * Waits for the given number of messages to have been written.
+         *
+         * @param count the number of messages to wait for
+         */
+        void awaitWrites(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000; // Give up after ten seconds
+
+            // Wait for the writes
+            while (this.written.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5); // Wait a bit
+            }
+        }
+
+        @Override
+        public void writeMessage(Message message) throws IOException {
+            try {
+                this.gate.await(); // Wait until the connection is opened
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted", e); // Stop writing
+            }
+
+            this.written.add(message); // Record the message
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.dowlandaiello.melon.transport.mux;
+
+import com.dowlandaiello.melon.common.CommonTypes.Message;
+import com.dowlandaiello.melon.transport.connection.Codec;
+import com.dowlandaiello.melon.transport.connection.Connection;
+import com.dowlandaiello.melon.transport.connection.FakeConnection;
+import com.dowlandaiello.melon.transport.connection.PooledBuffer;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests the flow control of multiplexed streams: that a writer blocks once
+ * it has used up the window granted by its peer, that the window is granted
+ * back once half of it has been consumed, that a peer overrunning its window
+ * has its stream reset, and that data makes it across intact.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SessionTest extends TestCase {
+    /**
+     * The longest a test waits for the sessions to make progress (in
+     * seconds).
+     */
+    private static final int TIMEOUT = 5;
+
+    /**
+     * The executor running the sessions.
+     */
+    private ThreadPoolExecutor executor;
+
+    /**
+     * The streams accepted by the listening session.
+     */
+    private LinkedBlockingQueue<MuxStream> accepted;
+
+    /**
+     * The stream data written by the dialing session, in bytes.
+     */
+    private AtomicLong dataSent;
+
+    /**
+     * The largest chunk of stream data written by the dialing session, in
+     * bytes.
+     */
+    private AtomicInteger largestChunk;
+
+    /**
+     * The window updates written by the listening session.
+     */
+    private ConcurrentLinkedQueue<Integer> windowUpdates;
+
+    /**
+     * The session dialing the link.
+     */
+    private Session dialer;
+
+    /**
+     * The session listening on the link.
+     */
+    private Session listener;
+
+    /**
+     * Links a dialing and a listening session.
+     */
+    @Override
+    protected void setUp() {
+        this.executor = (ThreadPoolExecutor) Executors.newCachedThreadPool(); // Give each reader its own thread
+        this.accepted = new LinkedBlockingQueue<>(); // Initialize the accepted streams queue
+        this.dataSent = new AtomicLong(); // Nothing has been sent yet
+        this.largestChunk = new AtomicInteger(); // Nothing has been sent yet
+        this.windowUpdates = new ConcurrentLinkedQueue<>(); // Nothing has been granted yet
+
+        LinkedBlockingQueue<byte[]> toDialer = new LinkedBlockingQueue<>(); // The frames sent to the dialer
+        LinkedBlockingQueue<byte[]> toListener = new LinkedBlockingQueue<>(); // The frames sent to the listener
+
+        this.dialer = new Session(end(toDialer, toListener, this.dataSent, this.largestChunk, null), true, null, this.executor).start(); // Start the dialing session
+        this.listener = new Session(end(toListener, toDialer, null, null, this.windowUpdates), false, (Connection conn) -> this.accepted.add((MuxStream) conn), this.executor).start(); // Start the listening session
+    }
+
+    /**
+     * Closes the sessions, and stops the executor once the sessions' readers
+     * have cleaned up after them.
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        this.dialer.close(); // Close the dialing session
+        this.listener.close(); // Close the listening session
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT); // Stop waiting for the readers eventually
+
+        // Wait for the readers to stop
+        while (this.executor.getActiveCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10); // Wait a bit
+        }
+
+        this.executor.shutdownNow(); // Stop the executor
+    }
+
+    /**
+     * Tests that a writer blocks once the window granted by its peer is used
+     * up, and resumes as the peer consumes the data.
+     */
+    public void testWindowBlocksWriter() throws Exception {
+        byte[] data = random(Session.INITIAL_WINDOW + Session.MAX_CHUNK); // Write more than the window
+        MuxStream out = this.dialer.openStream(); // Open a stream
+
+        CompletableFuture<Void> written = CompletableFuture.runAsync(() -> {
+            try {
+                out.write(data); // Write the data
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Fail the write
+            }
+        }, this.executor); // Write on another thread, since the write blocks
+
+        MuxStream in = this.accepted.poll(TIMEOUT, TimeUnit.SECONDS); // Wait for the stream to be accepted
+
+        assertNotNull(in); // Check the stream was accepted
+
+        this.awaitDataSent(Session.INITIAL_WINDOW); // Wait for the window to be used up
+        Thread.sleep(100); // Give the writer a chance to overrun the window
+
+        assertFalse(written.isDone()); // Check the writer is blocked
+        assertEquals(Session.INITIAL_WINDOW, this.dataSent.get()); // Check only the window was sent
+
+        byte[] received = readFully(in, data.length); // Consume the data
+
+        written.get(TIMEOUT, TimeUnit.SECONDS); // Check the writer finished
+        assertTrue(Arrays.equals(data, received)); // Check the data made it across intact
+    }
+
+    /**
+     * Tests that the window is only granted back once half of it has been
+     * consumed.
+     */
+    public void testWindowUpdates() throws Exception {
+        MuxStream out = this.dialer.openStream(); // Open a stream
+        out.write(random(Session.INITIAL_WINDOW / 2)); // Write half of the window
+
+        MuxStream in = this.accepted.poll(TIMEOUT, TimeUnit.SECONDS); // Wait for the stream to be accepted
+
+        readFully(in, Session.INITIAL_WINDOW / 2 - 1); // Consume all but the last byte
+
+        assertTrue(this.windowUpdates.isEmpty()); // Check nothing was granted yet
+
+        readFully(in, 1); // Consume the last byte
+
+        assertEquals(Integer.valueOf(Session.INITIAL_WINDOW / 2), this.windowUpdates.poll()); // Check the consumed half was granted back
+        assertTrue(this.windowUpdates.isEmpty()); // Check only a single update was sent
+    }
+
+    /**
+     * Tests that a peer sending more than its window has the stream reset on
+     * both sides.
+     */
+    public void testOverrunResets() throws Exception {
+        MuxStream out = this.dialer.openStream(); // Open a stream
+
+        this.dialer.writeFrame(out.getId(), Session.DATA, new byte[Session.INITIAL_WINDOW + 1], 0, Session.INITIAL_WINDOW + 1); // Ignore the window
+
+        MuxStream in = this.accepted.poll(TIMEOUT, TimeUnit.SECONDS); // Wait for the stream to be accepted
+
+        assertEquals(-1, in.read()); // Check the stream was reset, and the data discarded
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT); // Stop waiting for the reset eventually
+
+        // Wait for the reset to make it back
+        while (!out.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(10); // Wait a bit
+        }
+
+        try {
+            out.write(1); // Write to the reset stream
+
+            fail("expected the reset stream to refuse writes"); // The stream should have been reset
+        } catch (IOException e) {
+            assertEquals("attempted to write to a closed stream", e.getMessage()); // Check the stream was reset
+        }
+    }
+
+    /**
+     * Tests that data spanning several windows makes it across intact, in
+     * chunks no larger than MAX_CHUNK, and that the stream ends once the
+     * writer closes it.
+     */
+    public void testRoundTrip() throws Exception {
+        byte[] data = random(4 * Session.INITIAL_WINDOW + 123); // Write several windows
+        MuxStream out = this.dialer.openStream(); // Open a stream
+
+        CompletableFuture<Void> written = CompletableFuture.runAsync(() -> {
+            try {
+                out.write(data); // Write the data
+                out.close(); // Finish writing
+            } catch (IOException e) {
+                throw new RuntimeException(e); // Fail the write
+            }
+        }, this.executor); // Write on another thread, since the write blocks
+
+        MuxStream in = this.accepted.poll(TIMEOUT, TimeUnit.SECONDS); // Wait for the stream to be accepted
+
+        assertTrue(Arrays.equals(data, readFully(in, data.length))); // Check the data made it across intact
+        assertEquals(-1, in.read()); // Check the stream ended
+
+        written.get(TIMEOUT, TimeUnit.SECONDS); // Check the writer finished
+        assertEquals(data.length, this.dataSent.get()); // Check nothing more was sent
+        assertEquals(Session.MAX_CHUNK, this.largestChunk.get()); // Check the data was chunked
+    }
+
+    /**
+     * Waits for the dialing session to have sent the given amount of stream
+     * data.
+     *
+     * @param count the number of bytes
+     */
+    private void awaitDataSent(long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT); // Stop waiting eventually
+
+        // Wait for the data to be sent
+        while (this.dataSent.get() < count) {
+            // Check has waited too long
+            if (System.nanoTime() > deadline) {
+                fail(String.format("only %d of %d bytes were sent", this.dataSent.get(), count)); // Fail the test
+            }
+
+            Thread.sleep(10); // Wait a bit
+        }
+    }
+
+    /**
+     * Reads exactly count bytes from a stream.
+     *
+     * @param in the stream to read from
+     * @param count the number of bytes to read
+     * @return the read bytes
+     */
+    private static byte[] readFully(MuxStream in, int count) throws IOException {
+        byte[] b = new byte[count]; // Initialize a buffer for the bytes
+        int read = 0; // The number of bytes read
+
+        // Read until the buffer is full
+        while (read < count) {
+            byte[] chunk = new byte[count - read]; // Initialize a buffer for the rest
+            int n = in.read(chunk); // Read some bytes
+
+            // Check the stream ended early
+            if (n < 0) {
+                fail(String.format("stream ended %d bytes short", count - read)); // Fail the test
+            }
+
+            System.arraycopy(chunk, 0, b, read, n); // Collect the bytes
+            read += n; // Count the bytes
+        }
+
+        return b; // Return the read bytes
+    }
+
+    /**
+     * Generates random data.
+     *
+     * @param length the number of bytes to generate
+     * @return the generated bytes
+     */
+    private static byte[] random(int length) {
+        byte[] data = new byte[length]; // Initialize the data
+        new Random(42).nextBytes(data); // Fill the data
+
+        return data; // Return the data
+    }
+
+    /**
+     * Initializes one end of an in-memory link, which hands each written
+     * frame to the other end. Each MUX frame written is recorded.
+     *
+     * @param in the frames sent to this end
+     * @param out the frames sent to the other end
+     * @param dataSent counts the stream data written (null to not count it)
+     * @param largestChunk tracks the largest chunk of stream data written
+     *                     (null when not counting the stream data)
+     * @param windowUpdates collects the window updates written (null to not
+     *                      collect them)
+     * @return the end of the link
+     */
+    private static Connection end(LinkedBlockingQueue<byte[]> in, LinkedBlockingQueue<byte[]> out, AtomicLong dataSent, AtomicInteger largestChunk, ConcurrentLinkedQueue<Integer> windowUpdates) {
+        return new FakeConnection() {
+            @Override
+            public void writeMessage(Message message) throws IOException {
+                ByteBuffer frame = ByteBuffer.wrap(message.bytes); // Wrap the frame
+
+                Codec.getVarint(frame); // Skip the stream id
+                byte flag = frame.get(); // Read the flag
+
+                // Check should count the stream data
+                if (flag == Session.DATA && dataSent != null) {
+                    dataSent.addAndGet(frame.remaining()); // Count the data
+                    largestChunk.accumulateAndGet(frame.remaining(), Math::max); // Track the largest chunk
+                } else if (flag == Session.WINDOW && windowUpdates != null) {
+                    windowUpdates.add(Codec.getVarint(frame)); // Collect the update
+                }
+
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream(); // The encoded frame
+                Codec.writeFrame(encoded, message); // Encode the frame
+                out.add(encoded.toByteArray()); // Hand the frame to the other end
+            }
+
+            @Override
+            public PooledBuffer readPooledFrame() throws IOException {
+                byte[] next = take(in); // Wait for a frame
+
+                // Check the link has been closed
+                if (next.length == 0) {
+                    in.add(next); // Leave the marker for any later read
+                    throw new IOException("link closed"); // End the connection
+                }
+
+                return Codec.readPooledBody(new ByteArrayInputStream(next)); // Return the frame
+            }
+
+            @Override
+            public void close() {
+                // Check hasn't been closed yet
+                if (this.markClosed()) {
+                    in.add(new byte[0]); // Stop our reader
+                    out.add(new byte[0]); // Stop the other end's reader
+                }
+            }
+        }; // Return the end of the link
+    }
+}
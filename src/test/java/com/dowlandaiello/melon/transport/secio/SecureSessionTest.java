@@ -0,0 +1,211 @@
+package com.dowlandaiello.melon.transport.secio;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that two peers completing the secio handshake agree on a session,
+ * that records round trip through it in both directions, and that a
+ * tampered, replayed, or misdirected record fails authentication.
+ *
+ * @author Dowland Aiello
+ * @since 1.0
+ */
+public class SecureSessionTest extends TestCase {
+    /**
+     * The identity of the dialing peer.
+     */
+    private KeyPair dialerIdentity;
+
+    /**
+     * The identity of the listening peer.
+     */
+    private KeyPair listenerIdentity;
+
+    /**
+     * The dialing peer's end of the session.
+     */
+    private SecureSession dialer;
+
+    /**
+     * The listening peer's end of the session.
+     */
+    private SecureSession listener;
+
+    /**
+     * Generates both identities, and runs the handshake between them.
+     */
+    @Override
+    protected void setUp() throws Exception {
+        this.dialerIdentity = identity(); // Generate the dialer's identity
+        this.listenerIdentity = identity(); // Generate the listener's identity
+
+        SecureSession[] ends = this.handshake(); // Run the handshake
+
+        this.dialer = ends[0]; // Set the dialer's end
+        this.listener = ends[1]; // Set the listener's end
+    }
+
+    /**
+     * Tests that records sealed by either end are opened by the other.
+     */
+    public void testHandshake() throws IOException {
+        byte[] hello = "hello".getBytes(); // The dialer's greeting
+        byte[] reply = "hello yourself".getBytes(); // The listener's reply
+
+        assertTrue(Arrays.equals(hello, open(this.listener, seal(this.dialer, hello)))); // Check the dialer's record was opened
+        assertTrue(Arrays.equals(reply, open(this.dialer, seal(this.listener, reply)))); // Check the listener's record was opened
+    }
+
+    /**
+     * Tests that a run of records of different sizes round trips in order
+     * through the stream wrappers.
+     */
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(42); // Use the same payloads every run
+        byte[][] payloads = new byte[][] {new byte[1], new byte[1000], new byte[64 * 1024], new byte[300 * 1024]}; // Payloads of several sizes
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream(); // The records on the wire
+        OutputStream sealing = this.dialer.sealing(wire); // Wrap the wire
+
+        // Seal each of the payloads
+        for (byte[] payload : payloads) {
+            random.nextBytes(payload); // Fill the payload
+            sealing.write(payload); // Seal the payload
+        }
+
+        sealing.flush(); // Push the records out
+
+        InputStream opening = this.listener.opening(new ByteArrayInputStream(wire.toByteArray())); // Unwrap the wire
+
+        // Open each of the payloads
+        for (byte[] payload : payloads) {
+            byte[] read = new byte[payload.length]; // The opened payload
+            int length = 0; // The number of opened bytes
+
+            // Read until the whole payload has been opened
+            while (length < read.length) {
+                length += opening.read(read, length, read.length - length); // Read some bytes
+            }
+
+            assertTrue(Arrays.equals(payload, read)); // Check the payload round tripped
+        }
+    }
+
+    /**
+     * Tests that flipping a bit anywhere in a record (its length, its
+     * ciphertext, or its tag) makes it fail to open. Each tampered record is
+     * the first opened by a fresh session, so it fails for being tampered
+     * with, rather than for being out of sequence.
+     */
+    public void testTamperedRecord() throws IOException {
+        int length = seal(this.dialer, "transfer 10 melons".getBytes()).length; // Get the length of a record
+
+        // Tamper with each of the bytes of the record
+        for (int i = 0; i < length; i++) {
+            SecureSession[] ends = this.handshake(); // Start a fresh session
+            byte[] record = seal(ends[0], "transfer 10 melons".getBytes()); // Seal the record
+
+            record[i] ^= 0x01; // Flip a bit
+
+            assertFails(ends[1], record); // Check the tampered record is refused
+        }
+    }
+
+    /**
+     * Tests that a replayed record, and a record sealed for the other
+     * direction, fail authentication.
+     */
+    public void testReplayedAndMisdirectedRecords() throws IOException {
+        byte[] record = seal(this.dialer, "once".getBytes()); // Seal a record
+
+        open(this.listener, record); // Open the record
+        assertFails(this.listener, record); // Check replaying it fails
+
+        assertFails(this.dialer, seal(this.dialer, "to myself".getBytes())); // Check a record can't be opened by its sender
+    }
+
+    /**
+     * Runs the handshake between the two identities.
+     *
+     * @return the dialer's and the listener's ends of the session
+     */
+    private SecureSession[] handshake() throws IOException {
+        Secio dialerSecio = new Secio(this.dialerIdentity); // Initialize the dialer's upgrade
+        Secio listenerSecio = new Secio(this.listenerIdentity); // Initialize the listener's upgrade
+
+        KeyPair dialerEphemeral = dialerSecio.generateEphemeralKeyPair(); // Generate the dialer's ephemeral keys
+        KeyPair listenerEphemeral = listenerSecio.generateEphemeralKeyPair(); // Generate the listener's ephemeral keys
+
+        return new SecureSession[] {
+                dialerSecio.establish(dialerEphemeral, this.listenerIdentity.getPublic(), listenerEphemeral.getPublic(), true), // Establish the dialer's end
+                listenerSecio.establish(listenerEphemeral, this.dialerIdentity.getPublic(), dialerEphemeral.getPublic(), false) // Establish the listener's end
+        }; // Return both ends
+    }
+
+    /**
+     * Seals a payload into a single record.
+     *
+     * @param session the session to seal with
+     * @param payload the payload to seal
+     * @return the record
+     */
+    private static byte[] seal(SecureSession session, byte[] payload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(); // The record on the wire
+        session.sealing(out).write(payload); // Seal the payload
+
+        return out.toByteArray(); // Return the record
+    }
+
+    /**
+     * Opens a single record.
+     *
+     * @param session the session to open with
+     * @param record the record
+     * @return the payload
+     */
+    private static byte[] open(SecureSession session, byte[] record) throws IOException {
+        InputStream opening = session.opening(new ByteArrayInputStream(record)); // Unwrap the record
+        byte[] payload = new byte[record.length]; // The payload is shorter than its record
+
+        return Arrays.copyOf(payload, opening.read(payload)); // Open the record
+    }
+
+    /**
+     * Asserts that a record fails to open.
+     *
+     * @param session the session to open with
+     * @param record the record
+     */
+    private static void assertFails(SecureSession session, byte[] record) {
+        try {
+            open(session, record); // Open the record
+
+            fail("a bad record was opened"); // The record should have been refused
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Generates an identity keypair on the secio curve.
+     *
+     * @return the keypair
+     */
+    private static KeyPair identity() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC"); // Get a key pair generator
+        generator.initialize(new ECGenParameterSpec(Secio.CURVE)); // Use the secio curve
+
+        return generator.generateKeyPair(); // Generate the keypair
+    }
+}